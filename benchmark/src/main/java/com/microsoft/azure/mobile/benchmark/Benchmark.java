@@ -0,0 +1,62 @@
+package com.microsoft.azure.mobile.benchmark;
+
+/**
+ * Operation to measure. State is prepared outside of measured time in {@link #setUp()} and
+ * {@link #setUpIteration()}, then each iteration calls {@link #run()} a fixed number of times.
+ */
+public abstract class Benchmark {
+
+    /**
+     * Sink for results so that the JIT cannot skip computing them.
+     */
+    @SuppressWarnings("unused")
+    private volatile int mSink;
+
+    /**
+     * Prepare state once before warmup.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Prepare state before each iteration, not measured.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void setUpIteration() throws Exception {
+    }
+
+    /**
+     * Run the measured operation once.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public abstract void run() throws Exception;
+
+    /**
+     * Clean up after each iteration, not measured.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void tearDownIteration() throws Exception {
+    }
+
+    /**
+     * Release state after the last iteration.
+     *
+     * @throws Exception if an error occurs.
+     */
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Consume a result of the measured operation.
+     *
+     * @param result result to consume.
+     */
+    protected void consume(Object result) {
+        mSink ^= result == null ? 0 : 1;
+    }
+}
@@ -0,0 +1,121 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import android.content.Context;
+
+import com.microsoft.azure.mobile.analytics.ingestion.models.EventLog;
+import com.microsoft.azure.mobile.analytics.ingestion.models.PageLog;
+import com.microsoft.azure.mobile.analytics.ingestion.models.StartSessionLog;
+import com.microsoft.azure.mobile.analytics.ingestion.models.json.EventLogFactory;
+import com.microsoft.azure.mobile.analytics.ingestion.models.json.PageLogFactory;
+import com.microsoft.azure.mobile.analytics.ingestion.models.json.StartSessionLogFactory;
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.ingestion.models.json.ManagedErrorLogFactory;
+import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
+import com.microsoft.azure.mobile.utils.UUIDUtils;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Logs used as benchmark payloads, similar to what the SDK services generate.
+ */
+public final class BenchmarkLogs {
+
+    /**
+     * Number of properties of generated events and pages.
+     */
+    private static final int PROPERTY_COUNT = 5;
+
+    private BenchmarkLogs() {
+    }
+
+    /**
+     * Get a serializer knowing all log types of the SDK.
+     *
+     * @return log serializer.
+     */
+    public static LogSerializer getLogSerializer() {
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(StartSessionLog.TYPE, new StartSessionLogFactory());
+        logSerializer.addLogFactory(EventLog.TYPE, new EventLogFactory());
+        logSerializer.addLogFactory(PageLog.TYPE, new PageLogFactory());
+        logSerializer.addLogFactory(ManagedErrorLog.TYPE, ManagedErrorLogFactory.getInstance());
+        return logSerializer;
+    }
+
+    /**
+     * Get device properties.
+     *
+     * @param context context.
+     * @return device properties.
+     * @throws DeviceInfoHelper.DeviceInfoException if device properties cannot be read.
+     */
+    public static Device getDevice(Context context) throws DeviceInfoHelper.DeviceInfoException {
+        return DeviceInfoHelper.getDeviceInfo(context);
+    }
+
+    /**
+     * Generate an event log.
+     *
+     * @param device device properties, can be null.
+     * @return event log.
+     */
+    public static EventLog generateEventLog(Device device) {
+        EventLog log = new EventLog();
+        log.setId(UUIDUtils.randomUUID());
+        log.setName("benchmarkEvent");
+        log.setProperties(generateProperties());
+        setCommonProperties(log, device);
+        return log;
+    }
+
+    /**
+     * Generate a page log.
+     *
+     * @param device device properties, can be null.
+     * @return page log.
+     */
+    public static PageLog generatePageLog(Device device) {
+        PageLog log = new PageLog();
+        log.setName("BenchmarkActivity");
+        log.setProperties(generateProperties());
+        setCommonProperties(log, device);
+        return log;
+    }
+
+    /**
+     * Generate an error log with a cause and the stack trace of the calling thread.
+     *
+     * @param context context.
+     * @param device  device properties, can be null.
+     * @return error log.
+     */
+    public static ManagedErrorLog generateManagedErrorLog(Context context, Device device) {
+        Thread thread = Thread.currentThread();
+        Map<Thread, StackTraceElement[]> stackTraces = Collections.singletonMap(thread, thread.getStackTrace());
+        Throwable throwable = new IllegalStateException("benchmark", new IOException("cause"));
+        ManagedErrorLog log = ErrorLogHelper.createErrorLog(context, thread, throwable, stackTraces, 0, true);
+        setCommonProperties(log, device);
+        return log;
+    }
+
+    private static Map<String, String> generateProperties() {
+        Map<String, String> properties = new HashMap<>();
+        for (int i = 0; i < PROPERTY_COUNT; i++)
+            properties.put("key" + i, "value" + i);
+        return properties;
+    }
+
+    private static void setCommonProperties(Log log, Device device) {
+        log.setToffset(System.currentTimeMillis());
+        log.setSid(UUIDUtils.randomUUID());
+        log.setDevice(device);
+    }
+}
@@ -0,0 +1,69 @@
+package com.microsoft.azure.mobile.benchmark;
+
+import java.util.Locale;
+
+/**
+ * Measured iterations of a benchmark.
+ */
+public class BenchmarkResult {
+
+    /**
+     * Benchmark name.
+     */
+    private final String mName;
+
+    /**
+     * Average time per operation of each measured iteration, in nanoseconds.
+     */
+    private final double[] mNanosPerOperation;
+
+    BenchmarkResult(String name, double[] nanosPerOperation) {
+        mName = name;
+        mNanosPerOperation = nanosPerOperation;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get mean time per operation over all iterations.
+     *
+     * @return time in nanoseconds.
+     */
+    public double getMean() {
+        double sum = 0;
+        for (double value : mNanosPerOperation)
+            sum += value;
+        return sum / mNanosPerOperation.length;
+    }
+
+    /**
+     * Get standard deviation of time per operation between iterations.
+     *
+     * @return time in nanoseconds.
+     */
+    public double getStandardDeviation() {
+        if (mNanosPerOperation.length < 2)
+            return 0;
+        double mean = getMean();
+        double sum = 0;
+        for (double value : mNanosPerOperation)
+            sum += (value - mean) * (value - mean);
+        return Math.sqrt(sum / (mNanosPerOperation.length - 1));
+    }
+
+    /**
+     * Get throughput derived from the mean time per operation.
+     *
+     * @return operations per second.
+     */
+    public double getThroughput() {
+        return 1e9 / getMean();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%-64s %4d %16.1f ± %12.1f ns/op %14.1f ops/s", mName, mNanosPerOperation.length, getMean(), getStandardDeviation(), getThroughput());
+    }
+}
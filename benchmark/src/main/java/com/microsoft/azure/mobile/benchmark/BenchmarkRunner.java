@@ -0,0 +1,84 @@
+package com.microsoft.azure.mobile.benchmark;
+
+/**
+ * Runs benchmarks with warmup iterations followed by measured iterations, and prints results.
+ * Iteration counts can be overridden with the benchmark.warmupIterations and
+ * benchmark.iterations system properties.
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * Default number of warmup iterations.
+     */
+    private static final int DEFAULT_WARMUP_ITERATIONS = 5;
+
+    /**
+     * Default number of measured iterations.
+     */
+    private static final int DEFAULT_ITERATIONS = 10;
+
+    private BenchmarkRunner() {
+    }
+
+    /**
+     * Get an integer list from a comma separated system property.
+     *
+     * @param name         property name.
+     * @param defaultValue value to use when property is not set.
+     * @return parsed values.
+     */
+    public static int[] getIntegers(String name, int... defaultValue) {
+        String property = System.getProperty(name);
+        if (property == null || property.trim().isEmpty())
+            return defaultValue;
+        String[] values = property.split(",");
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            result[i] = Integer.parseInt(values[i].trim());
+        return result;
+    }
+
+    /**
+     * Run a benchmark.
+     *
+     * @param name                   benchmark name.
+     * @param operationsPerIteration number of operations per iteration.
+     * @param benchmark              benchmark to run.
+     * @return result.
+     * @throws Exception if the benchmark fails.
+     */
+    public static BenchmarkResult run(String name, int operationsPerIteration, Benchmark benchmark) throws Exception {
+        int warmupIterations = getIntegers("benchmark.warmupIterations", DEFAULT_WARMUP_ITERATIONS)[0];
+        int iterations = getIntegers("benchmark.iterations", DEFAULT_ITERATIONS)[0];
+        double[] nanosPerOperation = new double[iterations];
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < warmupIterations; i++)
+                runIteration(operationsPerIteration, benchmark);
+            for (int i = 0; i < iterations; i++)
+                nanosPerOperation[i] = (double) runIteration(operationsPerIteration, benchmark) / operationsPerIteration;
+        } finally {
+            benchmark.tearDown();
+        }
+        BenchmarkResult result = new BenchmarkResult(name, nanosPerOperation);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Run one iteration.
+     *
+     * @return measured time in nanoseconds.
+     */
+    private static long runIteration(int operations, Benchmark benchmark) throws Exception {
+        benchmark.setUpIteration();
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++)
+                benchmark.run();
+            return System.nanoTime() - start;
+        } finally {
+            benchmark.tearDownIteration();
+        }
+    }
+}
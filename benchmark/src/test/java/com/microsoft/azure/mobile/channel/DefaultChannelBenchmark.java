@@ -0,0 +1,205 @@
+package com.microsoft.azure.mobile.channel;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.microsoft.azure.mobile.benchmark.Benchmark;
+import com.microsoft.azure.mobile.benchmark.BenchmarkLogs;
+import com.microsoft.azure.mobile.benchmark.BenchmarkRunner;
+import com.microsoft.azure.mobile.ingestion.Ingestion;
+import com.microsoft.azure.mobile.ingestion.ServiceCall;
+import com.microsoft.azure.mobile.ingestion.ServiceCallback;
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.ingestion.models.LogContainer;
+import com.microsoft.azure.mobile.persistence.DatabasePersistence;
+import com.microsoft.azure.mobile.utils.UUIDUtils;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RoboSettings;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.util.Scheduler;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures enqueue throughput end to end: persisting, batching and deleting sent batches.
+ * Persistence runs inline on the calling thread under Robolectric, so the cost of the
+ * database thread is included in each operation, unless the scheduler is paused.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DefaultChannelBenchmark {
+
+    private static final String DATABASE = "com.microsoft.azure.mobile.persistence";
+
+    private static final String GROUP = "benchmark";
+
+    private static final int OPERATIONS = 1000;
+
+    private Context mContext;
+
+    private Device mDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        StorageHelper.initialize(mContext);
+        mDevice = BenchmarkLogs.getDevice(mContext);
+        deleteDatabases();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDatabases();
+    }
+
+    private void deleteDatabases() {
+        mContext.deleteDatabase(DATABASE);
+        mContext.deleteDatabase(DATABASE + ".devices");
+    }
+
+    @Test
+    public void enqueue() throws Exception {
+        run("DefaultChannel.enqueue[listener=false]", null);
+        run("DefaultChannel.enqueue[listener=true]", new EmptyGroupListener());
+    }
+
+    /**
+     * Time spent on the calling thread, usually the main thread, by enqueue. Work posted to
+     * other threads is held by pausing the scheduler and is run between iterations.
+     */
+    @Test
+    public void enqueueCallingThreadTime() throws Exception {
+        RoboSettings.setUseGlobalScheduler(true);
+        try {
+            runOnPausedScheduler("DefaultChannel.enqueue.callingThread[channelThread=false]", null);
+            HandlerThread thread = new HandlerThread(DefaultChannel.CHANNEL_THREAD_NAME);
+            thread.start();
+            try {
+                runOnPausedScheduler("DefaultChannel.enqueue.callingThread[channelThread=true]", new Handler(thread.getLooper()));
+            } finally {
+                thread.quit();
+            }
+        } finally {
+            RoboSettings.setUseGlobalScheduler(false);
+        }
+    }
+
+    private void run(String name, Channel.GroupListener listener) throws Exception {
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(BenchmarkLogs.getLogSerializer());
+        StubIngestion ingestion = new StubIngestion();
+        final DefaultChannel channel = new DefaultChannel(mContext, UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup(GROUP, 50, 3000, 3, listener);
+        try {
+            final Log log = BenchmarkLogs.generateEventLog(mDevice);
+            BenchmarkRunner.run(name, OPERATIONS, new Benchmark() {
+
+                @Override
+                public void run() {
+                    channel.enqueue(log, GROUP);
+                }
+            });
+
+            /* Check we measured sending as well. */
+            assertTrue(ingestion.mSentLogCount > 0);
+        } finally {
+            channel.removeGroup(GROUP);
+            persistence.close();
+            deleteDatabases();
+        }
+    }
+
+    private void runOnPausedScheduler(String name, Handler channelHandler) throws Exception {
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(BenchmarkLogs.getLogSerializer());
+        final DefaultChannel channel = new DefaultChannel(mContext, UUIDUtils.randomUUID().toString(), persistence, new StubIngestion(), channelHandler);
+        channel.addGroup(GROUP, 50, 3000, 3, null);
+        final Scheduler scheduler = Robolectric.getForegroundThreadScheduler();
+        try {
+            final Log log = BenchmarkLogs.generateEventLog(mDevice);
+            BenchmarkRunner.run(name, OPERATIONS, new Benchmark() {
+
+                @Override
+                public void setUpIteration() {
+                    scheduler.pause();
+                }
+
+                @Override
+                public void run() {
+                    channel.enqueue(log, GROUP);
+                }
+
+                @Override
+                public void tearDownIteration() {
+                    scheduler.unPause();
+                }
+            });
+        } finally {
+            scheduler.unPause();
+            channel.removeGroup(GROUP);
+            persistence.close();
+            deleteDatabases();
+        }
+    }
+
+    /**
+     * Ingestion accepting all batches immediately.
+     */
+    private static class StubIngestion implements Ingestion {
+
+        private int mSentLogCount;
+
+        @Override
+        public ServiceCall sendAsync(String appSecret, UUID installId, LogContainer logContainer, ServiceCallback serviceCallback) {
+            mSentLogCount += logContainer.getRawLogs() != null ? logContainer.getRawLogs().size() : logContainer.getLogs().size();
+            serviceCallback.onCallSucceeded();
+            return new ServiceCall() {
+
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+
+        @Override
+        public void setServerUrl(String serverUrl) {
+        }
+
+        @Override
+        public void setCompressionThreshold(int threshold) {
+        }
+
+        @Override
+        public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class EmptyGroupListener implements Channel.GroupListener {
+
+        @Override
+        public void onBeforeSending(Log log) {
+        }
+
+        @Override
+        public void onSuccess(Log log) {
+        }
+
+        @Override
+        public void onFailure(Log log, Exception e) {
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.microsoft.azure.mobile.crashes;
+
+import android.content.Context;
+
+import com.microsoft.azure.mobile.benchmark.Benchmark;
+import com.microsoft.azure.mobile.benchmark.BenchmarkLogs;
+import com.microsoft.azure.mobile.benchmark.BenchmarkRunner;
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.utils.CrashRecorder;
+import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.IOException;
+
+@RunWith(RobolectricTestRunner.class)
+public class CrashCaptureBenchmark {
+
+    /**
+     * Depth of the crashing stack.
+     */
+    private static final int STACK_DEPTH = 100;
+
+    /**
+     * A crash is captured once per process, measure one capture per iteration.
+     */
+    private static final int OPERATIONS = 1;
+
+    private Context mContext;
+
+    private File mDirectory;
+
+    private Throwable mThrowable;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        mDirectory = new File(mContext.getFilesDir(), "benchmark-crashes");
+        StorageHelper.InternalStorage.mkdir(mDirectory.getAbsolutePath());
+        mThrowable = generateThrowable(STACK_DEPTH);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null)
+            for (File file : files)
+                StorageHelper.InternalStorage.delete(file);
+        StorageHelper.InternalStorage.delete(mDirectory);
+    }
+
+    @Test
+    public void captureCrash() throws Exception {
+        final Thread thread = Thread.currentThread();
+        final LogSerializer logSerializer = BenchmarkLogs.getLogSerializer();
+
+        /* What the uncaught exception handler does by default. */
+        BenchmarkRunner.run("CrashCapture.createErrorLog[depth=" + STACK_DEPTH + "]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void run() throws Exception {
+                ManagedErrorLog errorLog = ErrorLogHelper.createErrorLog(mContext, thread, mThrowable, Thread.getAllStackTraces(), 0, true);
+                String filename = errorLog.getId().toString();
+                StorageHelper.InternalStorage.write(new File(mDirectory, filename + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION), logSerializer.serializeLog(errorLog));
+                StorageHelper.InternalStorage.writeObject(new File(mDirectory, filename + ErrorLogHelper.THROWABLE_FILE_EXTENSION), mThrowable);
+            }
+
+            @Override
+            public void tearDownIteration() {
+                tearDown();
+                StorageHelper.InternalStorage.mkdir(mDirectory.getAbsolutePath());
+            }
+        });
+
+        /* Pre-armed capture, arming is not measured. */
+        BenchmarkRunner.run("CrashCapture.record[depth=" + STACK_DEPTH + "]", OPERATIONS, new Benchmark() {
+
+            private CrashRecorder mCrashRecorder;
+
+            @Override
+            public void setUpIteration() throws Exception {
+                mCrashRecorder = CrashRecorder.arm(mContext, mDirectory, 0);
+            }
+
+            @Override
+            public void run() throws Exception {
+                consume(mCrashRecorder.record(thread, mThrowable));
+            }
+
+            @Override
+            public void tearDownIteration() {
+                mCrashRecorder.disarm();
+                tearDown();
+                StorageHelper.InternalStorage.mkdir(mDirectory.getAbsolutePath());
+            }
+        });
+
+        /* Conversion on next launch, for reference. */
+        BenchmarkRunner.run("CrashCapture.readRecords[depth=" + STACK_DEPTH + "]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void setUpIteration() throws Exception {
+                CrashRecorder crashRecorder = CrashRecorder.arm(mContext, mDirectory, 0);
+                crashRecorder.record(thread, mThrowable);
+                crashRecorder.disarm();
+            }
+
+            @Override
+            public void run() throws Exception {
+                consume(CrashRecorder.readRecords(mDirectory));
+            }
+
+            @Override
+            public void tearDownIteration() {
+                tearDown();
+                StorageHelper.InternalStorage.mkdir(mDirectory.getAbsolutePath());
+            }
+        });
+    }
+
+    private static Throwable generateThrowable(int depth) {
+        if (depth == 0)
+            return new IllegalStateException("benchmark", new IOException("cause"));
+        return generateThrowable(depth - 1);
+    }
+}
@@ -0,0 +1,141 @@
+package com.microsoft.azure.mobile.crashes;
+
+import android.content.Context;
+
+import com.microsoft.azure.mobile.benchmark.Benchmark;
+import com.microsoft.azure.mobile.benchmark.BenchmarkLogs;
+import com.microsoft.azure.mobile.benchmark.BenchmarkRunner;
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RunWith(RobolectricTestRunner.class)
+public class ThreadDumpBenchmark {
+
+    /**
+     * Frames shared by idle threads, bottom of the stack last.
+     */
+    private static final String[][] IDLE_STACKS = {
+            {"android.os.MessageQueue.nativePollOnce", "android.os.MessageQueue.next", "android.os.Looper.loop", "android.os.HandlerThread.run"},
+            {"java.lang.Object.wait", "java.util.concurrent.locks.LockSupport.park", "java.util.concurrent.LinkedBlockingQueue.take", "java.util.concurrent.ThreadPoolExecutor.getTask", "java.util.concurrent.ThreadPoolExecutor.runWorker", "java.util.concurrent.ThreadPoolExecutor$Worker.run", "java.lang.Thread.run"},
+            {"java.lang.Thread.sleep", "com.example.app.sync.SyncWorker.idle", "com.example.app.sync.SyncWorker.run", "java.lang.Thread.run"}
+    };
+
+    /**
+     * Application frames on top of idle stacks, so that threads are similar but not identical.
+     */
+    private static final int APP_FRAMES = 20;
+
+    /**
+     * Operations per iteration.
+     */
+    private static final int OPERATIONS = 10;
+
+    private LogSerializer mLogSerializer;
+
+    private Context mContext;
+
+    private int[] mThreadCounts;
+
+    @Before
+    public void setUp() throws Exception {
+        mLogSerializer = BenchmarkLogs.getLogSerializer();
+        mContext = RuntimeEnvironment.application;
+        mThreadCounts = BenchmarkRunner.getIntegers("benchmark.threadCounts", 20, 150);
+    }
+
+    @Test
+    public void threadDump() throws Exception {
+        for (int threadCount : mThreadCounts)
+            run(threadCount);
+    }
+
+    private void run(int threadCount) throws Exception {
+        final Map<Thread, StackTraceElement[]> threadDump = generateThreadDump(threadCount);
+        final Thread thread = threadDump.keySet().iterator().next();
+        final Throwable throwable = new IllegalStateException("benchmark");
+        final ManagedErrorLog errorLog = ErrorLogHelper.createErrorLog(mContext, thread, throwable, threadDump, 0, true);
+        final String json = mLogSerializer.serializeLog(errorLog);
+        errorLog.setCompactFrames(true);
+        final String compactJson = mLogSerializer.serializeLog(errorLog);
+        errorLog.setCompactFrames(false);
+        System.out.println("ThreadDump.size[threads=" + threadCount + "] full=" + json.length() + " chars, compact=" + compactJson.length() + " chars");
+
+        /* Building the log, frames are interned. */
+        BenchmarkRunner.run("ThreadDump.createErrorLog[threads=" + threadCount + "]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void run() throws Exception {
+                consume(ErrorLogHelper.createErrorLog(mContext, thread, throwable, threadDump, 0, true));
+            }
+        });
+
+        /* Ingestion payload vs stored file. */
+        BenchmarkRunner.run("ThreadDump.serializeLog[threads=" + threadCount + ",full]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void run() throws Exception {
+                consume(mLogSerializer.serializeLog(errorLog));
+            }
+        });
+        BenchmarkRunner.run("ThreadDump.serializeLog[threads=" + threadCount + ",compact]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void setUpIteration() {
+                errorLog.setCompactFrames(true);
+            }
+
+            @Override
+            public void run() throws Exception {
+                consume(mLogSerializer.serializeLog(errorLog));
+            }
+
+            @Override
+            public void tearDownIteration() {
+                errorLog.setCompactFrames(false);
+            }
+        });
+        BenchmarkRunner.run("ThreadDump.deserializeLog[threads=" + threadCount + ",full]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void run() throws Exception {
+                consume(mLogSerializer.deserializeLog(json));
+            }
+        });
+        BenchmarkRunner.run("ThreadDump.deserializeLog[threads=" + threadCount + ",compact]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void run() throws Exception {
+                consume(mLogSerializer.deserializeLog(compactJson));
+            }
+        });
+    }
+
+    private static Map<Thread, StackTraceElement[]> generateThreadDump(int threadCount) {
+        Map<Thread, StackTraceElement[]> threadDump = new LinkedHashMap<>(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            String[] idleStack = IDLE_STACKS[i % IDLE_STACKS.length];
+            int appFrames = i % APP_FRAMES;
+            StackTraceElement[] stackTrace = new StackTraceElement[appFrames + idleStack.length];
+            for (int j = 0; j < appFrames; j++)
+                stackTrace[j] = new StackTraceElement("com.example.app.feature" + j % 4 + ".Component" + j, "handle", "Component" + j + ".java", 100 + j);
+            for (int j = 0; j < idleStack.length; j++) {
+                String frame = idleStack[j];
+                int separator = frame.lastIndexOf('.');
+                String className = frame.substring(0, separator);
+                stackTrace[appFrames + j] = new StackTraceElement(className, frame.substring(separator + 1), className.substring(className.lastIndexOf('.') + 1) + ".java", 10 * j + 1);
+            }
+            threadDump.put(new Thread("benchmark-" + i), stackTrace);
+        }
+        return threadDump;
+    }
+}
@@ -0,0 +1,98 @@
+package com.microsoft.azure.mobile.ingestion.models.json;
+
+import android.content.Context;
+
+import com.microsoft.azure.mobile.benchmark.Benchmark;
+import com.microsoft.azure.mobile.benchmark.BenchmarkLogs;
+import com.microsoft.azure.mobile.benchmark.BenchmarkRunner;
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.ingestion.models.LogContainer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class LogSerializerBenchmark {
+
+    /**
+     * Number of logs in a container, default batch size of analytics.
+     */
+    private static final int CONTAINER_SIZE = 50;
+
+    /**
+     * Operations per iteration.
+     */
+    private static final int OPERATIONS = 1000;
+
+    private LogSerializer mLogSerializer;
+
+    private Context mContext;
+
+    private Device mDevice;
+
+    @Before
+    public void setUp() throws Exception {
+        mLogSerializer = BenchmarkLogs.getLogSerializer();
+        mContext = RuntimeEnvironment.application;
+        mDevice = BenchmarkLogs.getDevice(mContext);
+    }
+
+    @Test
+    public void eventLog() throws Exception {
+        List<Log> logs = new ArrayList<>(CONTAINER_SIZE);
+        for (int i = 0; i < CONTAINER_SIZE; i++)
+            logs.add(BenchmarkLogs.generateEventLog(mDevice));
+        run("event", logs);
+    }
+
+    @Test
+    public void pageLog() throws Exception {
+        List<Log> logs = new ArrayList<>(CONTAINER_SIZE);
+        for (int i = 0; i < CONTAINER_SIZE; i++)
+            logs.add(BenchmarkLogs.generatePageLog(mDevice));
+        run("page", logs);
+    }
+
+    @Test
+    public void managedErrorLog() throws Exception {
+        List<Log> logs = new ArrayList<>(CONTAINER_SIZE);
+        for (int i = 0; i < CONTAINER_SIZE; i++)
+            logs.add(BenchmarkLogs.generateManagedErrorLog(mContext, mDevice));
+        run("managedError", logs);
+    }
+
+    private void run(String type, final List<Log> logs) throws Exception {
+        final Log log = logs.get(0);
+        final String json = mLogSerializer.serializeLog(log);
+        final LogContainer container = new LogContainer();
+        container.setLogs(logs);
+        BenchmarkRunner.run("LogSerializer.serializeLog[" + type + "]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void run() throws Exception {
+                consume(mLogSerializer.serializeLog(log));
+            }
+        });
+        BenchmarkRunner.run("LogSerializer.deserializeLog[" + type + "]", OPERATIONS, new Benchmark() {
+
+            @Override
+            public void run() throws Exception {
+                consume(mLogSerializer.deserializeLog(json));
+            }
+        });
+        BenchmarkRunner.run("LogSerializer.serializeContainer[" + type + ",logs=" + CONTAINER_SIZE + "]", OPERATIONS / CONTAINER_SIZE, new Benchmark() {
+
+            @Override
+            public void run() throws Exception {
+                consume(mLogSerializer.serializeContainer(container));
+            }
+        });
+    }
+}
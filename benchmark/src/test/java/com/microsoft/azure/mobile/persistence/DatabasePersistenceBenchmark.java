@@ -0,0 +1,197 @@
+package com.microsoft.azure.mobile.persistence;
+
+import android.content.Context;
+
+import com.microsoft.azure.mobile.benchmark.Benchmark;
+import com.microsoft.azure.mobile.benchmark.BenchmarkLogs;
+import com.microsoft.azure.mobile.benchmark.BenchmarkRunner;
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+@RunWith(RobolectricTestRunner.class)
+public class DatabasePersistenceBenchmark {
+
+    private static final String DATABASE = "benchmark-persistence";
+
+    private static final String TABLE = "logs";
+
+    private static final String GROUP = "benchmark";
+
+    /**
+     * Batch size read by the channel for analytics.
+     */
+    private static final int BATCH_SIZE = 50;
+
+    /**
+     * Batch sizes of deletes after a batch is sent.
+     */
+    private static final int[] DELETE_BATCH_SIZES = {50, 100, 200, 500};
+
+    /**
+     * Number of logs written per transaction when filling the backlog.
+     */
+    private static final int FILL_CHUNK_SIZE = 1000;
+
+    /**
+     * Room above the backlog so that logs added while measuring do not purge the oldest ones.
+     */
+    private static final int CAPACITY_MARGIN = 100000;
+
+    private Context mContext;
+
+    private Device mDevice;
+
+    private int[] mBacklogSizes;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = RuntimeEnvironment.application;
+        StorageHelper.initialize(mContext);
+        mDevice = BenchmarkLogs.getDevice(mContext);
+        mBacklogSizes = BenchmarkRunner.getIntegers("benchmark.backlogSizes", 1000, 10000, 100000);
+        deleteDatabases();
+    }
+
+    @After
+    public void tearDown() {
+        deleteDatabases();
+    }
+
+    private void deleteDatabases() {
+        mContext.deleteDatabase(DATABASE);
+        mContext.deleteDatabase(DATABASE + ".devices");
+    }
+
+    /**
+     * Create a persistence containing a backlog of event logs.
+     */
+    private DatabasePersistence createPersistence(int backlogSize) throws Persistence.PersistenceException {
+        DatabasePersistence persistence = new DatabasePersistence(DATABASE, TABLE, 1, backlogSize + CAPACITY_MARGIN);
+        persistence.setLogSerializer(BenchmarkLogs.getLogSerializer());
+        fill(persistence, backlogSize);
+        return persistence;
+    }
+
+    private void fill(DatabasePersistence persistence, int count) throws Persistence.PersistenceException {
+        while (count > 0) {
+            int size = Math.min(count, FILL_CHUNK_SIZE);
+            List<Log> logs = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                logs.add(BenchmarkLogs.generateEventLog(mDevice));
+            persistence.putLogs(GROUP, logs);
+            count -= size;
+        }
+    }
+
+    private void close(DatabasePersistence persistence) throws Exception {
+        persistence.close();
+        deleteDatabases();
+    }
+
+    @Test
+    public void putLog() throws Exception {
+        for (int backlogSize : mBacklogSizes) {
+            final DatabasePersistence persistence = createPersistence(backlogSize);
+            try {
+                final Log log = BenchmarkLogs.generateEventLog(mDevice);
+                BenchmarkRunner.run("DatabasePersistence.putLog[backlog=" + backlogSize + "]", 100, new Benchmark() {
+
+                    @Override
+                    public void run() throws Exception {
+                        persistence.putLog(GROUP, log);
+                    }
+                });
+            } finally {
+                close(persistence);
+            }
+        }
+    }
+
+    @Test
+    public void getLogs() throws Exception {
+        for (int backlogSize : mBacklogSizes) {
+            final DatabasePersistence persistence = createPersistence(backlogSize);
+            try {
+                int batches = Math.min(backlogSize / BATCH_SIZE, 20);
+                BenchmarkRunner.run("DatabasePersistence.getLogs[backlog=" + backlogSize + ",limit=" + BATCH_SIZE + "]", batches, new Benchmark() {
+
+                    @Override
+                    public void setUpIteration() {
+                        persistence.clearPendingLogState();
+                    }
+
+                    @Override
+                    public void run() throws Exception {
+                        List<Log> logs = new ArrayList<>(BATCH_SIZE);
+                        consume(persistence.getLogs(GROUP, BATCH_SIZE, logs));
+                    }
+                });
+                BenchmarkRunner.run("DatabasePersistence.getRawLogs[backlog=" + backlogSize + ",limit=" + BATCH_SIZE + "]", batches, new Benchmark() {
+
+                    @Override
+                    public void setUpIteration() {
+                        persistence.clearPendingLogState();
+                    }
+
+                    @Override
+                    public void run() throws Exception {
+                        List<String> rawLogs = new ArrayList<>(BATCH_SIZE);
+                        consume(persistence.getRawLogs(GROUP, BATCH_SIZE, rawLogs));
+                    }
+                });
+            } finally {
+                close(persistence);
+            }
+        }
+    }
+
+    @Test
+    public void deleteLogs() throws Exception {
+        for (int backlogSize : mBacklogSizes) {
+            for (final int batchSize : DELETE_BATCH_SIZES) {
+                if (batchSize > backlogSize)
+                    continue;
+                final DatabasePersistence persistence = createPersistence(backlogSize);
+                try {
+                    final int batches = Math.max(1, Math.min(5, backlogSize / batchSize / 2));
+                    final Queue<String> batchIds = new ArrayDeque<>(batches);
+                    BenchmarkRunner.run("DatabasePersistence.deleteLogs[backlog=" + backlogSize + ",batch=" + batchSize + "]", batches, new Benchmark() {
+
+                        @Override
+                        public void setUpIteration() {
+                            for (int i = 0; i < batches; i++)
+                                batchIds.add(persistence.getLogs(GROUP, batchSize, new ArrayList<Log>(batchSize)));
+                        }
+
+                        @Override
+                        public void run() {
+                            persistence.deleteLogs(GROUP, batchIds.remove());
+                        }
+
+                        @Override
+                        public void tearDownIteration() throws Exception {
+
+                            /* Keep the backlog size stable. */
+                            fill(persistence, batches * batchSize);
+                        }
+                    });
+                } finally {
+                    close(persistence);
+                }
+            }
+        }
+    }
+}
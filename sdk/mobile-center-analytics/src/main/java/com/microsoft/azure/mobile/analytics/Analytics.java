@@ -15,6 +15,8 @@ import com.microsoft.azure.mobile.analytics.ingestion.models.StartSessionLog;
 import com.microsoft.azure.mobile.analytics.ingestion.models.json.EventLogFactory;
 import com.microsoft.azure.mobile.analytics.ingestion.models.json.PageLogFactory;
 import com.microsoft.azure.mobile.analytics.ingestion.models.json.StartSessionLogFactory;
+import com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy;
+import com.microsoft.azure.mobile.channel.BatchPolicy;
 import com.microsoft.azure.mobile.channel.Channel;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.LogFactory;
@@ -45,6 +47,16 @@ public class Analytics extends AbstractMobileCenterService {
      */
     private static final String ANALYTICS_GROUP = "group_analytics";
 
+    /**
+     * Maximum number of logs per request when draining a backlog.
+     */
+    private static final int MAX_TRIGGER_COUNT = 500;
+
+    /**
+     * Maximum number of requests being sent in parallel when draining a backlog.
+     */
+    private static final int MAX_TRIGGER_MAX_PARALLEL_REQUESTS = 6;
+
     /**
      * Activity suffix to exclude from generated page names.
      */
@@ -286,9 +298,21 @@ public class Analytics extends AbstractMobileCenterService {
         applyEnabledState(enabled);
     }
 
+    @Override
+    protected BatchPolicy getBatchPolicy() {
+        return new AdaptiveBatchPolicy(getTriggerCount(), MAX_TRIGGER_COUNT, getTriggerMaxBytes(), getTriggerInterval(), getTriggerMaxParallelRequests(), MAX_TRIGGER_MAX_PARALLEL_REQUESTS);
+    }
+
     @Override
     protected Channel.GroupListener getChannelListener() {
-        return new Channel.GroupListener() {
+        return new Channel.LazyGroupListener() {
+
+            /* Logs are only needed to call the custom listener. */
+            @Override
+            public boolean needsLogs() {
+                return mAnalyticsListener != null;
+            }
+
             @Override
             public void onBeforeSending(Log log) {
                 if (mAnalyticsListener != null) {
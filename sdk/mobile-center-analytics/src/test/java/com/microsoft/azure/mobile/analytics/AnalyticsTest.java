@@ -12,6 +12,7 @@ import com.microsoft.azure.mobile.analytics.ingestion.models.StartSessionLog;
 import com.microsoft.azure.mobile.analytics.ingestion.models.json.EventLogFactory;
 import com.microsoft.azure.mobile.analytics.ingestion.models.json.PageLogFactory;
 import com.microsoft.azure.mobile.analytics.ingestion.models.json.StartSessionLogFactory;
+import com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy;
 import com.microsoft.azure.mobile.channel.Channel;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.LogFactory;
@@ -42,7 +43,6 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
-import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
@@ -238,7 +238,7 @@ public class AnalyticsTest {
         assertTrue(Analytics.isEnabled());
         Analytics.setEnabled(true);
         assertTrue(Analytics.isEnabled());
-        verify(channel).addGroup(eq(analytics.getGroupName()), anyInt(), anyInt(), anyInt(), any(Channel.GroupListener.class));
+        verify(channel).addGroup(eq(analytics.getGroupName()), any(AdaptiveBatchPolicy.class), eq(Channel.PRIORITY_DEFAULT), any(Channel.GroupListener.class));
         verify(channel).addListener(any(SessionTracker.class));
         Analytics.trackEvent("test");
         Analytics.trackPage("test");
@@ -378,6 +378,17 @@ public class AnalyticsTest {
         verify(analyticsListener, never()).onSendingFailed(any(EventLog.class), any(Exception.class));
     }
 
+    @Test
+    public void channelListenerNeedsLogsOnlyWithAnalyticsListener() {
+        Channel.LazyGroupListener listener = (Channel.LazyGroupListener) Analytics.getInstance().getChannelListener();
+        Analytics.setListener(null);
+        assertFalse(listener.needsLogs());
+        Analytics.setListener(mock(AnalyticsListener.class));
+        assertTrue(listener.needsLogs());
+        Analytics.setListener(null);
+        assertFalse(listener.needsLogs());
+    }
+
     /**
      * Activity with page name automatically resolving to "My" (no "Activity" suffix).
      */
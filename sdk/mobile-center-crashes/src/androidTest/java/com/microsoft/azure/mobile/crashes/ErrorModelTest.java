@@ -15,12 +15,19 @@ import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
 import org.json.JSONException;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
 import static com.microsoft.azure.mobile.test.TestUtils.checkEquals;
 import static com.microsoft.azure.mobile.test.TestUtils.checkNotEquals;
 import static com.microsoft.azure.mobile.test.TestUtils.compareSelfNullClass;
 import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 @SuppressWarnings("unused")
 public class ErrorModelTest {
@@ -540,6 +547,53 @@ public class ErrorModelTest {
         checkSerialization(errorLog1, serializer);
     }
 
+    @Test
+    public void compactFrames() throws JSONException {
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(ManagedErrorLog.TYPE, ManagedErrorLogFactory.getInstance());
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(UUID.randomUUID());
+        errorLog.setProcessId(1);
+        errorLog.setProcessName("process");
+        errorLog.setFatal(true);
+        errorLog.setErrorThreadName("main");
+        errorLog.setToffset(1);
+        StackFrame frame1 = new StackFrame();
+        frame1.setClassName("a.A");
+        frame1.setMethodName("run");
+        frame1.setFileName("A.java");
+        frame1.setLineNumber(1);
+        StackFrame frame2 = new StackFrame();
+        frame2.setClassName("a.A");
+        frame2.setMethodName("loop");
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Thread thread = new Thread();
+            thread.setId(i);
+            thread.setName("thread" + i);
+            thread.setFrames(Arrays.asList(frame1, frame2, frame1));
+            threads.add(thread);
+        }
+        Thread noFrames = new Thread();
+        noFrames.setId(10);
+        threads.add(noFrames);
+        errorLog.setThreads(threads);
+        String payload = serializer.serializeLog(errorLog);
+
+        /* Compact format is smaller and reads back the same threads. */
+        errorLog.setCompactFrames(true);
+        String compactPayload = serializer.serializeLog(errorLog);
+        assertTrue(compactPayload.length() < payload.length());
+        assertTrue(compactPayload.contains("frame_table"));
+        ManagedErrorLog deserializedLog = (ManagedErrorLog) serializer.deserializeLog(compactPayload);
+        checkEquals(errorLog, deserializedLog);
+        assertFalse(deserializedLog.isCompactFrames());
+        assertSame(deserializedLog.getThreads().get(0).getFrames().get(0), deserializedLog.getThreads().get(1).getFrames().get(2));
+
+        /* Log read back from the compact format is sent with the regular schema. */
+        assertEquals(payload, serializer.serializeLog(deserializedLog));
+    }
+
     private static class MockErrorLog extends AbstractErrorLog {
 
         @Override
@@ -0,0 +1,195 @@
+package com.microsoft.azure.mobile.crashes.utils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+
+import com.microsoft.azure.mobile.Constants;
+import com.microsoft.azure.mobile.crashes.ingestion.models.Exception;
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.ingestion.models.StackFrame;
+import com.microsoft.azure.mobile.utils.UUIDUtils;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@SuppressWarnings("unused")
+public class CrashRecorderAndroidTest {
+
+    private static Context sContext;
+
+    private File mErrorDirectory;
+
+    @BeforeClass
+    public static void setUpClass() {
+        sContext = InstrumentationRegistry.getContext();
+        Constants.loadFromContext(sContext);
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Before
+    public void setUp() {
+        mErrorDirectory = ErrorLogHelper.getErrorStorageDirectory();
+        File[] files = mErrorDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @After
+    public void tearDown() {
+        File[] files = mErrorDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @Test
+    public void recordAndRead() throws IOException {
+        long initializeTimestamp = SystemClock.elapsedRealtime();
+        CrashRecorder crashRecorder = CrashRecorder.arm(sContext, mErrorDirectory, initializeTimestamp);
+        File file = crashRecorder.getFile();
+        assertTrue(file.exists());
+
+        /* Armed record of a running process is left alone. */
+        assertTrue(CrashRecorder.readRecords(mErrorDirectory).isEmpty());
+        assertTrue(file.exists());
+
+        /* Record crash. */
+        Thread thread = Thread.currentThread();
+        RuntimeException exception = new RuntimeException("crash", new IOException("cause"));
+        long time = System.currentTimeMillis();
+        assertTrue(crashRecorder.record(thread, exception));
+        assertFalse(crashRecorder.record(thread, exception));
+        crashRecorder.disarm();
+        assertTrue(file.exists());
+
+        /* Read it on next launch. */
+        Map<File, ManagedErrorLog> records = CrashRecorder.readRecords(mErrorDirectory);
+        assertEquals(1, records.size());
+        assertEquals(file, records.keySet().iterator().next());
+        ManagedErrorLog errorLog = records.get(file);
+        assertNotNull(errorLog.getId());
+        assertTrue(errorLog.getToffset() >= time);
+        assertTrue(errorLog.getAppLaunchTOffset() >= 0);
+        assertNotNull(errorLog.getDevice());
+        assertEquals(android.os.Process.myPid(), errorLog.getProcessId().intValue());
+        assertNotNull(errorLog.getProcessName());
+        assertNotNull(errorLog.getArchitecture());
+        assertEquals(thread.getId(), errorLog.getErrorThreadId().longValue());
+        assertEquals(thread.getName(), errorLog.getErrorThreadName());
+        assertTrue(errorLog.getFatal());
+        assertTrue(errorLog.getThreads().isEmpty());
+        Exception modelException = errorLog.getException();
+        assertEquals(RuntimeException.class.getName(), modelException.getType());
+        assertEquals("crash", modelException.getMessage());
+        assertEquals(exception.getStackTrace().length, modelException.getFrames().size());
+        StackFrame frame = modelException.getFrames().get(0);
+        assertEquals(exception.getStackTrace()[0].getClassName(), frame.getClassName());
+        assertEquals(exception.getStackTrace()[0].getMethodName(), frame.getMethodName());
+        assertEquals(exception.getStackTrace()[0].getFileName(), frame.getFileName());
+        assertEquals(exception.getStackTrace()[0].getLineNumber(), frame.getLineNumber().intValue());
+        Exception cause = modelException.getInnerExceptions().get(0);
+        assertEquals(IOException.class.getName(), cause.getType());
+        assertEquals("cause", cause.getMessage());
+        assertNull(cause.getInnerExceptions());
+
+        /* Rebuilt throwable. */
+        Throwable throwable = CrashRecorder.getThrowable(errorLog);
+        assertEquals(RuntimeException.class.getName() + ": crash", throwable.getMessage());
+        assertEquals(exception.getStackTrace().length, throwable.getStackTrace().length);
+        assertEquals(IOException.class.getName() + ": cause", throwable.getCause().getMessage());
+    }
+
+    @Test
+    public void disarmDeletesRecord() throws IOException {
+        CrashRecorder crashRecorder = CrashRecorder.arm(sContext, mErrorDirectory, 0);
+        File file = crashRecorder.getFile();
+        crashRecorder.disarm();
+        assertFalse(file.exists());
+        assertFalse(crashRecorder.record(Thread.currentThread(), new RuntimeException()));
+    }
+
+    @Test
+    public void staleAndCorruptedRecordsDeleted() throws IOException {
+
+        /* Simulate a process killed without crash with an unlocked copy of an armed record. */
+        CrashRecorder crashRecorder = CrashRecorder.arm(sContext, mErrorDirectory, 0);
+        File armed = crashRecorder.getFile();
+        File stale = new File(mErrorDirectory, UUIDUtils.randomUUID() + CrashRecorder.RECORD_FILE_EXTENSION);
+        RandomAccessFile source = new RandomAccessFile(armed, "r");
+        byte[] contents = new byte[(int) source.length()];
+        source.readFully(contents);
+        source.close();
+        FileOutputStream outputStream = new FileOutputStream(stale);
+        outputStream.write(contents);
+        outputStream.close();
+
+        /* And a corrupted record. */
+        File corrupted = new File(mErrorDirectory, UUIDUtils.randomUUID() + CrashRecorder.RECORD_FILE_EXTENSION);
+        StorageHelper.InternalStorage.write(corrupted, "corrupted");
+
+        /* Both are deleted, the record in use is kept. */
+        assertTrue(CrashRecorder.readRecords(mErrorDirectory).isEmpty());
+        assertFalse(stale.exists());
+        assertFalse(corrupted.exists());
+        assertTrue(armed.exists());
+        crashRecorder.disarm();
+        assertFalse(armed.exists());
+    }
+
+    @Test
+    public void hugeStackTruncated() throws IOException {
+        CrashRecorder crashRecorder = CrashRecorder.arm(sContext, mErrorDirectory, 0);
+        RuntimeException exception = new RuntimeException();
+        StackTraceElement[] stackTrace = new StackTraceElement[ErrorLogHelper.FRAME_LIMIT * 4];
+        for (int i = 0; i < stackTrace.length; i++)
+            stackTrace[i] = new StackTraceElement("Class" + i, "method", "Class.java", i);
+        exception.setStackTrace(stackTrace);
+
+        /* Chain more exceptions than the record can hold. */
+        Throwable throwable = exception;
+        for (int i = 0; i < CrashRecorder.MAX_EXCEPTIONS * 2; i++) {
+            RuntimeException parent = new RuntimeException("parent", throwable);
+            parent.setStackTrace(stackTrace);
+            throwable = parent;
+        }
+        assertTrue(crashRecorder.record(Thread.currentThread(), throwable));
+        crashRecorder.disarm();
+        ManagedErrorLog errorLog = CrashRecorder.readRecords(mErrorDirectory).values().iterator().next();
+
+        /* Beginning and end of the stack are kept, within the space of the record. */
+        Exception modelException = errorLog.getException();
+        int exceptionCount = 0;
+        for (Exception e = modelException; e != null; e = e.getInnerExceptions() == null ? null : e.getInnerExceptions().get(0)) {
+            assertTrue(e.getFrames().size() <= ErrorLogHelper.FRAME_LIMIT);
+            exceptionCount++;
+        }
+        assertTrue(exceptionCount <= CrashRecorder.MAX_EXCEPTIONS);
+        List<StackFrame> frames = modelException.getFrames();
+        assertEquals("Class0", frames.get(0).getClassName());
+        assertEquals(ErrorLogHelper.FRAME_LIMIT, frames.size());
+        assertEquals("Class" + (stackTrace.length - 1), frames.get(frames.size() - 1).getClassName());
+    }
+}
@@ -3,6 +3,7 @@ package com.microsoft.azure.mobile.crashes.utils;
 import android.support.test.InstrumentationRegistry;
 
 import com.microsoft.azure.mobile.Constants;
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
 import com.microsoft.azure.mobile.utils.storage.StorageHelper;
 
 import org.junit.After;
@@ -15,8 +16,11 @@ import java.io.IOException;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @SuppressWarnings("unused")
 public class ErrorLogHelperAndroidTest {
@@ -40,6 +44,7 @@ public class ErrorLogHelperAndroidTest {
                 file.delete();
             }
         }
+        ErrorLogHelper.unloadIndex();
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -78,6 +83,10 @@ public class ErrorLogHelperAndroidTest {
             testFiles[i] = file;
         }
 
+        /* Files stored without index, like by a previous version, are found once the index is missing. */
+        StorageHelper.InternalStorage.delete(new File(mErrorDirectory, ErrorLogHelper.ERROR_LOG_INDEX_FILE));
+        ErrorLogHelper.unloadIndex();
+
         assertEquals(testFiles[0], ErrorLogHelper.getLastErrorLogFile());
 
         testFiles[3] = new File(mErrorDirectory, new UUID(0, 3).toString() + ErrorLogHelper.THROWABLE_FILE_EXTENSION);
@@ -131,4 +140,153 @@ public class ErrorLogHelperAndroidTest {
         for (int i = 0; i < 2; i++)
             StorageHelper.InternalStorage.delete(testFiles[i]);
     }
+
+    private static File storeErrorLog(File directory, UUID id, long timestamp, String contents) throws IOException {
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(id);
+        errorLog.setToffset(timestamp);
+        errorLog.setFatal(true);
+        ErrorLogHelper.addStoredErrorLog(errorLog, contents);
+        File file = new File(directory, id.toString() + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION);
+        StorageHelper.InternalStorage.write(file, contents);
+        return file;
+    }
+
+    @Test
+    public void indexedStore() throws IOException {
+
+        /* Store error logs, newest first. */
+        File newest = storeErrorLog(mErrorDirectory, new UUID(0, 0), 3000, "{\"type\":\"managedError\"}");
+        File oldest = storeErrorLog(mErrorDirectory, new UUID(0, 1), 1000, "{\"type\":\"managedError\"}");
+        File middle = storeErrorLog(mErrorDirectory, new UUID(0, 2), 2000, "{\"type\":\"managedError\"}");
+        assertTrue(new File(mErrorDirectory, ErrorLogHelper.ERROR_LOG_INDEX_FILE).exists());
+
+        /* Listed oldest first, from the index. */
+        File[] files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(3, files.length);
+        assertEquals(oldest, files[0]);
+        assertEquals(middle, files[1]);
+        assertEquals(newest, files[2]);
+        assertEquals(newest, ErrorLogHelper.getLastErrorLogFile());
+
+        /* Processed logs are still stored but no longer the last session crash. */
+        ErrorLogHelper.markStoredErrorLogProcessed(new UUID(0, 0));
+        assertEquals(3, ErrorLogHelper.getStoredErrorLogFiles().length);
+        assertEquals(middle, ErrorLogHelper.getLastErrorLogFile());
+
+        /* Incomplete file is discarded without being parsed. */
+        StorageHelper.InternalStorage.write(middle, "{");
+        files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(2, files.length);
+        assertFalse(middle.exists());
+        assertEquals(oldest, ErrorLogHelper.getLastErrorLogFile());
+
+        /* Error log registered but never written is ignored. */
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(new UUID(0, 3));
+        errorLog.setToffset(4000);
+        errorLog.setFatal(true);
+        ErrorLogHelper.addStoredErrorLog(errorLog, "{}");
+        assertEquals(2, ErrorLogHelper.getStoredErrorLogFiles().length);
+        assertEquals(oldest, ErrorLogHelper.getLastErrorLogFile());
+
+        /* Removing a file updates the index. */
+        ErrorLogHelper.removeStoredErrorLogFile(new UUID(0, 1));
+        files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(1, files.length);
+        assertEquals(newest, files[0]);
+        assertNull(ErrorLogHelper.getLastErrorLogFile());
+
+        /* Changes were appended to the index, loading it again gives the same state. */
+        ErrorLogHelper.unloadIndex();
+        files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(1, files.length);
+        assertEquals(newest, files[0]);
+        assertNull(ErrorLogHelper.getLastErrorLogFile());
+
+        /* Corrupted index is rebuilt from the files. */
+        StorageHelper.InternalStorage.write(new File(mErrorDirectory, ErrorLogHelper.ERROR_LOG_INDEX_FILE), "corrupted");
+        ErrorLogHelper.unloadIndex();
+        files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(1, files.length);
+        assertEquals(newest, files[0]);
+    }
+
+    @Test
+    public void unindexedErrorLogFiles() throws IOException {
+        File indexed = storeErrorLog(mErrorDirectory, new UUID(0, 0), 1000, "{\"type\":\"managedError\"}");
+
+        /* Error log file written without its index entry: the directory is not listed while the index is valid. */
+        File unindexed = new File(mErrorDirectory, new UUID(0, 1).toString() + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION);
+        StorageHelper.InternalStorage.write(unindexed, "{\"type\":\"managedError\"}");
+        assertEquals(1, ErrorLogHelper.getStoredErrorLogFiles().length);
+        ErrorLogHelper.unloadIndex();
+        assertEquals(1, ErrorLogHelper.getStoredErrorLogFiles().length);
+
+        /* Once the index is missing, like when it could not be updated, it is rebuilt from the files. */
+        StorageHelper.InternalStorage.delete(new File(mErrorDirectory, ErrorLogHelper.ERROR_LOG_INDEX_FILE));
+        ErrorLogHelper.unloadIndex();
+        File[] files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(2, files.length);
+        assertTrue(files[0].equals(unindexed) || files[1].equals(unindexed));
+
+        /* It can be deleted like the others. */
+        ErrorLogHelper.removeStoredErrorLogFile(new UUID(0, 1));
+        assertFalse(unindexed.exists());
+        files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(1, files.length);
+        assertEquals(indexed, files[0]);
+    }
+
+    @Test
+    public void compactIndex() throws IOException {
+        int count = ErrorLogHelper.INDEX_COMPACTION_THRESHOLD * 2;
+        for (int i = 0; i < count; i++) {
+            storeErrorLog(mErrorDirectory, new UUID(0, i), 1000 + i, "{\"type\":\"managedError\"}");
+            ErrorLogHelper.removeStoredErrorLogFile(new UUID(0, i));
+        }
+        File lastErrorLog = storeErrorLog(mErrorDirectory, new UUID(0, count), 1000 + count, "{\"type\":\"managedError\"}");
+
+        /* Records of removed error logs do not pile up. */
+        String contents = StorageHelper.InternalStorage.read(new File(mErrorDirectory, ErrorLogHelper.ERROR_LOG_INDEX_FILE));
+        assertNotNull(contents);
+        assertTrue(contents.trim().split("\n").length <= ErrorLogHelper.INDEX_COMPACTION_THRESHOLD + 1);
+        ErrorLogHelper.unloadIndex();
+        File[] files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(1, files.length);
+        assertEquals(lastErrorLog, files[0]);
+    }
+
+    @Test
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void addStoredErrorLogWhenIndexCannotBeWritten() throws IOException {
+        File indexed = storeErrorLog(mErrorDirectory, new UUID(0, 0), 1000, "{\"type\":\"managedError\"}");
+
+        /* Directories in place of the index and its temporary file make appending and writing the index fail. */
+        File indexFile = new File(mErrorDirectory, ErrorLogHelper.ERROR_LOG_INDEX_FILE);
+        File tempFile = new File(mErrorDirectory, ErrorLogHelper.ERROR_LOG_INDEX_FILE + ".tmp");
+        assertTrue(indexFile.delete());
+        assertTrue(indexFile.mkdir());
+        assertTrue(tempFile.mkdir());
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(new UUID(0, 1));
+        errorLog.setToffset(2000);
+        errorLog.setFatal(true);
+        try {
+            ErrorLogHelper.addStoredErrorLog(errorLog, "{}");
+            fail();
+        } catch (IOException ignored) {
+        }
+
+        /* The index is removed to be rebuilt from the files when loaded again. */
+        assertFalse(indexFile.exists());
+        tempFile.delete();
+        File unindexed = new File(mErrorDirectory, new UUID(0, 1).toString() + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION);
+        StorageHelper.InternalStorage.write(unindexed, "{}");
+        ErrorLogHelper.unloadIndex();
+        File[] files = ErrorLogHelper.getStoredErrorLogFiles();
+        assertEquals(2, files.length);
+        assertTrue(files[0].equals(indexed) || files[1].equals(indexed));
+        assertTrue(files[0].equals(unindexed) || files[1].equals(unindexed));
+    }
 }
@@ -20,6 +20,7 @@ import com.microsoft.azure.mobile.crashes.ingestion.models.json.ManagedErrorLogF
 import com.microsoft.azure.mobile.crashes.model.ErrorAttachment;
 import com.microsoft.azure.mobile.crashes.model.ErrorReport;
 import com.microsoft.azure.mobile.crashes.model.TestCrashException;
+import com.microsoft.azure.mobile.crashes.utils.CrashRecorder;
 import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
@@ -41,6 +42,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Crashes service.
@@ -75,6 +78,12 @@ public class Crashes extends AbstractMobileCenterService {
     @VisibleForTesting
     static final String ERROR_GROUP = "group_errors";
 
+    /**
+     * Maximum number of pending error logs read and parsed in parallel in pipelined mode.
+     */
+    @VisibleForTesting
+    static final int MAX_PARALLEL_PARSING = 2;
+
     /**
      * Thread name for persistence to access database.
      */
@@ -166,6 +175,41 @@ public class Crashes extends AbstractMobileCenterService {
      */
     private ErrorReport mLastSessionErrorReport;
 
+    /**
+     * Process pending errors as they are parsed in parallel instead of one by one.
+     */
+    private boolean mPipelinedProcessing;
+
+    /**
+     * Number of pending error logs still being read and parsed in pipelined mode.
+     */
+    private volatile int mPendingErrorCount;
+
+    /**
+     * User confirmation applied to pending errors processed after it, in pipelined mode.
+     */
+    private volatile Integer mUserConfirmation;
+
+    /**
+     * Capture crashes in pre-armed records converted to error logs on next launch.
+     */
+    private boolean mPreArmedCapture;
+
+    /**
+     * Armed crash recorder if any.
+     */
+    private volatile CrashRecorder mCrashRecorder;
+
+    /**
+     * Thread capture policy for crashes.
+     */
+    private volatile ThreadCapturePolicy mThreadCapturePolicy = new ThreadCapturePolicy(ThreadCapturePolicy.ALL_THREADS, 0, null);
+
+    /**
+     * Thread capture policy for handled errors, they can be tracked on hot code paths so only the thread in error by default.
+     */
+    private volatile ThreadCapturePolicy mHandledErrorThreadCapturePolicy = new ThreadCapturePolicy(ThreadCapturePolicy.ERROR_THREAD, 0, null);
+
     private Crashes() {
         mFactories = new HashMap<>();
         mFactories.put(ManagedErrorLog.TYPE, ManagedErrorLogFactory.getInstance());
@@ -239,6 +283,46 @@ public class Crashes extends AbstractMobileCenterService {
         getInstance().setInstanceListener(listener);
     }
 
+    /**
+     * Read and parse pending crash reports in parallel, and process each one as soon as it is parsed:
+     * {@link CrashesListener#shouldProcess(ErrorReport)}, user confirmation and sending start after the first report
+     * instead of after all of them. Disabled by default, must be called before starting Mobile Center.
+     *
+     * @param enabled true to process pending crash reports in a pipeline, false to process them one at a time.
+     */
+    public static void setPipelinedProcessingEnabled(boolean enabled) {
+        getInstance().setInstancePipelinedProcessingEnabled(enabled);
+    }
+
+    /**
+     * Capture crashes with as little work as possible in the crashing process: device properties and process information are
+     * collected ahead of time, and only the exception chain is written to a preopened file when crashing. Crash reports are built
+     * on next launch, without the state of other threads. Disabled by default, must be called before starting Mobile Center.
+     *
+     * @param enabled true to use pre-armed crash capture, false to build the crash report while crashing.
+     */
+    public static void setPreArmedCaptureEnabled(boolean enabled) {
+        getInstance().setInstancePreArmedCaptureEnabled(enabled);
+    }
+
+    /**
+     * Set which thread stack traces are attached to crash reports. All threads are captured by default.
+     *
+     * @param threadCapturePolicy thread capture policy.
+     */
+    public static void setThreadCapturePolicy(@NonNull ThreadCapturePolicy threadCapturePolicy) {
+        getInstance().setInstanceThreadCapturePolicy(threadCapturePolicy);
+    }
+
+    /**
+     * Set which thread stack traces are attached to handled errors. Only the thread in error is captured by default.
+     *
+     * @param threadCapturePolicy thread capture policy.
+     */
+    public static void setHandledErrorThreadCapturePolicy(@NonNull ThreadCapturePolicy threadCapturePolicy) {
+        getInstance().setInstanceHandledErrorThreadCapturePolicy(threadCapturePolicy);
+    }
+
     /**
      * Notifies SDK with a confirmation to handle the crash report.
      *
@@ -283,6 +367,34 @@ public class Crashes extends AbstractMobileCenterService {
         getInstance().getInstanceLastSessionCrashReportAsync(callback);
     }
 
+    /**
+     * Implements {@link #setPipelinedProcessingEnabled(boolean)} at instance level.
+     */
+    private synchronized void setInstancePipelinedProcessingEnabled(boolean enabled) {
+        mPipelinedProcessing = enabled;
+    }
+
+    /**
+     * Implements {@link #setPreArmedCaptureEnabled(boolean)} at instance level.
+     */
+    private synchronized void setInstancePreArmedCaptureEnabled(boolean enabled) {
+        mPreArmedCapture = enabled;
+    }
+
+    /**
+     * Implements {@link #setThreadCapturePolicy(ThreadCapturePolicy)} at instance level.
+     */
+    private synchronized void setInstanceThreadCapturePolicy(@NonNull ThreadCapturePolicy threadCapturePolicy) {
+        mThreadCapturePolicy = threadCapturePolicy;
+    }
+
+    /**
+     * Implements {@link #setHandledErrorThreadCapturePolicy(ThreadCapturePolicy)} at instance level.
+     */
+    private synchronized void setInstanceHandledErrorThreadCapturePolicy(@NonNull ThreadCapturePolicy threadCapturePolicy) {
+        mHandledErrorThreadCapturePolicy = threadCapturePolicy;
+    }
+
     /**
      * Implements {@link #hasCrashedInLastSession()} at instance level.
      */
@@ -345,7 +457,10 @@ public class Crashes extends AbstractMobileCenterService {
         mContext = context;
         initialize();
         if (isInstanceEnabled()) {
-            processPendingErrors();
+            if (mPipelinedProcessing)
+                processPendingErrorsPipelined();
+            else
+                processPendingErrors();
         }
     }
 
@@ -368,7 +483,7 @@ public class Crashes extends AbstractMobileCenterService {
                 mContext,
                 Thread.currentThread(),
                 exception,
-                Thread.getAllStackTraces(),
+                mHandledErrorThreadCapturePolicy.captureStackTraces(Thread.currentThread()),
                 getInitializeTimestamp(),
                 false);
         mChannel.enqueue(errorLog, ERROR_GROUP);
@@ -394,6 +509,11 @@ public class Crashes extends AbstractMobileCenterService {
         return 1;
     }
 
+    @Override
+    protected int getGroupPriority() {
+        return Channel.PRIORITY_HIGH;
+    }
+
     @Override
     protected Channel.GroupListener getChannelListener() {
         return new Channel.GroupListener() {
@@ -511,7 +631,7 @@ public class Crashes extends AbstractMobileCenterService {
                 mContext,
                 Thread.currentThread(),
                 throwable,
-                Thread.getAllStackTraces(),
+                mHandledErrorThreadCapturePolicy.captureStackTraces(Thread.currentThread()),
                 getInitializeTimestamp(),
                 false);
         mChannel.enqueue(errorLog, ERROR_GROUP);
@@ -526,9 +646,17 @@ public class Crashes extends AbstractMobileCenterService {
                 mUncaughtExceptionHandler.unregister();
                 mUncaughtExceptionHandler = null;
             }
+            if (mCrashRecorder != null) {
+                mCrashRecorder.disarm();
+                mCrashRecorder = null;
+            }
         } else if (mContext != null && mUncaughtExceptionHandler == null) {
             mUncaughtExceptionHandler = new UncaughtExceptionHandler();
             mUncaughtExceptionHandler.register();
+            if (mPreArmedCapture) {
+                convertCrashRecords();
+                armCrashRecorder();
+            }
             final File logFile = ErrorLogHelper.getLastErrorLogFile();
             if (logFile != null) {
                 MobileCenterLog.debug(LOG_TAG, "Processing crash report for the last session.");
@@ -570,6 +698,53 @@ public class Crashes extends AbstractMobileCenterService {
         }
     }
 
+    /**
+     * Convert crash records of previous processes to error logs, before looking for the last session crash.
+     */
+    private void convertCrashRecords() {
+        File errorStorageDirectory = ErrorLogHelper.getErrorStorageDirectory();
+        for (Map.Entry<File, ManagedErrorLog> record : CrashRecorder.readRecords(errorStorageDirectory).entrySet()) {
+            ManagedErrorLog errorLog = record.getValue();
+            String filename = errorLog.getId().toString();
+            try {
+                saveErrorLog(errorLog, errorStorageDirectory, filename);
+                File throwableFile = new File(errorStorageDirectory, filename + ErrorLogHelper.THROWABLE_FILE_EXTENSION);
+                StorageHelper.InternalStorage.writeObject(throwableFile, CrashRecorder.getThrowable(errorLog));
+                StorageHelper.InternalStorage.delete(record.getKey());
+                MobileCenterLog.debug(LOG_TAG, "Converted crash record " + record.getKey());
+            } catch (JSONException e) {
+                MobileCenterLog.error(LOG_TAG, "Error serializing error log to JSON", e);
+            } catch (IOException e) {
+                MobileCenterLog.error(LOG_TAG, "Error writing error log to file", e);
+            }
+        }
+    }
+
+    /**
+     * Prepare the crash record in background, crashes happening before are saved the regular way.
+     */
+    private void armCrashRecorder() {
+        final Context context = mContext;
+        final long initializeTimestamp = mInitializeTimestamp;
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    CrashRecorder crashRecorder = CrashRecorder.arm(context, ErrorLogHelper.getErrorStorageDirectory(), initializeTimestamp);
+                    synchronized (Crashes.this) {
+                        if (mUncaughtExceptionHandler != null && mCrashRecorder == null)
+                            mCrashRecorder = crashRecorder;
+                        else
+                            crashRecorder.disarm();
+                    }
+                } catch (IOException e) {
+                    MobileCenterLog.error(LOG_TAG, "Could not arm crash capture", e);
+                }
+            }
+        });
+    }
+
     private boolean shouldStopProcessingPendingErrors() {
         if (!isInstanceEnabled()) {
             MobileCenterLog.info(LOG_TAG, "Crashes service is disabled while processing errors. Cancel processing all pending errors.");
@@ -590,18 +765,7 @@ public class Crashes extends AbstractMobileCenterService {
                     String logfileContents = StorageHelper.InternalStorage.read(logFile);
                     if (logfileContents != null)
                         try {
-                            ManagedErrorLog log = (ManagedErrorLog) mLogSerializer.deserializeLog(logfileContents);
-                            UUID id = log.getId();
-                            ErrorReport report = buildErrorReport(log);
-                            if (report == null) {
-                                removeAllStoredErrorLogFiles(id);
-                            } else if (mCrashesListener.shouldProcess(report)) {
-                                MobileCenterLog.debug(LOG_TAG, "CrashesListener.shouldProcess returned true, continue processing log: " + id.toString());
-                                mUnprocessedErrorReports.put(id, mErrorReportCache.get(id));
-                            } else {
-                                MobileCenterLog.debug(LOG_TAG, "CrashesListener.shouldProcess returned false, clean up and ignore log: " + id.toString());
-                                removeAllStoredErrorLogFiles(id);
-                            }
+                            processPendingError((ManagedErrorLog) mLogSerializer.deserializeLog(logfileContents));
                         } catch (JSONException e) {
                             MobileCenterLog.error(LOG_TAG, "Error parsing error log", e);
                         }
@@ -615,6 +779,107 @@ public class Crashes extends AbstractMobileCenterService {
         });
     }
 
+    /**
+     * Ask the listener whether to process a pending error.
+     *
+     * @param log pending error log.
+     * @return true if the error will be processed, false if it was discarded.
+     */
+    private boolean processPendingError(@NonNull ManagedErrorLog log) {
+        UUID id = log.getId();
+        ErrorReport report = buildErrorReport(log);
+        if (report == null) {
+            removeAllStoredErrorLogFiles(id);
+        } else if (mCrashesListener.shouldProcess(report)) {
+            MobileCenterLog.debug(LOG_TAG, "CrashesListener.shouldProcess returned true, continue processing log: " + id.toString());
+            mUnprocessedErrorReports.put(id, mErrorReportCache.get(id));
+            ErrorLogHelper.markStoredErrorLogProcessed(id);
+            return true;
+        } else {
+            MobileCenterLog.debug(LOG_TAG, "CrashesListener.shouldProcess returned false, clean up and ignore log: " + id.toString());
+            removeAllStoredErrorLogFiles(id);
+        }
+        return false;
+    }
+
+    /**
+     * Read and parse pending errors on a bounded thread pool,
+     * then process each one on the crashes thread as soon as it is parsed.
+     */
+    private void processPendingErrorsPipelined() {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                File[] logFiles = ErrorLogHelper.getStoredErrorLogFiles();
+                if (logFiles.length == 0)
+                    return;
+                mPendingErrorCount = logFiles.length;
+                mUserConfirmation = null;
+                ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLEL_PARSING, logFiles.length));
+                for (final File logFile : logFiles) {
+                    executor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            ManagedErrorLog log = null;
+                            if (isInstanceEnabled()) {
+                                MobileCenterLog.debug(LOG_TAG, "Process pending error file: " + logFile);
+                                String logfileContents = StorageHelper.InternalStorage.read(logFile);
+                                if (logfileContents != null)
+                                    try {
+                                        log = (ManagedErrorLog) mLogSerializer.deserializeLog(logfileContents);
+                                    } catch (JSONException e) {
+                                        MobileCenterLog.error(LOG_TAG, "Error parsing error log", e);
+                                    }
+                            }
+                            final ManagedErrorLog parsedLog = log;
+                            mHandler.post(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    handlePipelinedError(parsedLog);
+                                }
+                            });
+                        }
+                    });
+                }
+
+                /* Threads exit once all files are parsed. */
+                executor.shutdown();
+            }
+        });
+    }
+
+    /**
+     * Process a pending error parsed in pipelined mode, on the crashes thread.
+     *
+     * @param log parsed error log or null if it could not be parsed.
+     */
+    private void handlePipelinedError(@Nullable ManagedErrorLog log) {
+        mPendingErrorCount--;
+        if (shouldStopProcessingPendingErrors() || log == null || !processPendingError(log)) {
+            quitWhenPendingErrorsHandled();
+            return;
+        }
+
+        /* Ask for confirmation on the first report, later reports follow the decision made since. */
+        Integer userConfirmation = mUserConfirmation;
+        if (userConfirmation != null) {
+            sendOrDiscardUnprocessedErrors(userConfirmation);
+            quitWhenPendingErrorsHandled();
+        } else if (mUnprocessedErrorReports.size() == 1)
+            processUserConfirmation();
+    }
+
+    /**
+     * Stop the crashes thread once all pending errors are handled and the user confirmation was applied.
+     */
+    private void quitWhenPendingErrorsHandled() {
+        if (mPendingErrorCount == 0 && mUserConfirmation != null && isInstanceEnabled())
+            mHandler.getLooper().quit();
+    }
+
     private void processUserConfirmation() {
 
         /* Handle user confirmation in UI thread. */
@@ -714,53 +979,64 @@ public class Crashes extends AbstractMobileCenterService {
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
-                if (userConfirmation == DONT_SEND) {
-
-                    /* Clean up all pending error log and throwable files. */
-                    for (Iterator<UUID> iterator = mUnprocessedErrorReports.keySet().iterator(); iterator.hasNext(); ) {
-                        UUID id = iterator.next();
-                        iterator.remove();
-                        removeAllStoredErrorLogFiles(id);
-                    }
-                } else {
-
-                    if (userConfirmation == ALWAYS_SEND) {
-                        StorageHelper.PreferencesStorage.putBoolean(PREF_KEY_ALWAYS_SEND, true);
-                    }
-
-                    Iterator<Map.Entry<UUID, ErrorLogReport>> unprocessedIterator = mUnprocessedErrorReports.entrySet().iterator();
-                    while (unprocessedIterator.hasNext()) {
-                        if (shouldStopProcessingPendingErrors())
-                            break;
-
-                        Map.Entry<UUID, ErrorLogReport> unprocessedEntry = unprocessedIterator.next();
-                        ErrorLogReport errorLogReport = unprocessedEntry.getValue();
-                        ErrorAttachment attachment = mCrashesListener.getErrorAttachment(errorLogReport.report);
-                        if (attachment == null)
-                            MobileCenterLog.debug(LOG_TAG, "CrashesListener.getErrorAttachment returned null, no additional information will be attached to log: " + errorLogReport.log.getId().toString());
-                        else
-                            errorLogReport.log.setErrorAttachment(attachment);
-                        mChannel.enqueue(errorLogReport.log, ERROR_GROUP);
-
-                        /* Clean up an error log file and map entry. */
-                        unprocessedIterator.remove();
-                        ErrorLogHelper.removeStoredErrorLogFile(unprocessedEntry.getKey());
-                    }
+                if (userConfirmation == ALWAYS_SEND) {
+                    StorageHelper.PreferencesStorage.putBoolean(PREF_KEY_ALWAYS_SEND, true);
                 }
+                sendOrDiscardUnprocessedErrors(userConfirmation);
 
-                /* Processed crash report for the last session. */
-                if (isInstanceEnabled())
+                /* Processed crash report for the last session, unless some are still being parsed. */
+                mUserConfirmation = userConfirmation;
+                if (mPendingErrorCount == 0 && isInstanceEnabled())
                     mHandler.getLooper().quit();
             }
         };
 
-        /* Run on background thread if current thread is UI thread. */
-        if (Looper.myLooper() == Looper.getMainLooper())
+        /*
+         * Run on background thread if current thread is UI thread.
+         * When pipelined, reports are still being added on the crashes thread: always run there.
+         */
+        if (mPipelinedProcessing || Looper.myLooper() == Looper.getMainLooper())
             mHandler.post(runnable);
         else
             runnable.run();
     }
 
+    /**
+     * Send or discard the crash reports accepted by the listener.
+     *
+     * @param userConfirmation user confirmation.
+     */
+    private void sendOrDiscardUnprocessedErrors(@UserConfirmationDef int userConfirmation) {
+        if (userConfirmation == DONT_SEND) {
+
+            /* Clean up all pending error log and throwable files. */
+            for (Iterator<UUID> iterator = mUnprocessedErrorReports.keySet().iterator(); iterator.hasNext(); ) {
+                UUID id = iterator.next();
+                iterator.remove();
+                removeAllStoredErrorLogFiles(id);
+            }
+        } else {
+            Iterator<Map.Entry<UUID, ErrorLogReport>> unprocessedIterator = mUnprocessedErrorReports.entrySet().iterator();
+            while (unprocessedIterator.hasNext()) {
+                if (shouldStopProcessingPendingErrors())
+                    break;
+
+                Map.Entry<UUID, ErrorLogReport> unprocessedEntry = unprocessedIterator.next();
+                ErrorLogReport errorLogReport = unprocessedEntry.getValue();
+                ErrorAttachment attachment = mCrashesListener.getErrorAttachment(errorLogReport.report);
+                if (attachment == null)
+                    MobileCenterLog.debug(LOG_TAG, "CrashesListener.getErrorAttachment returned null, no additional information will be attached to log: " + errorLogReport.log.getId().toString());
+                else
+                    errorLogReport.log.setErrorAttachment(attachment);
+                mChannel.enqueue(errorLogReport.log, ERROR_GROUP);
+
+                /* Clean up an error log file and map entry. */
+                unprocessedIterator.remove();
+                ErrorLogHelper.removeStoredErrorLogFile(unprocessedEntry.getKey());
+            }
+        }
+    }
+
     @VisibleForTesting
     void setLogSerializer(LogSerializer logSerializer) {
         mLogSerializer = logSerializer;
@@ -774,8 +1050,16 @@ public class Crashes extends AbstractMobileCenterService {
      */
     void saveUncaughtException(Thread thread, Throwable exception) {
 
+        /* Record crash if armed, wrapper SDKs need the error log now. */
+        CrashRecorder crashRecorder = mCrashRecorder;
+        if (crashRecorder != null && mWrapperSdkListener == null && crashRecorder.record(thread, exception)) {
+            if (mChannel != null)
+                mChannel.shutdown();
+            return;
+        }
+
         /* Save crash. */
-        ManagedErrorLog errorLog = ErrorLogHelper.createErrorLog(mContext, thread, exception, Thread.getAllStackTraces(), mInitializeTimestamp, true);
+        ManagedErrorLog errorLog = ErrorLogHelper.createErrorLog(mContext, thread, exception, mThreadCapturePolicy.captureStackTraces(thread), mInitializeTimestamp, true);
         try {
             File errorStorageDirectory = ErrorLogHelper.getErrorStorageDirectory();
             String filename = errorLog.getId().toString();
@@ -804,7 +1088,22 @@ public class Crashes extends AbstractMobileCenterService {
      */
     void saveErrorLog(ManagedErrorLog errorLog, File errorStorageDirectory, String filename) throws JSONException, IOException {
         File errorLogFile = new File(errorStorageDirectory, filename + ErrorLogHelper.ERROR_LOG_FILE_EXTENSION);
-        String errorLogString = mLogSerializer.serializeLog(errorLog);
+
+        /* Threads repeat the same frames, store them once. Logs read back are expanded before being sent. */
+        String errorLogString;
+        errorLog.setCompactFrames(true);
+        try {
+            errorLogString = mLogSerializer.serializeLog(errorLog);
+        } finally {
+            errorLog.setCompactFrames(false);
+        }
+        try {
+            ErrorLogHelper.addStoredErrorLog(errorLog, errorLogString);
+        } catch (IOException e) {
+
+            /* Still write the file: the index is rebuilt from error log files when loaded again. */
+            MobileCenterLog.warn(Crashes.LOG_TAG, "Error adding error log to index", e);
+        }
         StorageHelper.InternalStorage.write(errorLogFile, errorLogString);
         MobileCenterLog.debug(Crashes.LOG_TAG, "Saved JSON content for ingestion into " + errorLogFile);
     }
@@ -0,0 +1,15 @@
+package com.microsoft.azure.mobile.crashes;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@Retention(RetentionPolicy.SOURCE)
+@IntDef({
+        ThreadCapturePolicy.ERROR_THREAD,
+        ThreadCapturePolicy.MAIN_AND_ERROR_THREADS,
+        ThreadCapturePolicy.ALL_THREADS
+})
+@interface ThreadCaptureDef {
+}
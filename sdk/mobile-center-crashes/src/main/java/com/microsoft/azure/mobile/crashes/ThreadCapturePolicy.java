@@ -0,0 +1,153 @@
+package com.microsoft.azure.mobile.crashes;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which thread stack traces are attached to error logs, see {@link Crashes#setThreadCapturePolicy(ThreadCapturePolicy)}
+ * and {@link Crashes#setHandledErrorThreadCapturePolicy(ThreadCapturePolicy)}. The thread in error is always captured.
+ */
+public final class ThreadCapturePolicy {
+
+    /**
+     * Capture only the thread in error.
+     */
+    public static final int ERROR_THREAD = 0;
+
+    /**
+     * Capture the main thread and the thread in error.
+     */
+    public static final int MAIN_AND_ERROR_THREADS = 1;
+
+    /**
+     * Capture all threads, or the ones matching the thread name pattern if any.
+     */
+    public static final int ALL_THREADS = 2;
+
+    /**
+     * Threads to capture.
+     */
+    private final int mThreads;
+
+    /**
+     * Maximum number of frames per thread, 0 for no limit.
+     */
+    private final int mMaxFramesPerThread;
+
+    /**
+     * Pattern that the names of other threads must match to be captured with {@link #ALL_THREADS}, null to capture them all.
+     */
+    private final Pattern mThreadNamePattern;
+
+    /**
+     * Init.
+     *
+     * @param threads            threads to capture, one of {@link #ERROR_THREAD}, {@link #MAIN_AND_ERROR_THREADS} or {@link #ALL_THREADS}.
+     * @param maxFramesPerThread maximum number of frames per thread, first and last frames are kept. 0 or less for no limit.
+     * @param threadNamePattern  with {@link #ALL_THREADS}, capture only the other threads whose name matches this pattern.
+     *                           Null to capture all threads. Ignored with the other values.
+     */
+    public ThreadCapturePolicy(@ThreadCaptureDef int threads, int maxFramesPerThread, @Nullable Pattern threadNamePattern) {
+        mThreads = threads;
+        mMaxFramesPerThread = Math.max(0, maxFramesPerThread);
+        mThreadNamePattern = threadNamePattern;
+    }
+
+    /**
+     * Get threads to capture.
+     *
+     * @return one of {@link #ERROR_THREAD}, {@link #MAIN_AND_ERROR_THREADS} or {@link #ALL_THREADS}.
+     */
+    @ThreadCaptureDef
+    public int getThreads() {
+        return mThreads;
+    }
+
+    /**
+     * Get maximum number of frames per thread.
+     *
+     * @return maximum number of frames per thread, 0 for no limit.
+     */
+    public int getMaxFramesPerThread() {
+        return mMaxFramesPerThread;
+    }
+
+    /**
+     * Get pattern of names of other threads to capture with {@link #ALL_THREADS}.
+     *
+     * @return thread name pattern, null if all threads are captured.
+     */
+    @Nullable
+    public Pattern getThreadNamePattern() {
+        return mThreadNamePattern;
+    }
+
+    /**
+     * Collect stack traces. Only the stacks of captured threads are walked, except when capturing all threads without pattern.
+     *
+     * @param errorThread thread in error.
+     * @return stack traces by thread.
+     */
+    @NonNull
+    Map<Thread, StackTraceElement[]> captureStackTraces(@NonNull Thread errorThread) {
+        Map<Thread, StackTraceElement[]> stackTraces;
+        if (mThreads == ALL_THREADS && mThreadNamePattern == null) {
+            stackTraces = new HashMap<>(Thread.getAllStackTraces());
+            if (!stackTraces.containsKey(errorThread))
+                stackTraces.put(errorThread, errorThread.getStackTrace());
+        } else {
+            stackTraces = new LinkedHashMap<>();
+            stackTraces.put(errorThread, errorThread.getStackTrace());
+            if (mThreads != ERROR_THREAD) {
+                Looper mainLooper = Looper.getMainLooper();
+                Thread mainThread = mainLooper != null ? mainLooper.getThread() : null;
+                if (mainThread != null && !stackTraces.containsKey(mainThread))
+                    stackTraces.put(mainThread, mainThread.getStackTrace());
+            }
+            if (mThreads == ALL_THREADS)
+                for (Thread thread : enumerateThreads(errorThread))
+                    if (!stackTraces.containsKey(thread) && mThreadNamePattern.matcher(thread.getName()).matches())
+                        stackTraces.put(thread, thread.getStackTrace());
+        }
+
+        /* Keep the first half of the limit of frames from the beginning and the second half from the end. */
+        if (mMaxFramesPerThread > 0)
+            for (Map.Entry<Thread, StackTraceElement[]> entry : stackTraces.entrySet()) {
+                StackTraceElement[] stackTrace = entry.getValue();
+                if (stackTrace.length > mMaxFramesPerThread) {
+                    int head = (mMaxFramesPerThread + 1) / 2;
+                    int tail = mMaxFramesPerThread - head;
+                    StackTraceElement[] truncated = Arrays.copyOf(stackTrace, mMaxFramesPerThread);
+                    System.arraycopy(stackTrace, stackTrace.length - tail, truncated, head, tail);
+                    entry.setValue(truncated);
+                }
+            }
+        return stackTraces;
+    }
+
+    /**
+     * List live threads without walking their stacks.
+     */
+    @NonNull
+    private static Thread[] enumerateThreads(@NonNull Thread errorThread) {
+        ThreadGroup group = errorThread.getThreadGroup();
+        if (group == null)
+            group = Thread.currentThread().getThreadGroup();
+        while (group.getParent() != null)
+            group = group.getParent();
+        Thread[] threads;
+        int count;
+        do {
+            threads = new Thread[group.activeCount() * 2 + 1];
+            count = group.enumerate(threads, true);
+        } while (count == threads.length);
+        return Arrays.copyOf(threads, count);
+    }
+}
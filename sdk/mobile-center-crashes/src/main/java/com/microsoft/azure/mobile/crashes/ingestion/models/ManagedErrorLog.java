@@ -3,11 +3,18 @@ package com.microsoft.azure.mobile.crashes.ingestion.models;
 import com.microsoft.azure.mobile.crashes.ingestion.models.json.ThreadFactory;
 import com.microsoft.azure.mobile.ingestion.models.json.JSONUtils;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import static com.microsoft.azure.mobile.ingestion.models.CommonProperties.ID;
+import static com.microsoft.azure.mobile.ingestion.models.CommonProperties.NAME;
 
 /**
  * Error log for managed platforms (such as Android Dalvik).
@@ -23,6 +30,21 @@ public class ManagedErrorLog extends AbstractErrorLog {
 
     private static final String THREADS = "threads";
 
+    /**
+     * Strings shared by the frames of the frame table, compact format only.
+     */
+    private static final String STRING_TABLE = "string_table";
+
+    /**
+     * Frames shared by threads, compact format only.
+     */
+    private static final String FRAME_TABLE = "frame_table";
+
+    /**
+     * Indexes of a thread frames in the frame table, compact format only.
+     */
+    private static final String FRAME_REFS = "frame_refs";
+
     /**
      * Exception.
      */
@@ -33,6 +55,12 @@ public class ManagedErrorLog extends AbstractErrorLog {
      */
     private List<Thread> threads;
 
+    /**
+     * Whether to write thread frames as references to a shared frame table.
+     * Used for storage only, this is not part of the ingestion schema.
+     */
+    private boolean compactFrames;
+
     @Override
     public String getType() {
         return TYPE;
@@ -74,6 +102,25 @@ public class ManagedErrorLog extends AbstractErrorLog {
         this.threads = threads;
     }
 
+    /**
+     * Get the compact frames value.
+     *
+     * @return the compact frames value
+     */
+    public boolean isCompactFrames() {
+        return this.compactFrames;
+    }
+
+    /**
+     * Set whether {@link #write(JSONStringer)} writes thread frames as references to a shared table of
+     * frames and strings. Error logs read back from the compact format have the regular thread frames.
+     *
+     * @param compactFrames the compact frames value to set
+     */
+    public void setCompactFrames(boolean compactFrames) {
+        this.compactFrames = compactFrames;
+    }
+
     @Override
     public void read(JSONObject object) throws JSONException {
         super.read(object);
@@ -83,7 +130,10 @@ public class ManagedErrorLog extends AbstractErrorLog {
             exception.read(jException);
             setException(exception);
         }
-        setThreads(JSONUtils.readArray(object, THREADS, ThreadFactory.getInstance()));
+        if (object.has(FRAME_TABLE))
+            setThreads(readCompactThreads(object));
+        else
+            setThreads(JSONUtils.readArray(object, THREADS, ThreadFactory.getInstance()));
     }
 
     @Override
@@ -94,7 +144,113 @@ public class ManagedErrorLog extends AbstractErrorLog {
             exception.write(writer);
             writer.endObject();
         }
-        JSONUtils.writeArray(writer, THREADS, getThreads());
+        if (compactFrames && getThreads() != null)
+            writeCompactThreads(writer);
+        else
+            JSONUtils.writeArray(writer, THREADS, getThreads());
+    }
+
+    /**
+     * Write threads with frame references, followed by the frame and string tables they use.
+     */
+    private void writeCompactThreads(JSONStringer writer) throws JSONException {
+        Map<StackFrame, Integer> frameIndexes = new HashMap<>();
+        List<StackFrame> frames = new ArrayList<>();
+        writer.key(THREADS).array();
+        for (Thread thread : getThreads()) {
+            writer.object();
+            JSONUtils.write(writer, ID, thread.getId());
+            JSONUtils.write(writer, NAME, thread.getName());
+            if (thread.getFrames() != null) {
+                writer.key(FRAME_REFS).array();
+                for (StackFrame frame : thread.getFrames()) {
+                    Integer index = frameIndexes.get(frame);
+                    if (index == null) {
+                        index = frames.size();
+                        frameIndexes.put(frame, index);
+                        frames.add(frame);
+                    }
+                    writer.value(index);
+                }
+                writer.endArray();
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+
+        /* Each frame is an array of class, method and file string indexes followed by line number. */
+        Map<String, Integer> stringIndexes = new HashMap<>();
+        List<String> strings = new ArrayList<>();
+        writer.key(FRAME_TABLE).array();
+        for (StackFrame frame : frames) {
+            writer.array();
+            writer.value(getStringIndex(frame.getClassName(), stringIndexes, strings));
+            writer.value(getStringIndex(frame.getMethodName(), stringIndexes, strings));
+            writer.value(getStringIndex(frame.getFileName(), stringIndexes, strings));
+            writer.value(frame.getLineNumber());
+            writer.endArray();
+        }
+        writer.endArray();
+        writer.key(STRING_TABLE).array();
+        for (String string : strings)
+            writer.value(string);
+        writer.endArray();
+    }
+
+    private static int getStringIndex(String string, Map<String, Integer> stringIndexes, List<String> strings) {
+        if (string == null)
+            return -1;
+        Integer index = stringIndexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            stringIndexes.put(string, index);
+            strings.add(string);
+        }
+        return index;
+    }
+
+    /**
+     * Read threads written by {@link #writeCompactThreads(JSONStringer)}, threads share the frame instances.
+     */
+    private static List<Thread> readCompactThreads(JSONObject object) throws JSONException {
+        JSONArray jStrings = object.getJSONArray(STRING_TABLE);
+        String[] strings = new String[jStrings.length()];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = jStrings.getString(i);
+        JSONArray jFrames = object.getJSONArray(FRAME_TABLE);
+        StackFrame[] frames = new StackFrame[jFrames.length()];
+        for (int i = 0; i < frames.length; i++) {
+            JSONArray jFrame = jFrames.getJSONArray(i);
+            StackFrame frame = new StackFrame();
+            frame.setClassName(getString(strings, jFrame.getInt(0)));
+            frame.setMethodName(getString(strings, jFrame.getInt(1)));
+            frame.setFileName(getString(strings, jFrame.getInt(2)));
+            frame.setLineNumber(jFrame.isNull(3) ? null : jFrame.getInt(3));
+            frames[i] = frame;
+        }
+        JSONArray jThreads = object.optJSONArray(THREADS);
+        if (jThreads == null)
+            return null;
+        List<Thread> threads = ThreadFactory.getInstance().createList(jThreads.length());
+        for (int i = 0; i < jThreads.length(); i++) {
+            JSONObject jThread = jThreads.getJSONObject(i);
+            Thread thread = ThreadFactory.getInstance().create();
+            thread.setId(jThread.getLong(ID));
+            thread.setName(jThread.optString(NAME, null));
+            JSONArray jFrameRefs = jThread.optJSONArray(FRAME_REFS);
+            if (jFrameRefs != null) {
+                List<StackFrame> threadFrames = new ArrayList<>(jFrameRefs.length());
+                for (int j = 0; j < jFrameRefs.length(); j++)
+                    threadFrames.add(frames[jFrameRefs.getInt(j)]);
+                thread.setFrames(threadFrames);
+            }
+            threads.add(thread);
+        }
+        return threads;
+    }
+
+    private static String getString(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
     }
 
     @Override
@@ -0,0 +1,475 @@
+package com.microsoft.azure.mobile.crashes.utils;
+
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import com.microsoft.azure.mobile.crashes.Crashes;
+import com.microsoft.azure.mobile.crashes.ingestion.models.Exception;
+import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
+import com.microsoft.azure.mobile.crashes.ingestion.models.StackFrame;
+import com.microsoft.azure.mobile.crashes.ingestion.models.Thread;
+import com.microsoft.azure.mobile.ingestion.models.Device;
+import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+import com.microsoft.azure.mobile.utils.UUIDUtils;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Pre-armed crash capture: everything that does not depend on the crash (error log identifier, device properties,
+ * process) is collected and written ahead of time in a preopened record file. When the crash happens,
+ * {@link #record(java.lang.Thread, Throwable)} only encodes the exception chain into a pre-allocated buffer and writes it
+ * at the end of the file. The record is converted to a {@link ManagedErrorLog} on next launch by {@link #readRecords(File)}.
+ */
+public class CrashRecorder {
+
+    /**
+     * Crash record file extension.
+     */
+    public static final String RECORD_FILE_EXTENSION = ".record";
+
+    /**
+     * Size of the pre-allocated crash section in bytes.
+     */
+    @VisibleForTesting
+    static final int CRASH_SECTION_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of chained exceptions recorded.
+     */
+    @VisibleForTesting
+    static final int MAX_EXCEPTIONS = 16;
+
+    /**
+     * Maximum number of characters recorded for an exception message.
+     */
+    private static final int MAX_MESSAGE_LENGTH = 1024;
+
+    /**
+     * Maximum number of characters recorded for names (types, classes, methods, files, thread).
+     */
+    private static final int MAX_NAME_LENGTH = 256;
+
+    /**
+     * Minimum space to record a frame: 3 string lengths, line number and one character per string.
+     */
+    private static final int MIN_FRAME_SIZE = 4 * 4 + 3 * 2;
+
+    /**
+     * Magic number at the start of a record file.
+     */
+    private static final int MAGIC = 0x4d435243;
+
+    /**
+     * Offset of the state byte in a record file.
+     */
+    private static final int STATE_OFFSET = 4;
+
+    /**
+     * State of a record without crash.
+     */
+    private static final byte STATE_ARMED = 0;
+
+    /**
+     * State of a record whose crash section was completely written.
+     */
+    private static final byte STATE_CRASHED = 1;
+
+    /**
+     * Record file.
+     */
+    private final File mFile;
+
+    /**
+     * Preopened record file.
+     */
+    private final RandomAccessFile mRandomAccessFile;
+
+    /**
+     * Lock telling other processes that this record is in use.
+     */
+    private final FileLock mLock;
+
+    /**
+     * Pre-allocated crash section.
+     */
+    private final byte[] mBuffer = new byte[CRASH_SECTION_SIZE];
+
+    /**
+     * Writer of the crash section.
+     */
+    private final ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuffer);
+
+    /**
+     * Offset of the crash section in the file.
+     */
+    private final long mCrashOffset;
+
+    /**
+     * Timestamp of initialization, to compute the application launch time offset.
+     */
+    private final long mInitializeTimestamp;
+
+    /**
+     * Whether a crash was recorded or the recorder was disarmed.
+     */
+    private boolean mDone;
+
+    private CrashRecorder(File file, RandomAccessFile randomAccessFile, FileLock lock, long crashOffset, long initializeTimestamp) {
+        mFile = file;
+        mRandomAccessFile = randomAccessFile;
+        mLock = lock;
+        mCrashOffset = crashOffset;
+        mInitializeTimestamp = initializeTimestamp;
+    }
+
+    /**
+     * Collect crash independent properties and write them in a new record file kept open until a crash or {@link #disarm()}.
+     *
+     * @param context             application context.
+     * @param directory           directory where to create the record.
+     * @param initializeTimestamp timestamp of Crashes initialization, in {@link SystemClock#elapsedRealtime()} time base.
+     * @return armed recorder.
+     * @throws IOException if the record file cannot be prepared.
+     */
+    @NonNull
+    public static CrashRecorder arm(@NonNull Context context, @NonNull File directory, long initializeTimestamp) throws IOException {
+
+        /* Snapshot device properties. */
+        String device = null;
+        try {
+            JSONStringer writer = new JSONStringer();
+            writer.object();
+            DeviceInfoHelper.getDeviceInfo(context).write(writer);
+            writer.endObject();
+            device = writer.toString();
+        } catch (DeviceInfoHelper.DeviceInfoException | JSONException e) {
+            MobileCenterLog.error(Crashes.LOG_TAG, "Could not snapshot device properties for crash record, will attach at sending time", e);
+        }
+
+        /* Write header. */
+        UUID id = UUIDUtils.randomUUID();
+        File file = new File(directory, id.toString() + RECORD_FILE_EXTENSION);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = randomAccessFile.getChannel().tryLock();
+            randomAccessFile.writeInt(MAGIC);
+            randomAccessFile.writeByte(STATE_ARMED);
+            randomAccessFile.writeLong(id.getMostSignificantBits());
+            randomAccessFile.writeLong(id.getLeastSignificantBits());
+            randomAccessFile.writeInt(Process.myPid());
+            writeNullableUTF(randomAccessFile, ErrorLogHelper.getProcessName(context));
+            writeNullableUTF(randomAccessFile, ErrorLogHelper.getArchitecture());
+            writeNullableUTF(randomAccessFile, device);
+            long crashOffset = randomAccessFile.getFilePointer();
+
+            /* Reserve the crash section now rather than while crashing. */
+            randomAccessFile.setLength(crashOffset + CRASH_SECTION_SIZE);
+            randomAccessFile.getFD().sync();
+            MobileCenterLog.debug(Crashes.LOG_TAG, "Crash capture armed in " + file);
+            return new CrashRecorder(file, randomAccessFile, lock, crashOffset, initializeTimestamp);
+        } catch (IOException | RuntimeException e) {
+            randomAccessFile.close();
+            StorageHelper.InternalStorage.delete(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Record a crash. Only encodes into the pre-allocated buffer and writes to the preopened file.
+     *
+     * @param thread    thread in error.
+     * @param throwable uncaught exception.
+     * @return true if the crash was recorded, false if the recorder was already used or writing failed.
+     */
+    public synchronized boolean record(@NonNull java.lang.Thread thread, @NonNull Throwable throwable) {
+        if (mDone)
+            return false;
+        mDone = true;
+        ByteBuffer buffer = mByteBuffer;
+        buffer.clear();
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putLong(SystemClock.elapsedRealtime() - mInitializeTimestamp);
+        buffer.putLong(thread.getId());
+        putString(buffer, thread.getName(), MAX_NAME_LENGTH, 0);
+
+        /* Exception chain, count is patched once known. */
+        int exceptionCountPosition = buffer.position();
+        buffer.putInt(0);
+        int exceptionCount = 0;
+        for (Throwable cause = throwable; cause != null && exceptionCount < MAX_EXCEPTIONS && buffer.remaining() >= 3 * 4; cause = cause.getCause()) {
+            putString(buffer, cause.getClass().getName(), MAX_NAME_LENGTH, 2 * 4);
+            putString(buffer, cause.getMessage(), MAX_MESSAGE_LENGTH, 4);
+            putFrames(buffer, cause.getStackTrace());
+            exceptionCount++;
+        }
+        buffer.putInt(exceptionCountPosition, exceptionCount);
+
+        /* Write crash section then flag the record as complete. */
+        try {
+            mRandomAccessFile.seek(mCrashOffset);
+            mRandomAccessFile.write(mBuffer, 0, buffer.position());
+            mRandomAccessFile.seek(STATE_OFFSET);
+            mRandomAccessFile.writeByte(STATE_CRASHED);
+            mRandomAccessFile.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            MobileCenterLog.error(Crashes.LOG_TAG, "Failed to write crash record", e);
+            return false;
+        }
+    }
+
+    /**
+     * Close and delete the record if no crash was recorded.
+     */
+    public synchronized void disarm() {
+        boolean recorded = mDone;
+        mDone = true;
+        close();
+        if (!recorded)
+            StorageHelper.InternalStorage.delete(mFile);
+    }
+
+    /**
+     * Read crash records left by previous processes. Records without crash are deleted,
+     * records still used by a running process are skipped.
+     *
+     * @param directory directory containing records.
+     * @return error logs by record file, the caller deletes the record files once the error logs are saved.
+     */
+    @NonNull
+    public static Map<File, ManagedErrorLog> readRecords(@NonNull File directory) {
+        Map<File, ManagedErrorLog> errorLogs = new LinkedHashMap<>();
+        File[] files = directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String filename) {
+                return filename.endsWith(RECORD_FILE_EXTENSION);
+            }
+        });
+        if (files == null)
+            return errorLogs;
+        for (File file : files) {
+            try {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                try {
+                    FileLock lock;
+                    try {
+                        lock = randomAccessFile.getChannel().tryLock();
+                    } catch (OverlappingFileLockException e) {
+                        lock = null;
+                    }
+                    if (lock == null) {
+                        MobileCenterLog.debug(Crashes.LOG_TAG, "Crash record in use: " + file);
+                        continue;
+                    }
+                    ManagedErrorLog errorLog = readRecord(randomAccessFile);
+                    if (errorLog == null)
+                        StorageHelper.InternalStorage.delete(file);
+                    else
+                        errorLogs.put(file, errorLog);
+                } finally {
+                    randomAccessFile.close();
+                }
+            } catch (IOException | JSONException | RuntimeException e) {
+                MobileCenterLog.error(Crashes.LOG_TAG, "Deleting invalid crash record " + file, e);
+                StorageHelper.InternalStorage.delete(file);
+            }
+        }
+        return errorLogs;
+    }
+
+    /**
+     * Rebuild a throwable from a recorded error log, for client side inspection of the crash report.
+     * The original exception class is not restored, its name is kept in the message.
+     *
+     * @param errorLog error log read from a record.
+     * @return throwable with the recorded messages and stack traces.
+     */
+    @NonNull
+    public static Throwable getThrowable(@NonNull ManagedErrorLog errorLog) {
+        List<Exception> exceptions = new ArrayList<>();
+        for (Exception exception = errorLog.getException(); exception != null; exception = exception.getInnerExceptions() == null ? null : exception.getInnerExceptions().get(0))
+            exceptions.add(exception);
+        Throwable throwable = null;
+        for (int i = exceptions.size() - 1; i >= 0; i--) {
+            Exception exception = exceptions.get(i);
+            String message = exception.getMessage() == null ? exception.getType() : exception.getType() + ": " + exception.getMessage();
+            throwable = new RecordedException(message, throwable);
+            List<StackFrame> frames = exception.getFrames();
+            StackTraceElement[] stackTrace = new StackTraceElement[frames.size()];
+            for (int j = 0; j < stackTrace.length; j++) {
+                StackFrame frame = frames.get(j);
+                stackTrace[j] = new StackTraceElement(frame.getClassName(), frame.getMethodName(), frame.getFileName(), frame.getLineNumber());
+            }
+            throwable.setStackTrace(stackTrace);
+        }
+        return throwable;
+    }
+
+    @VisibleForTesting
+    File getFile() {
+        return mFile;
+    }
+
+    private void close() {
+        try {
+            if (mLock != null)
+                mLock.release();
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            MobileCenterLog.warn(Crashes.LOG_TAG, "Failed to close crash record", e);
+        }
+    }
+
+    @Nullable
+    private static ManagedErrorLog readRecord(@NonNull RandomAccessFile randomAccessFile) throws IOException, JSONException {
+        if (randomAccessFile.readInt() != MAGIC || randomAccessFile.readByte() != STATE_CRASHED)
+            return null;
+        ManagedErrorLog errorLog = new ManagedErrorLog();
+        errorLog.setId(new UUID(randomAccessFile.readLong(), randomAccessFile.readLong()));
+        errorLog.setProcessId(randomAccessFile.readInt());
+        errorLog.setProcessName(readNullableUTF(randomAccessFile));
+        errorLog.setArchitecture(readNullableUTF(randomAccessFile));
+        String deviceJson = readNullableUTF(randomAccessFile);
+        if (deviceJson != null) {
+            Device device = new Device();
+            device.read(new JSONObject(deviceJson));
+            errorLog.setDevice(device);
+        }
+
+        /* Crash section. */
+        byte[] crashSection = new byte[(int) Math.min(CRASH_SECTION_SIZE, randomAccessFile.length() - randomAccessFile.getFilePointer())];
+        randomAccessFile.readFully(crashSection);
+        ByteBuffer buffer = ByteBuffer.wrap(crashSection);
+        errorLog.setToffset(buffer.getLong());
+        errorLog.setAppLaunchTOffset(buffer.getLong());
+        errorLog.setErrorThreadId(buffer.getLong());
+        errorLog.setErrorThreadName(getString(buffer));
+        errorLog.setFatal(true);
+        int exceptionCount = buffer.getInt();
+        Exception parentException = null;
+        for (int i = 0; i < exceptionCount; i++) {
+            Exception exception = new Exception();
+            exception.setType(getString(buffer));
+            exception.setMessage(getString(buffer));
+            int frameCount = buffer.getInt();
+            List<StackFrame> frames = new ArrayList<>(frameCount);
+            for (int j = 0; j < frameCount; j++) {
+                StackFrame frame = new StackFrame();
+                frame.setClassName(getString(buffer));
+                frame.setMethodName(getString(buffer));
+                frame.setFileName(getString(buffer));
+                frame.setLineNumber(buffer.getInt());
+                frames.add(frame);
+            }
+            exception.setFrames(frames);
+            if (parentException == null)
+                errorLog.setException(exception);
+            else
+                parentException.setInnerExceptions(Collections.singletonList(exception));
+            parentException = exception;
+        }
+
+        /* Other threads are not captured, that would allocate and suspend threads while crashing. */
+        errorLog.setThreads(new ArrayList<Thread>());
+        return errorLog;
+    }
+
+    /**
+     * Encode frames, keeping the beginning and the end of huge stack traces like {@link ErrorLogHelper} does,
+     * and as many frames as fit in the buffer.
+     */
+    private static void putFrames(ByteBuffer buffer, StackTraceElement[] stackTrace) {
+        int frameCountPosition = buffer.position();
+        buffer.putInt(0);
+        int frameCount = 0;
+        int limit = Math.min(stackTrace.length, ErrorLogHelper.FRAME_LIMIT);
+        for (int i = 0; i < limit && buffer.remaining() >= MIN_FRAME_SIZE; i++) {
+            int index = stackTrace.length > ErrorLogHelper.FRAME_LIMIT && i >= ErrorLogHelper.FRAME_LIMIT / 2 ? stackTrace.length - limit + i : i;
+            StackTraceElement element = stackTrace[index];
+            int frameStart = buffer.position();
+            if (!putString(buffer, element.getClassName(), MAX_NAME_LENGTH, 0) || !putString(buffer, element.getMethodName(), MAX_NAME_LENGTH, 0)
+                    || !putString(buffer, element.getFileName(), MAX_NAME_LENGTH, 0) || buffer.remaining() < 4) {
+
+                /* Drop partially encoded frame. */
+                buffer.position(frameStart);
+                break;
+            }
+            buffer.putInt(element.getLineNumber());
+            frameCount++;
+        }
+        buffer.putInt(frameCountPosition, frameCount);
+    }
+
+    /**
+     * Encode a string as UTF-16 without allocating, truncating it to the given length or to the remaining space.
+     *
+     * @param reserved bytes to leave for the fields that must follow.
+     * @return false if there was not even room for the length.
+     */
+    private static boolean putString(ByteBuffer buffer, String value, int maxLength, int reserved) {
+        if (buffer.remaining() < 4 + reserved)
+            return false;
+        if (value == null) {
+            buffer.putInt(-1);
+            return true;
+        }
+        int length = Math.min(Math.min(value.length(), maxLength), (buffer.remaining() - 4 - reserved) / 2);
+        buffer.putInt(length);
+        for (int i = 0; i < length; i++)
+            buffer.putChar(value.charAt(i));
+        return true;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++)
+            chars[i] = buffer.getChar();
+        return new String(chars);
+    }
+
+    private static void writeNullableUTF(RandomAccessFile randomAccessFile, String value) throws IOException {
+        randomAccessFile.writeBoolean(value != null);
+        if (value != null)
+            randomAccessFile.writeUTF(value);
+    }
+
+    private static String readNullableUTF(RandomAccessFile randomAccessFile) throws IOException {
+        return randomAccessFile.readBoolean() ? randomAccessFile.readUTF() : null;
+    }
+
+    /**
+     * Throwable rebuilt from a crash record.
+     */
+    private static class RecordedException extends RuntimeException {
+
+        RecordedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -22,11 +22,23 @@ import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
 import com.microsoft.azure.mobile.utils.storage.StorageHelper;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -58,6 +70,54 @@ public class ErrorLogHelper {
     @VisibleForTesting
     static final String ERROR_DIRECTORY = "error";
 
+    /**
+     * Index of stored error logs within the error directory.
+     * Each line is a JSON record adding or updating an entry, or removing it.
+     */
+    @VisibleForTesting
+    static final String ERROR_LOG_INDEX_FILE = "error_logs.index";
+
+    /**
+     * Index entry JSON property for the error log identifier.
+     */
+    private static final String INDEX_ID = "id";
+
+    /**
+     * Index entry JSON property for the error time.
+     */
+    private static final String INDEX_TIMESTAMP = "timestamp";
+
+    /**
+     * Index entry JSON property for the error log file size in bytes.
+     */
+    private static final String INDEX_SIZE = "size";
+
+    /**
+     * Index entry JSON property for the fatal flag.
+     */
+    private static final String INDEX_FATAL = "fatal";
+
+    /**
+     * Index entry JSON property for the processed state.
+     */
+    private static final String INDEX_PROCESSED = "processed";
+
+    /**
+     * Index record JSON property for a removed entry.
+     */
+    private static final String INDEX_REMOVED = "removed";
+
+    /**
+     * Number of index records allowed beyond 2 per entry before the index is compacted.
+     */
+    @VisibleForTesting
+    static final int INDEX_COMPACTION_THRESHOLD = 16;
+
+    /**
+     * Charset used to write error log files.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     /**
      * We keep the first half of the limit of frames from the beginning and the second half from end.
      */
@@ -68,6 +128,16 @@ public class ErrorLogHelper {
      */
     private static File sErrorLogDirectory;
 
+    /**
+     * Index entries by error log identifier, loaded from the index file on first use.
+     */
+    private static Map<UUID, IndexEntry> sIndexEntries;
+
+    /**
+     * Number of records in the index file.
+     */
+    private static int sIndexRecordCount;
+
     @NonNull
     public static ManagedErrorLog createErrorLog(@NonNull Context context, @NonNull final java.lang.Thread thread, @NonNull final Throwable throwable, @NonNull final Map<java.lang.Thread, StackTraceElement[]> allStackTraces, final long initializeTimestamp, boolean fatal) {
         return createErrorLog(context, thread, getModelExceptionFromThrowable(throwable), allStackTraces, initializeTimestamp, fatal);
@@ -92,14 +162,7 @@ public class ErrorLogHelper {
 
         /* Process information. Parent one is not available on Android. */
         errorLog.setProcessId(Process.myPid());
-        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        if (activityManager != null) {
-            for (ActivityManager.RunningAppProcessInfo info : activityManager.getRunningAppProcesses()) {
-                if (info.pid == Process.myPid()) {
-                    errorLog.setProcessName(info.processName);
-                }
-            }
-        }
+        errorLog.setProcessName(getProcessName(context));
 
         /* CPU architecture. */
         errorLog.setArchitecture(getArchitecture());
@@ -117,22 +180,41 @@ public class ErrorLogHelper {
         /* Attach exceptions. */
         errorLog.setException(exception);
 
-        /* Attach thread states. */
+        /* Attach thread states, threads share the frames they have in common. */
         List<Thread> threads = new ArrayList<>(allStackTraces.size());
+        FrameInterner frameInterner = new FrameInterner();
         for (Map.Entry<java.lang.Thread, StackTraceElement[]> entry : allStackTraces.entrySet()) {
             Thread javaThread = new Thread();
             javaThread.setId(entry.getKey().getId());
             javaThread.setName(entry.getKey().getName());
-            javaThread.setFrames(getModelFramesFromStackTrace(entry.getValue()));
+            StackTraceElement[] stackTrace = entry.getValue();
+            List<StackFrame> frames = new ArrayList<>(stackTrace.length);
+            for (StackTraceElement stackTraceElement : stackTrace)
+                frames.add(frameInterner.intern(stackTraceElement));
+            javaThread.setFrames(frames);
             threads.add(javaThread);
         }
         errorLog.setThreads(threads);
         return errorLog;
     }
 
+    @Nullable
+    static String getProcessName(@NonNull Context context) {
+        String processName = null;
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null) {
+            for (ActivityManager.RunningAppProcessInfo info : activityManager.getRunningAppProcesses()) {
+                if (info.pid == Process.myPid()) {
+                    processName = info.processName;
+                }
+            }
+        }
+        return processName;
+    }
+
     @SuppressWarnings("deprecation")
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private static String getArchitecture() {
+    static String getArchitecture() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             return Build.SUPPORTED_ABIS[0];
         } else {
@@ -150,26 +232,75 @@ public class ErrorLogHelper {
         return sErrorLogDirectory;
     }
 
+    /**
+     * Get the stored error log files, oldest error first.
+     * Files are listed from the index, without being opened.
+     *
+     * @return stored error log files.
+     */
     @NonNull
-    public static File[] getStoredErrorLogFiles() {
-        File[] files = getErrorStorageDirectory().listFiles(new FilenameFilter() {
+    public static synchronized File[] getStoredErrorLogFiles() {
+        List<IndexEntry> entries = new ArrayList<>(loadValidIndexEntries().values());
+        Collections.sort(entries, new Comparator<IndexEntry>() {
+
             @Override
-            public boolean accept(File dir, String filename) {
-                return filename.endsWith(ERROR_LOG_FILE_EXTENSION);
+            public int compare(IndexEntry lhs, IndexEntry rhs) {
+                return lhs.mTimestamp < rhs.mTimestamp ? -1 : (lhs.mTimestamp == rhs.mTimestamp ? 0 : 1);
             }
         });
-
-        return files != null && files.length > 0 ? files : new File[0];
+        File[] files = new File[entries.size()];
+        for (int i = 0; i < files.length; i++)
+            files[i] = getErrorLogFile(entries.get(i).mId);
+        return files;
     }
 
+    /**
+     * Get the most recent fatal error log file that was not processed by a previous session.
+     *
+     * @return the error log of the last session crash if any.
+     */
     @Nullable
-    public static File getLastErrorLogFile() {
-        return StorageHelper.InternalStorage.lastModifiedFile(getErrorStorageDirectory(), new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String filename) {
-                return filename.endsWith(ERROR_LOG_FILE_EXTENSION);
+    public static synchronized File getLastErrorLogFile() {
+        IndexEntry lastEntry = null;
+        for (IndexEntry entry : loadValidIndexEntries().values())
+            if (entry.mFatal && !entry.mProcessed && (lastEntry == null || entry.mTimestamp > lastEntry.mTimestamp))
+                lastEntry = entry;
+        return lastEntry == null ? null : getErrorLogFile(lastEntry.mId);
+    }
+
+    /**
+     * Register an error log in the index before writing its file, appending a single record to the index.
+     * An entry whose file is missing or has another size is discarded when the index is read.
+     *
+     * @param errorLog         error log.
+     * @param errorLogContents serialized error log that will be written in its file.
+     * @throws IOException if the index could not be updated, it is then rebuilt from error log files when loaded again.
+     */
+    public static synchronized void addStoredErrorLog(@NonNull ManagedErrorLog errorLog, @NonNull String errorLogContents) throws IOException {
+        UUID id = errorLog.getId();
+        IndexEntry entry = new IndexEntry(id, errorLog.getToffset(), errorLogContents.getBytes(UTF8).length, Boolean.TRUE.equals(errorLog.getFatal()), false);
+        getIndexEntries().put(id, entry);
+        try {
+            appendIndexRecord(id, entry);
+        } catch (IOException e) {
+            if (!saveIndexEntries()) {
+                StorageHelper.InternalStorage.delete(getIndexFile());
+                throw e;
             }
-        });
+        }
+    }
+
+    /**
+     * Mark a stored error log as processed so that it is no longer reported as the last session crash.
+     *
+     * @param id error log identifier.
+     */
+    public static synchronized void markStoredErrorLogProcessed(@NonNull UUID id) {
+        IndexEntry entry = getIndexEntries().get(id);
+        if (entry != null && !entry.mProcessed) {
+            entry.mProcessed = true;
+            updateIndex(id, entry);
+        }
     }
 
     @Nullable
@@ -190,7 +321,9 @@ public class ErrorLogHelper {
         return getStoredFile(id, ERROR_LOG_FILE_EXTENSION);
     }
 
-    public static void removeStoredErrorLogFile(@NonNull UUID id) {
+    public static synchronized void removeStoredErrorLogFile(@NonNull UUID id) {
+        if (getIndexEntries().remove(id) != null)
+            updateIndex(id, null);
         File file = getStoredErrorLogFile(id);
         if (file != null) {
             MobileCenterLog.info(Crashes.LOG_TAG, "Deleting error log file " + file.getName());
@@ -211,20 +344,211 @@ public class ErrorLogHelper {
     }
 
     @VisibleForTesting
-    static void setErrorLogDirectory(File file) {
+    static synchronized void setErrorLogDirectory(File file) {
         sErrorLogDirectory = file;
+        sIndexEntries = null;
+    }
+
+    /**
+     * Forget the loaded index, like in a new process.
+     */
+    @VisibleForTesting
+    static synchronized void unloadIndex() {
+        sIndexEntries = null;
     }
 
     @Nullable
-    private static File getStoredFile(@NonNull final UUID id, @NonNull final String extension) {
-        File[] files = getErrorStorageDirectory().listFiles(new FilenameFilter() {
+    private static File getStoredFile(@NonNull UUID id, @NonNull String extension) {
+        File file = new File(getErrorStorageDirectory(), id.toString() + extension);
+        return file.exists() ? file : null;
+    }
+
+    @NonNull
+    private static File getErrorLogFile(@NonNull UUID id) {
+        return new File(getErrorStorageDirectory(), id.toString() + ERROR_LOG_FILE_EXTENSION);
+    }
+
+    @NonNull
+    private static File getIndexFile() {
+        return new File(getErrorStorageDirectory(), ERROR_LOG_INDEX_FILE);
+    }
+
+    /**
+     * Get index entries and drop the ones whose error log file is missing or was not completely written.
+     *
+     * @return valid index entries by error log identifier.
+     */
+    @NonNull
+    private static Map<UUID, IndexEntry> loadValidIndexEntries() {
+        Map<UUID, IndexEntry> entries = getIndexEntries();
+        for (Iterator<IndexEntry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            IndexEntry entry = iterator.next();
+            File file = getErrorLogFile(entry.mId);
+            if (!file.exists()) {
+                iterator.remove();
+                updateIndex(entry.mId, null);
+            } else if (file.length() != entry.mSize) {
+                MobileCenterLog.warn(Crashes.LOG_TAG, "Deleting incomplete error log file " + file.getName());
+                StorageHelper.InternalStorage.delete(file);
+                iterator.remove();
+                updateIndex(entry.mId, null);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get index entries, loading them from the index file the first time.
+     * The error directory is listed only if the index is missing or corrupted: error log files missing
+     * from the index (stored by a previous version or when the index could not be updated) are then added
+     * to the entries and the index is written again.
+     *
+     * @return index entries by error log identifier.
+     */
+    @NonNull
+    private static Map<UUID, IndexEntry> getIndexEntries() {
+        if (sIndexEntries == null) {
+            sIndexEntries = new LinkedHashMap<>();
+            sIndexRecordCount = 0;
+            boolean reconcile = true;
+            File indexFile = getIndexFile();
+            if (indexFile.exists()) {
+                String contents = StorageHelper.InternalStorage.read(indexFile);
+                if (contents != null) {
+                    reconcile = false;
+                    for (String line : contents.split("\n")) {
+                        if (line.trim().length() == 0)
+                            continue;
+                        try {
+                            JSONObject record = new JSONObject(line);
+                            UUID id = UUID.fromString(record.getString(INDEX_ID));
+                            if (record.optBoolean(INDEX_REMOVED))
+                                sIndexEntries.remove(id);
+                            else
+                                sIndexEntries.put(id, IndexEntry.read(record));
+                            sIndexRecordCount++;
+                        } catch (JSONException | IllegalArgumentException e) {
+                            MobileCenterLog.error(Crashes.LOG_TAG, "Error parsing error log index record, rebuilding index", e);
+                            reconcile = true;
+                        }
+                    }
+                }
+            }
+            if (reconcile) {
+                addUnindexedErrorLogFiles(sIndexEntries);
+                saveIndexEntries();
+            }
+        }
+        return sIndexEntries;
+    }
+
+    /**
+     * Add error log files missing from index entries. Only names are listed, files are opened only if they are missing.
+     *
+     * @param entries index entries.
+     */
+    private static void addUnindexedErrorLogFiles(@NonNull Map<UUID, IndexEntry> entries) {
+        File directory = getErrorStorageDirectory();
+        String[] names = directory.list(new FilenameFilter() {
+
             @Override
             public boolean accept(File dir, String filename) {
-                return filename.startsWith(id.toString()) && filename.endsWith(extension);
+                return filename.endsWith(ERROR_LOG_FILE_EXTENSION);
             }
         });
+        if (names != null)
+            for (String name : names) {
+                try {
+                    UUID id = UUID.fromString(name.substring(0, name.length() - ERROR_LOG_FILE_EXTENSION.length()));
+                    if (!entries.containsKey(id)) {
+                        File file = new File(directory, name);
+                        entries.put(id, new IndexEntry(id, file.lastModified(), file.length(), true, false));
+                    }
+                } catch (IllegalArgumentException e) {
+                    MobileCenterLog.warn(Crashes.LOG_TAG, "Ignoring unexpected error log file " + name);
+                }
+            }
+    }
 
-        return files != null && files.length > 0 ? files[0] : null;
+    /**
+     * Record an entry change in the index. A record is appended to the index,
+     * unless the index has too many records compared to entries: it is then written again.
+     *
+     * @param id    error log identifier.
+     * @param entry new entry, null if removed.
+     */
+    private static void updateIndex(@NonNull UUID id, @Nullable IndexEntry entry) {
+        if (sIndexRecordCount >= 2 * sIndexEntries.size() + INDEX_COMPACTION_THRESHOLD) {
+            saveIndexEntries();
+            return;
+        }
+        try {
+            appendIndexRecord(id, entry);
+        } catch (IOException e) {
+            MobileCenterLog.error(Crashes.LOG_TAG, "Error appending to error log index", e);
+            saveIndexEntries();
+        }
+    }
+
+    /**
+     * Append a record to the index file.
+     *
+     * @param id    error log identifier.
+     * @param entry new entry, null if removed.
+     * @throws IOException if the record could not be written.
+     */
+    private static void appendIndexRecord(@NonNull UUID id, @Nullable IndexEntry entry) throws IOException {
+        String record;
+        try {
+            record = entry != null ? entry.write().toString() : IndexEntry.writeRemoved(id).toString();
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        writeIndexFile(getIndexFile(), record + "\n", true);
+        sIndexRecordCount++;
+    }
+
+    /**
+     * Save all index entries, replacing the index file only once completely written.
+     *
+     * @return true if the index was saved, false otherwise.
+     */
+    private static boolean saveIndexEntries() {
+        File indexFile = getIndexFile();
+        File tempFile = new File(indexFile.getParentFile(), ERROR_LOG_INDEX_FILE + ".tmp");
+        try {
+            StringBuilder contents = new StringBuilder();
+            for (IndexEntry entry : sIndexEntries.values())
+                contents.append(entry.write()).append('\n');
+            writeIndexFile(tempFile, contents.toString(), false);
+            if (tempFile.renameTo(indexFile)) {
+                sIndexRecordCount = sIndexEntries.size();
+                return true;
+            }
+            MobileCenterLog.error(Crashes.LOG_TAG, "Failed to replace error log index");
+        } catch (JSONException | IOException e) {
+            MobileCenterLog.error(Crashes.LOG_TAG, "Error writing error log index", e);
+        }
+        return false;
+    }
+
+    /**
+     * Write index contents, an empty index is still written.
+     *
+     * @param file     file to write.
+     * @param contents contents to write.
+     * @param append   true to append to the file, false to replace its contents.
+     * @throws IOException if an I/O error occurs.
+     */
+    private static void writeIndexFile(@NonNull File file, @NonNull String contents, boolean append) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, append), UTF8);
+        //noinspection TryFinallyCanBeTryWithResources
+        try {
+            writer.write(contents);
+        } finally {
+            //noinspection ThrowFromFinallyBlock
+            writer.close();
+        }
     }
 
     @NonNull
@@ -278,4 +602,87 @@ public class ErrorLogHelper {
         stackFrame.setFileName(stackTraceElement.getFileName());
         return stackFrame;
     }
+
+    /**
+     * Share frame and name instances between the thread stack traces of an error log.
+     */
+    private static class FrameInterner {
+
+        /**
+         * Frames by stack trace element.
+         */
+        private final Map<StackTraceElement, StackFrame> mFrames = new HashMap<>();
+
+        /**
+         * Class and file names.
+         */
+        private final Map<String, String> mNames = new HashMap<>();
+
+        StackFrame intern(StackTraceElement stackTraceElement) {
+            StackFrame stackFrame = mFrames.get(stackTraceElement);
+            if (stackFrame == null) {
+                stackFrame = getModelStackFrame(stackTraceElement);
+                stackFrame.setClassName(intern(stackFrame.getClassName()));
+                stackFrame.setFileName(intern(stackFrame.getFileName()));
+                mFrames.put(stackTraceElement, stackFrame);
+            }
+            return stackFrame;
+        }
+
+        private String intern(String name) {
+            if (name == null)
+                return null;
+            String internedName = mNames.get(name);
+            if (internedName == null) {
+                mNames.put(name, name);
+                internedName = name;
+            }
+            return internedName;
+        }
+    }
+
+    /**
+     * Index entry describing a stored error log without having to read it.
+     */
+    private static class IndexEntry {
+
+        final UUID mId;
+
+        final long mTimestamp;
+
+        final long mSize;
+
+        final boolean mFatal;
+
+        boolean mProcessed;
+
+        IndexEntry(UUID id, long timestamp, long size, boolean fatal, boolean processed) {
+            mId = id;
+            mTimestamp = timestamp;
+            mSize = size;
+            mFatal = fatal;
+            mProcessed = processed;
+        }
+
+        static IndexEntry read(JSONObject object) throws JSONException {
+            return new IndexEntry(UUID.fromString(object.getString(INDEX_ID)), object.getLong(INDEX_TIMESTAMP), object.getLong(INDEX_SIZE), object.getBoolean(INDEX_FATAL), object.getBoolean(INDEX_PROCESSED));
+        }
+
+        static JSONObject writeRemoved(UUID id) throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put(INDEX_ID, id.toString());
+            object.put(INDEX_REMOVED, true);
+            return object;
+        }
+
+        JSONObject write() throws JSONException {
+            JSONObject object = new JSONObject();
+            object.put(INDEX_ID, mId.toString());
+            object.put(INDEX_TIMESTAMP, mTimestamp);
+            object.put(INDEX_SIZE, mSize);
+            object.put(INDEX_FATAL, mFatal);
+            object.put(INDEX_PROCESSED, mProcessed);
+            return object;
+        }
+    }
 }
@@ -8,6 +8,7 @@ import android.os.SystemClock;
 import com.microsoft.azure.mobile.Constants;
 import com.microsoft.azure.mobile.MobileCenter;
 import com.microsoft.azure.mobile.ResultCallback;
+import com.microsoft.azure.mobile.channel.BatchPolicy;
 import com.microsoft.azure.mobile.channel.Channel;
 import com.microsoft.azure.mobile.crashes.ingestion.models.ManagedErrorLog;
 import com.microsoft.azure.mobile.crashes.ingestion.models.StackFrame;
@@ -15,6 +16,7 @@ import com.microsoft.azure.mobile.crashes.ingestion.models.json.ManagedErrorLogF
 import com.microsoft.azure.mobile.crashes.model.ErrorAttachment;
 import com.microsoft.azure.mobile.crashes.model.ErrorReport;
 import com.microsoft.azure.mobile.crashes.model.TestCrashException;
+import com.microsoft.azure.mobile.crashes.utils.CrashRecorder;
 import com.microsoft.azure.mobile.crashes.utils.ErrorLogHelper;
 import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
@@ -42,10 +44,15 @@ import org.powermock.modules.junit4.rule.PowerMockRule;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
@@ -76,7 +83,7 @@ import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 @SuppressWarnings("unused")
-@PrepareForTest({ErrorLogHelper.class, SystemClock.class, StorageHelper.InternalStorage.class, StorageHelper.PreferencesStorage.class, MobileCenterLog.class, MobileCenter.class, Crashes.class, HandlerUtils.class, Looper.class})
+@PrepareForTest({ErrorLogHelper.class, SystemClock.class, StorageHelper.InternalStorage.class, StorageHelper.PreferencesStorage.class, MobileCenterLog.class, MobileCenter.class, Crashes.class, HandlerUtils.class, Looper.class, CrashRecorder.class})
 public class CrashesTest {
 
     @SuppressWarnings("ThrowableInstanceNeverThrown")
@@ -258,7 +265,7 @@ public class CrashesTest {
         assertTrue(Thread.getDefaultUncaughtExceptionHandler() instanceof UncaughtExceptionHandler);
         Crashes.setEnabled(true);
         assertTrue(Crashes.isEnabled());
-        verify(mockChannel).addGroup(eq(crashes.getGroupName()), anyInt(), anyInt(), anyInt(), any(Channel.GroupListener.class));
+        verify(mockChannel).addGroup(eq(crashes.getGroupName()), any(BatchPolicy.class), eq(Channel.PRIORITY_HIGH), any(Channel.GroupListener.class));
         Crashes.trackException(EXCEPTION);
         verify(mockChannel, times(1)).enqueue(any(ManagedErrorLog.class), eq(crashes.getGroupName()));
     }
@@ -307,6 +314,8 @@ public class CrashesTest {
         crashes.onChannelReady(mockContext, mockChannel);
 
         verify(mockListener).shouldProcess(report);
+        verifyStatic();
+        ErrorLogHelper.markStoredErrorLogProcessed(mErrorLog.getId());
         verify(mockListener).shouldAwaitUserConfirmation();
         verify(mockListener).getErrorAttachment(report);
         verify(mockChannel).enqueue(argThat(new ArgumentMatcher<Log>() {
@@ -385,6 +394,307 @@ public class CrashesTest {
         }), eq(crashes.getGroupName()));
     }
 
+    private ExecutorService mockInlineExecutor() {
+        ExecutorService executor = mock(ExecutorService.class);
+        doAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        }).when(executor).execute(any(Runnable.class));
+        mockStatic(Executors.class);
+        when(Executors.newFixedThreadPool(anyInt())).thenReturn(executor);
+        return executor;
+    }
+
+    @Test
+    public void queuePendingCrashesPipelined() throws IOException, ClassNotFoundException, JSONException {
+        Context mockContext = mock(Context.class);
+        Channel mockChannel = mock(Channel.class);
+        ErrorReport report = new ErrorReport();
+        final ManagedErrorLog otherErrorLog = ErrorLogHelper.createErrorLog(mock(Context.class), Thread.currentThread(), new RuntimeException(), Thread.getAllStackTraces(), 0, true);
+
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[]{mock(File.class), mock(File.class), mock(File.class)});
+        when(ErrorLogHelper.getStoredThrowableFile(any(UUID.class))).thenReturn(mock(File.class));
+        when(ErrorLogHelper.getErrorReportFromErrorLog(any(ManagedErrorLog.class), any(Throwable.class))).thenReturn(report);
+        when(StorageHelper.InternalStorage.read(any(File.class))).thenReturn("");
+        when(StorageHelper.InternalStorage.readObject(any(File.class))).thenReturn(new RuntimeException());
+        ExecutorService executor = mockInlineExecutor();
+
+        CrashesListener mockListener = mock(CrashesListener.class);
+        when(mockListener.shouldProcess(report)).thenReturn(true);
+        when(mockListener.shouldAwaitUserConfirmation()).thenReturn(false);
+
+        /* Second file is corrupted. */
+        Crashes crashes = Crashes.getInstance();
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.deserializeLog(anyString())).thenReturn(mErrorLog).thenThrow(new JSONException("mock")).thenReturn(otherErrorLog);
+        crashes.setLogSerializer(logSerializer);
+        crashes.setInstanceListener(mockListener);
+        Crashes.setPipelinedProcessingEnabled(true);
+        crashes.onChannelReady(mockContext, mockChannel);
+
+        /* Parsed on a bounded pool. */
+        verifyStatic();
+        Executors.newFixedThreadPool(Crashes.MAX_PARALLEL_PARSING);
+        verify(executor).shutdown();
+
+        /* Confirmation asked once, on the first report, then applied to the next ones. */
+        verify(mockListener, times(2)).shouldProcess(report);
+        verify(mockListener).shouldAwaitUserConfirmation();
+        verify(mockChannel).enqueue(argThat(new ArgumentMatcher<Log>() {
+            @Override
+            public boolean matches(Object log) {
+                return log.equals(mErrorLog);
+            }
+        }), eq(crashes.getGroupName()));
+        verify(mockChannel).enqueue(argThat(new ArgumentMatcher<Log>() {
+            @Override
+            public boolean matches(Object log) {
+                return log.equals(otherErrorLog);
+            }
+        }), eq(crashes.getGroupName()));
+
+        /* Crashes thread stops once all files are handled. */
+        verify(mMockLooper).quit();
+    }
+
+    @Test
+    public void queuePendingCrashesPipelinedAwaitConfirmation() throws IOException, ClassNotFoundException, JSONException {
+        Context mockContext = mock(Context.class);
+        Channel mockChannel = mock(Channel.class);
+        ErrorReport report = new ErrorReport();
+        ManagedErrorLog otherErrorLog = ErrorLogHelper.createErrorLog(mock(Context.class), Thread.currentThread(), new RuntimeException(), Thread.getAllStackTraces(), 0, true);
+
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[]{mock(File.class), mock(File.class)});
+        when(ErrorLogHelper.getStoredThrowableFile(any(UUID.class))).thenReturn(mock(File.class));
+        when(ErrorLogHelper.getErrorReportFromErrorLog(any(ManagedErrorLog.class), any(Throwable.class))).thenReturn(report);
+        when(StorageHelper.InternalStorage.read(any(File.class))).thenReturn("");
+        when(StorageHelper.InternalStorage.readObject(any(File.class))).thenReturn(new RuntimeException());
+        mockInlineExecutor();
+
+        CrashesListener mockListener = mock(CrashesListener.class);
+        when(mockListener.shouldProcess(report)).thenReturn(true);
+        when(mockListener.shouldAwaitUserConfirmation()).thenReturn(true);
+
+        Crashes crashes = Crashes.getInstance();
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.deserializeLog(anyString())).thenReturn(mErrorLog).thenReturn(otherErrorLog);
+        crashes.setLogSerializer(logSerializer);
+        crashes.setInstanceListener(mockListener);
+        Crashes.setPipelinedProcessingEnabled(true);
+        crashes.onChannelReady(mockContext, mockChannel);
+
+        /* Nothing sent until user decides. */
+        verify(mockListener).shouldAwaitUserConfirmation();
+        verify(mockChannel, never()).enqueue(any(Log.class), anyString());
+        verify(mMockLooper, never()).quit();
+
+        /* Decision applies to all reports. */
+        Crashes.notifyUserConfirmation(Crashes.DONT_SEND);
+        verify(mockChannel, never()).enqueue(any(Log.class), anyString());
+        verifyStatic();
+        ErrorLogHelper.removeStoredErrorLogFile(mErrorLog.getId());
+        verifyStatic();
+        ErrorLogHelper.removeStoredErrorLogFile(otherErrorLog.getId());
+        verify(mMockLooper).quit();
+    }
+
+    @Test
+    public void queuePendingCrashesPipelinedConfirmFromBackgroundThread() throws Exception {
+        Context mockContext = mock(Context.class);
+        Channel mockChannel = mock(Channel.class);
+        ErrorReport report = new ErrorReport();
+        final ManagedErrorLog otherErrorLog = ErrorLogHelper.createErrorLog(mock(Context.class), Thread.currentThread(), new RuntimeException(), Thread.getAllStackTraces(), 0, true);
+
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[]{mock(File.class), mock(File.class)});
+        when(ErrorLogHelper.getStoredThrowableFile(any(UUID.class))).thenReturn(mock(File.class));
+        when(ErrorLogHelper.getErrorReportFromErrorLog(any(ManagedErrorLog.class), any(Throwable.class))).thenReturn(report);
+        when(StorageHelper.InternalStorage.read(any(File.class))).thenReturn("");
+        when(StorageHelper.InternalStorage.readObject(any(File.class))).thenReturn(new RuntimeException());
+
+        /* Hold parsing tasks to interleave them with the confirmation. */
+        final List<Runnable> parsingTasks = new ArrayList<>();
+        ExecutorService executor = mock(ExecutorService.class);
+        doAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                parsingTasks.add((Runnable) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(executor).execute(any(Runnable.class));
+        mockStatic(Executors.class);
+        when(Executors.newFixedThreadPool(anyInt())).thenReturn(executor);
+
+        /* Confirmation is not called from the UI thread. */
+        mockStatic(Looper.class);
+        when(Looper.getMainLooper()).thenReturn(mock(Looper.class));
+        when(Looper.myLooper()).thenReturn(null);
+
+        CrashesListener mockListener = mock(CrashesListener.class);
+        when(mockListener.shouldProcess(report)).thenReturn(true);
+        when(mockListener.shouldAwaitUserConfirmation()).thenReturn(true);
+
+        Crashes crashes = Crashes.getInstance();
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.deserializeLog(anyString())).thenReturn(mErrorLog).thenReturn(otherErrorLog);
+        crashes.setLogSerializer(logSerializer);
+        crashes.setInstanceListener(mockListener);
+        Crashes.setPipelinedProcessingEnabled(true);
+        crashes.onChannelReady(mockContext, mockChannel);
+        assertEquals(2, parsingTasks.size());
+
+        /* First report parsed and waiting for confirmation. */
+        parsingTasks.get(0).run();
+        verify(mockListener).shouldAwaitUserConfirmation();
+
+        /* From now on, queue what is posted to the crashes thread. */
+        final List<Runnable> crashesThreadTasks = new ArrayList<>();
+        when(crashes.getHandler().post(any(Runnable.class))).then(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                crashesThreadTasks.add((Runnable) invocation.getArguments()[0]);
+                return true;
+            }
+        });
+
+        /* Confirm from a background thread while the second report is still being parsed. */
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                Crashes.notifyUserConfirmation(Crashes.SEND);
+            }
+        };
+        thread.start();
+        thread.join();
+
+        /* Confirmation deferred to the crashes thread instead of touching reports on the calling thread. */
+        verify(mockChannel, never()).enqueue(any(Log.class), anyString());
+        assertEquals(1, crashesThreadTasks.size());
+
+        /* Second report parsed, then crashes thread handles confirmation and that report in order. */
+        parsingTasks.get(1).run();
+        assertEquals(2, crashesThreadTasks.size());
+        for (Runnable task : crashesThreadTasks)
+            task.run();
+        verify(mockChannel).enqueue(argThat(new ArgumentMatcher<Log>() {
+            @Override
+            public boolean matches(Object log) {
+                return log.equals(mErrorLog);
+            }
+        }), eq(crashes.getGroupName()));
+        verify(mockChannel).enqueue(argThat(new ArgumentMatcher<Log>() {
+            @Override
+            public boolean matches(Object log) {
+                return log.equals(otherErrorLog);
+            }
+        }), eq(crashes.getGroupName()));
+        verify(mMockLooper).quit();
+    }
+
+    @Test
+    public void saveErrorLogWhenIndexFails() throws Exception {
+        mockStatic(ErrorLogHelper.class);
+        doThrow(new IOException("mock")).when(ErrorLogHelper.class);
+        ErrorLogHelper.addStoredErrorLog(any(ManagedErrorLog.class), anyString());
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(mErrorLog)).thenReturn("mock");
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        crashes.saveErrorLog(mErrorLog, mock(File.class), mErrorLog.getId().toString());
+
+        /* File still written, to be added back when the index is rebuilt. */
+        verifyStatic();
+        StorageHelper.InternalStorage.write(any(File.class), eq("mock"));
+        verifyStatic();
+        MobileCenterLog.warn(eq(Crashes.LOG_TAG), anyString(), any(IOException.class));
+    }
+
+    @Test
+    public void preArmedCapture() throws Exception {
+        mockStatic(ErrorLogHelper.class);
+        mockStatic(CrashRecorder.class);
+        File errorStorageDirectory = mock(File.class);
+        when(ErrorLogHelper.getErrorStorageDirectory()).thenReturn(errorStorageDirectory);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[0]);
+        File recordFile = mock(File.class);
+        Throwable recordedThrowable = new RuntimeException();
+        when(CrashRecorder.readRecords(errorStorageDirectory)).thenReturn(Collections.singletonMap(recordFile, mErrorLog));
+        when(CrashRecorder.getThrowable(mErrorLog)).thenReturn(recordedThrowable);
+        CrashRecorder crashRecorder = mock(CrashRecorder.class);
+        when(CrashRecorder.arm(any(Context.class), eq(errorStorageDirectory), anyLong())).thenReturn(crashRecorder);
+        when(crashRecorder.record(any(Thread.class), any(Throwable.class))).thenReturn(true);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(mErrorLog)).thenReturn("mock");
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        Crashes.setPreArmedCaptureEnabled(true);
+        Channel mockChannel = mock(Channel.class);
+        crashes.onChannelReady(mock(Context.class), mockChannel);
+
+        /* Record of previous process converted to error log and throwable files. */
+        verifyStatic();
+        ErrorLogHelper.addStoredErrorLog(mErrorLog, "mock");
+        verifyStatic();
+        StorageHelper.InternalStorage.write(any(File.class), eq("mock"));
+        verifyStatic();
+        StorageHelper.InternalStorage.writeObject(any(File.class), eq(recordedThrowable));
+        verifyStatic();
+        StorageHelper.InternalStorage.delete(recordFile);
+
+        /* Crash only recorded. */
+        Thread thread = Thread.currentThread();
+        RuntimeException exception = new RuntimeException();
+        crashes.saveUncaughtException(thread, exception);
+        verify(crashRecorder).record(thread, exception);
+        verify(mockChannel).shutdown();
+        verifyStatic(never());
+        ErrorLogHelper.createErrorLog(any(Context.class), any(Thread.class), any(Throwable.class), anyMapOf(Thread.class, StackTraceElement[].class), anyLong(), anyBoolean());
+
+        /* Disarmed when disabled. */
+        when(errorStorageDirectory.listFiles()).thenReturn(new File[0]);
+        crashes.setInstanceEnabled(false);
+        verify(crashRecorder).disarm();
+    }
+
+    @Test
+    public void preArmedCaptureFallback() throws Exception {
+        mockStatic(ErrorLogHelper.class);
+        mockStatic(CrashRecorder.class);
+        File errorStorageDirectory = mock(File.class);
+        when(ErrorLogHelper.getErrorStorageDirectory()).thenReturn(errorStorageDirectory);
+        when(ErrorLogHelper.getStoredErrorLogFiles()).thenReturn(new File[0]);
+        when(ErrorLogHelper.createErrorLog(any(Context.class), any(Thread.class), any(Throwable.class), anyMapOf(Thread.class, StackTraceElement[].class), anyLong(), anyBoolean())).thenReturn(mErrorLog);
+        when(CrashRecorder.readRecords(errorStorageDirectory)).thenReturn(Collections.<File, ManagedErrorLog>emptyMap());
+        CrashRecorder crashRecorder = mock(CrashRecorder.class);
+        when(CrashRecorder.arm(any(Context.class), eq(errorStorageDirectory), anyLong())).thenReturn(crashRecorder);
+        when(crashRecorder.record(any(Thread.class), any(Throwable.class))).thenReturn(false);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(mErrorLog)).thenReturn("mock");
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(logSerializer);
+        Crashes.setPreArmedCaptureEnabled(true);
+        crashes.onChannelReady(mock(Context.class), mock(Channel.class));
+
+        /* Writing the record failed, the crash is saved the regular way. */
+        Thread thread = Thread.currentThread();
+        RuntimeException exception = new RuntimeException();
+        crashes.saveUncaughtException(thread, exception);
+        verify(crashRecorder).record(thread, exception);
+        verifyStatic();
+        ErrorLogHelper.createErrorLog(any(Context.class), eq(thread), eq(exception), anyMapOf(Thread.class, StackTraceElement[].class), anyLong(), eq(true));
+        verifyStatic();
+        StorageHelper.InternalStorage.writeObject(any(File.class), eq(exception));
+    }
+
     @Test
     public void processPendingErrorsCorrupted() throws JSONException {
         mockStatic(ErrorLogHelper.class);
@@ -600,6 +910,64 @@ public class CrashesTest {
         verify(mockListener, never()).onSendingFailed(any(ErrorReport.class), eq(EXCEPTION));
     }
 
+    @Test
+    public void trackExceptionThreadCapturePolicy() {
+        Crashes crashes = Crashes.getInstance();
+        Channel mockChannel = mock(Channel.class);
+        crashes.onChannelReady(mock(Context.class), mockChannel);
+
+        /* Only the thread in error by default. */
+        Crashes.trackException(EXCEPTION);
+        verify(mockChannel).enqueue(argThat(new ArgumentMatcher<Log>() {
+
+            @Override
+            public boolean matches(Object item) {
+                return item instanceof ManagedErrorLog && ((ManagedErrorLog) item).getThreads().size() == 1
+                        && ((ManagedErrorLog) item).getThreads().get(0).getId() == Thread.currentThread().getId();
+            }
+        }), eq(crashes.getGroupName()));
+
+        /* Configured policy. */
+        Crashes.setHandledErrorThreadCapturePolicy(new ThreadCapturePolicy(ThreadCapturePolicy.ALL_THREADS, 1, null));
+        Crashes.trackException(EXCEPTION);
+        verify(mockChannel).enqueue(argThat(new ArgumentMatcher<Log>() {
+
+            @Override
+            public boolean matches(Object item) {
+                if (!(item instanceof ManagedErrorLog))
+                    return false;
+                boolean errorThreadCaptured = false;
+                for (com.microsoft.azure.mobile.crashes.ingestion.models.Thread thread : ((ManagedErrorLog) item).getThreads()) {
+                    if (thread.getFrames().size() > 1)
+                        return false;
+                    errorThreadCaptured |= thread.getId() == Thread.currentThread().getId();
+                }
+                return errorThreadCaptured;
+            }
+        }), eq(crashes.getGroupName()));
+    }
+
+    @Test
+    public void crashThreadCapturePolicy() throws Exception {
+        mockStatic(ErrorLogHelper.class);
+        when(ErrorLogHelper.getErrorStorageDirectory()).thenReturn(mock(File.class));
+        when(ErrorLogHelper.createErrorLog(any(Context.class), any(Thread.class), any(Throwable.class), anyMapOf(Thread.class, StackTraceElement[].class), anyLong(), anyBoolean())).thenReturn(mErrorLog);
+        Crashes crashes = Crashes.getInstance();
+        crashes.setLogSerializer(mock(LogSerializer.class));
+        Crashes.setThreadCapturePolicy(new ThreadCapturePolicy(ThreadCapturePolicy.ERROR_THREAD, 0, null));
+        final Thread thread = Thread.currentThread();
+        crashes.saveUncaughtException(thread, new RuntimeException());
+        verifyStatic();
+        ErrorLogHelper.createErrorLog(any(Context.class), eq(thread), any(Throwable.class), argThat(new ArgumentMatcher<Map<Thread, StackTraceElement[]>>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                Map<?, ?> stackTraces = (Map<?, ?>) argument;
+                return stackTraces.size() == 1 && stackTraces.containsKey(thread);
+            }
+        }), anyLong(), eq(true));
+    }
+
     @Test
     public void trackExceptionForWrapperSdk() {
         StackFrame frame = new StackFrame();
@@ -0,0 +1,143 @@
+package com.microsoft.azure.mobile.crashes;
+
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@SuppressWarnings("unused")
+@PrepareForTest(Looper.class)
+public class ThreadCapturePolicyTest {
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    private final CountDownLatch mStopLatch = new CountDownLatch(1);
+
+    private Thread mMainThread;
+
+    private Thread mMatchingThread;
+
+    private Thread mOtherThread;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mMainThread = startThread("main-mock");
+        mMatchingThread = startThread("match-1");
+        mOtherThread = startThread("other");
+        mockStatic(Looper.class);
+        Looper mainLooper = mock(Looper.class);
+        when(mainLooper.getThread()).thenReturn(mMainThread);
+        when(Looper.getMainLooper()).thenReturn(mainLooper);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mStopLatch.countDown();
+        mMainThread.join();
+        mMatchingThread.join();
+        mOtherThread.join();
+    }
+
+    private Thread startThread(String name) throws InterruptedException {
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        Thread thread = new Thread(name) {
+
+            @Override
+            public void run() {
+                startLatch.countDown();
+                try {
+                    mStopLatch.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        thread.start();
+        startLatch.await();
+        return thread;
+    }
+
+    @Test
+    public void errorThread() {
+        ThreadCapturePolicy policy = new ThreadCapturePolicy(ThreadCapturePolicy.ERROR_THREAD, -1, Pattern.compile("match-.*"));
+        assertEquals(ThreadCapturePolicy.ERROR_THREAD, policy.getThreads());
+        assertEquals(0, policy.getMaxFramesPerThread());
+        Map<Thread, StackTraceElement[]> stackTraces = policy.captureStackTraces(mOtherThread);
+        assertEquals(1, stackTraces.size());
+        assertTrue(stackTraces.containsKey(mOtherThread));
+    }
+
+    @Test
+    public void mainAndErrorThreads() {
+        ThreadCapturePolicy policy = new ThreadCapturePolicy(ThreadCapturePolicy.MAIN_AND_ERROR_THREADS, 0, null);
+        Map<Thread, StackTraceElement[]> stackTraces = policy.captureStackTraces(Thread.currentThread());
+        assertEquals(2, stackTraces.size());
+        assertTrue(stackTraces.containsKey(Thread.currentThread()));
+        assertTrue(stackTraces.containsKey(mMainThread));
+
+        /* Main thread in error. */
+        assertEquals(1, policy.captureStackTraces(mMainThread).size());
+
+        /* No main looper. */
+        when(Looper.getMainLooper()).thenReturn(null);
+        assertEquals(1, policy.captureStackTraces(Thread.currentThread()).size());
+    }
+
+    @Test
+    public void allThreads() {
+        ThreadCapturePolicy policy = new ThreadCapturePolicy(ThreadCapturePolicy.ALL_THREADS, 0, null);
+        assertNull(policy.getThreadNamePattern());
+        Map<Thread, StackTraceElement[]> stackTraces = policy.captureStackTraces(Thread.currentThread());
+        assertTrue(stackTraces.containsKey(Thread.currentThread()));
+        assertTrue(stackTraces.containsKey(mMainThread));
+        assertTrue(stackTraces.containsKey(mMatchingThread));
+        assertTrue(stackTraces.containsKey(mOtherThread));
+    }
+
+    @Test
+    public void allThreadsMatchingPattern() {
+        Pattern pattern = Pattern.compile("match-.*");
+        ThreadCapturePolicy policy = new ThreadCapturePolicy(ThreadCapturePolicy.ALL_THREADS, 0, pattern);
+        assertEquals(pattern, policy.getThreadNamePattern());
+        Map<Thread, StackTraceElement[]> stackTraces = policy.captureStackTraces(mOtherThread);
+
+        /* Error and main threads are captured even if they don't match. */
+        assertEquals(3, stackTraces.size());
+        assertTrue(stackTraces.containsKey(mOtherThread));
+        assertTrue(stackTraces.containsKey(mMainThread));
+        assertTrue(stackTraces.containsKey(mMatchingThread));
+        assertFalse(stackTraces.containsKey(Thread.currentThread()));
+    }
+
+    @Test
+    public void maxFramesPerThread() {
+        StackTraceElement[] fullStackTrace = new ThreadCapturePolicy(ThreadCapturePolicy.ERROR_THREAD, 0, null).captureStackTraces(mOtherThread).get(mOtherThread);
+        assertTrue(fullStackTrace.length > 3);
+        ThreadCapturePolicy policy = new ThreadCapturePolicy(ThreadCapturePolicy.ALL_THREADS, 3, null);
+        assertEquals(3, policy.getMaxFramesPerThread());
+        Map<Thread, StackTraceElement[]> stackTraces = policy.captureStackTraces(Thread.currentThread());
+        for (StackTraceElement[] stackTrace : stackTraces.values())
+            assertTrue(stackTrace.length <= 3);
+
+        /* First and last frames are kept. */
+        StackTraceElement[] stackTrace = stackTraces.get(mOtherThread);
+        assertArrayEquals(new StackTraceElement[]{fullStackTrace[0], fullStackTrace[1], fullStackTrace[fullStackTrace.length - 1]}, stackTrace);
+    }
+}
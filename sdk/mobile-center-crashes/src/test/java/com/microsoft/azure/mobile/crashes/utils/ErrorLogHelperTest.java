@@ -29,11 +29,15 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -133,6 +137,27 @@ public class ErrorLogHelperTest {
         }
     }
 
+    @Test
+    public void createErrorLogSharesFrames() {
+        java.lang.Thread thread1 = new java.lang.Thread("1");
+        java.lang.Thread thread2 = new java.lang.Thread("2");
+        Map<java.lang.Thread, StackTraceElement[]> allStackTraces = new LinkedHashMap<>();
+        allStackTraces.put(thread1, new StackTraceElement[]{new StackTraceElement("a.A", "run", "A.java", 1), new StackTraceElement("a.A", "loop", "A.java", 2)});
+        allStackTraces.put(thread2, new StackTraceElement[]{new StackTraceElement("a.A", "run", "A.java", 1), new StackTraceElement("b.B", "wait", null, -2)});
+        ManagedErrorLog errorLog = ErrorLogHelper.createErrorLog(mock(Context.class), thread1, new RuntimeException(), allStackTraces, 0, true);
+
+        /* Same frame is the same instance, names are shared between frames. */
+        List<StackFrame> frames1 = errorLog.getThreads().get(0).getFrames();
+        List<StackFrame> frames2 = errorLog.getThreads().get(1).getFrames();
+        assertSame(frames1.get(0), frames2.get(0));
+        assertSame(frames1.get(0).getClassName(), frames1.get(1).getClassName());
+        assertSame(frames1.get(0).getFileName(), frames1.get(1).getFileName());
+        assertEquals("b.B", frames2.get(1).getClassName());
+        assertEquals("wait", frames2.get(1).getMethodName());
+        assertNull(frames2.get(1).getFileName());
+        assertEquals(Integer.valueOf(-2), frames2.get(1).getLineNumber());
+    }
+
     private void sanityCheck(Exception exception) {
         assertNotNull(exception);
         assertNotNull(exception.getType());
@@ -15,7 +15,10 @@ import java.util.concurrent.RejectedExecutionException;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
 
+import static com.microsoft.azure.mobile.ingestion.http.HttpUtils.isContentRejectedError;
 import static com.microsoft.azure.mobile.ingestion.http.HttpUtils.isRecoverableError;
+import static com.microsoft.azure.mobile.ingestion.http.HttpUtils.parseRetryAfter;
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
@@ -53,4 +56,37 @@ public class HttpUtilsAndroidTest {
         assertTrue(isRecoverableError(new SSLException("SSL handshake aborted: ssl=0x1cc160: I/O error during system call, Connection reset by peer")));
         assertTrue(isRecoverableError(new SSLHandshakeException("javax.net.ssl.SSLProtocolException: SSL handshake aborted: ssl=0x870c918: Failure in SSL library, usually a protocol error\nerror:14077410:SSL routines:SSL23_GET_SERVER_HELLO:sslv3 alert handshake failure (external/openssl/ssl/s23_clnt.c:658 0xb7c393a1:0x00000000)")));
     }
+
+    @Test
+    public void isContentRejectedErrorTest() {
+        assertTrue(isContentRejectedError(new HttpException(400)));
+        assertTrue(isContentRejectedError(new HttpException(413)));
+        assertTrue(isContentRejectedError(new HttpException(422)));
+        assertFalse(isContentRejectedError(new HttpException(401)));
+        assertFalse(isContentRejectedError(new HttpException(403)));
+        assertFalse(isContentRejectedError(new HttpException(404)));
+        assertFalse(isContentRejectedError(new HttpException(429)));
+        assertFalse(isContentRejectedError(new HttpException(500)));
+        assertFalse(isContentRejectedError(new SocketException()));
+    }
+
+    @Test
+    public void parseRetryAfterTest() {
+        assertEquals(0, parseRetryAfter(null, 0));
+        assertEquals(0, parseRetryAfter("", 0));
+        assertEquals(0, parseRetryAfter("soon", 0));
+        assertEquals(0, parseRetryAfter("-5", 0));
+        assertEquals(120000, parseRetryAfter("120", 0));
+        assertEquals(120000, parseRetryAfter(" 120 ", 0));
+
+        /* Huge values are capped instead of overflowing. */
+        assertEquals(IngestionRetryer.MAX_RETRY_AFTER, parseRetryAfter(String.valueOf(Long.MAX_VALUE), 0));
+        assertEquals(IngestionRetryer.MAX_RETRY_AFTER, parseRetryAfter("9223372036854776", 0));
+        assertEquals(IngestionRetryer.MAX_RETRY_AFTER, parseRetryAfter("99999999999999999999", 0));
+        assertEquals(IngestionRetryer.MAX_RETRY_AFTER, parseRetryAfter("Fri, 31 Dec 9999 23:59:59 GMT", 0));
+
+        /* Wed, 21 Oct 2015 07:28:00 GMT is 1445412480000 ms since epoch. */
+        assertEquals(60000, parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", 1445412420000L));
+        assertEquals(0, parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT", 1445412540000L));
+    }
 }
@@ -1,15 +1,22 @@
 package com.microsoft.azure.mobile.ingestion.models.json;
 
 import com.microsoft.azure.mobile.AndroidTestUtils;
+import com.microsoft.azure.mobile.ingestion.models.AbstractLog;
+import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.LogContainer;
 
 import junit.framework.Assert;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 
 import static com.microsoft.azure.mobile.ingestion.models.json.MockLog.MOCK_LOG_TYPE;
 import static com.microsoft.azure.mobile.test.TestUtils.TAG;
@@ -40,6 +47,75 @@ public class LogSerializerAndroidTest {
         Assert.assertEquals(expectedContainer.hashCode(), actualContainer.hashCode());
     }
 
+    @Test
+    public void writeLogs() throws JSONException, IOException {
+        LogContainer expectedContainer = new LogContainer();
+        expectedContainer.setLogs(Arrays.<Log>asList(AndroidTestUtils.generateMockLog(), AndroidTestUtils.generateMockLog()));
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        StringWriter writer = new StringWriter();
+        serializer.writeContainer(writer, expectedContainer);
+        String payload = writer.toString();
+        android.util.Log.v(TAG, payload);
+        Assert.assertEquals(expectedContainer, serializer.deserializeContainer(payload));
+    }
+
+    @Test
+    public void rawLogs() throws JSONException {
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+
+        /* Store 2 logs with absolute times. */
+        MockLog log1 = AndroidTestUtils.generateMockLog();
+        log1.setToffset(1000L);
+        MockLog log2 = AndroidTestUtils.generateMockLog();
+        log2.setToffset(1500L);
+        List<String> rawLogs = Arrays.asList(serializer.serializeLog(log1), serializer.serializeLog(log2));
+
+        /* Splice them with relative times. */
+        String payload = serializer.serializeRawContainer(rawLogs, 2000L);
+        android.util.Log.v(TAG, payload);
+        log1.setToffset(1000L);
+        log2.setToffset(500L);
+        LogContainer expectedContainer = new LogContainer();
+        expectedContainer.setLogs(Arrays.<Log>asList(log1, log2));
+        Assert.assertEquals(expectedContainer, serializer.deserializeContainer(payload));
+    }
+
+    @Test
+    public void logWithoutDevice() throws JSONException {
+        LogSerializer serializer = new DefaultLogSerializer();
+        serializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+
+        /* Device is left out of the JSON but not removed from the log. */
+        MockLog log = AndroidTestUtils.generateMockLog();
+        Device device = log.getDevice();
+        String json = serializer.serializeLogWithoutDevice(log);
+        android.util.Log.v(TAG, json);
+        Assert.assertSame(device, log.getDevice());
+        Assert.assertFalse(new JSONObject(json).has(AbstractLog.DEVICE));
+
+        /* Other fields are kept. */
+        MockLog actualLog = (MockLog) serializer.deserializeLog(json);
+        Assert.assertNull(actualLog.getDevice());
+        actualLog.setDevice(device);
+        Assert.assertEquals(log, actualLog);
+    }
+
+    @Test
+    public void emptyRawLogs() throws JSONException {
+        LogContainer expectedContainer = new LogContainer();
+        expectedContainer.setLogs(Collections.<Log>emptyList());
+        LogSerializer serializer = new DefaultLogSerializer();
+        String payload = serializer.serializeRawContainer(Collections.<String>emptyList(), 0);
+        Assert.assertEquals(expectedContainer, serializer.deserializeContainer(payload));
+    }
+
+    @Test(expected = JSONException.class)
+    public void rawLogWithoutToffset() throws JSONException {
+        new DefaultLogSerializer().serializeRawContainer(Collections.singletonList("{\"type\":\"mock\"}"), 0);
+    }
+
     @Test(expected = JSONException.class)
     public void deserializeUnknownType() throws JSONException {
         MockLog log = AndroidTestUtils.generateMockLog();
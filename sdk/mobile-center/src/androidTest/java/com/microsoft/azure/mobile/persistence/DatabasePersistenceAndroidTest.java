@@ -1,12 +1,14 @@
 package com.microsoft.azure.mobile.persistence;
 
 import android.annotation.SuppressLint;
+import android.content.ContentValues;
 import android.content.Context;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.MediumTest;
 import android.support.test.runner.AndroidJUnit4;
 
 import com.microsoft.azure.mobile.AndroidTestUtils;
+import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
 import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
@@ -16,6 +18,8 @@ import com.microsoft.azure.mobile.utils.storage.StorageHelper;
 import com.microsoft.azure.mobile.utils.storage.StorageHelper.DatabaseStorage.DatabaseScanner;
 
 import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -23,15 +27,19 @@ import org.junit.runner.RunWith;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import static com.microsoft.azure.mobile.ingestion.models.json.MockLog.MOCK_LOG_TYPE;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyString;
@@ -57,6 +65,7 @@ public class DatabasePersistenceAndroidTest {
 
         /* Clean up database. */
         sContext.deleteDatabase("test-persistence");
+        sContext.deleteDatabase("test-persistence.devices");
     }
 
     private static int getIteratorSize(Iterator iterator) {
@@ -71,6 +80,7 @@ public class DatabasePersistenceAndroidTest {
 
         /* Clean up database. */
         sContext.deleteDatabase("test-persistence");
+        sContext.deleteDatabase("test-persistence.devices");
     }
 
     @Test
@@ -109,6 +119,316 @@ public class DatabasePersistenceAndroidTest {
         }
     }
 
+    @Test
+    public void putLogs() throws PersistenceException, IOException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "putLogs", 1, 3);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+
+            /* Put logs at once, going beyond capacity. */
+            Log log1 = AndroidTestUtils.generateMockLog();
+            Log log2 = AndroidTestUtils.generateMockLog();
+            Log log3 = AndroidTestUtils.generateMockLog();
+            Log log4 = AndroidTestUtils.generateMockLog();
+            persistence.putLog("test-p1", log1);
+            persistence.putLogs("test-p1", Arrays.asList(log2, log3, log4));
+            assertEquals(3, persistence.countLogs("test-p1"));
+
+            /* Oldest log was purged. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", 4, outputLogs);
+            assertEquals(3, outputLogs.size());
+            assertEquals(log2, outputLogs.get(0));
+            assertEquals(log3, outputLogs.get(1));
+            assertEquals(log4, outputLogs.get(2));
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void countLogsAfterPurge() throws PersistenceException, IOException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "countLogsAfterPurge", 1, 3);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+
+            /* Fill storage with 2 groups and cache counts. */
+            persistence.putLog("test-p1", AndroidTestUtils.generateMockLog());
+            persistence.putLog("test-p2", AndroidTestUtils.generateMockLog());
+            persistence.putLog("test-p1", AndroidTestUtils.generateMockLog());
+            assertEquals(2, persistence.countLogs("test-p1"));
+            assertEquals(1, persistence.countLogs("test-p2"));
+
+            /* Oldest log of another group purged by a single put. */
+            persistence.putLog("test-p2", AndroidTestUtils.generateMockLog());
+            assertEquals(1, persistence.countLogs("test-p1"));
+            assertEquals(2, persistence.countLogs("test-p2"));
+
+            /* Oldest logs of both groups purged by a transaction. */
+            persistence.putLogs("test-p3", Arrays.asList(AndroidTestUtils.generateMockLog(), AndroidTestUtils.generateMockLog()));
+            assertEquals(0, persistence.countLogs("test-p1"));
+            assertEquals(1, persistence.countLogs("test-p2"));
+            assertEquals(2, persistence.countLogs("test-p3"));
+
+            /* Cached counts match the database. */
+            persistence.mGroupCounts.clear();
+            assertEquals(0, persistence.countLogs("test-p1"));
+            assertEquals(1, persistence.countLogs("test-p2"));
+            assertEquals(2, persistence.countLogs("test-p3"));
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void putLogsWithSameDevice() throws PersistenceException, IOException, JSONException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "putLogsWithSameDevice", 1);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+
+            /* Put logs sharing a device and a log with an equal device. */
+            Log log1 = AndroidTestUtils.generateMockLog();
+            Log log2 = AndroidTestUtils.generateMockLog();
+            log2.setDevice(log1.getDevice());
+            Log log3 = AndroidTestUtils.generateMockLog();
+            Device device = new Device();
+            JSONStringer writer = new JSONStringer();
+            writer.object();
+            log1.getDevice().write(writer);
+            writer.endObject();
+            device.read(new JSONObject(writer.toString()));
+            log3.setDevice(device);
+            persistence.putLog("test-p1", log1);
+            persistence.putLogs("test-p1", Arrays.asList(log2, log3));
+
+            /* Stored logs keep their device. */
+            assertSame(device, log3.getDevice());
+
+            /* Device is stored once and not in logs. */
+            assertEquals(1, persistence.mDeviceStorage.size());
+            DatabaseScanner scanner = persistence.mDatabaseStorage.getScanner(DatabasePersistence.COLUMN_GROUP, "test-p1");
+            for (ContentValues values : scanner)
+                assertFalse(new JSONObject(values.getAsString(DatabasePersistence.COLUMN_LOG)).has("device"));
+            scanner.close();
+
+            /* Logs are read with a single device instance. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", 3, outputLogs);
+            assertEquals(Arrays.asList(log1, log2, log3), outputLogs);
+            assertSame(outputLogs.get(0).getDevice(), outputLogs.get(1).getDevice());
+            assertSame(outputLogs.get(0).getDevice(), outputLogs.get(2).getDevice());
+
+            /* Raw logs include device. */
+            persistence.clearPendingLogState();
+            List<String> outputRawLogs = new ArrayList<>();
+            persistence.getRawLogs("test-p1", 3, outputRawLogs);
+            assertEquals(3, outputRawLogs.size());
+            assertEquals(log1, logSerializer.deserializeLog(outputRawLogs.get(0)));
+            assertEquals(log3, logSerializer.deserializeLog(outputRawLogs.get(2)));
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void purgeUnreferencedDeviceSnapshots() throws PersistenceException, IOException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "purgeUnreferencedDeviceSnapshots", 1, 200);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+
+            /* Oldest device snapshot stays referenced, then store more snapshots than the limit. */
+            Log referencedLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog("test-p1", referencedLog);
+            for (int i = 0; i < 100; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                log.getDevice().setModel("model-" + i);
+                persistence.putLog("test-p2", log);
+            }
+
+            /* All snapshots are referenced, none is purged. */
+            assertEquals(101, persistence.mDeviceStorage.size());
+
+            /* Snapshots no log references are purged when storing a new one. */
+            persistence.deleteLogs("test-p2");
+            Log newLog = AndroidTestUtils.generateMockLog();
+            newLog.getDevice().setModel("new");
+            persistence.putLog("test-p2", newLog);
+            assertEquals(2, persistence.mDeviceStorage.size());
+
+            /* Logs are read with their device. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", 1, outputLogs);
+            assertEquals(Collections.singletonList(referencedLog), outputLogs);
+            outputLogs.clear();
+            persistence.getLogs("test-p2", 1, outputLogs);
+            assertEquals(Collections.singletonList(newLog), outputLogs);
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion2() throws PersistenceException, IOException, JSONException {
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+
+        /* Store a log with its device in a version 2 table, before device snapshots and sizes. */
+        ContentValues schema = new ContentValues();
+        schema.put(DatabasePersistence.COLUMN_GROUP, "");
+        schema.put(DatabasePersistence.COLUMN_LOG, "");
+        StorageHelper.DatabaseStorage databaseStorage = StorageHelper.DatabaseStorage.getDatabaseStorage("test-persistence", "upgradeFromVersion2", 2, schema, 0, new String[]{DatabasePersistence.COLUMN_GROUP}, new StorageHelper.DatabaseStorage.DatabaseErrorListener() {
+
+            @Override
+            public void onError(String operation, RuntimeException e) {
+                throw e;
+            }
+        });
+        Log oldLog = AndroidTestUtils.generateMockLog();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(DatabasePersistence.COLUMN_GROUP, "test-p1");
+            values.put(DatabasePersistence.COLUMN_LOG, logSerializer.serializeLog(oldLog));
+            databaseStorage.put(values);
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            databaseStorage.close();
+        }
+
+        /* Initialize database persistence on the current schema. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "upgradeFromVersion2", 4);
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+
+            /* Stored log survived the upgrade. */
+            assertEquals(1, persistence.countLogs("test-p1"));
+
+            /* New log references a device snapshot. */
+            Log newLog = AndroidTestUtils.generateMockLog();
+            persistence.putLog("test-p1", newLog);
+            assertEquals(2, persistence.countLogs("test-p1"));
+            assertEquals(1, persistence.mDeviceStorage.size());
+
+            /* Legacy log is read with its inline device. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", 2, outputLogs);
+            assertEquals(Arrays.asList(oldLog, newLog), outputLogs);
+
+            /* Same for raw logs. */
+            persistence.clearPendingLogState();
+            List<String> outputRawLogs = new ArrayList<>();
+            persistence.getRawLogs("test-p1", 2, outputRawLogs);
+            assertEquals(2, outputRawLogs.size());
+            assertEquals(oldLog, logSerializer.deserializeLog(outputRawLogs.get(0)));
+            assertEquals(newLog, logSerializer.deserializeLog(outputRawLogs.get(1)));
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion3() throws PersistenceException, IOException, JSONException {
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+
+        /* Store logs in a version 3 table, before sizes. */
+        ContentValues schema = new ContentValues();
+        schema.put(DatabasePersistence.COLUMN_GROUP, "");
+        schema.put(DatabasePersistence.COLUMN_LOG, "");
+        schema.put(DatabasePersistence.COLUMN_DEVICE_HASH, "");
+        StorageHelper.DatabaseStorage databaseStorage = StorageHelper.DatabaseStorage.getDatabaseStorage("test-persistence", "upgradeFromVersion3", 3, schema, 0, new String[]{DatabasePersistence.COLUMN_GROUP}, new StorageHelper.DatabaseStorage.DatabaseErrorListener() {
+
+            @Override
+            public void onError(String operation, RuntimeException e) {
+                throw e;
+            }
+        });
+        List<Log> oldLogs = new ArrayList<>();
+        int maxBytes = 0;
+        try {
+            for (int i = 0; i < 3; i++) {
+                Log log = AndroidTestUtils.generateMockLog();
+                oldLogs.add(log);
+                String logJ = logSerializer.serializeLog(log);
+                if (i < 2)
+                    maxBytes += logJ.getBytes("UTF-8").length;
+                ContentValues values = new ContentValues();
+                values.put(DatabasePersistence.COLUMN_GROUP, "test-p1");
+                values.put(DatabasePersistence.COLUMN_LOG, logJ);
+                databaseStorage.put(values);
+            }
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            databaseStorage.close();
+        }
+
+        /* Initialize database persistence on the current schema. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "upgradeFromVersion3", 4);
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+
+            /* Stored logs survived the upgrade. */
+            assertEquals(3, persistence.countLogs("test-p1"));
+
+            /* Sizes are estimated from JSON to stop at the byte budget. */
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test-p1", 3, maxBytes, outputLogs);
+            assertEquals(oldLogs.subList(0, 2), outputLogs);
+            outputLogs.clear();
+            persistence.getLogs("test-p1", 3, maxBytes, outputLogs);
+            assertEquals(oldLogs.subList(2, 3), outputLogs);
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
     @Test
     public void putTooManyLogs() throws PersistenceException, IOException {
 
@@ -366,6 +686,60 @@ public class DatabasePersistenceAndroidTest {
         }
     }
 
+    @Test
+    public void getLogsWithMaxBytes() throws PersistenceException, IOException {
+
+        /* Initialize database persistence. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "getLogsWithMaxBytes", 1);
+
+        /* Set a mock log serializer. */
+        LogSerializer logSerializer = new DefaultLogSerializer();
+        logSerializer.addLogFactory(MOCK_LOG_TYPE, new MockLogFactory());
+        persistence.setLogSerializer(logSerializer);
+
+        try {
+            /* Put logs. */
+            for (int i = 0; i < 10; i++)
+                persistence.putLog("test", AndroidTestUtils.generateMockLog());
+
+            /* Get sizes of payloads. */
+            List<String> outputRawLogs = new ArrayList<>();
+            persistence.getRawLogs("test", 10, outputRawLogs);
+            assertEquals(10, outputRawLogs.size());
+            int maxBytes = 0;
+            for (int i = 0; i < 3; i++)
+                maxBytes += outputRawLogs.get(i).getBytes("UTF-8").length;
+
+            /* Stop at byte budget. */
+            persistence.clearPendingLogState();
+            outputRawLogs.clear();
+            String id = persistence.getRawLogs("test", 10, maxBytes, outputRawLogs);
+            assertEquals(3, outputRawLogs.size());
+
+            /* Size of returned logs is known until they are no longer pending. */
+            assertNotNull(id);
+            assertEquals(maxBytes, persistence.getByteCount("test", id));
+            persistence.clearPendingLogState();
+            assertEquals(0, persistence.getByteCount("test", id));
+            List<Log> outputLogs = new ArrayList<>();
+            persistence.getLogs("test", 10, maxBytes - 1, outputLogs);
+            assertEquals(2, outputLogs.size());
+
+            /* At least one log even if bigger than budget, then the rest. */
+            persistence.clearPendingLogState();
+            outputLogs.clear();
+            persistence.getLogs("test", 10, 1, outputLogs);
+            assertEquals(1, outputLogs.size());
+            outputLogs.clear();
+            persistence.getLogs("test", 10, outputLogs);
+            assertEquals(9, outputLogs.size());
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            persistence.close();
+        }
+    }
+
     private void getAllLogs(DatabasePersistence persistence, String group, int numberOfLogs, int sizeForGetLogs) {
         List<Log> outputLogs = new ArrayList<>();
         int expected = 0;
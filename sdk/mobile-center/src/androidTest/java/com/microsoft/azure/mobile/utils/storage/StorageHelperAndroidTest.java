@@ -544,6 +544,53 @@ public class StorageHelperAndroidTest {
         }
     }
 
+    @Test
+    public void databaseStorageUpgradeWithIndex() throws IOException {
+        Log.i(TAG, "Testing Database Storage Upgrade With Index");
+
+        /* Create a schema. */
+        ContentValues schema = new ContentValues();
+        schema.put("COL_STRING", "");
+
+        /* Create a row for v1. */
+        ContentValues value = new ContentValues();
+        value.put("COL_STRING", "Hello World");
+
+        /* Get instance to access database without index. */
+        DatabaseStorage databaseStorage = DatabaseStorage.getDatabaseStorage("test-databaseStorageUpgradeWithIndex", "databaseStorageUpgradeWithIndex", 1, schema, new DatabaseStorage.DatabaseErrorListener() {
+            @Override
+            public void onError(String operation, RuntimeException e) {
+                throw e;
+            }
+        });
+
+        try {
+            databaseStorage.put(value);
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            databaseStorage.close();
+        }
+
+        /* Same columns with an index in v2: data is kept. */
+        databaseStorage = DatabaseStorage.getDatabaseStorage("test-databaseStorageUpgradeWithIndex", "databaseStorageUpgradeWithIndex", 2, schema, 0, new String[]{"COL_STRING"}, new DatabaseStorage.DatabaseErrorListener() {
+            @Override
+            public void onError(String operation, RuntimeException e) {
+                throw e;
+            }
+        });
+
+        try {
+            assertEquals(1, databaseStorage.size());
+            assertEquals(1, databaseStorage.count("COL_STRING", "Hello World"));
+            assertEquals(0, databaseStorage.count("COL_STRING", "Hello"));
+        } finally {
+            /* Close. */
+            //noinspection ThrowFromFinallyBlock
+            databaseStorage.close();
+        }
+    }
+
     @Test
     public void putTooManyLogs() throws IOException {
         Log.i(TAG, "Testing Database Storage Capacity");
@@ -5,7 +5,9 @@ import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 
+import com.microsoft.azure.mobile.channel.BatchPolicy;
 import com.microsoft.azure.mobile.channel.Channel;
+import com.microsoft.azure.mobile.channel.FixedBatchPolicy;
 import com.microsoft.azure.mobile.ingestion.models.json.LogFactory;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.storage.StorageHelper;
@@ -27,6 +29,11 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
      */
     private static final int DEFAULT_TRIGGER_COUNT = 50;
 
+    /**
+     * Maximum estimated payload size in bytes of a request.
+     */
+    private static final int DEFAULT_TRIGGER_MAX_BYTES = 256 * 1024;
+
     /**
      * Maximum time interval in milliseconds after which a synchronize will be triggered, regardless of queue size.
      */
@@ -94,7 +101,7 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
 
             /* Register service to channel on enabling. */
             if (enabled)
-                mChannel.addGroup(getGroupName(), getTriggerCount(), getTriggerInterval(), getTriggerMaxParallelRequests(), getChannelListener());
+                addGroup(mChannel);
 
             /* Otherwise, clear all persisted logs and remove a group for the service. */
             else {
@@ -116,7 +123,7 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
 
         /* Add a group to the channel if the service is enabled */
         if (isInstanceEnabled())
-            channel.addGroup(getGroupName(), getTriggerCount(), getTriggerInterval(), getTriggerMaxParallelRequests(), getChannelListener());
+            addGroup(channel);
 
         /* Otherwise, clear all persisted logs for the service. */
         else
@@ -125,6 +132,15 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
         mChannel = channel;
     }
 
+    /**
+     * Register the service group to the channel.
+     *
+     * @param channel the channel.
+     */
+    private void addGroup(@NonNull Channel channel) {
+        channel.addGroup(getGroupName(), getBatchPolicy(), getGroupPriority(), getChannelListener());
+    }
+
     @Override
     public Map<String, LogFactory> getLogFactories() {
         return null;
@@ -166,6 +182,16 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
         return DEFAULT_TRIGGER_COUNT;
     }
 
+    /**
+     * Gets a maximum estimated payload size in bytes of a request. A single log bigger than that is still sent.
+     *
+     * @return A maximum size in bytes.
+     */
+    @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
+    protected int getTriggerMaxBytes() {
+        return DEFAULT_TRIGGER_MAX_BYTES;
+    }
+
     /**
      * Gets a maximum time interval in milliseconds after which a synchronize will be triggered, regardless of queue size
      *
@@ -186,6 +212,26 @@ public abstract class AbstractMobileCenterService implements MobileCenterService
         return DEFAULT_TRIGGER_MAX_PARALLEL_REQUESTS;
     }
 
+    /**
+     * Gets a policy deciding how logs of the service are batched.
+     *
+     * @return A batch policy, by default using trigger count, max bytes, interval and max parallel requests.
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected BatchPolicy getBatchPolicy() {
+        return new FixedBatchPolicy(getTriggerCount(), getTriggerMaxBytes(), getTriggerInterval(), getTriggerMaxParallelRequests());
+    }
+
+    /**
+     * Gets the priority of the service logs over other services' logs.
+     *
+     * @return A priority, the higher the sooner.
+     */
+    @SuppressWarnings({"WeakerAccess", "SameReturnValue"})
+    protected int getGroupPriority() {
+        return Channel.PRIORITY_DEFAULT;
+    }
+
     /**
      * Gets a listener which will be called when channel completes synchronization.
      *
@@ -51,6 +51,21 @@ public class MobileCenter {
      */
     private String mServerUrl;
 
+    /**
+     * Custom request compression threshold if any.
+     */
+    private Integer mCompressionThreshold;
+
+    /**
+     * Merge batches of several services into a single request.
+     */
+    private boolean mRequestCoalescingEnabled;
+
+    /**
+     * Process logs on a dedicated channel thread instead of the main thread.
+     */
+    private boolean mChannelThreadEnabled;
+
     /**
      * Application context.
      */
@@ -128,6 +143,37 @@ public class MobileCenter {
         getInstance().setInstanceServerUrl(serverUrl);
     }
 
+    /**
+     * Compress requests with gzip when their payload is at least the given size.
+     * Compression is disabled by default.
+     *
+     * @param threshold minimum payload size in bytes to compress, negative to disable compression.
+     */
+    public static void setRequestCompressionThreshold(int threshold) {
+        getInstance().setInstanceRequestCompressionThreshold(threshold);
+    }
+
+    /**
+     * Merge logs of several services into a single request when they are ready to be sent at the same time.
+     * This reduces the number of requests, coalescing is disabled by default.
+     *
+     * @param enabled true to merge batches of several services, false to send them separately.
+     */
+    public static void setRequestCoalescingEnabled(boolean enabled) {
+        getInstance().setInstanceRequestCoalescingEnabled(enabled);
+    }
+
+    /**
+     * Process logs on a dedicated background thread instead of the main thread: batching timers,
+     * storage callbacks and network callbacks then no longer compete with the UI.
+     * This is disabled by default and must be set before the SDK is configured.
+     *
+     * @param enabled true to use a dedicated channel thread, false to use the main thread.
+     */
+    public static void setChannelThreadEnabled(boolean enabled) {
+        getInstance().setInstanceChannelThreadEnabled(enabled);
+    }
+
     /**
      * Check whether SDK has already been configured.
      *
@@ -253,6 +299,40 @@ public class MobileCenter {
             mChannel.setServerUrl(serverUrl);
     }
 
+    /**
+     * {@link #setRequestCompressionThreshold(int)} implementation at instance level.
+     *
+     * @param threshold minimum payload size in bytes to compress.
+     */
+    private synchronized void setInstanceRequestCompressionThreshold(int threshold) {
+        mCompressionThreshold = threshold;
+        if (mChannel != null)
+            mChannel.setCompressionThreshold(threshold);
+    }
+
+    /**
+     * {@link #setRequestCoalescingEnabled(boolean)} implementation at instance level.
+     *
+     * @param enabled true to merge batches of several services.
+     */
+    private synchronized void setInstanceRequestCoalescingEnabled(boolean enabled) {
+        mRequestCoalescingEnabled = enabled;
+        if (mChannel != null)
+            mChannel.setCoalescingEnabled(enabled);
+    }
+
+    /**
+     * {@link #setChannelThreadEnabled(boolean)} implementation at instance level.
+     *
+     * @param enabled true to use a dedicated channel thread.
+     */
+    private synchronized void setInstanceChannelThreadEnabled(boolean enabled) {
+        if (mChannel != null)
+            MobileCenterLog.warn(LOG_TAG, "Channel thread mode must be set before Mobile Center is configured.");
+        else
+            mChannelThreadEnabled = enabled;
+    }
+
     /**
      * {@link #isConfigured()} implementation at instance level.
      */
@@ -294,10 +374,14 @@ public class MobileCenter {
 
             /* Init channel. */
             mLogSerializer = new DefaultLogSerializer();
-            mChannel = new DefaultChannel(application, appSecret, mLogSerializer);
+            mChannel = new DefaultChannel(application, appSecret, mLogSerializer, mChannelThreadEnabled);
             mChannel.setEnabled(isInstanceEnabled());
             if (mServerUrl != null)
                 mChannel.setServerUrl(mServerUrl);
+            if (mCompressionThreshold != null)
+                mChannel.setCompressionThreshold(mCompressionThreshold);
+            if (mRequestCoalescingEnabled)
+                mChannel.setCoalescingEnabled(true);
             MobileCenterLog.logAssert(LOG_TAG, "Mobile Center SDK configured successfully.");
             return true;
         }
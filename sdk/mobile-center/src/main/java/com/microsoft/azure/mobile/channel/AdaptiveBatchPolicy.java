@@ -0,0 +1,176 @@
+package com.microsoft.azure.mobile.channel;
+
+import android.support.annotation.VisibleForTesting;
+
+/**
+ * Batch policy that adapts to the backlog and to the network.
+ * <p>
+ * It starts with the minimum batch size and parallelism.
+ * While a backlog remains and round trips are fast, batch size doubles and one more batch can be sent in parallel at each success,
+ * up to the maximum values. When the backlog is drained, it goes back to the minimum values.
+ * Slow round trips halve batch size, remove one parallel batch and double the time interval;
+ * a failure goes back to the minimum batch size and parallelism and also doubles the time interval.
+ */
+public class AdaptiveBatchPolicy implements BatchPolicy {
+
+    /**
+     * Round trip time in milliseconds under which the policy can grow.
+     */
+    @VisibleForTesting
+    static final long FAST_ROUND_TRIP_TIME = 1000;
+
+    /**
+     * Round trip time in milliseconds from which the policy shrinks.
+     */
+    @VisibleForTesting
+    static final long SLOW_ROUND_TRIP_TIME = 5000;
+
+    /**
+     * Maximum factor applied to the initial time interval.
+     */
+    @VisibleForTesting
+    static final int MAX_BATCH_TIME_INTERVAL_FACTOR = 8;
+
+    /**
+     * Minimum log count per batch.
+     */
+    private final int mMinLogsPerBatch;
+
+    /**
+     * Maximum log count per batch.
+     */
+    private final int mMaxLogsPerBatch;
+
+    /**
+     * Maximum payload size per batch in bytes, 0 for no limit. Batch size grows within that limit.
+     */
+    private final int mMaxBytesPerBatch;
+
+    /**
+     * Initial time interval in ms.
+     */
+    private final long mMinBatchTimeInterval;
+
+    /**
+     * Minimum number of batches in parallel.
+     */
+    private final int mMinParallelBatches;
+
+    /**
+     * Maximum number of batches in parallel.
+     */
+    private final int mMaxParallelBatches;
+
+    /**
+     * Current log count per batch.
+     */
+    private int mLogsPerBatch;
+
+    /**
+     * Current time interval in ms.
+     */
+    private long mBatchTimeInterval;
+
+    /**
+     * Current number of batches in parallel.
+     */
+    private int mParallelBatches;
+
+    /**
+     * Init.
+     *
+     * @param minLogsPerBatch    initial and minimum batch size.
+     * @param maxLogsPerBatch    maximum batch size.
+     * @param batchTimeInterval  initial and minimum batch interval in ms.
+     * @param minParallelBatches initial and minimum number of parallel batches.
+     * @param maxParallelBatches maximum number of parallel batches.
+     */
+    public AdaptiveBatchPolicy(int minLogsPerBatch, int maxLogsPerBatch, long batchTimeInterval, int minParallelBatches, int maxParallelBatches) {
+        this(minLogsPerBatch, maxLogsPerBatch, 0, batchTimeInterval, minParallelBatches, maxParallelBatches);
+    }
+
+    /**
+     * Init.
+     *
+     * @param minLogsPerBatch    initial and minimum batch size.
+     * @param maxLogsPerBatch    maximum batch size.
+     * @param maxBytesPerBatch   maximum batch payload size in bytes, 0 for no limit.
+     * @param batchTimeInterval  initial and minimum batch interval in ms.
+     * @param minParallelBatches initial and minimum number of parallel batches.
+     * @param maxParallelBatches maximum number of parallel batches.
+     */
+    public AdaptiveBatchPolicy(int minLogsPerBatch, int maxLogsPerBatch, int maxBytesPerBatch, long batchTimeInterval, int minParallelBatches, int maxParallelBatches) {
+        mMinLogsPerBatch = minLogsPerBatch;
+        mMaxLogsPerBatch = Math.max(minLogsPerBatch, maxLogsPerBatch);
+        mMaxBytesPerBatch = maxBytesPerBatch;
+        mMinBatchTimeInterval = batchTimeInterval;
+        mMinParallelBatches = minParallelBatches;
+        mMaxParallelBatches = Math.max(minParallelBatches, maxParallelBatches);
+        reset();
+    }
+
+    @Override
+    public int getMaxLogsPerBatch() {
+        return mLogsPerBatch;
+    }
+
+    @Override
+    public int getMaxBytesPerBatch() {
+        return mMaxBytesPerBatch;
+    }
+
+    @Override
+    public long getBatchTimeInterval() {
+        return mBatchTimeInterval;
+    }
+
+    @Override
+    public int getMaxParallelBatches() {
+        return mParallelBatches;
+    }
+
+    @Override
+    public void onBatchSucceeded(int logCount, int pendingLogCount, long duration) {
+
+        /* Slow network: send less at once and wait longer between incomplete batches. */
+        if (duration >= SLOW_ROUND_TRIP_TIME) {
+            mLogsPerBatch = Math.max(mMinLogsPerBatch, mLogsPerBatch / 2);
+            mParallelBatches = Math.max(mMinParallelBatches, mParallelBatches - 1);
+            increaseBatchTimeInterval();
+        }
+
+        /* Backlog drained. */
+        else if (pendingLogCount < mLogsPerBatch)
+            reset();
+
+        /* Backlog remains and network is fast. */
+        else if (duration <= FAST_ROUND_TRIP_TIME) {
+            mLogsPerBatch = (int) Math.min(mMaxLogsPerBatch, mLogsPerBatch * 2L);
+            mParallelBatches = Math.min(mMaxParallelBatches, mParallelBatches + 1);
+            mBatchTimeInterval = mMinBatchTimeInterval;
+        }
+    }
+
+    @Override
+    public void onBatchFailed(int logCount, long duration) {
+        mLogsPerBatch = mMinLogsPerBatch;
+        mParallelBatches = mMinParallelBatches;
+        increaseBatchTimeInterval();
+    }
+
+    /**
+     * Go back to initial values.
+     */
+    private void reset() {
+        mLogsPerBatch = mMinLogsPerBatch;
+        mBatchTimeInterval = mMinBatchTimeInterval;
+        mParallelBatches = mMinParallelBatches;
+    }
+
+    /**
+     * Double time interval up to its maximum.
+     */
+    private void increaseBatchTimeInterval() {
+        mBatchTimeInterval = Math.min(mMinBatchTimeInterval * MAX_BATCH_TIME_INTERVAL_FACTOR, mBatchTimeInterval * 2);
+    }
+}
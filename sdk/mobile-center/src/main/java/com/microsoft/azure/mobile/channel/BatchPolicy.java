@@ -0,0 +1,54 @@
+package com.microsoft.azure.mobile.channel;
+
+/**
+ * Decides how logs of a group are batched and sent, see {@link Channel#addGroup(String, BatchPolicy, Channel.GroupListener)}.
+ * Values can change over time: the channel reads them every time it needs them and reports the outcome of each batch.
+ * All methods are called while holding the channel lock.
+ */
+public interface BatchPolicy {
+
+    /**
+     * Get the maximum log count per batch.
+     *
+     * @return maximum log count per batch.
+     */
+    int getMaxLogsPerBatch();
+
+    /**
+     * Get the maximum estimated payload size of a batch. A log bigger than that is still sent alone.
+     *
+     * @return maximum size in bytes, {@code 0} for no limit.
+     */
+    int getMaxBytesPerBatch();
+
+    /**
+     * Get the time to wait for more logs before sending an incomplete batch.
+     *
+     * @return time interval in milliseconds.
+     */
+    long getBatchTimeInterval();
+
+    /**
+     * Get the maximum number of batches being sent in parallel.
+     *
+     * @return maximum number of batches in parallel.
+     */
+    int getMaxParallelBatches();
+
+    /**
+     * Called when a batch has been successfully sent.
+     *
+     * @param logCount        number of logs in the batch.
+     * @param pendingLogCount number of logs still waiting to be sent in the group.
+     * @param duration        round trip time in milliseconds, including retries.
+     */
+    void onBatchSucceeded(int logCount, int pendingLogCount, long duration);
+
+    /**
+     * Called when a batch failed to be sent.
+     *
+     * @param logCount number of logs in the batch.
+     * @param duration time in milliseconds until the failure, including retries.
+     */
+    void onBatchFailed(int logCount, long duration);
+}
@@ -9,6 +9,16 @@ import com.microsoft.azure.mobile.ingestion.models.Log;
  */
 public interface Channel {
 
+    /**
+     * Priority of groups added without priority.
+     */
+    int PRIORITY_DEFAULT = 0;
+
+    /**
+     * Priority of groups whose logs must be stored and sent before other groups' logs.
+     */
+    int PRIORITY_HIGH = 10;
+
     /**
      * Add a group for logs to be persisted and sent.
      *
@@ -20,6 +30,27 @@ public interface Channel {
      */
     void addGroup(String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, GroupListener groupListener);
 
+    /**
+     * Add a group for logs to be persisted and sent, with batching driven by a policy.
+     *
+     * @param groupName     the name of a group.
+     * @param batchPolicy   the policy deciding batch size, time interval and parallelism.
+     * @param groupListener a listener for a service.
+     */
+    void addGroup(String groupName, BatchPolicy batchPolicy, GroupListener groupListener);
+
+    /**
+     * Add a group for logs to be persisted and sent, with batching driven by a policy and a priority over other groups.
+     * Storage operations and batches of higher priority groups are processed first.
+     * While a higher priority group has logs to send, lower priority groups send only one batch at a time.
+     *
+     * @param groupName     the name of a group.
+     * @param batchPolicy   the policy deciding batch size, time interval and parallelism.
+     * @param priority      the group priority, the higher the sooner, {@link #PRIORITY_DEFAULT} for most groups.
+     * @param groupListener a listener for a service.
+     */
+    void addGroup(String groupName, BatchPolicy batchPolicy, int priority, GroupListener groupListener);
+
     /**
      * Remove a group for logs.
      *
@@ -57,6 +88,21 @@ public interface Channel {
      */
     void setServerUrl(String serverUrl);
 
+    /**
+     * Update the minimum payload size in bytes from which requests are compressed.
+     *
+     * @param threshold minimum payload size to compress, negative to disable compression.
+     */
+    void setCompressionThreshold(int threshold);
+
+    /**
+     * Enable or disable merging batches of several groups into a single request (disabled by default).
+     * When a batch is ready, other groups with pending logs send them in the same request.
+     *
+     * @param enabled true to merge batches, false to send one request per batch.
+     */
+    void setCoalescingEnabled(boolean enabled);
+
     /**
      * Clear all persisted logs for the given group.
      *
@@ -94,7 +140,8 @@ public interface Channel {
     interface Listener {
 
         /**
-         * Called whenever a log is enqueued.
+         * Called whenever a log is enqueued, on the thread calling enqueue, without holding the channel lock.
+         * Calls from different threads can happen concurrently.
          *
          * @param log       log being enqueued.
          * @param groupName group of the log.
@@ -105,6 +152,7 @@ public interface Channel {
 
     /**
      * Channel group listener specification.
+     * Callbacks of all groups are called holding the channel lock, so never concurrently.
      */
     interface GroupListener {
 
@@ -130,4 +178,19 @@ public interface Channel {
          */
         void onFailure(Log log, Exception e);
     }
+
+    /**
+     * Group listener that does not always need logs, for example when its callbacks only forward to an optional listener.
+     * While it does not need them, the channel sends logs as they were stored without deserializing them,
+     * and deserializes them only if the listener needs them once the batch is sent.
+     */
+    interface LazyGroupListener extends GroupListener {
+
+        /**
+         * Check whether callbacks need the logs at the moment.
+         *
+         * @return true if callbacks need logs, false to skip the callbacks.
+         */
+        boolean needsLogs();
+    }
 }
\ No newline at end of file
@@ -2,14 +2,18 @@ package com.microsoft.azure.mobile.channel;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
 import com.microsoft.azure.mobile.CancellationException;
 import com.microsoft.azure.mobile.ingestion.Ingestion;
 import com.microsoft.azure.mobile.ingestion.ServiceCallback;
 import com.microsoft.azure.mobile.ingestion.http.HttpUtils;
+import com.microsoft.azure.mobile.ingestion.http.IngestionCircuitBreaker;
 import com.microsoft.azure.mobile.ingestion.http.IngestionHttp;
 import com.microsoft.azure.mobile.ingestion.http.IngestionNetworkStateHandler;
 import com.microsoft.azure.mobile.ingestion.http.IngestionRetryer;
@@ -27,15 +31,26 @@ import com.microsoft.azure.mobile.utils.IdHelper;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.NetworkStateHelper;
 
+import org.json.JSONException;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
 
@@ -53,6 +68,25 @@ public class DefaultChannel implements Channel {
     @VisibleForTesting
     static final int SHUTDOWN_TIMEOUT = 5000;
 
+    /**
+     * Name of the thread used in channel thread mode.
+     */
+    @VisibleForTesting
+    static final String CHANNEL_THREAD_NAME = "MobileCenter.Channel";
+
+    /**
+     * Maximum estimated payload size in bytes of a request merging batches of several groups.
+     * Groups limiting the size of their batches lower it further.
+     */
+    @VisibleForTesting
+    static final int MAX_COALESCED_BYTES = 256 * 1024;
+
+    /**
+     * Maximum number of requests sent to bisect a rejected batch, logs still rejected after that are dropped.
+     */
+    @VisibleForTesting
+    static final int MAX_BISECTION_REQUESTS = 32;
+
     /**
      * Application context.
      */
@@ -73,6 +107,12 @@ public class DefaultChannel implements Channel {
      */
     private final Handler mIngestionHandler;
 
+    /**
+     * Handler of the channel thread, null if channel thread mode is disabled.
+     * When enabled, batching timers, persistence callbacks and ingestion callbacks run on that thread.
+     */
+    private final Handler mChannelHandler;
+
     /**
      * Channel state per log group.
      */
@@ -83,6 +123,28 @@ public class DefaultChannel implements Channel {
      */
     private final Collection<Listener> mListeners;
 
+    /**
+     * Logs enqueued and waiting to be persisted, by the channel thread in channel thread mode,
+     * otherwise by the thread that started draining them. Application threads add logs without taking the channel lock.
+     */
+    private final Queue<EnqueuedLog> mEnqueuedLogs;
+
+    /**
+     * True when a drain of {@link #mEnqueuedLogs} is scheduled or running.
+     */
+    private final AtomicBoolean mDrainScheduled;
+
+    /**
+     * Persist logs of {@link #mEnqueuedLogs} on the channel thread.
+     */
+    private final Runnable mDrainEnqueuedLogs = new Runnable() {
+
+        @Override
+        public void run() {
+            drainEnqueuedLogs();
+        }
+    };
+
     /**
      * The Persistence instance used to store events in the local storage asynchronously.
      */
@@ -93,6 +155,29 @@ public class DefaultChannel implements Channel {
      */
     private final Ingestion mIngestion;
 
+    /**
+     * Circuit breaker of the ingestion chain, null if not used.
+     */
+    private final IngestionCircuitBreaker mCircuitBreaker;
+
+    /**
+     * Resume or slow down pulling batches when the circuit breaker state changes.
+     */
+    private final IngestionCircuitBreaker.Listener mCircuitListener = new IngestionCircuitBreaker.Listener() {
+
+        @Override
+        public void onCircuitStateChanged(IngestionCircuitBreaker.State state) {
+            if (state != IngestionCircuitBreaker.State.OPEN)
+                runOnChannelThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        checkPendingLogsOfAllGroups();
+                    }
+                });
+        }
+    };
+
     /**
      * Is channel enabled?
      */
@@ -102,7 +187,7 @@ public class DefaultChannel implements Channel {
      * Is channel disabled due to connectivity issues or was the problem fatal?
      * In that case we stop accepting new logs in database.
      */
-    private boolean mDiscardLogs;
+    private volatile boolean mDiscardLogs;
 
     /**
      * Device properties.
@@ -115,6 +200,37 @@ public class DefaultChannel implements Channel {
      */
     private int mCurrentState;
 
+    /**
+     * Are batches rejected because of their content split to isolate the offending logs?
+     */
+    private boolean mBisectionEnabled = true;
+
+    /**
+     * Number of logs dropped after being isolated as the reason a batch was rejected.
+     */
+    private long mIsolatedLogCount;
+
+    /**
+     * Number of times a rejected batch or sub-batch was split in two.
+     */
+    private long mBisectedBatchCount;
+
+    /**
+     * Are batches of several groups merged into a single request?
+     */
+    private boolean mCoalescingEnabled;
+
+    /**
+     * Batches read from persistence and waiting to be merged in a request, in coalescing mode.
+     */
+    private final List<ReadyBatch> mReadyBatches = new ArrayList<>();
+
+    /**
+     * Number of batches being read from persistence in coalescing mode,
+     * ready batches are sent when there is none left.
+     */
+    private int mPendingBatchReads;
+
     /**
      * Creates and initializes a new instance.
      *
@@ -123,7 +239,26 @@ public class DefaultChannel implements Channel {
      * @param logSerializer The log serializer.
      */
     public DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull LogSerializer logSerializer) {
-        this(context, appSecret, buildDefaultPersistence(logSerializer), buildDefaultIngestion(context, logSerializer));
+        this(context, appSecret, logSerializer, false);
+    }
+
+    /**
+     * Creates and initializes a new instance.
+     *
+     * @param context       The context.
+     * @param appSecret     The application secret.
+     * @param logSerializer The log serializer.
+     * @param channelThread true to process logs on a dedicated background thread instead of the main thread.
+     */
+    public DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull LogSerializer logSerializer, boolean channelThread) {
+        this(context, appSecret, logSerializer, new IngestionCircuitBreaker(new IngestionHttp(logSerializer)), channelThread ? buildChannelHandler() : null);
+    }
+
+    /**
+     * Build the default ingestion chain around the circuit breaker.
+     */
+    private DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull LogSerializer logSerializer, @NonNull IngestionCircuitBreaker circuitBreaker, @Nullable Handler channelHandler) {
+        this(context, appSecret, buildDefaultPersistence(logSerializer), buildDefaultIngestion(context, circuitBreaker), circuitBreaker, channelHandler);
     }
 
     /**
@@ -136,24 +271,69 @@ public class DefaultChannel implements Channel {
      */
     @VisibleForTesting
     DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull Persistence persistence, @NonNull Ingestion ingestion) {
+        this(context, appSecret, persistence, ingestion, null);
+    }
+
+    /**
+     * Overloaded constructor with limited visibility that allows for dependency injection.
+     *
+     * @param context        The context.
+     * @param appSecret      The application secret.
+     * @param persistence    Persistence object for dependency injection.
+     * @param ingestion      Ingestion object for dependency injection.
+     * @param channelHandler Handler of the channel thread, null to use the main thread.
+     */
+    @VisibleForTesting
+    DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull Persistence persistence, @NonNull Ingestion ingestion, @Nullable Handler channelHandler) {
+        this(context, appSecret, persistence, ingestion, null, channelHandler);
+    }
+
+    /**
+     * Overloaded constructor with limited visibility that allows for dependency injection.
+     *
+     * @param context        The context.
+     * @param appSecret      The application secret.
+     * @param persistence    Persistence object for dependency injection.
+     * @param ingestion      Ingestion object for dependency injection.
+     * @param circuitBreaker Circuit breaker part of the ingestion chain, null if not used.
+     * @param channelHandler Handler of the channel thread, null to use the main thread.
+     */
+    @VisibleForTesting
+    DefaultChannel(@NonNull Context context, @NonNull String appSecret, @NonNull Persistence persistence, @NonNull Ingestion ingestion, @Nullable IngestionCircuitBreaker circuitBreaker, @Nullable Handler channelHandler) {
         mContext = context;
         mAppSecret = appSecret;
         mInstallId = IdHelper.getInstallId();
-        mIngestionHandler = new Handler(Looper.getMainLooper());
-        mGroupStates = new HashMap<>();
-        mListeners = new HashSet<>();
+        mChannelHandler = channelHandler;
+        mIngestionHandler = channelHandler != null ? channelHandler : new Handler(Looper.getMainLooper());
+        mGroupStates = new ConcurrentHashMap<>();
+        mListeners = new CopyOnWriteArraySet<>();
+        mEnqueuedLogs = new ConcurrentLinkedQueue<>();
+        mDrainScheduled = new AtomicBoolean();
         mPersistence = new DatabasePersistenceAsync(persistence);
         mIngestion = ingestion;
+        mCircuitBreaker = circuitBreaker;
+        if (circuitBreaker != null)
+            circuitBreaker.addListener(mCircuitListener);
         mEnabled = true;
     }
 
+    /**
+     * Start the channel thread.
+     */
+    private static Handler buildChannelHandler() {
+        HandlerThread thread = new HandlerThread(CHANNEL_THREAD_NAME);
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
+
     /**
      * Init ingestion for default constructor.
+     * The circuit breaker sees every HTTP attempt, retries included, so that all groups stop hitting a server that is down.
+     * Calls the open circuit did not send are sent again once it lets calls through, without using retries or backing off.
      */
-    private static Ingestion buildDefaultIngestion(@NonNull Context context, @NonNull LogSerializer logSerializer) {
-        IngestionHttp api = new IngestionHttp(logSerializer);
-        IngestionRetryer retryer = new IngestionRetryer(api);
-        return new IngestionNetworkStateHandler(retryer, NetworkStateHelper.getSharedInstance(context));
+    private static Ingestion buildDefaultIngestion(@NonNull Context context, @NonNull IngestionCircuitBreaker circuitBreaker) {
+        IngestionRetryer retryer = new IngestionRetryer(circuitBreaker);
+        return new IngestionNetworkStateHandler(retryer, NetworkStateHelper.getSharedInstance(context), PRIORITY_HIGH);
     }
 
     /**
@@ -165,6 +345,49 @@ public class DefaultChannel implements Channel {
         return persistence;
     }
 
+    /**
+     * Get the number of logs in a batch, whether logs are deserialized or not.
+     */
+    private static int getBatchSize(@NonNull LogContainer logContainer) {
+        List<String> rawLogs = logContainer.getRawLogs();
+        return rawLogs != null ? rawLogs.size() : logContainer.getLogs().size();
+    }
+
+    /**
+     * Check whether the listener of a group needs log objects at the moment.
+     */
+    private static boolean needsLogs(@NonNull GroupState groupState) {
+        GroupListener listener = groupState.mListener;
+        return listener != null && (!(listener instanceof LazyGroupListener) || ((LazyGroupListener) listener).needsLogs());
+    }
+
+    /**
+     * Get the logs of a batch to pass to the group listener.
+     * Logs sent as they were stored are deserialized only if the listener needs them.
+     *
+     * @param groupState   the group state.
+     * @param logContainer logs of the batch.
+     * @return logs to call the listener with, empty if there is no listener or it does not need logs.
+     */
+    @NonNull
+    private List<Log> getListenerLogs(@NonNull GroupState groupState, @NonNull LogContainer logContainer) {
+        List<String> rawLogs = logContainer.getRawLogs();
+        if (rawLogs == null)
+            return groupState.mListener != null ? logContainer.getLogs() : Collections.<Log>emptyList();
+        if (!needsLogs(groupState))
+            return Collections.emptyList();
+        List<Log> logs = new ArrayList<>(rawLogs.size());
+        LogSerializer logSerializer = mPersistence.getLogSerializer();
+        for (String rawLog : rawLogs) {
+            try {
+                logs.add(logSerializer.deserializeLog(rawLog));
+            } catch (JSONException e) {
+                MobileCenterLog.error(LOG_TAG, "Cannot deserialize a log for the group listener", e);
+            }
+        }
+        return logs;
+    }
+
     /**
      * Call this after every async (such as database/ingestion) callback and stop processing if it returns false.
      * That means either the groupState was removed (or removed/added again),
@@ -179,23 +402,117 @@ public class DefaultChannel implements Channel {
         return stateSnapshot == mCurrentState && groupState == mGroupStates.get(groupState.mName);
     }
 
+    /**
+     * Run on the channel thread in channel thread mode, otherwise on the calling thread.
+     *
+     * @param runnable code to run.
+     */
+    private void runOnChannelThread(Runnable runnable) {
+        if (mChannelHandler == null || Looper.myLooper() == mChannelHandler.getLooper())
+            runnable.run();
+        else
+            mChannelHandler.post(runnable);
+    }
+
+    /**
+     * Make a persistence callback run on the channel thread in channel thread mode.
+     *
+     * @param callback callback to wrap.
+     * @return callback to pass to persistence.
+     */
+    private DatabasePersistenceAsyncCallback onChannelThread(final DatabasePersistenceAsyncCallback callback) {
+        if (mChannelHandler == null)
+            return callback;
+        return new DatabasePersistenceAsyncCallback() {
+
+            @Override
+            public void onSuccess(final Object result) {
+                runOnChannelThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.onSuccess(result);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(final Exception e) {
+                runOnChannelThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.onFailure(e);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Make an ingestion callback run on the channel thread in channel thread mode.
+     *
+     * @param callback callback to wrap.
+     * @return callback to pass to ingestion.
+     */
+    private ServiceCallback onChannelThread(final ServiceCallback callback) {
+        if (mChannelHandler == null)
+            return callback;
+        return new ServiceCallback() {
+
+            @Override
+            public void onCallSucceeded() {
+                runOnChannelThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.onCallSucceeded();
+                    }
+                });
+            }
+
+            @Override
+            public void onCallFailed(final Exception e) {
+                runOnChannelThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.onCallFailed(e);
+                    }
+                });
+            }
+        };
+    }
+
     @Override
-    public synchronized void addGroup(final String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, GroupListener groupListener) {
+    public void addGroup(String groupName, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, GroupListener groupListener) {
+        addGroup(groupName, new FixedBatchPolicy(maxLogsPerBatch, batchTimeInterval, maxParallelBatches), groupListener);
+    }
+
+    @Override
+    public void addGroup(String groupName, BatchPolicy batchPolicy, GroupListener groupListener) {
+        addGroup(groupName, batchPolicy, PRIORITY_DEFAULT, groupListener);
+    }
+
+    @Override
+    public synchronized void addGroup(final String groupName, BatchPolicy batchPolicy, int priority, GroupListener groupListener) {
 
         /* Init group. */
-        MobileCenterLog.debug(LOG_TAG, "addGroup(" + groupName + ")");
-        final GroupState groupState = new GroupState(groupName, maxLogsPerBatch, batchTimeInterval, maxParallelBatches, groupListener);
+        MobileCenterLog.debug(LOG_TAG, "addGroup(" + groupName + ", priority=" + priority + ")");
+        final GroupState groupState = new GroupState(groupName, batchPolicy, priority, groupListener);
         mGroupStates.put(groupName, groupState);
+        mPersistence.setGroupPriority(groupName, priority);
+        updateMaxConcurrentCalls();
 
         /* Count pending logs. */
         final int stateSnapshot = mCurrentState;
-        mPersistence.countLogs(groupName, new AbstractDatabasePersistenceAsyncCallback() {
+        mPersistence.countLogs(groupName, onChannelThread(new AbstractDatabasePersistenceAsyncCallback() {
 
             @Override
             public void onSuccess(Object result) {
                 checkPendingLogsAfterCounting(groupState, stateSnapshot, (Integer) result);
             }
-        });
+        }));
     }
 
     private synchronized void checkPendingLogsAfterCounting(GroupState groupState, int currentState, int logCount) {
@@ -214,9 +531,33 @@ public class DefaultChannel implements Channel {
         GroupState groupState = mGroupStates.remove(groupName);
         if (groupState != null) {
             cancelTimer(groupState);
+            updateMaxConcurrentCalls();
         }
     }
 
+    /**
+     * Allow ingestion to send as many calls at once as all groups can have batches in flight.
+     */
+    private void updateMaxConcurrentCalls() {
+        int maxConcurrentCalls = 0;
+        for (GroupState groupState : mGroupStates.values())
+            maxConcurrentCalls += groupState.mBatchPolicy.getMaxParallelBatches();
+        mIngestion.setMaxConcurrentCalls(maxConcurrentCalls);
+    }
+
+    /**
+     * Check if a group with a higher priority than the given one has logs to send.
+     *
+     * @param groupState the group state.
+     * @return true if a higher priority group has pending logs or batches being sent.
+     */
+    private boolean hasHigherPriorityLogs(@NonNull GroupState groupState) {
+        for (GroupState otherGroupState : mGroupStates.values())
+            if (otherGroupState.mPriority > groupState.mPriority && (otherGroupState.mPendingLogCount > 0 || !otherGroupState.mSendingBatches.isEmpty()))
+                return true;
+        return false;
+    }
+
     @Override
     public synchronized boolean isEnabled() {
         return mEnabled;
@@ -237,17 +578,56 @@ public class DefaultChannel implements Channel {
             mEnabled = true;
             mDiscardLogs = false;
             mCurrentState++;
-            for (String groupName : mGroupStates.keySet())
-                checkPendingLogs(groupName);
+            checkPendingLogsOfAllGroups();
         } else
             suspend(true, new CancellationException());
     }
 
+    /**
+     * Check pending logs of every group if enabled.
+     */
+    private synchronized void checkPendingLogsOfAllGroups() {
+        if (mEnabled)
+            for (String groupName : mGroupStates.keySet())
+                checkPendingLogs(groupName);
+    }
+
+    /**
+     * Check if the circuit breaker lets another batch be sent.
+     * No batch is pulled from persistence while the circuit is open,
+     * and only one batch across all groups is sent at a time while it's half-open.
+     *
+     * @return true if a batch can be sent.
+     */
+    private boolean isCircuitAllowingBatch() {
+        if (mCircuitBreaker == null)
+            return true;
+        switch (mCircuitBreaker.getState()) {
+
+            case OPEN:
+                return false;
+
+            case HALF_OPEN:
+                for (GroupState groupState : mGroupStates.values())
+                    if (!groupState.mSendingBatches.isEmpty())
+                        return false;
+                return true;
+
+            default:
+                return true;
+        }
+    }
+
     @Override
     public void setServerUrl(String serverUrl) {
         mIngestion.setServerUrl(serverUrl);
     }
 
+    @Override
+    public void setCompressionThreshold(int threshold) {
+        mIngestion.setCompressionThreshold(threshold);
+    }
+
     /**
      * Delete all persisted logs for the given group.
      *
@@ -258,6 +638,39 @@ public class DefaultChannel implements Channel {
         mPersistence.deleteLogs(groupName);
     }
 
+    /**
+     * Enable or disable splitting batches rejected because of their content (enabled by default).
+     * When disabled, all the logs of a rejected batch are reported as failed and deleted.
+     *
+     * @param enabled true to isolate offending logs, false to drop the whole batch.
+     */
+    public synchronized void setBisectionEnabled(boolean enabled) {
+        mBisectionEnabled = enabled;
+    }
+
+    @Override
+    public synchronized void setCoalescingEnabled(boolean enabled) {
+        mCoalescingEnabled = enabled;
+    }
+
+    /**
+     * Get the number of logs dropped after being isolated as the reason a batch was rejected.
+     *
+     * @return number of isolated logs since channel creation.
+     */
+    public synchronized long getIsolatedLogCount() {
+        return mIsolatedLogCount;
+    }
+
+    /**
+     * Get the number of times a rejected batch or sub-batch was split in two.
+     *
+     * @return number of bisections since channel creation.
+     */
+    public synchronized long getBisectedBatchCount() {
+        return mBisectedBatchCount;
+    }
+
     @Override
     public synchronized void invalidateDeviceCache() {
         mDevice = null;
@@ -273,20 +686,20 @@ public class DefaultChannel implements Channel {
         mEnabled = false;
         mDiscardLogs = deleteLogs;
         mCurrentState++;
+        mReadyBatches.clear();
+        mPendingBatchReads = 0;
         for (GroupState groupState : mGroupStates.values()) {
             cancelTimer(groupState);
+            groupState.mBisections.clear();
 
             /* Delete all other batches and call callback method that are currently in progress. */
-            for (Iterator<Map.Entry<String, List<Log>>> iterator = groupState.mSendingBatches.entrySet().iterator(); iterator.hasNext(); ) {
-                Map.Entry<String, List<Log>> entry = iterator.next();
-                List<Log> removedLogsForBatchId = groupState.mSendingBatches.get(entry.getKey());
+            for (Iterator<Map.Entry<String, LogContainer>> iterator = groupState.mSendingBatches.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, LogContainer> entry = iterator.next();
+                LogContainer removedLogsForBatchId = groupState.mSendingBatches.get(entry.getKey());
                 iterator.remove();
                 if (deleteLogs) {
-                    GroupListener groupListener = groupState.mListener;
-                    if (groupListener != null) {
-                        for (Log log : removedLogsForBatchId)
-                            groupListener.onFailure(log, exception);
-                    }
+                    for (Log log : getListenerLogs(groupState, removedLogsForBatchId))
+                        groupState.mListener.onFailure(log, exception);
                 }
             }
         }
@@ -307,13 +720,13 @@ public class DefaultChannel implements Channel {
     private void deleteLogsOnSuspended(final GroupState groupState) {
         final List<Log> logs = new ArrayList<>();
         final int stateSnapshot = mCurrentState;
-        mPersistence.getLogs(groupState.mName, CLEAR_BATCH_SIZE, logs, new AbstractDatabasePersistenceAsyncCallback() {
+        mPersistence.getLogs(groupState.mName, CLEAR_BATCH_SIZE, logs, onChannelThread(new AbstractDatabasePersistenceAsyncCallback() {
 
             @Override
             public void onSuccess(Object result) {
                 deleteLogsOnSuspended(groupState, stateSnapshot, logs);
             }
-        });
+        }));
     }
 
     private synchronized void deleteLogsOnSuspended(GroupState groupState, int currentState, List<Log> logs) {
@@ -361,61 +774,215 @@ public class DefaultChannel implements Channel {
         MobileCenterLog.debug(LOG_TAG, "triggerIngestion(" + groupName + ") pendingLogCount=" + groupState.mPendingLogCount);
         cancelTimer(groupState);
 
-        /* Check if we have reached the maximum number of pending batches, log to LogCat and don't trigger another sending. */
-        if (groupState.mSendingBatches.size() == groupState.mMaxParallelBatches) {
-            MobileCenterLog.debug(LOG_TAG, "Already sending " + groupState.mMaxParallelBatches + " batches of analytics data to the server.");
+        /*
+         * Check if we have reached the maximum number of pending batches, log to LogCat and don't trigger another sending.
+         * Higher priority groups with logs to send leave only one batch at a time to this group,
+         * the end of that batch checks pending logs again.
+         */
+        int maxParallelBatches = groupState.mBatchPolicy.getMaxParallelBatches();
+        if (maxParallelBatches > 1 && hasHigherPriorityLogs(groupState))
+            maxParallelBatches = 1;
+        if (groupState.mSendingBatches.size() >= maxParallelBatches) {
+            MobileCenterLog.debug(LOG_TAG, "Already sending " + maxParallelBatches + " batches of analytics data to the server.");
+            return;
+        }
+
+        /* Leave logs in persistence while the server is known to be down, circuit state changes check pending logs again. */
+        if (!isCircuitAllowingBatch()) {
+            MobileCenterLog.debug(LOG_TAG, "Circuit breaker is not closed, not sending more logs of " + groupName + " yet.");
             return;
         }
 
         /* Get a batch from Persistence. */
-        final List<Log> batch = new ArrayList<>(groupState.mMaxLogsPerBatch);
+        final LogContainer logContainer = new LogContainer();
+        logContainer.setPriority(groupState.mPriority);
         final int stateSnapshot = mCurrentState;
-        mPersistence.getLogs(groupName, groupState.mMaxLogsPerBatch, batch, new AbstractDatabasePersistenceAsyncCallback() {
+        final boolean coalesce = mCoalescingEnabled;
+        if (coalesce)
+            mPendingBatchReads++;
+        DatabasePersistenceAsyncCallback callback = onChannelThread(new AbstractDatabasePersistenceAsyncCallback() {
 
             @Override
             public void onSuccess(Object result) {
-                triggerIngestion((String) result, groupState, stateSnapshot, batch);
+                triggerIngestion((String) result, groupState, stateSnapshot, logContainer, coalesce);
             }
         });
+
+        /* If the listener does not need log objects, send logs as they were stored. */
+        int maxLogsPerBatch = groupState.mBatchPolicy.getMaxLogsPerBatch();
+        int maxBytesPerBatch = groupState.mBatchPolicy.getMaxBytesPerBatch();
+        if (!needsLogs(groupState) && mPersistence.hasRawLogs()) {
+            List<String> rawBatch = new ArrayList<>(maxLogsPerBatch);
+            logContainer.setRawLogs(rawBatch);
+            mPersistence.getRawLogs(groupName, maxLogsPerBatch, maxBytesPerBatch, rawBatch, callback);
+        } else {
+            List<Log> batch = new ArrayList<>(maxLogsPerBatch);
+            logContainer.setLogs(batch);
+            mPersistence.getLogs(groupName, maxLogsPerBatch, maxBytesPerBatch, batch, callback);
+        }
     }
 
-    private synchronized void triggerIngestion(final String batchId, final GroupState groupState, final int stateSnapshot, List<Log> batch) {
+    private synchronized void triggerIngestion(final String batchId, final GroupState groupState, final int stateSnapshot, LogContainer logContainer, boolean coalesce) {
+
+        /* Suspending resets the number of reads. */
+        if (coalesce && stateSnapshot == mCurrentState)
+            mPendingBatchReads--;
         if (batchId != null && checkStateDidNotChange(groupState, stateSnapshot)) {
 
             /* Call group listener before sending logs to ingestion service. */
-            if (groupState.mListener != null) {
-                for (Log log : batch) {
-                    groupState.mListener.onBeforeSending(log);
-                }
+            for (Log log : getListenerLogs(groupState, logContainer)) {
+                groupState.mListener.onBeforeSending(log);
             }
 
             /* Decrement counter. */
-            groupState.mPendingLogCount -= batch.size();
+            groupState.mPendingLogCount -= getBatchSize(logContainer);
             MobileCenterLog.debug(LOG_TAG, "ingestLogs(" + groupState.mName + "," + batchId + ") pendingLogCount=" + groupState.mPendingLogCount);
 
             /* Remember this batch. */
-            groupState.mSendingBatches.put(batchId, batch);
+            groupState.mSendingBatches.put(batchId, logContainer);
+            ReadyBatch readyBatch = new ReadyBatch(groupState, stateSnapshot, batchId, logContainer, mPersistence.getByteCount(groupState.mName, batchId));
+            if (coalesce) {
+
+                /* The first batch of a request gives other groups a chance to send their pending logs with it. */
+                boolean firstReadyBatch = mReadyBatches.isEmpty();
+                mReadyBatches.add(readyBatch);
+                if (firstReadyBatch)
+                    for (GroupState otherGroupState : mGroupStates.values())
+                        if (otherGroupState != groupState && otherGroupState.mPendingLogCount > 0)
+                            triggerIngestion(otherGroupState.mName);
+            } else {
 
-            /* Send logs. */
-            LogContainer logContainer = new LogContainer();
-            logContainer.setLogs(batch);
-            mIngestion.sendAsync(mAppSecret, mInstallId, logContainer, new ServiceCallback() {
+                /* Send logs. */
+                sendBatches(Collections.singletonList(readyBatch), logContainer);
+            }
 
-                        @Override
-                        public void onCallSucceeded() {
-                            handleSendingSuccess(groupState, stateSnapshot, batchId);
-                        }
+            /* Check for more pending logs. */
+            checkPendingLogs(groupState.mName);
+        }
+
+        /* Send ready batches when all the batches being read joined them. */
+        if (coalesce && mPendingBatchReads == 0 && !mReadyBatches.isEmpty())
+            flushReadyBatches();
+    }
 
-                        @Override
-                        public void onCallFailed(Exception e) {
-                            handleSendingFailure(groupState, stateSnapshot, batchId, e);
-                        }
+    /**
+     * Send a request with the logs of one or more batches.
+     * The result of the request is handled for each batch.
+     *
+     * @param batches      batches included in the request.
+     * @param logContainer logs of all the batches.
+     */
+    private void sendBatches(@NonNull final List<ReadyBatch> batches, @NonNull LogContainer logContainer) {
+        final long sendTime = SystemClock.elapsedRealtime();
+        mIngestion.sendAsync(mAppSecret, mInstallId, logContainer, onChannelThread(new ServiceCallback() {
+
+                    @Override
+                    public void onCallSucceeded() {
+                        for (ReadyBatch batch : batches)
+                            handleSendingSuccess(batch.mGroupState, batch.mStateSnapshot, batch.mBatchId, sendTime);
                     }
-            );
 
-            /* Check for more pending logs. */
-            checkPendingLogs(groupState.mName);
+                    @Override
+                    public void onCallFailed(Exception e) {
+                        for (ReadyBatch batch : batches)
+                            handleSendingFailure(batch.mGroupState, batch.mStateSnapshot, batch.mBatchId, sendTime, e);
+                    }
+                })
+        );
+    }
+
+    /**
+     * Merge ready batches into as few requests as possible and send them.
+     * Deserialized and raw logs cannot be mixed in a request.
+     */
+    private void flushReadyBatches() {
+        List<ReadyBatch> logBatches = new ArrayList<>();
+        List<ReadyBatch> rawBatches = new ArrayList<>();
+        for (ReadyBatch batch : mReadyBatches) {
+
+            /* Skip batches of groups removed since. */
+            if (checkStateDidNotChange(batch.mGroupState, batch.mStateSnapshot)) {
+                if (batch.mLogContainer.getRawLogs() != null)
+                    rawBatches.add(batch);
+                else
+                    logBatches.add(batch);
+            }
+        }
+        mReadyBatches.clear();
+        coalesceAndSend(logBatches);
+        coalesceAndSend(rawBatches);
+    }
+
+    /**
+     * Merge batches of the same kind into requests, higher priority groups first.
+     * The estimated payload size of a request is limited by {@link #MAX_COALESCED_BYTES}
+     * and by the maximum batch size of each group in it, a bigger batch is still sent alone.
+     *
+     * @param batches batches, either all with raw logs or all with deserialized logs.
+     */
+    private void coalesceAndSend(@NonNull List<ReadyBatch> batches) {
+        Collections.sort(batches, new Comparator<ReadyBatch>() {
+
+            @Override
+            public int compare(ReadyBatch lhs, ReadyBatch rhs) {
+                return rhs.mGroupState.mPriority < lhs.mGroupState.mPriority ? -1 : (rhs.mGroupState.mPriority == lhs.mGroupState.mPriority ? 0 : 1);
+            }
+        });
+        List<ReadyBatch> requestBatches = new ArrayList<>();
+        int requestByteCount = 0;
+        int requestMaxBytes = MAX_COALESCED_BYTES;
+        for (ReadyBatch batch : batches) {
+            int maxBytes = getMaxBytes(requestMaxBytes, batch);
+            if (!requestBatches.isEmpty() && requestByteCount + batch.mByteCount > maxBytes) {
+                sendBatches(requestBatches, mergeBatches(requestBatches));
+                requestBatches = new ArrayList<>();
+                requestByteCount = 0;
+                maxBytes = getMaxBytes(MAX_COALESCED_BYTES, batch);
+            }
+            requestBatches.add(batch);
+            requestByteCount += batch.mByteCount;
+            requestMaxBytes = maxBytes;
         }
+        if (!requestBatches.isEmpty())
+            sendBatches(requestBatches, mergeBatches(requestBatches));
+    }
+
+    /**
+     * Get the maximum estimated payload size of a request once a batch is added to it.
+     *
+     * @param maxBytes maximum size of the request without the batch.
+     * @param batch    batch to add.
+     * @return maximum size in bytes.
+     */
+    private static int getMaxBytes(int maxBytes, @NonNull ReadyBatch batch) {
+        int groupMaxBytes = batch.mGroupState.mBatchPolicy.getMaxBytesPerBatch();
+        return groupMaxBytes > 0 ? Math.min(maxBytes, groupMaxBytes) : maxBytes;
+    }
+
+    /**
+     * Build the container of a request including several batches.
+     *
+     * @param batches batches of the same kind, sorted by decreasing priority.
+     * @return the logs of the batches in a single container.
+     */
+    private static LogContainer mergeBatches(@NonNull List<ReadyBatch> batches) {
+        if (batches.size() == 1)
+            return batches.get(0).mLogContainer;
+        LogContainer merged = new LogContainer();
+        merged.setPriority(batches.get(0).mGroupState.mPriority);
+        if (batches.get(0).mLogContainer.getRawLogs() != null) {
+            List<String> rawLogs = new ArrayList<>();
+            for (ReadyBatch batch : batches)
+                rawLogs.addAll(batch.mLogContainer.getRawLogs());
+            merged.setRawLogs(rawLogs);
+        } else {
+            List<Log> logs = new ArrayList<>();
+            for (ReadyBatch batch : batches)
+                logs.addAll(batch.mLogContainer.getLogs());
+            merged.setLogs(logs);
+        }
+        MobileCenterLog.debug(LOG_TAG, "Sending " + batches.size() + " batches in one request.");
+        return merged;
     }
 
     /**
@@ -424,17 +991,18 @@ public class DefaultChannel implements Channel {
      * @param groupState   The group state.
      * @param currentState The current state.
      * @param batchId      The batch ID.
+     * @param sendTime     The time when the batch was sent, from {@link SystemClock#elapsedRealtime()}.
      */
-    private synchronized void handleSendingSuccess(@NonNull final GroupState groupState, int currentState, @NonNull final String batchId) {
+    private synchronized void handleSendingSuccess(@NonNull final GroupState groupState, int currentState, @NonNull final String batchId, long sendTime) {
         if (checkStateDidNotChange(groupState, currentState)) {
             String groupName = groupState.mName;
             mPersistence.deleteLogs(groupName, batchId);
-            List<Log> removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
-            GroupListener groupListener = groupState.mListener;
-            if (groupListener != null) {
-                for (Log log : removedLogsForBatchId)
-                    groupListener.onSuccess(log);
-            }
+            LogContainer removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
+            int maxParallelBatches = groupState.mBatchPolicy.getMaxParallelBatches();
+            groupState.mBatchPolicy.onBatchSucceeded(getBatchSize(removedLogsForBatchId), groupState.mPendingLogCount, SystemClock.elapsedRealtime() - sendTime);
+            checkMaxParallelBatchesChanged(groupState, maxParallelBatches);
+            for (Log log : getListenerLogs(groupState, removedLogsForBatchId))
+                groupState.mListener.onSuccess(log);
             checkPendingLogs(groupName);
         }
     }
@@ -447,57 +1015,313 @@ public class DefaultChannel implements Channel {
      * @param groupState   the group state
      * @param currentState the current state
      * @param batchId      the batch ID
+     * @param sendTime     the time when the batch was sent, from {@link SystemClock#elapsedRealtime()}
      * @param e            the exception
      */
-    private synchronized void handleSendingFailure(@NonNull final GroupState groupState, int currentState, @NonNull final String batchId, @NonNull final Exception e) {
+    private synchronized void handleSendingFailure(@NonNull final GroupState groupState, int currentState, @NonNull final String batchId, long sendTime, @NonNull final Exception e) {
         if (checkStateDidNotChange(groupState, currentState)) {
             String groupName = groupState.mName;
             MobileCenterLog.error(LOG_TAG, "Sending logs groupName=" + groupName + " id=" + batchId + " failed", e);
-            List<Log> removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
-            boolean recoverableError = HttpUtils.isRecoverableError(e);
-            if (recoverableError) {
-                groupState.mPendingLogCount += removedLogsForBatchId.size();
+            LogContainer batch = groupState.mSendingBatches.get(batchId);
+            int batchSize = getBatchSize(batch);
+
+            /*
+             * A batch rejected because of its content is split and sent again to find the offending logs.
+             * The batch stays in storage and in sending batches until all its logs are resolved.
+             * This is not a connectivity issue, so the batch policy is not notified.
+             */
+            if (mBisectionEnabled && HttpUtils.isContentRejectedError(e)) {
+                Bisection bisection = new Bisection(batchSize);
+                groupState.mBisections.put(batchId, bisection);
+                bisect(groupState, currentState, batchId, bisection, batch, e);
+                return;
+            }
+            int maxParallelBatches = groupState.mBatchPolicy.getMaxParallelBatches();
+            groupState.mBatchPolicy.onBatchFailed(batchSize, SystemClock.elapsedRealtime() - sendTime);
+            checkMaxParallelBatchesChanged(groupState, maxParallelBatches);
+            failBatch(groupState, batchId, batchSize, e);
+        }
+    }
+
+    /**
+     * Give up on a batch: schedule it again on a recoverable error, report remaining logs as failed otherwise, then suspend.
+     *
+     * @param groupState the group state.
+     * @param batchId    the batch ID.
+     * @param batchSize  number of logs the batch had in storage.
+     * @param e          the exception.
+     */
+    private void failBatch(@NonNull GroupState groupState, @NonNull String batchId, int batchSize, @NonNull Exception e) {
+        LogContainer removedLogsForBatchId = groupState.mSendingBatches.remove(batchId);
+        boolean recoverableError = HttpUtils.isRecoverableError(e);
+        if (recoverableError) {
+            groupState.mPendingLogCount += batchSize;
+        } else {
+            for (Log log : getListenerLogs(groupState, removedLogsForBatchId))
+                groupState.mListener.onFailure(log, e);
+        }
+        suspend(!recoverableError, e);
+    }
+
+    /**
+     * Split a rejected (sub-)batch in two halves and send them, or drop its log if it contains only one.
+     * The number of requests is bounded by {@link #MAX_BISECTION_REQUESTS}, when they are all used
+     * the remaining rejected logs are dropped. If none of the requests was accepted, ingestion is likely
+     * rejecting everything (e.g. invalid header or API version): fail the whole batch like without bisection.
+     *
+     * @param groupState   the group state.
+     * @param currentState the current state.
+     * @param batchId      the ID of the batch in storage.
+     * @param bisection    the bisection state of that batch.
+     * @param subBatch     the rejected logs.
+     * @param e            the exception that rejected them.
+     */
+    private void bisect(@NonNull GroupState groupState, int currentState, @NonNull String batchId, @NonNull Bisection bisection, @NonNull LogContainer subBatch, @NonNull Exception e) {
+        List<String> rawLogs = subBatch.getRawLogs();
+        int size = getBatchSize(subBatch);
+        if (size <= 1) {
+            mIsolatedLogCount++;
+            MobileCenterLog.warn(LOG_TAG, "Dropping log rejected by ingestion groupName=" + groupState.mName + " id=" + batchId);
+            for (Log log : getListenerLogs(groupState, subBatch))
+                groupState.mListener.onFailure(log, e);
+        } else if (bisection.mRemainingRequests < 2) {
+            if (!bisection.mAccepted) {
+                MobileCenterLog.error(LOG_TAG, "No part of rejected logs was accepted, failing batch groupName=" + groupState.mName + " id=" + batchId, e);
+                groupState.mBisections.remove(batchId);
+                failBatch(groupState, batchId, bisection.mBatchSize, e);
+                return;
+            }
+
+            /* Out of requests: give up on these logs only, the rest of the batch is still resolved. */
+            mIsolatedLogCount += size;
+            MobileCenterLog.warn(LOG_TAG, "Dropping " + size + " logs rejected by ingestion, no bisection request left groupName=" + groupState.mName + " id=" + batchId);
+            for (Log log : getListenerLogs(groupState, subBatch))
+                groupState.mListener.onFailure(log, e);
+        } else {
+            mBisectedBatchCount++;
+            MobileCenterLog.debug(LOG_TAG, "Splitting rejected logs groupName=" + groupState.mName + " id=" + batchId + " size=" + size);
+            int half = size / 2;
+            LogContainer first = new LogContainer();
+            LogContainer second = new LogContainer();
+            first.setPriority(subBatch.getPriority());
+            second.setPriority(subBatch.getPriority());
+            if (rawLogs != null) {
+                first.setRawLogs(new ArrayList<>(rawLogs.subList(0, half)));
+                second.setRawLogs(new ArrayList<>(rawLogs.subList(half, size)));
             } else {
-                GroupListener groupListener = groupState.mListener;
-                if (groupListener != null) {
-                    for (Log log : removedLogsForBatchId)
-                        groupListener.onFailure(log, e);
-                }
+                List<Log> logs = subBatch.getLogs();
+                first.setLogs(new ArrayList<>(logs.subList(0, half)));
+                second.setLogs(new ArrayList<>(logs.subList(half, size)));
+            }
+
+            /* The rejected sub-batch is replaced by its 2 halves. */
+            bisection.mPendingSubBatches++;
+            bisection.mRemainingRequests -= 2;
+            sendSubBatch(groupState, currentState, batchId, bisection, first);
+            if (groupState.mBisections.get(batchId) == bisection)
+                sendSubBatch(groupState, currentState, batchId, bisection, second);
+            return;
+        }
+        resolveSubBatch(groupState, batchId, bisection, subBatch);
+    }
+
+    /**
+     * Send part of a rejected batch.
+     *
+     * @param groupState   the group state.
+     * @param currentState the current state.
+     * @param batchId      the ID of the batch in storage.
+     * @param bisection    the bisection state of that batch.
+     * @param subBatch     the logs to send.
+     */
+    private void sendSubBatch(@NonNull final GroupState groupState, final int currentState, @NonNull final String batchId, @NonNull final Bisection bisection, @NonNull final LogContainer subBatch) {
+        mIngestion.sendAsync(mAppSecret, mInstallId, subBatch, onChannelThread(new ServiceCallback() {
+
+            @Override
+            public void onCallSucceeded() {
+                handleSubBatchSuccess(groupState, currentState, batchId, bisection, subBatch);
             }
-            suspend(!recoverableError, e);
+
+            @Override
+            public void onCallFailed(Exception e) {
+                handleSubBatchFailure(groupState, currentState, batchId, bisection, subBatch, e);
+            }
+        }));
+    }
+
+    private synchronized void handleSubBatchSuccess(@NonNull GroupState groupState, int currentState, @NonNull String batchId, @NonNull Bisection bisection, @NonNull LogContainer subBatch) {
+        if (checkStateDidNotChange(groupState, currentState) && groupState.mBisections.get(batchId) == bisection) {
+            bisection.mAccepted = true;
+            for (Log log : getListenerLogs(groupState, subBatch))
+                groupState.mListener.onSuccess(log);
+            resolveSubBatch(groupState, batchId, bisection, subBatch);
         }
     }
 
+    private synchronized void handleSubBatchFailure(@NonNull GroupState groupState, int currentState, @NonNull String batchId, @NonNull Bisection bisection, @NonNull LogContainer subBatch, @NonNull Exception e) {
+        if (checkStateDidNotChange(groupState, currentState) && groupState.mBisections.get(batchId) == bisection) {
+            if (HttpUtils.isContentRejectedError(e)) {
+                bisect(groupState, currentState, batchId, bisection, subBatch, e);
+            } else {
+
+                /* Not a content issue anymore, handle the whole batch like any failure. */
+                MobileCenterLog.error(LOG_TAG, "Sending logs groupName=" + groupState.mName + " id=" + batchId + " failed", e);
+                groupState.mBisections.remove(batchId);
+                failBatch(groupState, batchId, bisection.mBatchSize, e);
+            }
+        }
+    }
+
+    /**
+     * Mark logs of a rejected batch as handled, the batch is deleted from storage once all of them are.
+     *
+     * @param groupState the group state.
+     * @param batchId    the ID of the batch in storage.
+     * @param bisection  the bisection state of that batch.
+     * @param subBatch   the handled logs.
+     */
+    private void resolveSubBatch(@NonNull GroupState groupState, @NonNull String batchId, @NonNull Bisection bisection, @NonNull LogContainer subBatch) {
+
+        /* Remaining logs are the ones still reported as failed if the channel gets disabled. */
+        LogContainer batch = groupState.mSendingBatches.get(batchId);
+        if (subBatch.getRawLogs() != null)
+            removeAllByIdentity(batch.getRawLogs(), subBatch.getRawLogs());
+        else
+            removeAllByIdentity(batch.getLogs(), subBatch.getLogs());
+        if (--bisection.mPendingSubBatches == 0) {
+            groupState.mBisections.remove(batchId);
+            groupState.mSendingBatches.remove(batchId);
+            mPersistence.deleteLogs(groupState.mName, batchId);
+            checkPendingLogs(groupState.mName);
+        }
+    }
+
+    /**
+     * Remove items from a list, comparing references.
+     * Logs can be equal without being the same log, so {@link List#removeAll(Collection)} cannot be used.
+     *
+     * @param list     list to remove items from.
+     * @param toRemove items to remove.
+     */
+    private static <T> void removeAllByIdentity(@NonNull List<T> list, @NonNull List<T> toRemove) {
+        Map<T, Boolean> removed = new IdentityHashMap<>();
+        for (T item : toRemove)
+            removed.put(item, Boolean.TRUE);
+        for (Iterator<T> iterator = list.iterator(); iterator.hasNext(); )
+            if (removed.containsKey(iterator.next()))
+                iterator.remove();
+    }
+
+    /**
+     * Update ingestion concurrency if the batch policy of a group changed its parallelism.
+     *
+     * @param groupState         the group state.
+     * @param maxParallelBatches maximum number of parallel batches before the policy was notified.
+     */
+    private void checkMaxParallelBatchesChanged(@NonNull GroupState groupState, int maxParallelBatches) {
+        if (groupState.mBatchPolicy.getMaxParallelBatches() != maxParallelBatches)
+            updateMaxConcurrentCalls();
+    }
+
     /**
      * Actual implementation of enqueue logic. Will increase counters, triggers of batching logic.
+     * The log is queued without taking the channel lock so that application threads do not wait
+     * for network or storage callbacks, nor for each other.
+     * Device properties, persistence and group listeners are then handled under the channel lock:
+     * on the channel thread in channel thread mode, otherwise by the enqueuing thread unless
+     * another thread is already draining queued logs, which then handles this one too.
      *
      * @param log       the Log to be enqueued
      * @param groupName the queue to use
      */
     @Override
-    public synchronized void enqueue(@NonNull Log log, @NonNull final String groupName) {
+    public void enqueue(@NonNull Log log, @NonNull String groupName) {
+        EnqueuedLog enqueuedLog = decorateLog(log, groupName);
+        if (enqueuedLog != null) {
+            mEnqueuedLogs.offer(enqueuedLog);
+            if (mDrainScheduled.compareAndSet(false, true))
+                runOnChannelThread(mDrainEnqueuedLogs);
+        }
+    }
+
+    /**
+     * Check a log can be enqueued then call listeners and set its time.
+     * This does not need the channel lock.
+     *
+     * @param log       the log being enqueued.
+     * @param groupName the group name.
+     * @return the log to queue, null if the group does not exist.
+     */
+    private EnqueuedLog decorateLog(@NonNull Log log, @NonNull String groupName) {
 
         /* Check group name is registered. */
-        final GroupState groupState = mGroupStates.get(groupName);
+        GroupState groupState = mGroupStates.get(groupName);
         if (groupState == null) {
             MobileCenterLog.error(LOG_TAG, "Invalid group name:" + groupName);
-            return;
+            return null;
         }
 
-        /* Check if disabled with discarding logs. */
-        if (mDiscardLogs) {
-            MobileCenterLog.warn(LOG_TAG, "Channel is disabled, log are discarded.");
-            if (groupState.mListener != null) {
-                groupState.mListener.onBeforeSending(log);
-                groupState.mListener.onFailure(log, new CancellationException());
-            }
-            return;
-        }
+        /* Check if disabled with discarding logs, the group listener is notified when draining. */
+        if (mDiscardLogs)
+            return new EnqueuedLog(groupState, log, true);
 
         /* Call listeners so that they can decorate the log. */
         for (Listener listener : mListeners)
             listener.onEnqueuingLog(log, groupName);
 
+        /* Set an absolute timestamp, we'll convert to relative just before sending. Don't do it if the service already set a timestamp.*/
+        if (log.getToffset() == 0L)
+            log.setToffset(System.currentTimeMillis());
+        return new EnqueuedLog(groupState, log, false);
+    }
+
+    /**
+     * Persist all queued logs, including the ones queued while draining.
+     */
+    private void drainEnqueuedLogs() {
+        do {
+            synchronized (this) {
+                EnqueuedLog enqueuedLog;
+                while ((enqueuedLog = mEnqueuedLogs.poll()) != null)
+                    if (enqueuedLog.mDiscarded)
+                        discardLog(enqueuedLog.mGroupState, enqueuedLog.mLog);
+                    else
+                        persistLog(enqueuedLog.mGroupState, enqueuedLog.mLog);
+            }
+
+            /* A log queued after clearing the flag schedules another drain, one queued just before is drained again here. */
+            mDrainScheduled.set(false);
+        } while (!mEnqueuedLogs.isEmpty() && mDrainScheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Notify the group listener that a log is discarded because the channel is disabled.
+     *
+     * @param groupState the group state.
+     * @param log        the discarded log.
+     */
+    private void discardLog(@NonNull GroupState groupState, @NonNull Log log) {
+        MobileCenterLog.warn(LOG_TAG, "Channel is disabled, log are discarded.");
+        if (groupState.mListener != null) {
+            groupState.mListener.onBeforeSending(log);
+            groupState.mListener.onFailure(log, new CancellationException());
+        }
+    }
+
+    /**
+     * Attach device properties to an enqueued log and persist it.
+     *
+     * @param groupState the group state.
+     * @param log        the log to persist.
+     */
+    private synchronized void persistLog(@NonNull final GroupState groupState, @NonNull Log log) {
+
+        /* Channel could have been disabled while the log was waiting for the channel thread. */
+        if (mDiscardLogs) {
+            discardLog(groupState, log);
+            return;
+        }
+
         /* Attach device properties to every log if its not already attached by a service. */
         if (log.getDevice() == null) {
 
@@ -515,13 +1339,9 @@ public class DefaultChannel implements Channel {
             log.setDevice(mDevice);
         }
 
-        /* Set an absolute timestamp, we'll convert to relative just before sending. Don't do it if the service already set a timestamp.*/
-        if (log.getToffset() == 0L)
-            log.setToffset(System.currentTimeMillis());
-
         /* Persist log. */
         final int stateSnapshot = mCurrentState;
-        mPersistence.putLog(groupName, log, new DatabasePersistenceAsyncCallback() {
+        mPersistence.putLog(groupState.mName, log, onChannelThread(new DatabasePersistenceAsyncCallback() {
 
             @Override
             public void onSuccess(Object result) {
@@ -532,7 +1352,7 @@ public class DefaultChannel implements Channel {
             public void onFailure(Exception e) {
                 MobileCenterLog.error(LOG_TAG, "Error persisting log with exception: " + e.toString());
             }
-        });
+        }));
     }
 
     private synchronized void checkLogsAfterPut(GroupState groupState, int stateSnapshot) {
@@ -561,11 +1381,11 @@ public class DefaultChannel implements Channel {
         if (groupState != null) {
             long pendingLogCount = groupState.mPendingLogCount;
             MobileCenterLog.debug(LOG_TAG, "checkPendingLogs(" + groupName + ") pendingLogCount=" + pendingLogCount);
-            if (pendingLogCount >= groupState.mMaxLogsPerBatch)
+            if (pendingLogCount >= groupState.mBatchPolicy.getMaxLogsPerBatch())
                 triggerIngestion(groupName);
             else if (pendingLogCount > 0 && !groupState.mScheduled) {
                 groupState.mScheduled = true;
-                mIngestionHandler.postDelayed(groupState.mRunnable, groupState.mBatchTimeInterval);
+                mIngestionHandler.postDelayed(groupState.mRunnable, groupState.mBatchPolicy.getBatchTimeInterval());
             }
         } else {
             MobileCenterLog.info(LOG_TAG, "The service has been disabled. Stop processing logs.");
@@ -583,13 +1403,111 @@ public class DefaultChannel implements Channel {
     }
 
     @Override
-    public synchronized void shutdown() {
-        suspend(false, new CancellationException());
-        try {
-            MobileCenterLog.debug(LOG_TAG, "Wait for persistence to process queue.");
-            mPersistence.waitForCurrentTasksToComplete(SHUTDOWN_TIMEOUT);
-        } catch (InterruptedException e) {
-            MobileCenterLog.warn(LOG_TAG, "Interrupted while waiting persistence to flush.", e);
+    public void shutdown() {
+
+        /* Let logs waiting for the channel thread reach persistence first, this needs the lock to be free. */
+        if (mChannelHandler != null && Looper.myLooper() != mChannelHandler.getLooper()) {
+            final Semaphore semaphore = new Semaphore(0);
+            mChannelHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    semaphore.release();
+                }
+            });
+            try {
+                MobileCenterLog.debug(LOG_TAG, "Wait for channel thread to process queue.");
+                semaphore.tryAcquire(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                MobileCenterLog.warn(LOG_TAG, "Interrupted while waiting channel thread to flush.", e);
+            }
+        }
+        synchronized (this) {
+            suspend(false, new CancellationException());
+            try {
+                MobileCenterLog.debug(LOG_TAG, "Wait for persistence to process queue.");
+                mPersistence.waitForCurrentTasksToComplete(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                MobileCenterLog.warn(LOG_TAG, "Interrupted while waiting persistence to flush.", e);
+            }
+        }
+    }
+
+    /**
+     * Log waiting to be persisted.
+     */
+    private static class EnqueuedLog {
+
+        final GroupState mGroupState;
+
+        final Log mLog;
+
+        /**
+         * True if the channel was discarding logs when the log was enqueued.
+         */
+        final boolean mDiscarded;
+
+        EnqueuedLog(GroupState groupState, Log log, boolean discarded) {
+            mGroupState = groupState;
+            mLog = log;
+            mDiscarded = discarded;
+        }
+    }
+
+    /**
+     * Batch read from persistence and ready to be sent.
+     */
+    private static class ReadyBatch {
+
+        final GroupState mGroupState;
+
+        final int mStateSnapshot;
+
+        final String mBatchId;
+
+        final LogContainer mLogContainer;
+
+        /**
+         * Estimated payload size in bytes, {@code 0} if unknown.
+         */
+        final int mByteCount;
+
+        ReadyBatch(GroupState groupState, int stateSnapshot, String batchId, LogContainer logContainer, int byteCount) {
+            mGroupState = groupState;
+            mStateSnapshot = stateSnapshot;
+            mBatchId = batchId;
+            mLogContainer = logContainer;
+            mByteCount = byteCount;
+        }
+    }
+
+    /**
+     * State of a rejected batch being split to isolate offending logs.
+     */
+    private static class Bisection {
+
+        /**
+         * Number of logs the batch has in storage.
+         */
+        final int mBatchSize;
+
+        /**
+         * Number of sub-batches not yet resolved, a sub-batch is resolved when sent or when its only log is isolated.
+         */
+        int mPendingSubBatches = 1;
+
+        /**
+         * Number of requests the bisection can still send.
+         */
+        int mRemainingRequests = MAX_BISECTION_REQUESTS;
+
+        /**
+         * Whether ingestion accepted at least one sub-batch.
+         */
+        boolean mAccepted;
+
+        Bisection(int batchSize) {
+            mBatchSize = batchSize;
         }
     }
 
@@ -604,24 +1522,25 @@ public class DefaultChannel implements Channel {
         final String mName;
 
         /**
-         * Maximum log count per batch.
+         * Policy deciding batch size, time to wait before 2 batches and maximum number of batches in parallel.
          */
-        final int mMaxLogsPerBatch;
+        final BatchPolicy mBatchPolicy;
 
         /**
-         * Time to wait before 2 batches, in ms.
+         * Priority over other groups.
          */
-        final long mBatchTimeInterval;
+        final int mPriority;
 
         /**
-         * Maximum number of batches in parallel.
+         * Batches being currently sent to ingestion.
          */
-        final int mMaxParallelBatches;
+        final Map<String, LogContainer> mSendingBatches = new HashMap<>();
 
         /**
-         * Batches being currently sent to ingestion.
+         * Rejected batches being split to isolate offending logs, by batch ID.
+         * These batches are also still in {@link #mSendingBatches}.
          */
-        final Map<String, List<Log>> mSendingBatches = new HashMap<>();
+        final Map<String, Bisection> mBisections = new HashMap<>();
 
         /**
          * A listener for a service.
@@ -640,31 +1559,31 @@ public class DefaultChannel implements Channel {
 
         /**
          * Runnable that triggers ingestion of this group data
-         * and triggers itself in {@link #mBatchTimeInterval} ms.
+         * and triggers itself in {@link BatchPolicy#getBatchTimeInterval()} ms.
          */
         final Runnable mRunnable = new Runnable() {
 
             @Override
             public void run() {
-                mScheduled = false;
-                triggerIngestion(mName);
+                synchronized (DefaultChannel.this) {
+                    mScheduled = false;
+                    triggerIngestion(mName);
+                }
             }
         };
 
         /**
          * Init.
          *
-         * @param name               group name.
-         * @param maxLogsPerBatch    max batch size.
-         * @param batchTimeInterval  batch interval in ms.
-         * @param maxParallelBatches max number of parallel batches.
-         * @param listener           listener for a service.
+         * @param name        group name.
+         * @param batchPolicy batch policy.
+         * @param priority    priority over other groups.
+         * @param listener    listener for a service.
          */
-        GroupState(String name, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches, GroupListener listener) {
+        GroupState(String name, BatchPolicy batchPolicy, int priority, GroupListener listener) {
             mName = name;
-            mMaxLogsPerBatch = maxLogsPerBatch;
-            mBatchTimeInterval = batchTimeInterval;
-            mMaxParallelBatches = maxParallelBatches;
+            mBatchPolicy = batchPolicy;
+            mPriority = priority;
             mListener = listener;
         }
     }
@@ -0,0 +1,81 @@
+package com.microsoft.azure.mobile.channel;
+
+/**
+ * Batch policy that never changes its values.
+ */
+public class FixedBatchPolicy implements BatchPolicy {
+
+    /**
+     * Maximum log count per batch.
+     */
+    private final int mMaxLogsPerBatch;
+
+    /**
+     * Maximum payload size per batch in bytes, 0 for no limit.
+     */
+    private final int mMaxBytesPerBatch;
+
+    /**
+     * Time to wait before 2 batches, in ms.
+     */
+    private final long mBatchTimeInterval;
+
+    /**
+     * Maximum number of batches in parallel.
+     */
+    private final int mMaxParallelBatches;
+
+    /**
+     * Init.
+     *
+     * @param maxLogsPerBatch    max batch size.
+     * @param batchTimeInterval  batch interval in ms.
+     * @param maxParallelBatches max number of parallel batches.
+     */
+    public FixedBatchPolicy(int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches) {
+        this(maxLogsPerBatch, 0, batchTimeInterval, maxParallelBatches);
+    }
+
+    /**
+     * Init.
+     *
+     * @param maxLogsPerBatch    max batch size.
+     * @param maxBytesPerBatch   max batch payload size in bytes, 0 for no limit.
+     * @param batchTimeInterval  batch interval in ms.
+     * @param maxParallelBatches max number of parallel batches.
+     */
+    public FixedBatchPolicy(int maxLogsPerBatch, int maxBytesPerBatch, long batchTimeInterval, int maxParallelBatches) {
+        mMaxLogsPerBatch = maxLogsPerBatch;
+        mMaxBytesPerBatch = maxBytesPerBatch;
+        mBatchTimeInterval = batchTimeInterval;
+        mMaxParallelBatches = maxParallelBatches;
+    }
+
+    @Override
+    public int getMaxLogsPerBatch() {
+        return mMaxLogsPerBatch;
+    }
+
+    @Override
+    public int getMaxBytesPerBatch() {
+        return mMaxBytesPerBatch;
+    }
+
+    @Override
+    public long getBatchTimeInterval() {
+        return mBatchTimeInterval;
+    }
+
+    @Override
+    public int getMaxParallelBatches() {
+        return mMaxParallelBatches;
+    }
+
+    @Override
+    public void onBatchSucceeded(int logCount, int pendingLogCount, long duration) {
+    }
+
+    @Override
+    public void onBatchFailed(int logCount, long duration) {
+    }
+}
@@ -28,4 +28,19 @@ public interface Ingestion extends Closeable {
      * @param serverUrl server url.
      */
     void setServerUrl(String serverUrl);
+
+    /**
+     * Update the minimum payload size in bytes from which requests are compressed.
+     *
+     * @param threshold minimum payload size to compress, negative to disable compression.
+     */
+    void setCompressionThreshold(int threshold);
+
+    /**
+     * Update the maximum number of calls sent at the same time.
+     * Calls over the limit are queued and sent over reused connections.
+     *
+     * @param maxConcurrentCalls maximum number of concurrent calls.
+     */
+    void setMaxConcurrentCalls(int maxConcurrentCalls);
 }
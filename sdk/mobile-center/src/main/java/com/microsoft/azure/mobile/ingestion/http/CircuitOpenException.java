@@ -0,0 +1,37 @@
+package com.microsoft.azure.mobile.ingestion.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a call is not sent because {@link IngestionCircuitBreaker} considers the server down.
+ */
+public class CircuitOpenException extends IOException {
+
+    /**
+     * Time in milliseconds after which the circuit breaker may let the call through.
+     */
+    private final long mRetryAfter;
+
+    public CircuitOpenException() {
+        this(0);
+    }
+
+    /**
+     * Init.
+     *
+     * @param retryAfter time in milliseconds after which the circuit breaker may let the call through.
+     */
+    public CircuitOpenException(long retryAfter) {
+        super("Call not sent because the circuit breaker is open.");
+        mRetryAfter = retryAfter;
+    }
+
+    /**
+     * Get the time after which the circuit breaker may let the call through.
+     *
+     * @return time in milliseconds.
+     */
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+}
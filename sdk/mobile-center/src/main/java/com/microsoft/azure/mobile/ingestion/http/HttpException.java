@@ -20,6 +20,11 @@ public class HttpException extends IOException {
      */
     private final String payload;
 
+    /**
+     * Delay in milliseconds the server asked to wait before retrying, 0 if not specified.
+     */
+    private final long retryAfter;
+
     /**
      * Init with empty response body.
      *
@@ -37,9 +42,22 @@ public class HttpException extends IOException {
      */
     @SuppressWarnings("WeakerAccess")
     public HttpException(int status, @NonNull String payload) {
+        this(status, payload, 0);
+    }
+
+    /**
+     * Init.
+     *
+     * @param status     HTTP status code.
+     * @param payload    HTTP payload.
+     * @param retryAfter delay in milliseconds from the Retry-After header, 0 if not specified.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public HttpException(int status, @NonNull String payload, long retryAfter) {
         super(getDetailMessage(status, payload));
         this.payload = payload;
         this.statusCode = status;
+        this.retryAfter = retryAfter;
     }
 
     @NonNull
@@ -70,6 +88,16 @@ public class HttpException extends IOException {
         return payload;
     }
 
+    /**
+     * Get the delay the server asked to wait before retrying (Retry-After header).
+     *
+     * @return delay in milliseconds, 0 if not specified.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
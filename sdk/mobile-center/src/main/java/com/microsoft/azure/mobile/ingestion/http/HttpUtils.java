@@ -6,7 +6,11 @@ import java.io.EOFException;
 import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 
@@ -25,7 +29,8 @@ public final class HttpUtils {
             InterruptedIOException.class,
             SocketException.class,
             UnknownHostException.class,
-            RejectedExecutionException.class
+            RejectedExecutionException.class,
+            CircuitOpenException.class
     };
 
     /**
@@ -33,6 +38,11 @@ public final class HttpUtils {
      */
     private static final Pattern CONNECTION_ISSUE_PATTERN = Pattern.compile("connection (time|reset)|failure in ssl library, usually a protocol error");
 
+    /**
+     * Date format of Retry-After header when not expressed in seconds (RFC 1123).
+     */
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
     @VisibleForTesting
     HttpUtils() {
     }
@@ -65,4 +75,50 @@ public final class HttpUtils {
         }
         return false;
     }
+
+    /**
+     * Check whether an exception/error describes a request rejected because of its content,
+     * in which case sending a subset of the logs can succeed.
+     *
+     * @param t exception or error.
+     * @return true if the request content was rejected, false otherwise.
+     */
+    public static boolean isContentRejectedError(Throwable t) {
+        if (t instanceof HttpException) {
+            int code = ((HttpException) t).getStatusCode();
+            return code == 400 || code == 413 || code == 422;
+        }
+        return false;
+    }
+
+    /**
+     * Parse a Retry-After header value, either a number of seconds or an HTTP date.
+     *
+     * @param value       header value, can be null.
+     * @param currentTime current time in milliseconds, to convert a date to a delay.
+     * @return delay in milliseconds, 0 if value is missing, invalid or in the past, at most {@link IngestionRetryer#MAX_RETRY_AFTER}.
+     */
+    public static long parseRetryAfter(String value, long currentTime) {
+        if (value == null)
+            return 0;
+        value = value.trim();
+        try {
+
+            /* Clamp before converting to milliseconds so that huge values do not overflow. */
+            return Math.max(0, Math.min(Long.parseLong(value), IngestionRetryer.MAX_RETRY_AFTER / 1000) * 1000);
+        } catch (NumberFormatException ignored) {
+
+            /* Too many seconds to fit in a long. */
+            if (value.matches("\\d+"))
+                return IngestionRetryer.MAX_RETRY_AFTER;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value);
+            return Math.max(0, Math.min(date.getTime() - currentTime, IngestionRetryer.MAX_RETRY_AFTER));
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
 }
@@ -0,0 +1,321 @@
+package com.microsoft.azure.mobile.ingestion.http;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import com.microsoft.azure.mobile.ingestion.Ingestion;
+import com.microsoft.azure.mobile.ingestion.ServiceCall;
+import com.microsoft.azure.mobile.ingestion.ServiceCallback;
+import com.microsoft.azure.mobile.ingestion.models.LogContainer;
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
+
+/**
+ * Decorator failing calls fast while the server is considered down.
+ * The circuit opens after a number of consecutive recoverable failures across all calls.
+ * After a delay, it becomes half-open and lets a single call through to probe the server:
+ * the circuit closes if that call succeeds and opens again otherwise.
+ * Calls that are not sent fail with a {@link CircuitOpenException}, always asynchronously.
+ */
+public class IngestionCircuitBreaker extends IngestionDecorator {
+
+    /**
+     * Default number of consecutive failures opening the circuit.
+     */
+    @VisibleForTesting
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Default time in milliseconds the circuit stays open before letting a probe call through.
+     */
+    @VisibleForTesting
+    static final long DEFAULT_OPEN_DURATION = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Number of consecutive failures opening the circuit.
+     */
+    private final int mFailureThreshold;
+
+    /**
+     * Time in milliseconds the circuit stays open.
+     */
+    private final long mOpenDuration;
+
+    /**
+     * Handler used to become half-open.
+     */
+    private final Handler mHandler;
+
+    /**
+     * State listeners.
+     */
+    private final Collection<Listener> mListeners = new CopyOnWriteArraySet<>();
+
+    /**
+     * Become half-open after the open duration.
+     */
+    private final Runnable mHalfOpen = new Runnable() {
+
+        @Override
+        public void run() {
+            boolean changed;
+            synchronized (IngestionCircuitBreaker.this) {
+                changed = mState == State.OPEN && setState(State.HALF_OPEN);
+            }
+            if (changed)
+                notifyListeners(State.HALF_OPEN);
+        }
+    };
+
+    /**
+     * Current state.
+     */
+    private State mState = State.CLOSED;
+
+    /**
+     * Number of consecutive failures.
+     */
+    private int mFailureCount;
+
+    /**
+     * Call probing the server while half-open, null if none.
+     */
+    private Call mProbeCall;
+
+    /**
+     * Init with default thresholds.
+     *
+     * @param decoratedApi API to decorate.
+     */
+    public IngestionCircuitBreaker(Ingestion decoratedApi) {
+        this(decoratedApi, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Init.
+     *
+     * @param decoratedApi     API to decorate.
+     * @param failureThreshold number of consecutive failures opening the circuit.
+     * @param openDuration     time in milliseconds the circuit stays open before probing the server.
+     * @param handler          handler used to become half-open.
+     */
+    @VisibleForTesting
+    IngestionCircuitBreaker(Ingestion decoratedApi, int failureThreshold, long openDuration, Handler handler) {
+        super(decoratedApi);
+        mFailureThreshold = failureThreshold;
+        mOpenDuration = openDuration;
+        mHandler = handler;
+    }
+
+    /**
+     * Get the current state.
+     *
+     * @return current state.
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Add a listener notified of state changes.
+     * Listeners are called without holding the circuit breaker lock.
+     *
+     * @param listener listener.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Remove a state listener.
+     *
+     * @param listener listener.
+     */
+    @SuppressWarnings("unused")
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    @Override
+    public ServiceCall sendAsync(String appSecret, UUID installId, LogContainer logContainer, ServiceCallback serviceCallback) throws IllegalArgumentException {
+        Call call = new Call(mDecoratedApi, appSecret, installId, logContainer, serviceCallback);
+        if (allowCall(call))
+            call.run();
+        else {
+
+            /* Fail after returning the call, like other decorators, so that callers are never called back re-entrantly. */
+            mHandler.post(call.mReject);
+        }
+        return call;
+    }
+
+    /**
+     * Check if a call can be sent, in half-open state only one call goes through at a time.
+     */
+    private synchronized boolean allowCall(Call call) {
+        switch (mState) {
+
+            case OPEN:
+                return false;
+
+            case HALF_OPEN:
+                if (mProbeCall != null)
+                    return false;
+                MobileCenterLog.debug(LOG_TAG, "Circuit half-open, probing server.");
+                mProbeCall = call;
+                return true;
+
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Update state after a call completed.
+     *
+     * @param call the call.
+     * @param e    error, null if call succeeded.
+     */
+    private void onCallCompleted(Call call, Exception e) {
+        State newState = null;
+        synchronized (this) {
+            if (mProbeCall == call)
+                mProbeCall = null;
+
+            /* Any response that is not a transient failure proves the server is up. */
+            if (e == null || !HttpUtils.isRecoverableError(e)) {
+                mFailureCount = 0;
+                if (setState(State.CLOSED))
+                    newState = State.CLOSED;
+            } else {
+                mFailureCount++;
+                if ((mState == State.HALF_OPEN || (mState == State.CLOSED && mFailureCount >= mFailureThreshold)) && setState(State.OPEN))
+                    newState = State.OPEN;
+            }
+        }
+        if (newState != null)
+            notifyListeners(newState);
+    }
+
+    /**
+     * Release the probe slot of a cancelled call so that another call can probe the server.
+     */
+    private synchronized void onCallCancelled(Call call) {
+        if (mProbeCall == call)
+            mProbeCall = null;
+    }
+
+    /**
+     * Change state, must be called with the lock held.
+     *
+     * @param state new state.
+     * @return true if state changed and listeners must be notified, false if state was already the same.
+     */
+    private boolean setState(@NonNull State state) {
+        if (mState == state)
+            return false;
+        mState = state;
+        mHandler.removeCallbacks(mHalfOpen);
+        if (state == State.OPEN) {
+            MobileCenterLog.warn(LOG_TAG, "Circuit open after " + mFailureCount + " consecutive failures, calls are failed for " + mOpenDuration + " ms.");
+            mHandler.postDelayed(mHalfOpen, mOpenDuration);
+        } else if (state == State.CLOSED)
+            MobileCenterLog.info(LOG_TAG, "Circuit closed.");
+        return true;
+    }
+
+    /**
+     * Notify listeners of a state change, must be called without holding the lock
+     * since listeners can call back into ingestion while holding their own lock.
+     *
+     * @param state new state.
+     */
+    private void notifyListeners(@NonNull State state) {
+        for (Listener listener : mListeners)
+            listener.onCircuitStateChanged(state);
+    }
+
+    /**
+     * Circuit states.
+     */
+    public enum State {
+
+        /**
+         * Calls are sent.
+         */
+        CLOSED,
+
+        /**
+         * Calls fail without being sent.
+         */
+        OPEN,
+
+        /**
+         * One call at a time is sent to check if the server is back.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Circuit state listener.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the circuit state changed.
+         *
+         * @param state new state.
+         */
+        void onCircuitStateChanged(State state);
+    }
+
+    /**
+     * Call wrapper logic.
+     */
+    private class Call extends IngestionCallDecorator {
+
+        /**
+         * Fail the call without sending it.
+         * The circuit may let it through after the open duration, either as a probe or once closed.
+         */
+        final Runnable mReject = new Runnable() {
+
+            @Override
+            public void run() {
+                mServiceCallback.onCallFailed(new CircuitOpenException(mOpenDuration));
+            }
+        };
+
+        Call(Ingestion decoratedApi, String appSecret, UUID installId, LogContainer logContainer, ServiceCallback serviceCallback) {
+            super(decoratedApi, appSecret, installId, logContainer, serviceCallback);
+        }
+
+        @Override
+        public synchronized void cancel() {
+            mHandler.removeCallbacks(mReject);
+            onCallCancelled(this);
+            if (mServiceCall != null)
+                super.cancel();
+        }
+
+        @Override
+        public void onCallSucceeded() {
+            onCallCompleted(this, null);
+            super.onCallSucceeded();
+        }
+
+        @Override
+        public void onCallFailed(Exception e) {
+            onCallCompleted(this, e);
+            mServiceCallback.onCallFailed(e);
+        }
+    }
+}
@@ -17,6 +17,16 @@ abstract class IngestionDecorator implements Ingestion {
         mDecoratedApi.setServerUrl(serverUrl);
     }
 
+    @Override
+    public void setCompressionThreshold(int threshold) {
+        mDecoratedApi.setCompressionThreshold(threshold);
+    }
+
+    @Override
+    public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        mDecoratedApi.setMaxConcurrentCalls(maxConcurrentCalls);
+    }
+
     @Override
     public void close() throws IOException {
         mDecoratedApi.close();
@@ -13,16 +13,27 @@ import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
 import com.microsoft.azure.mobile.utils.HandlerUtils;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 import static android.util.Log.VERBOSE;
 import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
@@ -30,10 +41,15 @@ import static java.lang.Math.max;
 
 public class IngestionHttp implements Ingestion {
 
+    /**
+     * Compression threshold value to disable compression.
+     */
+    public static final int COMPRESSION_DISABLED = -1;
+
     /**
      * Default base URL.
      */
-    private static final String DEFAULT_BASE_URL = "https://in.mobile.azure.com";
+    static final String DEFAULT_BASE_URL = "https://in.mobile.azure.com";
 
     /**
      * API Path.
@@ -65,6 +81,21 @@ public class IngestionHttp implements Ingestion {
      */
     private static final String CONTENT_TYPE_KEY = "Content-Type";
 
+    /**
+     * Content encoding header key.
+     */
+    private static final String CONTENT_ENCODING_KEY = "Content-Encoding";
+
+    /**
+     * Retry after header key.
+     */
+    private static final String RETRY_AFTER = "Retry-After";
+
+    /**
+     * Content encoding header value for compressed payloads.
+     */
+    private static final String CONTENT_ENCODING_GZIP = "gzip";
+
     /**
      * Character encoding.
      */
@@ -75,6 +106,16 @@ public class IngestionHttp implements Ingestion {
      */
     private static final int READ_BUFFER_SIZE = 1024;
 
+    /**
+     * Write buffer size.
+     */
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    /**
+     * Payload size from which uncompressed payloads are streamed in chunks instead of being sent with a fixed length.
+     */
+    private static final int STREAMING_THRESHOLD = 65536;
+
     /**
      * HTTP connection timeout.
      */
@@ -90,16 +131,51 @@ public class IngestionHttp implements Ingestion {
      */
     private static final int MAX_CHARACTERS_DISPLAYED_FOR_APP_SECRET = 8;
 
+    /**
+     * Default maximum number of calls running at the same time.
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_CALLS = 1;
+
+    /**
+     * Time in milliseconds an idle sender thread waits for a new call before terminating.
+     */
+    private static final long SENDER_KEEP_ALIVE_TIME = 30000;
+
+    /**
+     * Sender thread name.
+     */
+    private static final String SENDER_THREAD_NAME = "MobileCenter.IngestionHttp";
+
     /**
      * Log serializer.
      */
     private final LogSerializer mLogSerializer;
 
+    /**
+     * Executor running calls, dedicated to this ingestion instead of sharing the application's AsyncTask pool.
+     */
+    private final ThreadPoolExecutor mSenderExecutor;
+
     /**
      * API base URL (scheme + authority).
      */
     private String mBaseUrl;
 
+    /**
+     * Minimum payload size in bytes to compress, negative if compression is disabled.
+     */
+    private volatile int mCompressionThreshold = COMPRESSION_DISABLED;
+
+    /**
+     * Total size of sent payloads before compression.
+     */
+    private final AtomicLong mPayloadByteCount = new AtomicLong();
+
+    /**
+     * Total size of sent payloads as written to the network.
+     */
+    private final AtomicLong mSentByteCount = new AtomicLong();
+
     /**
      * Init.
      *
@@ -108,23 +184,39 @@ public class IngestionHttp implements Ingestion {
     public IngestionHttp(@NonNull LogSerializer logSerializer) {
         mLogSerializer = logSerializer;
         mBaseUrl = DEFAULT_BASE_URL;
+        mSenderExecutor = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT_CALLS, DEFAULT_MAX_CONCURRENT_CALLS, SENDER_KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                return new Thread(runnable, SENDER_THREAD_NAME + "-" + mCount.incrementAndGet());
+            }
+        });
+        mSenderExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
      * Do the HTTP call now.
      *
-     * @param baseUrl       API base URL (scheme + authority).
-     * @param logSerializer log serializer.
-     * @param appSecret     a unique and secret key used to identify the application.
-     * @param installId     install identifier.
-     * @param logContainer  payload.    @throws Exception if an error occurs.
+     * @param baseUrl              API base URL (scheme + authority).
+     * @param logSerializer        log serializer.
+     * @param appSecret            a unique and secret key used to identify the application.
+     * @param installId            install identifier.
+     * @param logContainer         payload.
+     * @param compressionThreshold minimum payload size to compress, negative to disable compression.
+     * @param payloadByteCount     counter of payload bytes before compression.
+     * @param sentByteCount        counter of payload bytes written to the network.
+     * @throws Exception if an error occurs.
      */
-    private static void doCall(String baseUrl, LogSerializer logSerializer, String appSecret, UUID installId, LogContainer logContainer) throws Exception {
+    private static void doCall(String baseUrl, LogSerializer logSerializer, String appSecret, UUID installId, LogContainer logContainer, int compressionThreshold, AtomicLong payloadByteCount, AtomicLong sentByteCount) throws Exception {
 
         /* HTTP session. */
         URL url = new URL(baseUrl + API_PATH);
         MobileCenterLog.verbose(LOG_TAG, "Calling " + url + " ...");
         HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        int status;
+        String response;
         try {
 
             /* Configure connection timeouts. */
@@ -147,54 +239,80 @@ public class IngestionHttp implements Ingestion {
                 MobileCenterLog.verbose(LOG_TAG, header);
             }
 
-            /* Timestamps need to be as accurate as possible so we convert absolute time to relative now. Save times. */
-            List<Log> logs = logContainer.getLogs();
-            int size = logs.size();
-            long[] absoluteTimes = new long[size];
-            for (int i = 0; i < size; i++) {
-                Log log = logs.get(i);
-                long toffset = log.getToffset();
-                absoluteTimes[i] = toffset;
-                log.setToffset(System.currentTimeMillis() - toffset);
-            }
-
-            /* Serialize payload. */
-            String payload;
-            try {
-                payload = logSerializer.serializeContainer(logContainer);
-            } finally {
-
-                /* Restore original times, could be retried later. */
-                for (int i = 0; i < size; i++)
-                    logs.get(i).setToffset(absoluteTimes[i]);
+            /* Payload is sent through a stream that chooses how to send it depending on its size. */
+            urlConnection.setDoOutput(true);
+            PayloadOutputStream out = new PayloadOutputStream(urlConnection, compressionThreshold);
+            Writer writer = new OutputStreamWriter(out, CHARSET_NAME);
+
+            /* In verbose, the whole payload is serialized in memory to log it. Otherwise logs are written one at a time. */
+            boolean verbose = MobileCenterLog.getLogLevel() <= VERBOSE;
+            List<String> rawLogs = logContainer.getRawLogs();
+            if (rawLogs != null) {
+
+                /* Logs are already serialized, only patch relative times. */
+                long currentTime = System.currentTimeMillis();
+                if (verbose) {
+                    String payload = logSerializer.serializeRawContainer(rawLogs, currentTime);
+                    MobileCenterLog.verbose(LOG_TAG, payload);
+                    writer.write(payload);
+                } else
+                    logSerializer.writeRawContainer(writer, rawLogs, currentTime);
+            } else {
+
+                /* Timestamps need to be as accurate as possible so we convert absolute time to relative now. Save times. */
+                List<Log> logs = logContainer.getLogs();
+                int size = logs.size();
+                long[] absoluteTimes = new long[size];
+                for (int i = 0; i < size; i++) {
+                    Log log = logs.get(i);
+                    long toffset = log.getToffset();
+                    absoluteTimes[i] = toffset;
+                    log.setToffset(System.currentTimeMillis() - toffset);
+                }
+                try {
+                    if (verbose) {
+                        String payload = logSerializer.serializeContainer(logContainer);
+                        MobileCenterLog.verbose(LOG_TAG, payload);
+                        writer.write(payload);
+                    } else
+                        logSerializer.writeContainer(writer, logContainer);
+                } finally {
+
+                    /* Restore original times, could be retried later. */
+                    for (int i = 0; i < size; i++)
+                        logs.get(i).setToffset(absoluteTimes[i]);
+                }
             }
-            MobileCenterLog.verbose(LOG_TAG, payload);
 
-            /* Send payload through the wire. */
-            byte[] binaryPayload = payload.getBytes(CHARSET_NAME);
-            urlConnection.setDoOutput(true);
-            urlConnection.setFixedLengthStreamingMode(binaryPayload.length);
-            OutputStream out = urlConnection.getOutputStream();
-            out.write(binaryPayload);
-            out.close();
+            /* Send what is left. */
+            writer.close();
+            payloadByteCount.addAndGet(out.getPayloadLength());
+            sentByteCount.addAndGet(out.getSentLength());
+            if (out.isCompressed())
+                MobileCenterLog.verbose(LOG_TAG, "Compressed payload from " + out.getPayloadLength() + " to " + out.getSentLength() + " bytes");
 
             /* Read response. */
-            int status = urlConnection.getResponseCode();
-            String response = dump(urlConnection);
-            MobileCenterLog.verbose(LOG_TAG, "HTTP response status=" + status + " payload=" + response);
-
-            /* Generate exception on failure. */
-            if (status != 200)
-                throw new HttpException(status, response);
-        } finally {
+            status = urlConnection.getResponseCode();
+            response = dump(urlConnection);
+        } catch (Exception e) {
 
-            /* Release connection. */
+            /*
+             * Connection state is unknown, release it instead of returning it to the keep-alive pool.
+             * On success, the response has been fully read and closed so the connection can be reused
+             * by the next call to the same host.
+             */
             urlConnection.disconnect();
+            throw e;
         }
+        MobileCenterLog.verbose(LOG_TAG, "HTTP response status=" + status + " payload=" + response);
+
+        /* Generate exception on failure. */
+        if (status != 200)
+            throw new HttpException(status, response, HttpUtils.parseRetryAfter(urlConnection.getHeaderField(RETRY_AFTER), System.currentTimeMillis()));
     }
 
     /**
-     * Dump stream to string.
+     * Dump stream to string, reading it to the end.
      *
      * @param urlConnection URL connection.
      * @return dumped string.
@@ -214,11 +332,17 @@ public class IngestionHttp implements Ingestion {
         else
             stream = urlConnection.getErrorStream();
         InputStreamReader in = new InputStreamReader(stream, CHARSET_NAME);
-        char[] buffer = new char[READ_BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buffer)) > 0)
-            builder.append(buffer, 0, len);
-        return builder.toString();
+        try {
+            char[] buffer = new char[READ_BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) > 0)
+                builder.append(buffer, 0, len);
+            return builder.toString();
+        } finally {
+
+            /* Closing a fully read response stream lets the connection be kept alive. */
+            in.close();
+        }
     }
 
     /**
@@ -232,15 +356,74 @@ public class IngestionHttp implements Ingestion {
         mBaseUrl = baseUrl;
     }
 
+    /**
+     * Set the minimum payload size from which requests are compressed with gzip.
+     *
+     * @param threshold minimum payload size in bytes, {@link #COMPRESSION_DISABLED} to disable compression.
+     */
+    @Override
+    public void setCompressionThreshold(int threshold) {
+        mCompressionThreshold = threshold;
+    }
+
+    /**
+     * Set the maximum number of calls running at the same time. Calls over that limit wait for a
+     * sender thread and reuse a kept-alive connection once it is available. With a limit of 1,
+     * batches of all groups are sent one after the other over a single connection.
+     *
+     * @param maxConcurrentCalls maximum number of concurrent calls, values lower than 1 are treated as 1.
+     */
+    @Override
+    public synchronized void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        maxConcurrentCalls = max(1, maxConcurrentCalls);
+
+        /* Core size must never exceed maximum size during the update. */
+        if (maxConcurrentCalls > mSenderExecutor.getMaximumPoolSize()) {
+            mSenderExecutor.setMaximumPoolSize(maxConcurrentCalls);
+            mSenderExecutor.setCorePoolSize(maxConcurrentCalls);
+        } else {
+            mSenderExecutor.setCorePoolSize(maxConcurrentCalls);
+            mSenderExecutor.setMaximumPoolSize(maxConcurrentCalls);
+        }
+    }
+
+    /**
+     * Get the maximum number of calls running at the same time.
+     *
+     * @return maximum number of concurrent calls.
+     */
+    @VisibleForTesting
+    int getMaxConcurrentCalls() {
+        return mSenderExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Get the total size of sent payloads before compression.
+     *
+     * @return size in bytes.
+     */
+    public long getPayloadByteCount() {
+        return mPayloadByteCount.get();
+    }
+
+    /**
+     * Get the total size of sent payloads as written to the network, after compression if any.
+     *
+     * @return size in bytes.
+     */
+    public long getSentByteCount() {
+        return mSentByteCount.get();
+    }
+
     @Override
     public ServiceCall sendAsync(String appSecret, UUID installId, LogContainer logContainer, final ServiceCallback serviceCallback) throws IllegalArgumentException {
-        final Call call = new Call(mBaseUrl, mLogSerializer, appSecret, installId, logContainer, serviceCallback);
+        final Call call = new Call(mBaseUrl, mLogSerializer, appSecret, installId, logContainer, serviceCallback, mCompressionThreshold, mPayloadByteCount, mSentByteCount);
         try {
-            call.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            call.executeOnExecutor(mSenderExecutor);
         } catch (final RejectedExecutionException e) {
 
             /*
-             * When executor saturated (shared with app), we should use the retry mechanism
+             * When executor rejects the call, we should use the retry mechanism
              * rather than creating more threads to avoid putting too much pressure on the hosting app.
              * Also we need to return the method before calling the listener,
              * so we post the callback on handler to make sure of that.
@@ -284,19 +467,28 @@ public class IngestionHttp implements Ingestion {
 
         private final ServiceCallback mServiceCallback;
 
-        Call(String baseUrl, LogSerializer logSerializer, String appSecret, UUID installId, LogContainer logContainer, ServiceCallback serviceCallback) {
+        private final int mCompressionThreshold;
+
+        private final AtomicLong mPayloadByteCount;
+
+        private final AtomicLong mSentByteCount;
+
+        Call(String baseUrl, LogSerializer logSerializer, String appSecret, UUID installId, LogContainer logContainer, ServiceCallback serviceCallback, int compressionThreshold, AtomicLong payloadByteCount, AtomicLong sentByteCount) {
             mBaseUrl = baseUrl;
             mLogSerializer = logSerializer;
             mAppSecret = appSecret;
             mInstallId = installId;
             mLogContainer = logContainer;
             mServiceCallback = serviceCallback;
+            mCompressionThreshold = compressionThreshold;
+            mPayloadByteCount = payloadByteCount;
+            mSentByteCount = sentByteCount;
         }
 
         @Override
         protected Exception doInBackground(Void... params) {
             try {
-                doCall(mBaseUrl, mLogSerializer, mAppSecret, mInstallId, mLogContainer);
+                doCall(mBaseUrl, mLogSerializer, mAppSecret, mInstallId, mLogContainer, mCompressionThreshold, mPayloadByteCount, mSentByteCount);
             } catch (Exception e) {
                 return e;
             }
@@ -311,4 +503,125 @@ public class IngestionHttp implements Ingestion {
                 mServiceCallback.onCallFailed(e);
         }
     }
+
+    /**
+     * Output stream sending a request payload. Payloads smaller than a buffer are sent with a fixed length.
+     * Larger payloads are streamed in chunks, so that the whole payload is never held in memory,
+     * and compressed with gzip if compression is enabled. The buffer size is the compression threshold
+     * when compression is enabled.
+     */
+    private static class PayloadOutputStream extends OutputStream {
+
+        private final HttpURLConnection mUrlConnection;
+
+        private final int mCompressionThreshold;
+
+        private final int mBufferSize;
+
+        private final ByteArrayOutputStream mBuffer;
+
+        private CountingOutputStream mConnectionStream;
+
+        private OutputStream mOut;
+
+        private long mPayloadLength;
+
+        private boolean mCompressed;
+
+        PayloadOutputStream(HttpURLConnection urlConnection, int compressionThreshold) {
+            mUrlConnection = urlConnection;
+            mCompressionThreshold = compressionThreshold;
+            mBufferSize = compressionThreshold >= 0 ? compressionThreshold : STREAMING_THRESHOLD;
+            mBuffer = new ByteArrayOutputStream(Math.min(mBufferSize, WRITE_BUFFER_SIZE));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            mPayloadLength += len;
+            if (mOut == null) {
+                if (mBuffer.size() + len <= mBufferSize) {
+                    mBuffer.write(b, off, len);
+                    return;
+                }
+                startStreaming();
+            }
+            mOut.write(b, off, len);
+        }
+
+        /**
+         * Start sending in chunks, compressed if payload reached compression threshold.
+         */
+        private void startStreaming() throws IOException {
+            mCompressed = mCompressionThreshold >= 0 && mPayloadLength >= mCompressionThreshold;
+            if (mCompressed)
+                mUrlConnection.setRequestProperty(CONTENT_ENCODING_KEY, CONTENT_ENCODING_GZIP);
+            mUrlConnection.setChunkedStreamingMode(0);
+            mConnectionStream = new CountingOutputStream(mUrlConnection.getOutputStream());
+            mOut = mCompressed ? new GZIPOutputStream(mConnectionStream) : mConnectionStream;
+            mBuffer.writeTo(mOut);
+            mBuffer.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            /* If whole payload fit in buffer, send it with a known length unless it needs compression. */
+            if (mOut == null) {
+                if (mCompressionThreshold >= 0 && mPayloadLength >= mCompressionThreshold)
+                    startStreaming();
+                else {
+                    mUrlConnection.setFixedLengthStreamingMode(mBuffer.size());
+                    mConnectionStream = new CountingOutputStream(mUrlConnection.getOutputStream());
+                    mOut = mConnectionStream;
+                    mBuffer.writeTo(mOut);
+                }
+            }
+            mOut.close();
+        }
+
+        long getPayloadLength() {
+            return mPayloadLength;
+        }
+
+        long getSentLength() {
+            return mConnectionStream == null ? 0 : mConnectionStream.getCount();
+        }
+
+        boolean isCompressed() {
+            return mCompressed;
+        }
+    }
+
+    /**
+     * Output stream counting bytes written to the wrapped stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
 }
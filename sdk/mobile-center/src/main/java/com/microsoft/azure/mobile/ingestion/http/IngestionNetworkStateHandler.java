@@ -1,26 +1,59 @@
 package com.microsoft.azure.mobile.ingestion.http;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.VisibleForTesting;
+
 import com.microsoft.azure.mobile.ingestion.Ingestion;
 import com.microsoft.azure.mobile.ingestion.ServiceCall;
 import com.microsoft.azure.mobile.ingestion.ServiceCallback;
 import com.microsoft.azure.mobile.ingestion.models.LogContainer;
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.NetworkStateHelper;
 
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
 
 /**
  * Decorator pausing calls while network is down.
+ * While the network is constrained (metered and slow), large calls that are not critical
+ * are deferred until the network gets better or for a limited time.
  */
 public class IngestionNetworkStateHandler extends IngestionDecorator implements NetworkStateHelper.Listener {
 
+    /**
+     * Calls with up to this number of logs are never deferred.
+     */
+    @VisibleForTesting
+    static final int SMALL_CALL_MAX_LOGS = 10;
+
+    /**
+     * Maximum time in milliseconds a call is deferred because of network quality.
+     */
+    @VisibleForTesting
+    static final long MAX_DEFERRAL_TIME = TimeUnit.MINUTES.toMillis(30);
+
     /**
      * Network state helper.
      */
     private final NetworkStateHelper mNetworkStateHelper;
 
+    /**
+     * Calls with a priority ({@link LogContainer#getPriority()}) greater than or equal to this are never deferred.
+     */
+    private final int mCriticalPriority;
+
+    /**
+     * Handler used to stop deferring calls after {@link #MAX_DEFERRAL_TIME}.
+     */
+    private final Handler mHandler;
+
     /**
      * All pending calls.
      */
@@ -33,25 +66,65 @@ public class IngestionNetworkStateHandler extends IngestionDecorator implements
      * @param networkStateHelper network state helper.
      */
     public IngestionNetworkStateHandler(Ingestion decoratedApi, NetworkStateHelper networkStateHelper) {
+        this(decoratedApi, networkStateHelper, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Init.
+     *
+     * @param decoratedApi       decorated API.
+     * @param networkStateHelper network state helper.
+     * @param criticalPriority   calls with a priority greater than or equal to this are never deferred.
+     */
+    public IngestionNetworkStateHandler(Ingestion decoratedApi, NetworkStateHelper networkStateHelper, int criticalPriority) {
+        this(decoratedApi, networkStateHelper, criticalPriority, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Init.
+     *
+     * @param decoratedApi       decorated API.
+     * @param networkStateHelper network state helper.
+     * @param criticalPriority   calls with a priority greater than or equal to this are never deferred.
+     * @param handler            handler for deferral timeouts.
+     */
+    @VisibleForTesting
+    IngestionNetworkStateHandler(Ingestion decoratedApi, NetworkStateHelper networkStateHelper, int criticalPriority, Handler handler) {
         super(decoratedApi);
         mNetworkStateHelper = networkStateHelper;
+        mCriticalPriority = criticalPriority;
+        mHandler = handler;
         mNetworkStateHelper.addListener(this);
     }
 
+    /**
+     * Get the number of logs of a call.
+     */
+    private static int getLogCount(LogContainer logContainer) {
+        if (logContainer == null)
+            return 0;
+        List<String> rawLogs = logContainer.getRawLogs();
+        if (rawLogs != null)
+            return rawLogs.size();
+        return logContainer.getLogs() != null ? logContainer.getLogs().size() : 0;
+    }
+
     @Override
     public synchronized ServiceCall sendAsync(String appSecret, UUID installId, LogContainer logContainer, ServiceCallback serviceCallback) throws IllegalArgumentException {
         Call ingestionCall = new Call(mDecoratedApi, appSecret, installId, logContainer, serviceCallback);
         mCalls.add(ingestionCall);
         if (mNetworkStateHelper.isNetworkConnected())
-            ingestionCall.run();
+            runOrDefer(ingestionCall);
         return ingestionCall;
     }
 
     @Override
     public synchronized void close() throws IOException {
         mNetworkStateHelper.removeListener(this);
-        for (Call call : mCalls)
+        for (Call call : mCalls) {
             pauseCall(call);
+            mHandler.removeCallbacks(call.mDeferralTimeout);
+        }
         mCalls.clear();
         super.close();
     }
@@ -60,17 +133,64 @@ public class IngestionNetworkStateHandler extends IngestionDecorator implements
     public synchronized void onNetworkStateUpdated(boolean connected) {
         for (Call call : mCalls)
             if (connected)
-                call.run();
+                runOrDefer(call);
             else
                 pauseCall(call);
     }
 
+    /**
+     * Check if a call should wait for a better network.
+     * Small calls and calls of critical groups are always sent.
+     *
+     * @param call the call.
+     * @return true to defer the call.
+     */
+    private boolean shouldDefer(Call call) {
+        return !call.mDeferralExpired
+                && mNetworkStateHelper.isNetworkConstrained()
+                && (call.mLogContainer == null || call.mLogContainer.getPriority() < mCriticalPriority)
+                && getLogCount(call.mLogContainer) > SMALL_CALL_MAX_LOGS;
+    }
+
+    /**
+     * Send a call while network is connected, unless network quality makes it wait.
+     *
+     * @param call the call.
+     */
+    private synchronized void runOrDefer(Call call) {
+        if (shouldDefer(call)) {
+            if (!call.mDeferred) {
+                MobileCenterLog.debug(LOG_TAG, "Network is constrained, deferring call of " + getLogCount(call.mLogContainer) + " logs.");
+                call.mDeferred = true;
+                mHandler.postDelayed(call.mDeferralTimeout, MAX_DEFERRAL_TIME);
+            }
+        } else {
+            if (call.mDeferred) {
+                call.mDeferred = false;
+                mHandler.removeCallbacks(call.mDeferralTimeout);
+            }
+            call.run();
+        }
+    }
+
+    /**
+     * Stop deferring a call that waited too long for a better network.
+     *
+     * @param call the call.
+     */
+    private synchronized void expireDeferral(Call call) {
+        call.mDeferralExpired = true;
+        if (call.mDeferred && mCalls.contains(call) && mNetworkStateHelper.isNetworkConnected())
+            runOrDefer(call);
+    }
+
     private synchronized void callRunAsync(Call call) {
         call.mServiceCall = call.mDecoratedApi.sendAsync(call.mAppSecret, call.mInstallId, call.mLogContainer, call);
     }
 
     private synchronized void cancelCall(Call call) {
         mCalls.remove(call);
+        mHandler.removeCallbacks(call.mDeferralTimeout);
         pauseCall(call);
     }
 
@@ -104,6 +224,27 @@ public class IngestionNetworkStateHandler extends IngestionDecorator implements
      */
     private class Call extends IngestionCallDecorator implements Runnable, ServiceCallback {
 
+        /**
+         * Stop deferring this call.
+         */
+        final Runnable mDeferralTimeout = new Runnable() {
+
+            @Override
+            public void run() {
+                expireDeferral(Call.this);
+            }
+        };
+
+        /**
+         * True while the call waits for a better network.
+         */
+        boolean mDeferred;
+
+        /**
+         * True once the call waited {@link #MAX_DEFERRAL_TIME}, it's no longer deferred.
+         */
+        boolean mDeferralExpired;
+
         Call(Ingestion decoratedApi, String appSecret, UUID installId, LogContainer logContainer, ServiceCallback serviceCallback) {
             super(decoratedApi, appSecret, installId, logContainer, serviceCallback);
         }
@@ -2,6 +2,7 @@ package com.microsoft.azure.mobile.ingestion.http;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 
 import com.microsoft.azure.mobile.MobileCenter;
@@ -10,6 +11,7 @@ import com.microsoft.azure.mobile.ingestion.ServiceCall;
 import com.microsoft.azure.mobile.ingestion.ServiceCallback;
 import com.microsoft.azure.mobile.ingestion.models.LogContainer;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper.PreferencesStorage;
 
 import java.net.UnknownHostException;
 import java.util.Random;
@@ -18,18 +20,46 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Decorator managing retries.
+ * Backoff state is persisted per server URL so that restarting the process during an outage
+ * does not retry from the shortest interval.
  */
 public class IngestionRetryer extends IngestionDecorator {
 
     /**
-     * Retry intervals to use, array index is to use the value for each retry. When we used all the array values, we give up and forward the last error.
+     * Number of retries for a call, when all used, we give up and forward the last error.
      */
     @VisibleForTesting
-    static final long[] RETRY_INTERVALS = new long[]{
-            TimeUnit.SECONDS.toMillis(10),
-            TimeUnit.MINUTES.toMillis(5),
-            TimeUnit.MINUTES.toMillis(20)
-    };
+    static final int MAX_RETRY_COUNT = 3;
+
+    /**
+     * Maximum backoff interval after the first failure, doubled after each consecutive failure.
+     */
+    @VisibleForTesting
+    static final long INITIAL_BACKOFF_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Upper bound of the maximum backoff interval.
+     */
+    @VisibleForTesting
+    static final long MAX_BACKOFF_INTERVAL = TimeUnit.MINUTES.toMillis(20);
+
+    /**
+     * Longest Retry-After value honored.
+     */
+    @VisibleForTesting
+    static final long MAX_RETRY_AFTER = TimeUnit.HOURS.toMillis(6);
+
+    /**
+     * Preference key prefix (followed by server URL) for the number of consecutive failures.
+     */
+    @VisibleForTesting
+    static final String PREF_KEY_FAILURE_COUNT = "ingestion_failure_count_";
+
+    /**
+     * Preference key prefix (followed by server URL) for the time before which no call should be made.
+     */
+    @VisibleForTesting
+    static final String PREF_KEY_NEXT_ATTEMPT_TIME = "ingestion_next_attempt_time_";
 
     /**
      * Android "timer" using the main thread loop.
@@ -41,6 +71,26 @@ public class IngestionRetryer extends IngestionDecorator {
      */
     private final Random mRandom = new Random();
 
+    /**
+     * Server URL, the backoff state is specific to it.
+     */
+    private String mServerUrl = IngestionHttp.DEFAULT_BASE_URL;
+
+    /**
+     * True when the backoff state of {@link #mServerUrl} has been read from storage.
+     */
+    private boolean mStateLoaded;
+
+    /**
+     * Number of consecutive recoverable failures.
+     */
+    private int mFailureCount;
+
+    /**
+     * Time in milliseconds ({@link System#currentTimeMillis()}) before which calls are delayed, 0 if not backing off.
+     */
+    private long mNextAttemptTime;
+
     /**
      * Init with default retry policy.
      *
@@ -65,12 +115,85 @@ public class IngestionRetryer extends IngestionDecorator {
     @Override
     public ServiceCall sendAsync(String appSecret, UUID installId, LogContainer logContainer, ServiceCallback serviceCallback) throws IllegalArgumentException {
 
-        /* Wrap the call with the retry logic and call delegate. */
+        /* Wrap the call with the retry logic and call delegate, after the current backoff if any. */
         RetryableCall retryableCall = new RetryableCall(mDecoratedApi, appSecret, installId, logContainer, serviceCallback);
-        retryableCall.run();
+        long delay = getRemainingBackoff();
+        if (delay > 0) {
+            MobileCenterLog.debug(MobileCenter.LOG_TAG, "Backing off, call will be sent in " + delay + " ms");
+            mHandler.postDelayed(retryableCall, delay);
+        } else
+            retryableCall.run();
         return retryableCall;
     }
 
+    @Override
+    public void setServerUrl(String serverUrl) {
+        synchronized (this) {
+            mServerUrl = serverUrl;
+            mStateLoaded = false;
+        }
+        super.setServerUrl(serverUrl);
+    }
+
+    /**
+     * Read backoff state of current server URL from storage if not done yet.
+     */
+    private void loadState() {
+        if (!mStateLoaded) {
+            mFailureCount = PreferencesStorage.getInt(PREF_KEY_FAILURE_COUNT + mServerUrl, 0);
+            mNextAttemptTime = PreferencesStorage.getLong(PREF_KEY_NEXT_ATTEMPT_TIME + mServerUrl, 0);
+            mStateLoaded = true;
+        }
+    }
+
+    /**
+     * Get the time to wait before sending a new call.
+     *
+     * @return delay in milliseconds, 0 if not backing off.
+     */
+    private synchronized long getRemainingBackoff() {
+        loadState();
+
+        /* Bound the delay in case the clock was moved backwards. */
+        long remaining = mNextAttemptTime - System.currentTimeMillis();
+        return Math.max(0, Math.min(remaining, Math.max(MAX_BACKOFF_INTERVAL, MAX_RETRY_AFTER)));
+    }
+
+    /**
+     * Reset backoff state after a successful call.
+     */
+    private synchronized void onSuccess() {
+        loadState();
+        if (mFailureCount > 0 || mNextAttemptTime > 0) {
+            mFailureCount = 0;
+            mNextAttemptTime = 0;
+            PreferencesStorage.remove(PREF_KEY_FAILURE_COUNT + mServerUrl);
+            PreferencesStorage.remove(PREF_KEY_NEXT_ATTEMPT_TIME + mServerUrl);
+        }
+    }
+
+    /**
+     * Record a recoverable failure and compute the delay before retrying.
+     * Delay is randomized between 0 and an exponential interval (full jitter) to spread calls of all installs,
+     * unless the server asked to wait longer.
+     *
+     * @param e recoverable error.
+     * @return delay in milliseconds.
+     */
+    private synchronized long onRecoverableFailure(@NonNull Exception e) {
+        loadState();
+        mFailureCount++;
+        long interval = INITIAL_BACKOFF_INTERVAL << Math.min(mFailureCount - 1, 16);
+        interval = Math.min(interval, MAX_BACKOFF_INTERVAL);
+        long delay = (long) (mRandom.nextDouble() * interval);
+        if (e instanceof HttpException)
+            delay = Math.max(delay, Math.min(((HttpException) e).getRetryAfter(), MAX_RETRY_AFTER));
+        mNextAttemptTime = Math.max(mNextAttemptTime, System.currentTimeMillis() + delay);
+        PreferencesStorage.putInt(PREF_KEY_FAILURE_COUNT + mServerUrl, mFailureCount);
+        PreferencesStorage.putLong(PREF_KEY_NEXT_ATTEMPT_TIME + mServerUrl, mNextAttemptTime);
+        return delay;
+    }
+
     /**
      * Retry wrapper logic.
      */
@@ -88,14 +211,37 @@ public class IngestionRetryer extends IngestionDecorator {
         @Override
         public synchronized void cancel() {
             mHandler.removeCallbacks(this);
-            super.cancel();
+
+            /* Call may not have been sent yet if we were backing off. */
+            if (mServiceCall != null)
+                super.cancel();
+        }
+
+        @Override
+        public void onCallSucceeded() {
+            onSuccess();
+            super.onCallSucceeded();
         }
 
         @Override
         public void onCallFailed(Exception e) {
-            if (mRetryCount < RETRY_INTERVALS.length && HttpUtils.isRecoverableError(e)) {
-                long delay = RETRY_INTERVALS[mRetryCount++] / 2;
-                delay += mRandom.nextInt((int) delay);
+
+            /* The circuit breaker did not send the call: send it again later without using a retry or backing off. */
+            if (e instanceof CircuitOpenException) {
+                long delay = ((CircuitOpenException) e).getRetryAfter();
+                MobileCenterLog.debug(MobileCenter.LOG_TAG, "Circuit open, call will be sent again in " + delay + " ms");
+                mHandler.postDelayed(this, delay);
+                return;
+            }
+            if (!HttpUtils.isRecoverableError(e)) {
+                mServiceCallback.onCallFailed(e);
+                return;
+            }
+
+            /* Record failure even when giving up, so that next calls keep backing off. */
+            long delay = onRecoverableFailure(e);
+            if (mRetryCount < MAX_RETRY_COUNT) {
+                mRetryCount++;
                 String message = "Try #" + mRetryCount + " failed and will be retried in " + delay + " ms";
                 if (e instanceof UnknownHostException)
                     message += " (UnknownHostException)";
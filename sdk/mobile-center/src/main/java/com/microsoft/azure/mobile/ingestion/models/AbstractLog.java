@@ -11,6 +11,7 @@ import org.json.JSONStringer;
 
 import java.util.UUID;
 
+import static com.microsoft.azure.mobile.ingestion.models.CommonProperties.TOFFSET;
 import static com.microsoft.azure.mobile.ingestion.models.CommonProperties.TYPE;
 
 /**
@@ -26,12 +27,7 @@ public abstract class AbstractLog implements Log {
     /**
      * device property.
      */
-    @VisibleForTesting
-    static final String DEVICE = "device";
-    /**
-     * toffset property.
-     */
-    private static final String TOFFSET = "toffset";
+    public static final String DEVICE = "device";
     /**
      * Corresponds to the number of milliseconds elapsed between the time the
      * request is sent and the time the log is emitted.
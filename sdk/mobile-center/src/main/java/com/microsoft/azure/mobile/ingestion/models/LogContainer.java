@@ -12,6 +12,16 @@ public class LogContainer {
      */
     private List<Log> logs;
 
+    /**
+     * The list of logs as stored JSON strings, sent instead of {@link #logs} when set.
+     */
+    private List<String> rawLogs;
+
+    /**
+     * Priority of the group the logs belong to, used to schedule sending but not sent.
+     */
+    private int priority;
+
     /**
      * Get the logs value.
      *
@@ -30,6 +40,42 @@ public class LogContainer {
         this.logs = logs;
     }
 
+    /**
+     * Get the raw logs value.
+     *
+     * @return the raw logs value
+     */
+    public List<String> getRawLogs() {
+        return this.rawLogs;
+    }
+
+    /**
+     * Set the raw logs value.
+     *
+     * @param rawLogs the raw logs value to set
+     */
+    public void setRawLogs(List<String> rawLogs) {
+        this.rawLogs = rawLogs;
+    }
+
+    /**
+     * Get the priority value.
+     *
+     * @return the priority value
+     */
+    public int getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Set the priority value.
+     *
+     * @param priority the priority value to set
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -37,11 +83,14 @@ public class LogContainer {
 
         LogContainer container = (LogContainer) o;
 
-        return logs != null ? logs.equals(container.logs) : container.logs == null;
+        if (logs != null ? !logs.equals(container.logs) : container.logs != null) return false;
+        return rawLogs != null ? rawLogs.equals(container.rawLogs) : container.rawLogs == null;
     }
 
     @Override
     public int hashCode() {
-        return logs != null ? logs.hashCode() : 0;
+        int result = logs != null ? logs.hashCode() : 0;
+        result = 31 * result + (rawLogs != null ? rawLogs.hashCode() : 0);
+        return result;
     }
 }
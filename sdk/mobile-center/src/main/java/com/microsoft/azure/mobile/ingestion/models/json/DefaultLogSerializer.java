@@ -3,6 +3,7 @@ package com.microsoft.azure.mobile.ingestion.models.json;
 import android.support.annotation.NonNull;
 
 import com.microsoft.azure.mobile.MobileCenter;
+import com.microsoft.azure.mobile.ingestion.models.AbstractLog;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.LogContainer;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
@@ -12,18 +13,37 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONStringer;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import static com.microsoft.azure.mobile.ingestion.models.CommonProperties.TOFFSET;
 import static com.microsoft.azure.mobile.ingestion.models.CommonProperties.TYPE;
 
 public class DefaultLogSerializer implements LogSerializer {
 
     private static final String LOGS = "logs";
 
+    /**
+     * Start of the log container JSON string, before the first log.
+     */
+    private static final String CONTAINER_START = "{\"" + LOGS + "\":[";
+
+    /**
+     * End of the log container JSON string.
+     */
+    private static final String CONTAINER_END = "]}";
+
+    /**
+     * Key of toffset as written in a log JSON string.
+     */
+    private static final String TOFFSET_KEY = "\"" + TOFFSET + "\":";
+
     private final Map<String, LogFactory> mLogFactories = new HashMap<>();
 
     @NonNull
@@ -51,6 +71,12 @@ public class DefaultLogSerializer implements LogSerializer {
         return writeLog(new JSONStringer(), log).toString();
     }
 
+    @NonNull
+    @Override
+    public String serializeLogWithoutDevice(@NonNull Log log) throws JSONException {
+        return writeLog(new DevicelessJSONStringer(), log).toString();
+    }
+
     @NonNull
     @Override
     public Log deserializeLog(@NonNull String json) throws JSONException {
@@ -85,6 +111,80 @@ public class DefaultLogSerializer implements LogSerializer {
         return writer.toString();
     }
 
+    @Override
+    public void writeContainer(@NonNull Writer writer, @NonNull LogContainer logContainer) throws JSONException, IOException {
+
+        /* Write logs one at a time so that only one log is serialized in memory at once. */
+        writer.write(CONTAINER_START);
+        List<Log> logs = logContainer.getLogs();
+        for (int i = 0; i < logs.size(); i++) {
+            if (i > 0)
+                writer.write(',');
+            writer.write(writeLog(new JSONStringer(), logs.get(i)).toString());
+        }
+        writer.write(CONTAINER_END);
+    }
+
+    @NonNull
+    @Override
+    public String serializeRawContainer(@NonNull List<String> rawLogs, long currentTime) throws JSONException {
+        int length = CONTAINER_START.length() + CONTAINER_END.length();
+        for (String rawLog : rawLogs)
+            length += rawLog.length() + 1;
+        StringWriter writer = new StringWriter(length);
+        try {
+            writeRawContainer(writer, rawLogs, currentTime);
+        } catch (IOException e) {
+
+            /* Cannot happen when writing to a string. */
+            throw new JSONException(e.getMessage());
+        }
+        return writer.toString();
+    }
+
+    @Override
+    public void writeRawContainer(@NonNull Writer writer, @NonNull List<String> rawLogs, long currentTime) throws JSONException, IOException {
+
+        /* Splice stored logs in the container without parsing them. */
+        writer.write(CONTAINER_START);
+        for (int i = 0; i < rawLogs.size(); i++) {
+            if (i > 0)
+                writer.write(',');
+            writeRawLog(writer, rawLogs.get(i), currentTime);
+        }
+        writer.write(CONTAINER_END);
+    }
+
+    /**
+     * Writes a stored log to a container being written, converting its toffset from absolute to relative time.
+     * Logs are written with toffset right after type, so the first toffset key is the one of the log
+     * and not one of a nested object.
+     *
+     * @param writer      The container being written.
+     * @param rawLog      The stored log JSON string.
+     * @param currentTime The current time in milliseconds.
+     * @throws JSONException If the log does not have a valid toffset.
+     * @throws IOException   If the writer fails.
+     */
+    private static void writeRawLog(Writer writer, String rawLog, long currentTime) throws JSONException, IOException {
+        int start = rawLog.indexOf(TOFFSET_KEY);
+        if (start < 0)
+            throw new JSONException("Missing " + TOFFSET + " in log");
+        start += TOFFSET_KEY.length();
+        int end = start;
+        while (end < rawLog.length() && (Character.isDigit(rawLog.charAt(end)) || (end == start && rawLog.charAt(end) == '-')))
+            end++;
+        long toffset;
+        try {
+            toffset = Long.parseLong(rawLog.substring(start, end));
+        } catch (NumberFormatException e) {
+            throw new JSONException("Invalid " + TOFFSET + " in log");
+        }
+        writer.write(rawLog, 0, start);
+        writer.write(String.valueOf(currentTime - toffset));
+        writer.write(rawLog, end, rawLog.length() - end);
+    }
+
     @NonNull
     @Override
     public LogContainer deserializeContainer(@NonNull String json) throws JSONException {
@@ -105,4 +205,116 @@ public class DefaultLogSerializer implements LogSerializer {
     public void addLogFactory(@NonNull String logType, @NonNull LogFactory logFactory) {
         mLogFactories.put(logType, logFactory);
     }
+
+    /**
+     * JSON writer that leaves out the device of the log it writes, so that the log does not have to be modified.
+     */
+    private static class DevicelessJSONStringer extends JSONStringer {
+
+        /**
+         * Current nesting level of objects and arrays, the log object is level 1.
+         */
+        private int mDepth;
+
+        /**
+         * Nesting level of the device value being left out, 0 when writing.
+         */
+        private int mSkippedDepth;
+
+        /**
+         * Whether the device key was left out and its value is next.
+         */
+        private boolean mSkipValue;
+
+        /**
+         * Enters an object or array.
+         *
+         * @return true if it is left out.
+         */
+        private boolean begin() {
+            mDepth++;
+            if (mSkipValue) {
+                mSkipValue = false;
+                mSkippedDepth = mDepth;
+            }
+            return mSkippedDepth > 0;
+        }
+
+        /**
+         * Leaves an object or array.
+         *
+         * @return true if it was left out.
+         */
+        private boolean end() {
+            boolean skipped = mSkippedDepth > 0;
+            if (mSkippedDepth == mDepth)
+                mSkippedDepth = 0;
+            mDepth--;
+            return skipped;
+        }
+
+        /**
+         * Checks whether a value is left out.
+         *
+         * @return true if the value is left out.
+         */
+        private boolean skipValue() {
+            if (mSkipValue) {
+                mSkipValue = false;
+                return true;
+            }
+            return mSkippedDepth > 0;
+        }
+
+        @Override
+        public JSONStringer object() throws JSONException {
+            return begin() ? this : super.object();
+        }
+
+        @Override
+        public JSONStringer endObject() throws JSONException {
+            return end() ? this : super.endObject();
+        }
+
+        @Override
+        public JSONStringer array() throws JSONException {
+            return begin() ? this : super.array();
+        }
+
+        @Override
+        public JSONStringer endArray() throws JSONException {
+            return end() ? this : super.endArray();
+        }
+
+        @Override
+        public JSONStringer key(String name) throws JSONException {
+            if (mSkippedDepth > 0)
+                return this;
+            if (mDepth == 1 && AbstractLog.DEVICE.equals(name)) {
+                mSkipValue = true;
+                return this;
+            }
+            return super.key(name);
+        }
+
+        @Override
+        public JSONStringer value(Object value) throws JSONException {
+            return skipValue() ? this : super.value(value);
+        }
+
+        @Override
+        public JSONStringer value(boolean value) throws JSONException {
+            return skipValue() ? this : super.value(value);
+        }
+
+        @Override
+        public JSONStringer value(double value) throws JSONException {
+            return skipValue() ? this : super.value(value);
+        }
+
+        @Override
+        public JSONStringer value(long value) throws JSONException {
+            return skipValue() ? this : super.value(value);
+        }
+    }
 }
@@ -7,17 +7,64 @@ import com.microsoft.azure.mobile.ingestion.models.LogContainer;
 
 import org.json.JSONException;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
 public interface LogSerializer {
 
     @NonNull
     String serializeLog(@NonNull Log log) throws JSONException;
 
+    /**
+     * Serializes a log without its device, leaving the log unchanged.
+     *
+     * @param log The log.
+     * @return The JSON string of the log without the device.
+     * @throws JSONException If the log cannot be serialized.
+     */
+    @NonNull
+    String serializeLogWithoutDevice(@NonNull Log log) throws JSONException;
+
     @NonNull
     Log deserializeLog(@NonNull String json) throws JSONException;
 
     @NonNull
     String serializeContainer(@NonNull LogContainer container) throws JSONException;
 
+    /**
+     * Writes a log container to a stream, serializing one log at a time.
+     *
+     * @param writer       The writer to write JSON to.
+     * @param logContainer The log container.
+     * @throws JSONException If a log cannot be serialized.
+     * @throws IOException   If the writer fails.
+     */
+    void writeContainer(@NonNull Writer writer, @NonNull LogContainer logContainer) throws JSONException, IOException;
+
+    /**
+     * Serializes logs that were stored as JSON strings without parsing them,
+     * converting their absolute {@code toffset} to the relative value expected by the service.
+     *
+     * @param rawLogs     The JSON strings of the logs, with absolute {@code toffset}.
+     * @param currentTime The current time in milliseconds, used to compute relative {@code toffset}.
+     * @return The JSON string of the log container.
+     * @throws JSONException If a log does not have a {@code toffset}.
+     */
+    @NonNull
+    String serializeRawContainer(@NonNull List<String> rawLogs, long currentTime) throws JSONException;
+
+    /**
+     * Writes logs that were stored as JSON strings to a stream, like {@link #serializeRawContainer(List, long)}.
+     *
+     * @param writer      The writer to write JSON to.
+     * @param rawLogs     The JSON strings of the logs, with absolute {@code toffset}.
+     * @param currentTime The current time in milliseconds, used to compute relative {@code toffset}.
+     * @throws JSONException If a log does not have a {@code toffset}.
+     * @throws IOException   If the writer fails.
+     */
+    void writeRawContainer(@NonNull Writer writer, @NonNull List<String> rawLogs, long currentTime) throws JSONException, IOException;
+
     @NonNull
     LogContainer deserializeContainer(@NonNull String json) throws JSONException;
 
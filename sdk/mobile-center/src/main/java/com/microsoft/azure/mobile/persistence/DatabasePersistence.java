@@ -6,14 +6,19 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
+import com.microsoft.azure.mobile.ingestion.models.AbstractLog;
+import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
 import com.microsoft.azure.mobile.utils.storage.DatabaseManager;
 
 import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -21,7 +26,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
 import static com.microsoft.azure.mobile.utils.storage.StorageHelper.DatabaseStorage;
@@ -40,6 +46,24 @@ public class DatabasePersistence extends Persistence {
     @VisibleForTesting
     static final String COLUMN_LOG = "log";
 
+    /**
+     * Name of the column referencing a device snapshot in the table.
+     */
+    @VisibleForTesting
+    static final String COLUMN_DEVICE_HASH = "device_hash";
+
+    /**
+     * Name of the column storing the estimated payload size of a log in bytes, device included.
+     */
+    @VisibleForTesting
+    static final String COLUMN_SIZE = "size";
+
+    /**
+     * Name of device column in the device snapshot table.
+     */
+    @VisibleForTesting
+    static final String COLUMN_DEVICE = "device";
+
     /**
      * Database name.
      */
@@ -50,16 +74,84 @@ public class DatabasePersistence extends Persistence {
      */
     private static final String TABLE = "logs";
 
+    /**
+     * Device snapshot database name suffix, appended to the log database name.
+     */
+    private static final String DEVICE_DATABASE_SUFFIX = ".devices";
+
+    /**
+     * Device snapshot table name.
+     */
+    private static final String DEVICE_TABLE = "devices";
+
+    /**
+     * Current version of the schema.
+     * Version 3 added the device hash column and version 4 the size column,
+     * columns are added to existing tables on upgrade so stored logs are kept.
+     */
+    private static final int VERSION = 4;
+
+    /**
+     * Current version of the device snapshot schema.
+     */
+    private static final int DEVICE_VERSION = 1;
+
+    /**
+     * Number of device snapshots above which the ones no stored log references are purged.
+     */
+    private static final int DEVICE_MAX_RECORDS = 100;
+
     /**
      * Table schema for Persistence.
      */
-    private static final ContentValues SCHEMA = getContentValues("", "");
+    private static final ContentValues SCHEMA = getContentValues("", "", "", 0);
+
+    /**
+     * Table schema for device snapshots.
+     */
+    private static final ContentValues DEVICE_SCHEMA = getDeviceContentValues("", "");
+
+    /**
+     * Charset used to compute device snapshot hashes.
+     */
+    private static final Charset DEVICE_HASH_CHARSET = Charset.forName("UTF-8");
 
     /**
      * Database storage instance to access Persistence database.
      */
     final DatabaseStorage mDatabaseStorage;
 
+    /**
+     * Database storage instance for device snapshots referenced by logs.
+     */
+    final DatabaseStorage mDeviceStorage;
+
+    /**
+     * Device snapshot JSON strings by hash, loaded from or written to the device storage.
+     */
+    private final Map<String, String> mDeviceSnapshots;
+
+    /**
+     * Device of the last stored log, logs usually share the same instance.
+     */
+    private Device mLastDevice;
+
+    /**
+     * Device snapshot hash of {@link #mLastDevice}.
+     */
+    private String mLastDeviceHash;
+
+    /**
+     * Size in bytes of {@link #mLastDevice} once serialized.
+     */
+    private int mLastDeviceSize;
+
+    /**
+     * Whether device snapshots are kept only in memory after a database error.
+     * Logs then keep their device as snapshots would be lost on restart.
+     */
+    private boolean mDeviceStorageInMemory;
+
     /**
      * Pending log groups. Key is a UUID and value is a list of database identifiers.
      */
@@ -72,11 +164,31 @@ public class DatabasePersistence extends Persistence {
     @VisibleForTesting
     final Set<Long> mPendingDbIdentifiers;
 
+    /**
+     * Total estimated payload size of pending log groups. Key is the same as {@link #mPendingDbIdentifiersGroups}.
+     * Read from other threads with {@link #getByteCount(String, String)}.
+     */
+    @VisibleForTesting
+    final Map<String, Integer> mPendingByteCounts;
+
+    /**
+     * Cached number of logs per group. A group is missing if its logs need to be counted in the database.
+     */
+    @VisibleForTesting
+    final Map<String, Integer> mGroupCounts;
+
+    /**
+     * Last database identifier returned by {@link #getLogs} per group. Next batch starts after it.
+     */
+    @VisibleForTesting
+    final Map<String, Long> mLastDbIdentifiers;
+
+
     /**
      * Initializes variables.
      */
     public DatabasePersistence() {
-        this(DATABASE, TABLE, 1);
+        this(DATABASE, TABLE, VERSION);
     }
 
     /**
@@ -101,11 +213,31 @@ public class DatabasePersistence extends Persistence {
     DatabasePersistence(String database, String table, int version, int maxRecords) {
         mPendingDbIdentifiersGroups = new HashMap<>();
         mPendingDbIdentifiers = new HashSet<>();
-        mDatabaseStorage = DatabaseStorage.getDatabaseStorage(database, table, version, SCHEMA, maxRecords,
+        mPendingByteCounts = new ConcurrentHashMap<>();
+        mGroupCounts = new HashMap<>();
+        mLastDbIdentifiers = new HashMap<>();
+        mDeviceSnapshots = new HashMap<>();
+        mDatabaseStorage = DatabaseStorage.getDatabaseStorage(database, table, version, SCHEMA, maxRecords, new String[]{COLUMN_GROUP},
                 new DatabaseStorage.DatabaseErrorListener() {
                     @Override
                     public void onError(String operation, RuntimeException e) {
                         MobileCenterLog.error(LOG_TAG, "Cannot complete an operation (" + operation + ")", e);
+
+                        /* Storage switched to a new in-memory database, cached counts are no longer valid. */
+                        invalidateCounts();
+
+                        /* Identifiers restart in the new database, pagination has to start over. */
+                        mLastDbIdentifiers.clear();
+                    }
+                });
+
+        /* Snapshots are purged only when no log references them, not by the storage. */
+        mDeviceStorage = DatabaseStorage.getDatabaseStorage(database + DEVICE_DATABASE_SUFFIX, DEVICE_TABLE, DEVICE_VERSION, DEVICE_SCHEMA, 0, new String[]{COLUMN_DEVICE_HASH},
+                new DatabaseStorage.DatabaseErrorListener() {
+                    @Override
+                    public void onError(String operation, RuntimeException e) {
+                        MobileCenterLog.error(LOG_TAG, "Cannot complete an operation on device snapshots (" + operation + ")", e);
+                        mDeviceStorageInMemory = true;
                     }
                 });
     }
@@ -113,28 +245,275 @@ public class DatabasePersistence extends Persistence {
     /**
      * Instantiates {@link ContentValues} with the give values.
      *
-     * @param group The group of the storage for the log.
-     * @param logJ  The JSON string for a log.
+     * @param group      The group of the storage for the log.
+     * @param logJ       The JSON string for a log.
+     * @param deviceHash The hash of the device snapshot of the log if any.
+     * @param size       The estimated payload size of the log in bytes.
      * @return A {@link ContentValues} instance.
      */
-    private static ContentValues getContentValues(@Nullable String group, @Nullable String logJ) {
+    private static ContentValues getContentValues(@Nullable String group, @Nullable String logJ, @Nullable String deviceHash, int size) {
         ContentValues values = new ContentValues();
         values.put(COLUMN_GROUP, group);
         values.put(COLUMN_LOG, logJ);
+        values.put(COLUMN_DEVICE_HASH, deviceHash);
+        values.put(COLUMN_SIZE, size);
         return values;
     }
 
+    /**
+     * Gets the size of a string encoded in UTF-8 without encoding it.
+     *
+     * @param string The string.
+     * @return The size in bytes.
+     */
+    @VisibleForTesting
+    static int getUtf8Size(@NonNull String string) {
+        int size = 0;
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80)
+                size++;
+            else if (c < 0x800)
+                size += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else
+                size += 3;
+        }
+        return size;
+    }
+
+    /**
+     * Instantiates {@link ContentValues} for a device snapshot.
+     *
+     * @param deviceHash The hash of the device snapshot.
+     * @param deviceJ    The JSON string for the device.
+     * @return A {@link ContentValues} instance.
+     */
+    private static ContentValues getDeviceContentValues(@Nullable String deviceHash, @Nullable String deviceJ) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_DEVICE_HASH, deviceHash);
+        values.put(COLUMN_DEVICE, deviceJ);
+        return values;
+    }
+
+    /**
+     * Converts a log to {@link ContentValues}. The device of the log is stored once as a snapshot
+     * and the log only references it, unless snapshots can no longer be persisted.
+     *
+     * @param group The group of the storage for the log.
+     * @param log   The log.
+     * @return A {@link ContentValues} instance.
+     * @throws JSONException If the log cannot be serialized.
+     */
+    private ContentValues getContentValues(@NonNull String group, @NonNull Log log) throws JSONException {
+        Device device = log.getDevice();
+        String deviceHash = device != null && !mDeviceStorageInMemory ? putDevice(device) : null;
+
+        /* Keep the device in the log if there is none or if its snapshot would not survive a restart. */
+        if (deviceHash == null || mDeviceStorageInMemory) {
+            String logJ = getLogSerializer().serializeLog(log);
+            return getContentValues(group, logJ, null, getUtf8Size(logJ));
+        }
+
+        /* Device JSON and its key are spliced in the payload. */
+        int deviceSize = mLastDeviceSize + AbstractLog.DEVICE.length() + 4;
+
+        /* Serialize log without its device, the log object is not ours and may be read by other threads. */
+        String logJ = getLogSerializer().serializeLogWithoutDevice(log);
+        return getContentValues(group, logJ, deviceHash, getUtf8Size(logJ) + deviceSize);
+    }
+
+    /**
+     * Stores a device snapshot if not already stored.
+     *
+     * @param device The device.
+     * @return The hash of the device snapshot.
+     * @throws JSONException If the device cannot be serialized.
+     */
+    private String putDevice(@NonNull Device device) throws JSONException {
+
+        /* Logs share the same device instance until device properties change. */
+        if (device == mLastDevice)
+            return mLastDeviceHash;
+
+        /* Serialize and hash device. */
+        JSONStringer writer = new JSONStringer();
+        writer.object();
+        device.write(writer);
+        writer.endObject();
+        String deviceJ = writer.toString();
+        String deviceHash = UUID.nameUUIDFromBytes(deviceJ.getBytes(DEVICE_HASH_CHARSET)).toString();
+
+        /* Store snapshot if new. */
+        if (!mDeviceSnapshots.containsKey(deviceHash)) {
+            if (mDeviceStorage.count(COLUMN_DEVICE_HASH, deviceHash) == 0) {
+                mDeviceStorage.put(getDeviceContentValues(deviceHash, deviceJ));
+                if (mDeviceStorage.size() > DEVICE_MAX_RECORDS)
+                    purgeDeviceSnapshots(deviceHash);
+            }
+            mDeviceSnapshots.put(deviceHash, deviceJ);
+        }
+        mLastDevice = device;
+        mLastDeviceHash = deviceHash;
+        mLastDeviceSize = getUtf8Size(deviceJ);
+        return deviceHash;
+    }
+
+    /**
+     * Deletes the device snapshots that no stored log references.
+     *
+     * @param deviceHash The hash of the device snapshot being stored, kept even if not referenced yet.
+     */
+    private void purgeDeviceSnapshots(@NonNull String deviceHash) {
+        Set<String> referencedHashes = mDatabaseStorage.getDistinctValues(COLUMN_DEVICE_HASH);
+        referencedHashes.add(deviceHash);
+        List<Long> purgedDbIdentifiers = new ArrayList<>();
+        DatabaseStorage.DatabaseScanner scanner = mDeviceStorage.getScanner(null, null);
+        for (ContentValues values : scanner)
+            if (!referencedHashes.contains(values.getAsString(COLUMN_DEVICE_HASH)))
+                purgedDbIdentifiers.add(values.getAsLong(DatabaseManager.PRIMARY_KEY));
+        scanner.close();
+        if (purgedDbIdentifiers.size() > 0) {
+            MobileCenterLog.debug(LOG_TAG, "Purging " + purgedDbIdentifiers.size() + " unreferenced device snapshots");
+            mDeviceStorage.delete(purgedDbIdentifiers);
+            mDeviceSnapshots.keySet().retainAll(referencedHashes);
+        }
+    }
+
+    /**
+     * Gets a device snapshot JSON string.
+     *
+     * @param deviceHash The hash of the device snapshot.
+     * @return The device JSON string.
+     * @throws JSONException If the snapshot does not exist anymore.
+     */
+    @NonNull
+    private String getDeviceSnapshot(@NonNull String deviceHash) throws JSONException {
+        String deviceJ = mDeviceSnapshots.get(deviceHash);
+        if (deviceJ == null) {
+            DatabaseStorage.DatabaseScanner scanner = mDeviceStorage.getScanner(COLUMN_DEVICE_HASH, deviceHash);
+            Iterator<ContentValues> iterator = scanner.iterator();
+            if (iterator.hasNext())
+                deviceJ = iterator.next().getAsString(COLUMN_DEVICE);
+            scanner.close();
+            if (deviceJ == null)
+                throw new JSONException("Missing device snapshot " + deviceHash);
+            mDeviceSnapshots.put(deviceHash, deviceJ);
+        }
+        return deviceJ;
+    }
+
+    /**
+     * Gets a device from its snapshot, sharing instances within a batch.
+     *
+     * @param deviceHash The hash of the device snapshot.
+     * @param devices    Devices already read for the batch.
+     * @return The device.
+     * @throws JSONException If the snapshot does not exist anymore or cannot be deserialized.
+     */
+    @NonNull
+    private Device getDevice(@NonNull String deviceHash, @NonNull Map<String, Device> devices) throws JSONException {
+        Device device = devices.get(deviceHash);
+        if (device == null) {
+            device = new Device();
+            device.read(new JSONObject(getDeviceSnapshot(deviceHash)));
+            devices.put(deviceHash, device);
+        }
+        return device;
+    }
+
+    /**
+     * Gets the payload size of a stored log. Logs stored before sizes were tracked have none,
+     * their size is then estimated from their JSON string and device snapshot.
+     *
+     * @param values The stored log values.
+     * @return The payload size of the log in bytes.
+     */
+    private int getLogSize(@NonNull ContentValues values) {
+        Integer size = values.getAsInteger(COLUMN_SIZE);
+        if (size != null)
+            return size;
+        String logJ = values.getAsString(COLUMN_LOG);
+        int logSize = logJ != null ? getUtf8Size(logJ) : 0;
+        String deviceHash = values.getAsString(COLUMN_DEVICE_HASH);
+        if (deviceHash != null) {
+            try {
+                logSize += getUtf8Size(getDeviceSnapshot(deviceHash)) + AbstractLog.DEVICE.length() + 4;
+            } catch (JSONException ignored) {
+
+                /* The log is deleted when read. */
+            }
+        }
+        return logSize;
+    }
+
     @Override
     public void putLog(@NonNull String group, @NonNull Log log) throws PersistenceException {
         /* Convert log to JSON string and put in the database. */
         try {
             MobileCenterLog.debug(LOG_TAG, "Storing a log to the Persistence database for log type " + log.getType() + " with " + log.getSid());
-            mDatabaseStorage.put(getContentValues(group, getLogSerializer().serializeLog(log)));
+            ContentValues values = getContentValues(group, log);
+            Map<String, Integer> purgedCounts = new HashMap<>();
+            mDatabaseStorage.put(values, COLUMN_GROUP, purgedCounts);
+            onLogsStored(group, 1, purgedCounts);
         } catch (JSONException e) {
             throw new PersistenceException("Cannot convert to JSON string", e);
         }
     }
 
+    @Override
+    public void putLogs(@NonNull String group, @NonNull List<Log> logs) throws PersistenceException {
+        /* Convert all logs to JSON strings first so that nothing is stored if one fails. */
+        MobileCenterLog.debug(LOG_TAG, "Storing " + logs.size() + " logs to the Persistence database for " + group);
+        List<ContentValues> valuesList = new ArrayList<>(logs.size());
+        try {
+            for (Log log : logs)
+                valuesList.add(getContentValues(group, log));
+        } catch (JSONException e) {
+            throw new PersistenceException("Cannot convert to JSON string", e);
+        }
+
+        /* Put in the database in a single transaction. */
+        Map<String, Integer> purgedCounts = new HashMap<>();
+        mDatabaseStorage.put(valuesList, COLUMN_GROUP, purgedCounts);
+        onLogsStored(group, logs.size(), purgedCounts);
+    }
+
+    /**
+     * Updates the cached counts after logs are stored.
+     *
+     * @param group        The group of the storage for logs.
+     * @param storedCount  The number of stored logs.
+     * @param purgedCounts The number of logs purged by group, if storage was full.
+     */
+    private void onLogsStored(@NonNull String group, int storedCount, @NonNull Map<String, Integer> purgedCounts) {
+        updateGroupCount(group, storedCount);
+        for (Map.Entry<String, Integer> purgedCount : purgedCounts.entrySet())
+            updateGroupCount(purgedCount.getKey(), -purgedCount.getValue());
+    }
+
+    /**
+     * Updates the cached log count of a group if known.
+     *
+     * @param group The group of the storage for logs.
+     * @param delta The number of logs added (positive) or removed (negative).
+     */
+    private void updateGroupCount(@NonNull String group, int delta) {
+        Integer count = mGroupCounts.get(group);
+        if (count != null)
+            mGroupCounts.put(group, count + delta);
+    }
+
+    /**
+     * Forgets all cached counts so that they are computed again from the database.
+     */
+    private void invalidateCounts() {
+        mGroupCounts.clear();
+    }
+
     @Override
     public void deleteLogs(@NonNull String group, @NonNull String id) {
         /* Log. */
@@ -142,12 +521,15 @@ public class DatabasePersistence extends Persistence {
         MobileCenterLog.debug(LOG_TAG, "The IDs for deleting log(s) is/are:");
 
         List<Long> dbIdentifiers = mPendingDbIdentifiersGroups.remove(group + id);
+        mPendingByteCounts.remove(group + id);
         if (dbIdentifiers != null) {
             for (Long dbIdentifier : dbIdentifiers) {
                 MobileCenterLog.debug(LOG_TAG, "\t" + dbIdentifier);
-                mDatabaseStorage.delete(dbIdentifier);
                 mPendingDbIdentifiers.remove(dbIdentifier);
             }
+
+            /* Delete all logs of the batch with a single statement. */
+            updateGroupCount(group, -mDatabaseStorage.delete(dbIdentifiers));
         }
     }
 
@@ -158,67 +540,158 @@ public class DatabasePersistence extends Persistence {
 
         /* Delete from database. */
         mDatabaseStorage.delete(COLUMN_GROUP, group);
+        mGroupCounts.put(group, 0);
+        mLastDbIdentifiers.remove(group);
 
         /* Delete from pending state. */
         for (Iterator<String> iterator = mPendingDbIdentifiersGroups.keySet().iterator(); iterator.hasNext(); ) {
             String key = iterator.next();
-            if (key.startsWith(group))
+            if (key.startsWith(group)) {
                 iterator.remove();
+                mPendingByteCounts.remove(key);
+            }
         }
     }
 
     @Override
     public int countLogs(@NonNull String group) {
 
-        /* Query database and get scanner. */
-        DatabaseStorage.DatabaseScanner scanner = mDatabaseStorage.getScanner(COLUMN_GROUP, group);
-        int count = scanner.getCount();
-        scanner.close();
+        /* Use cached count if we already counted logs for that group. */
+        Integer count = mGroupCounts.get(group);
+        if (count == null) {
+
+            /* Query database using the group index. */
+            count = (int) mDatabaseStorage.count(COLUMN_GROUP, group);
+            mGroupCounts.put(group, count);
+        }
         return count;
     }
 
     @Override
     @Nullable
     public String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs) {
-        /* Log. */
-        MobileCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs from the Persistence database for " + group);
+        return getLogs(group, limit, 0, outLogs, null);
+    }
+
+    @Override
+    @Nullable
+    public String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @IntRange(from = 0) int maxBytes, @NonNull List<Log> outLogs) {
+        return getLogs(group, limit, maxBytes, outLogs, null);
+    }
+
+    @Override
+    public boolean hasRawLogs() {
+        return true;
+    }
+
+    @Override
+    @Nullable
+    public String getRawLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<String> outRawLogs) {
+        return getLogs(group, limit, 0, null, outRawLogs);
+    }
 
-        /* Query database and get scanner. */
-        DatabaseStorage.DatabaseScanner scanner = mDatabaseStorage.getScanner(COLUMN_GROUP, group);
+    @Override
+    @Nullable
+    public String getRawLogs(@NonNull String group, @IntRange(from = 0) int limit, @IntRange(from = 0) int maxBytes, @NonNull List<String> outRawLogs) {
+        return getLogs(group, limit, maxBytes, null, outRawLogs);
+    }
 
-        /* Add logs to output parameter after deserialization if logs are not already sent. */
-        int count = 0;
-        Map<Long, Log> candidates = new TreeMap<>();
+    /**
+     * Gets an array of logs for the given {@code group}, either deserialized or as stored JSON strings.
+     *
+     * @param group      The group of the storage for logs.
+     * @param limit      The max number of logs to be returned.
+     * @param maxBytes   The max total payload size of returned logs in bytes, {@code 0} for no limit.
+     *                   At least one log is returned even if bigger.
+     * @param outLogs    A list to receive {@link Log} objects, {@code null} to get JSON strings instead.
+     * @param outRawLogs A list to receive JSON strings of logs, used when {@code outLogs} is {@code null}.
+     * @return An ID for the returned logs. {@code null} if no logs exist.
+     */
+    @Nullable
+    private String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @IntRange(from = 0) int maxBytes, @Nullable List<Log> outLogs, @Nullable List<String> outRawLogs) {
+        /* Log. */
+        MobileCenterLog.debug(LOG_TAG, "Trying to get " + limit + " logs" + (maxBytes > 0 ? " within " + maxBytes + " bytes" : "") + " from the Persistence database for " + group);
+
+        /*
+         * Logs are returned in identifier order and every returned log stays pending until deleted,
+         * so resume after the last returned identifier of the group instead of scanning pending logs again.
+         */
+        Long lastDbIdentifier = mLastDbIdentifiers.get(group);
+        long minDbIdentifier = lastDbIdentifier == null ? -1 : lastDbIdentifier;
+
+        /* Add logs to output parameter after deserialization if needed, one page at a time. */
+        List<Log> logs = new ArrayList<>();
+        List<String> rawLogs = new ArrayList<>();
+        List<Long> pendingDbIdentifiersGroup = new ArrayList<>();
         List<Long> failedDbIdentifiers = new ArrayList<>();
-        for (Iterator<ContentValues> iterator = scanner.iterator(); iterator.hasNext() && count < limit; ) {
-            ContentValues values = iterator.next();
-            Long dbIdentifier = values.getAsLong(DatabaseManager.PRIMARY_KEY);
-
-            /* If the log is already in pending state, then skip. Otherwise put the log to candidate container. */
-            if (!mPendingDbIdentifiers.contains(dbIdentifier)) {
-                try {
-                    /* Deserialize JSON to Log. */
-                    candidates.put(dbIdentifier, getLogSerializer().deserializeLog(values.getAsString(COLUMN_LOG)));
-                    count++;
-                } catch (JSONException e) {
-                    /* If it is not able to deserialize, delete and get another log. */
-                    MobileCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
-
-                    /* Put the failed identifier to delete. */
-                    failedDbIdentifiers.add(dbIdentifier);
+        Map<String, Device> devices = new HashMap<>();
+        int byteCount = 0;
+        boolean hasMore = true;
+        while (hasMore && pendingDbIdentifiersGroup.size() < limit) {
+
+            /* Query only the rows we need after the last seen identifier. */
+            int pageSize = limit - pendingDbIdentifiersGroup.size();
+            int scannedCount = 0;
+            DatabaseStorage.DatabaseScanner scanner = mDatabaseStorage.getScanner(COLUMN_GROUP, group, minDbIdentifier, pageSize);
+            for (ContentValues values : scanner) {
+                scannedCount++;
+                Long dbIdentifier = values.getAsLong(DatabaseManager.PRIMARY_KEY);
+
+                /* Pending logs are normally excluded by the query, still skip any that would not be. */
+                if (!mPendingDbIdentifiers.contains(dbIdentifier)) {
+
+                    /* Stop before a log that does not fit in the byte budget, without reading it. */
+                    int logSize = getLogSize(values);
+                    if (maxBytes > 0 && byteCount + logSize > maxBytes && pendingDbIdentifiersGroup.size() > 0) {
+                        MobileCenterLog.debug(LOG_TAG, "Reached " + byteCount + " bytes, next log is " + logSize + " bytes");
+                        hasMore = false;
+                        break;
+                    }
+                    try {
+                        String logJ = values.getAsString(COLUMN_LOG);
+                        /* Logs stored before device snapshots have no hash and keep their device inline. */
+                        String deviceHash = values.getAsString(COLUMN_DEVICE_HASH);
+                        if (outLogs == null) {
+
+                            /* Stored JSON is returned with its device, it will be spliced in the request payload. */
+                            if (deviceHash != null)
+                                logJ = logJ.substring(0, logJ.lastIndexOf('}')) + ",\"" + AbstractLog.DEVICE + "\":" + getDeviceSnapshot(deviceHash) + "}";
+                            rawLogs.add(logJ);
+                        } else {
+
+                            /* Deserialize JSON to Log. */
+                            Log log = getLogSerializer().deserializeLog(logJ);
+                            if (deviceHash != null)
+                                log.setDevice(getDevice(deviceHash, devices));
+                            logs.add(log);
+                        }
+                        pendingDbIdentifiersGroup.add(dbIdentifier);
+                        byteCount += logSize;
+                    } catch (JSONException e) {
+                        /* If it is not able to deserialize, delete and get another log. */
+                        MobileCenterLog.error(LOG_TAG, "Cannot deserialize a log in the database", e);
+
+                        /* Put the failed identifier to delete. */
+                        failedDbIdentifiers.add(dbIdentifier);
+                    }
                 }
+                minDbIdentifier = dbIdentifier;
             }
+            scanner.close();
+
+            /* A short page means we reached the end of the group. */
+            hasMore = hasMore && scannedCount >= pageSize;
         }
-        scanner.close();
 
         /* Delete any logs that cannot be deserialized. */
         if (failedDbIdentifiers.size() > 0) {
-            mDatabaseStorage.delete(failedDbIdentifiers);
+            updateGroupCount(group, -mDatabaseStorage.delete(failedDbIdentifiers));
             MobileCenterLog.warn(LOG_TAG, "Deleted logs that cannot be deserialized");
         }
 
         /* No logs found. */
-        if (candidates.size() <= 0) {
+        int count = pendingDbIdentifiersGroup.size();
+        if (count <= 0) {
             MobileCenterLog.debug(LOG_TAG, "No logs found in the Persistence database at the moment");
             return null;
         }
@@ -227,40 +700,53 @@ public class DatabasePersistence extends Persistence {
         String id = UUIDUtils.randomUUID().toString();
 
         /* Log. */
-        MobileCenterLog.debug(LOG_TAG, "Returning " + candidates.size() + " log(s) with an ID, " + id);
+        MobileCenterLog.debug(LOG_TAG, "Returning " + count + " log(s) with an ID, " + id);
         MobileCenterLog.debug(LOG_TAG, "The SID/ID pairs for returning log(s) is/are:");
-
-        List<Long> pendingDbIdentifiersGroup = new ArrayList<>();
-        for (Map.Entry<Long, Log> entry : candidates.entrySet()) {
-            Long dbIdentifier = entry.getKey();
+        for (int i = 0; i < count; i++) {
+            Long dbIdentifier = pendingDbIdentifiersGroup.get(i);
 
             /* Change a database identifier to pending state. */
             mPendingDbIdentifiers.add(dbIdentifier);
 
-            /* Store a database identifier to a group of the ID. */
-            pendingDbIdentifiersGroup.add(dbIdentifier);
-
             /* Add to output parameter. */
-            outLogs.add(entry.getValue());
-
-            /* Log. */
-            MobileCenterLog.debug(LOG_TAG, "\t" + entry.getValue().getSid() + " / " + dbIdentifier);
+            if (outLogs == null) {
+                MobileCenterLog.debug(LOG_TAG, "\t" + dbIdentifier);
+            } else {
+                Log log = logs.get(i);
+                outLogs.add(log);
+                MobileCenterLog.debug(LOG_TAG, "\t" + log.getSid() + " / " + dbIdentifier);
+            }
         }
+        if (outRawLogs != null)
+            outRawLogs.addAll(rawLogs);
+
+        /* Next batch for this group starts after the last returned log. */
+        mLastDbIdentifiers.put(group, pendingDbIdentifiersGroup.get(count - 1));
 
         /* Update pending IDs. */
         mPendingDbIdentifiersGroups.put(group + id, pendingDbIdentifiersGroup);
+        mPendingByteCounts.put(group + id, byteCount);
         return id;
     }
 
+    @Override
+    public int getByteCount(@NonNull String group, @NonNull String id) {
+        Integer byteCount = mPendingByteCounts.get(group + id);
+        return byteCount == null ? 0 : byteCount;
+    }
+
     @Override
     public void clearPendingLogState() {
         mPendingDbIdentifiers.clear();
         mPendingDbIdentifiersGroups.clear();
+        mPendingByteCounts.clear();
+        mLastDbIdentifiers.clear();
         MobileCenterLog.debug(LOG_TAG, "Cleared pending log states");
     }
 
     @Override
     public void close() throws IOException {
         mDatabaseStorage.close();
+        mDeviceStorage.close();
     }
 }
\ No newline at end of file
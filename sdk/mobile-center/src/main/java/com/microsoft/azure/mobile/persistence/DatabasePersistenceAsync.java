@@ -8,10 +8,20 @@ import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
 import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -25,6 +35,18 @@ public class DatabasePersistenceAsync {
     @VisibleForTesting
     public static final String THREAD_NAME = "DatabasePersistenceThread";
 
+    /**
+     * Priority of groups that don't have one set with {@link #setGroupPriority(String, int)}.
+     */
+    private static final int DEFAULT_PRIORITY = 0;
+
+    /**
+     * Number of operations run in a row for higher priority groups while operations of lower priority groups wait.
+     * When reached, the oldest waiting operation runs next.
+     */
+    @VisibleForTesting
+    static final int MAX_PRIORITY_STREAK = 10;
+
     /**
      * Android "timer" using a background thread loop.
      */
@@ -35,6 +57,49 @@ public class DatabasePersistenceAsync {
      */
     private final Persistence mPersistence;
 
+    /**
+     * Logs waiting for the next scheduled write, per priority. No entry if no scheduled write can accept more logs,
+     * either because there is none or because other operations were queued after it.
+     */
+    private final Map<Integer, List<PendingLog>> mPendingLogs = new HashMap<>();
+
+    /**
+     * Priority per group.
+     */
+    private final Map<String, Integer> mGroupPriorities = new HashMap<>();
+
+    /**
+     * Operations waiting for the persistence thread.
+     * Within a segment, operations of higher priority groups run first. Segments themselves run in order.
+     */
+    private final Deque<Segment> mSegments = new ArrayDeque<>();
+
+    /**
+     * Number of operations that ran in a row for higher priority groups while lower priority operations were waiting.
+     */
+    private int mPriorityStreak;
+
+    /**
+     * Sequence number of the next operation.
+     */
+    private long mNextSequence;
+
+    /**
+     * Run the next operation, posted once per queued operation.
+     */
+    private final Runnable mRunNextOperation = new Runnable() {
+
+        @Override
+        public void run() {
+            Runnable operation;
+            synchronized (DatabasePersistenceAsync.this) {
+                operation = pollOperation();
+            }
+            if (operation != null)
+                operation.run();
+        }
+    };
+
     public DatabasePersistenceAsync(Persistence persistence) {
         HandlerThread thread = new HandlerThread(THREAD_NAME);
         thread.start();
@@ -42,25 +107,211 @@ public class DatabasePersistenceAsync {
         this.mPersistence = persistence;
     }
 
+    /**
+     * Set the priority of a group. When the persistence thread is busy, operations of higher priority groups run first.
+     * Operations of a same group always run in order, and lower priority groups keep moving as the oldest waiting
+     * operation runs after {@link #MAX_PRIORITY_STREAK} higher priority operations in a row.
+     *
+     * @param group    The group of the storage.
+     * @param priority The priority, the higher the sooner.
+     */
+    public synchronized void setGroupPriority(@NonNull String group, int priority) {
+        Integer previousPriority = mGroupPriorities.put(group, priority);
+        if (previousPriority == null ? priority != DEFAULT_PRIORITY : previousPriority != priority) {
+
+            /* Operations already queued for the group must not be overtaken by the next ones. */
+            mPendingLogs.clear();
+            mSegments.add(new Segment(null));
+        }
+    }
+
+    /**
+     * Get the priority of a group.
+     */
+    private int getGroupPriority(String group) {
+        Integer priority = mGroupPriorities.get(group);
+        return priority != null ? priority : DEFAULT_PRIORITY;
+    }
+
     /**
      * Writes a log asynchronously to the storage with the given {@code group}.
+     * Logs put while the persistence thread is busy are coalesced and written together with logs of groups of same priority.
      *
      * @param group    The group of the storage for the log.
      * @param log      The log to be placed in the storage.
      * @param callback The callback to be called after the operation is completed.
      */
-    public void putLog(@NonNull final String group, @NonNull final Log log, @Nullable final DatabasePersistenceAsyncCallback callback) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
+    public void putLog(@NonNull String group, @NonNull Log log, @Nullable DatabasePersistenceAsyncCallback callback) {
+        PendingLog pendingLog = new PendingLog(group, log, callback);
+        synchronized (this) {
+
+            /* Join the scheduled write if nothing else was queued after it. */
+            final int priority = getGroupPriority(group);
+            List<PendingLog> scheduledLogs = mPendingLogs.get(priority);
+            if (scheduledLogs != null) {
+                scheduledLogs.add(pendingLog);
+                return;
+            }
+
+            /* Otherwise schedule a new write. */
+            final List<PendingLog> pendingLogs = new ArrayList<>();
+            pendingLogs.add(pendingLog);
+            mPendingLogs.put(priority, pendingLogs);
+            queue(priority, new Runnable() {
+
+                @Override
+                public void run() {
+                    putLogs(priority, pendingLogs);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes coalesced logs, in a single operation per group when possible.
+     *
+     * @param priority    The priority of the groups of the logs.
+     * @param pendingLogs The logs to write.
+     */
+    private void putLogs(int priority, List<PendingLog> pendingLogs) {
+
+        /* Stop accepting new logs for this write. */
+        synchronized (this) {
+            if (mPendingLogs.get(priority) == pendingLogs)
+                mPendingLogs.remove(priority);
+        }
+
+        /* Group logs, keeping order. */
+        Map<String, List<PendingLog>> groups = new LinkedHashMap<>();
+        for (PendingLog pendingLog : pendingLogs) {
+            List<PendingLog> group = groups.get(pendingLog.mGroup);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(pendingLog.mGroup, group);
+            }
+            group.add(pendingLog);
+        }
+
+        /* Write each group at once. */
+        for (Map.Entry<String, List<PendingLog>> entry : groups.entrySet()) {
+            String group = entry.getKey();
+            List<PendingLog> groupLogs = entry.getValue();
+            int writtenCount = 0;
+            if (groupLogs.size() > 1) {
+                List<Log> logs = new ArrayList<>(groupLogs.size());
+                for (PendingLog pendingLog : groupLogs)
+                    logs.add(pendingLog.mLog);
                 try {
-                    mPersistence.putLog(group, log);
-                    onSuccess(callback, null);
+                    mPersistence.putLogs(group, logs);
+                    MobileCenterLog.debug(LOG_TAG, "Coalesced " + logs.size() + " logs in a single write for " + group);
+                    for (PendingLog pendingLog : groupLogs)
+                        onSuccess(pendingLog.mCallback, null);
+                    continue;
                 } catch (Persistence.PersistenceException e) {
-                    onFailure(callback, e);
+
+                    /* Write logs that were not written one by one to report errors accurately. */
+                    MobileCenterLog.warn(LOG_TAG, "Failed to write logs at once, writing them one by one", e);
+                    if (e instanceof Persistence.PartialWriteException)
+                        writtenCount = ((Persistence.PartialWriteException) e).getWrittenCount();
                 }
             }
-        });
+            for (PendingLog pendingLog : groupLogs.subList(0, writtenCount))
+                onSuccess(pendingLog.mCallback, null);
+            for (PendingLog pendingLog : groupLogs.subList(writtenCount, groupLogs.size()))
+                try {
+                    mPersistence.putLog(group, pendingLog.mLog);
+                    onSuccess(pendingLog.mCallback, null);
+                } catch (Persistence.PersistenceException e) {
+                    onFailure(pendingLog.mCallback, e);
+                }
+        }
+    }
+
+    /**
+     * Queues an operation on a group that is not a log write. Logs put after that operation cannot join
+     * a write scheduled before it, so that operations are applied in order.
+     *
+     * @param group    The group of the storage.
+     * @param runnable The operation.
+     */
+    private synchronized void post(String group, Runnable runnable) {
+        mPendingLogs.clear();
+        queue(getGroupPriority(group), runnable);
+    }
+
+    /**
+     * Queues an operation on all groups. It runs after all operations queued before and before all operations queued after.
+     *
+     * @param runnable The operation.
+     */
+    private synchronized void post(Runnable runnable) {
+        mPendingLogs.clear();
+        mSegments.add(new Segment(runnable));
+        mHandler.post(mRunNextOperation);
+    }
+
+    /**
+     * Queues an operation on a group in the last segment.
+     *
+     * @param priority The group priority.
+     * @param runnable The operation.
+     */
+    private void queue(int priority, Runnable runnable) {
+        Segment segment = mSegments.peekLast();
+        if (segment == null || segment.mBarrier != null) {
+            segment = new Segment(null);
+            mSegments.add(segment);
+        }
+        Queue<Operation> operations = segment.mOperations.get(priority);
+        if (operations == null) {
+            operations = new ArrayDeque<>();
+            segment.mOperations.put(priority, operations);
+        }
+        operations.add(new Operation(mNextSequence++, runnable));
+        mHandler.post(mRunNextOperation);
+    }
+
+    /**
+     * Get the next operation to run.
+     *
+     * @return the next operation, null if none.
+     */
+    private Runnable pollOperation() {
+
+        /* Skip empty segments. */
+        Segment segment;
+        while ((segment = mSegments.peek()) != null && segment.mBarrier == null && segment.mOperations.isEmpty())
+            mSegments.poll();
+        if (segment == null)
+            return null;
+
+        /* Operations on all groups. */
+        if (segment.mBarrier != null) {
+            mSegments.poll();
+            mPriorityStreak = 0;
+            return segment.mBarrier;
+        }
+
+        /* Highest priority first, unless lower priority operations waited too long. */
+        Map.Entry<Integer, Queue<Operation>> selected = null;
+        if (segment.mOperations.size() == 1)
+            mPriorityStreak = 0;
+        else if (mPriorityStreak < MAX_PRIORITY_STREAK)
+            mPriorityStreak++;
+        else {
+            for (Map.Entry<Integer, Queue<Operation>> entry : segment.mOperations.entrySet())
+                if (selected == null || entry.getValue().peek().mSequence < selected.getValue().peek().mSequence)
+                    selected = entry;
+            MobileCenterLog.debug(LOG_TAG, "Run oldest operation of priority " + selected.getKey() + " after " + mPriorityStreak + " higher priority operations.");
+            mPriorityStreak = 0;
+        }
+        if (selected == null)
+            selected = segment.mOperations.firstEntry();
+        Queue<Operation> operations = selected.getValue();
+        Runnable operation = operations.poll().mRunnable;
+        if (operations.isEmpty())
+            segment.mOperations.remove(selected.getKey());
+        return operation;
     }
 
     /**
@@ -83,7 +334,7 @@ public class DatabasePersistenceAsync {
      */
     @SuppressWarnings({"SameParameterValue", "WeakerAccess"})
     public void deleteLogs(@NonNull final String group, @NonNull final String id, @Nullable final DatabasePersistenceAsyncCallback callback) {
-        mHandler.post(new Runnable() {
+        post(group, new Runnable() {
             @Override
             public void run() {
                 mPersistence.deleteLogs(group, id);
@@ -110,7 +361,7 @@ public class DatabasePersistenceAsync {
      */
     @SuppressWarnings("WeakerAccess")
     public void deleteLogs(final String group, @Nullable final DatabasePersistenceAsyncCallback callback) {
-        mHandler.post(new Runnable() {
+        post(group, new Runnable() {
             @Override
             public void run() {
                 mPersistence.deleteLogs(group);
@@ -126,7 +377,7 @@ public class DatabasePersistenceAsync {
      * @param callback The callback to be called with the number of logs for the given {@code group} after the operation is completed.
      */
     public void countLogs(@NonNull final String group, @Nullable final DatabasePersistenceAsyncCallback callback) {
-        mHandler.post(new Runnable() {
+        post(group, new Runnable() {
             @Override
             public void run() {
                 int count = mPersistence.countLogs(group);
@@ -144,11 +395,88 @@ public class DatabasePersistenceAsync {
      * @param callback The callback to be called with an ID for {@code outLogs} after the operation is completed.
      *                 The result can be {@code null} if no logs exist.
      */
-    public void getLogs(@NonNull final String group, @IntRange(from = 0) final int limit, @NonNull final List<Log> outLogs, @Nullable final DatabasePersistenceAsyncCallback callback) {
-        mHandler.post(new Runnable() {
+    public void getLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs, @Nullable DatabasePersistenceAsyncCallback callback) {
+        getLogs(group, limit, 0, outLogs, callback);
+    }
+
+    /**
+     * Gets an array of logs asynchronously for the given {@code group}, within a payload size.
+     *
+     * @param group    The group of the storage for logs.
+     * @param limit    The max number of logs to be returned.
+     * @param maxBytes The max total estimated payload size of the logs in bytes, {@code 0} for no limit.
+     * @param outLogs  A list to receive {@link Log} objects.
+     * @param callback The callback to be called with an ID for {@code outLogs} after the operation is completed.
+     *                 The result can be {@code null} if no logs exist.
+     */
+    public void getLogs(@NonNull final String group, @IntRange(from = 0) final int limit, @IntRange(from = 0) final int maxBytes, @NonNull final List<Log> outLogs, @Nullable final DatabasePersistenceAsyncCallback callback) {
+        post(group, new Runnable() {
             @Override
             public void run() {
-                String id = mPersistence.getLogs(group, limit, outLogs);
+                String id = maxBytes > 0 ? mPersistence.getLogs(group, limit, maxBytes, outLogs) : mPersistence.getLogs(group, limit, outLogs);
+                onSuccess(callback, id);
+            }
+        });
+    }
+
+    /**
+     * Gets the log serializer of the persistence, used to read logs returned as stored JSON.
+     *
+     * @return The log serializer.
+     */
+    public LogSerializer getLogSerializer() {
+        return mPersistence.getLogSerializer();
+    }
+
+    /**
+     * Gets the total estimated payload size of logs returned with an ID and not deleted yet.
+     * Can be called once the callback of the operation that returned the ID was called.
+     *
+     * @param group The group of the storage for logs.
+     * @param id    The ID of the logs.
+     * @return The size in bytes, {@code 0} if unknown.
+     */
+    public int getByteCount(@NonNull String group, @NonNull String id) {
+        return mPersistence.getByteCount(group, id);
+    }
+
+    /**
+     * Checks whether logs can be read as stored JSON with {@link #getRawLogs(String, int, List, DatabasePersistenceAsyncCallback)}.
+     *
+     * @return {@code true} if supported.
+     */
+    public boolean hasRawLogs() {
+        return mPersistence.hasRawLogs();
+    }
+
+    /**
+     * Gets an array of logs as JSON strings asynchronously for the given {@code group}.
+     *
+     * @param group      The group of the storage for logs.
+     * @param limit      The max number of logs to be returned.
+     * @param outRawLogs A list to receive JSON strings of logs.
+     * @param callback   The callback to be called with an ID for {@code outRawLogs} after the operation is completed.
+     *                   The result can be {@code null} if no logs exist.
+     */
+    public void getRawLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<String> outRawLogs, @Nullable DatabasePersistenceAsyncCallback callback) {
+        getRawLogs(group, limit, 0, outRawLogs, callback);
+    }
+
+    /**
+     * Gets an array of logs as JSON strings asynchronously for the given {@code group}, within a payload size.
+     *
+     * @param group      The group of the storage for logs.
+     * @param limit      The max number of logs to be returned.
+     * @param maxBytes   The max total estimated payload size of the logs in bytes, {@code 0} for no limit.
+     * @param outRawLogs A list to receive JSON strings of logs.
+     * @param callback   The callback to be called with an ID for {@code outRawLogs} after the operation is completed.
+     *                   The result can be {@code null} if no logs exist.
+     */
+    public void getRawLogs(@NonNull final String group, @IntRange(from = 0) final int limit, @IntRange(from = 0) final int maxBytes, @NonNull final List<String> outRawLogs, @Nullable final DatabasePersistenceAsyncCallback callback) {
+        post(group, new Runnable() {
+            @Override
+            public void run() {
+                String id = maxBytes > 0 ? mPersistence.getRawLogs(group, limit, maxBytes, outRawLogs) : mPersistence.getRawLogs(group, limit, outRawLogs);
                 onSuccess(callback, id);
             }
         });
@@ -170,7 +498,7 @@ public class DatabasePersistenceAsync {
      */
     @SuppressWarnings({"SameParameterValue", "WeakerAccess"})
     public void clearPendingLogState(@Nullable final DatabasePersistenceAsyncCallback callback) {
-        mHandler.post(new Runnable() {
+        post(new Runnable() {
             @Override
             public void run() {
                 mPersistence.clearPendingLogState();
@@ -193,7 +521,7 @@ public class DatabasePersistenceAsync {
      * @param callback The callback to be called after the operation is completed.
      */
     public void close(@Nullable final DatabasePersistenceAsyncCallback callback) {
-        mHandler.post(new Runnable() {
+        post(new Runnable() {
 
             @Override
             public void run() {
@@ -215,7 +543,7 @@ public class DatabasePersistenceAsync {
      */
     public void waitForCurrentTasksToComplete(long timeout) throws InterruptedException {
         final Semaphore semaphore = new Semaphore(0);
-        mHandler.post(new Runnable() {
+        post(new Runnable() {
 
             @Override
             public void run() {
@@ -265,6 +593,74 @@ public class DatabasePersistenceAsync {
         void onFailure(Exception e);
     }
 
+    /**
+     * Operations waiting for the persistence thread that can run in any order between groups.
+     */
+    private static class Segment {
+
+        /**
+         * Operation on all groups, null if this segment contains group operations.
+         */
+        final Runnable mBarrier;
+
+        /**
+         * Group operations in order per priority, highest priority first.
+         */
+        final TreeMap<Integer, Queue<Operation>> mOperations = new TreeMap<>(Collections.<Integer>reverseOrder());
+
+        Segment(Runnable barrier) {
+            mBarrier = barrier;
+        }
+    }
+
+    /**
+     * An operation waiting for the persistence thread.
+     */
+    private static class Operation {
+
+        /**
+         * Order in which the operation was queued.
+         */
+        final long mSequence;
+
+        /**
+         * The operation.
+         */
+        final Runnable mRunnable;
+
+        Operation(long sequence, Runnable runnable) {
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+    }
+
+    /**
+     * A log waiting to be written.
+     */
+    private static class PendingLog {
+
+        /**
+         * The group of the storage for the log.
+         */
+        final String mGroup;
+
+        /**
+         * The log to be placed in the storage.
+         */
+        final Log mLog;
+
+        /**
+         * The callback to be called after the log is written.
+         */
+        final DatabasePersistenceAsyncCallback mCallback;
+
+        PendingLog(String group, Log log, DatabasePersistenceAsyncCallback callback) {
+            mGroup = group;
+            mLog = log;
+            mCallback = callback;
+        }
+    }
+
     /**
      * Abstract callback for {@link DatabasePersistenceAsync}. Do nothing when {@link #onFailure(Exception)} is called.
      */
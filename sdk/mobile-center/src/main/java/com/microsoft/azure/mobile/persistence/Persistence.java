@@ -6,10 +6,16 @@ import android.support.annotation.Nullable;
 
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+import com.microsoft.azure.mobile.utils.MobileCenterLog;
+
+import org.json.JSONException;
 
 import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.List;
 
+import static com.microsoft.azure.mobile.MobileCenter.LOG_TAG;
+
 /**
  * Abstract class for Persistence service.
  */
@@ -34,6 +40,29 @@ public abstract class Persistence implements Closeable {
      */
     public abstract void putLog(@NonNull String group, @NonNull Log log) throws PersistenceException;
 
+    /**
+     * Writes logs to the storage with the given {@code group}.
+     * Logs are written one by one with {@link #putLog(String, Log)} by default,
+     * implementations can override this to write them at once.
+     *
+     * @param group The group of the storage for the logs.
+     * @param logs  The logs to be placed in the storage.
+     * @throws PersistenceException Exception will be thrown if Persistence cannot write a log to the storage.
+     *                              No log was written, unless it is a {@link PartialWriteException}
+     *                              telling how many of the first logs were.
+     */
+    public void putLogs(@NonNull String group, @NonNull List<Log> logs) throws PersistenceException {
+        for (int i = 0; i < logs.size(); i++) {
+            try {
+                putLog(group, logs.get(i));
+            } catch (PersistenceException e) {
+                if (i == 0)
+                    throw e;
+                throw new PartialWriteException(i, e);
+            }
+        }
+    }
+
     /**
      * Deletes a log with the give ID from the {@code group}.
      *
@@ -68,6 +97,96 @@ public abstract class Persistence implements Closeable {
     @Nullable
     public abstract String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<Log> outLogs);
 
+    /**
+     * Gets an array of logs for the given {@code group}, stopping before the log that would exceed a payload size.
+     * Persistence implementations that do not track log sizes ignore {@code maxBytes}.
+     *
+     * @param group    The group of the storage for logs.
+     * @param limit    The max number of logs to be returned.
+     * @param maxBytes The max total estimated payload size of the logs in bytes, {@code 0} for no limit.
+     *                 At least one log is returned even if bigger.
+     * @param outLogs  A list to receive {@link Log} objects.
+     * @return An ID for {@code outLogs}. {@code null} if no logs exist.
+     */
+    @Nullable
+    public String getLogs(@NonNull String group, @IntRange(from = 0) int limit, @IntRange(from = 0) int maxBytes, @NonNull List<Log> outLogs) {
+        return getLogs(group, limit, outLogs);
+    }
+
+    /**
+     * Checks whether logs are read as stored JSON with {@link #getRawLogs(String, int, List)},
+     * without being deserialized and serialized again.
+     *
+     * @return {@code true} if supported, {@code false} by default.
+     */
+    public boolean hasRawLogs() {
+        return false;
+    }
+
+    /**
+     * Gets an array of logs for the given {@code group} as JSON strings, the way they were stored,
+     * so that they can be sent without being deserialized first.
+     * Returned logs are pending like those returned by {@link #getLogs(String, int, List)}.
+     * If {@link #hasRawLogs()} returns {@code false}, logs are read with {@link #getLogs(String, int, List)} and serialized.
+     *
+     * @param group      The group of the storage for logs.
+     * @param limit      The max number of logs to be returned.
+     * @param outRawLogs A list to receive JSON strings of logs.
+     * @return An ID for {@code outRawLogs}. {@code null} if no logs exist.
+     */
+    @Nullable
+    public String getRawLogs(@NonNull String group, @IntRange(from = 0) int limit, @NonNull List<String> outRawLogs) {
+        List<Log> logs = new ArrayList<>();
+        String id = getLogs(group, limit, logs);
+        serializeLogs(logs, outRawLogs);
+        return id;
+    }
+
+    /**
+     * Gets an array of logs for the given {@code group} as JSON strings,
+     * stopping before the log that would exceed a payload size.
+     * Persistence implementations that do not track log sizes ignore {@code maxBytes}.
+     *
+     * @param group      The group of the storage for logs.
+     * @param limit      The max number of logs to be returned.
+     * @param maxBytes   The max total estimated payload size of the logs in bytes, {@code 0} for no limit.
+     *                   At least one log is returned even if bigger.
+     * @param outRawLogs A list to receive JSON strings of logs.
+     * @return An ID for {@code outRawLogs}. {@code null} if no logs exist.
+     */
+    @Nullable
+    public String getRawLogs(@NonNull String group, @IntRange(from = 0) int limit, @IntRange(from = 0) int maxBytes, @NonNull List<String> outRawLogs) {
+        List<Log> logs = new ArrayList<>();
+        String id = getLogs(group, limit, maxBytes, logs);
+        serializeLogs(logs, outRawLogs);
+        return id;
+    }
+
+    /**
+     * Serialize logs read with {@link #getLogs(String, int, List)}.
+     * A log that cannot be serialized is skipped, it is deleted with the other logs of the batch.
+     */
+    private void serializeLogs(@NonNull List<Log> logs, @NonNull List<String> outRawLogs) {
+        for (Log log : logs)
+            try {
+                outRawLogs.add(getLogSerializer().serializeLog(log));
+            } catch (JSONException e) {
+                MobileCenterLog.error(LOG_TAG, "Cannot serialize log, skipping it", e);
+            }
+    }
+
+    /**
+     * Gets the total estimated payload size of logs returned with an ID and not deleted yet.
+     * Can be called from any thread.
+     *
+     * @param group The group of the storage for logs.
+     * @param id    The ID returned by {@link #getLogs(String, int, List)} or {@link #getRawLogs(String, int, List)}.
+     * @return The size in bytes, {@code 0} if unknown, which is the case by default.
+     */
+    public int getByteCount(@NonNull String group, @NonNull String id) {
+        return 0;
+    }
+
     /**
      * Clears all associations between logs of the {@code group} and ids returned by {@link #getLogs(String, int, List)}}.
      *
@@ -79,7 +198,7 @@ public abstract class Persistence implements Closeable {
      *
      * @return The log serializer instance.
      */
-    LogSerializer getLogSerializer() {
+    public LogSerializer getLogSerializer() {
         if (mLogSerializer == null)
             throw new IllegalStateException("logSerializer not configured");
         return mLogSerializer;
@@ -102,4 +221,29 @@ public abstract class Persistence implements Closeable {
             super(detailMessage, throwable);
         }
     }
+
+    /**
+     * Thrown when {@link #putLogs(String, List)} wrote only the first logs.
+     */
+    public static class PartialWriteException extends PersistenceException {
+
+        /**
+         * Number of logs written before the failure.
+         */
+        private final int mWrittenCount;
+
+        public PartialWriteException(int writtenCount, Throwable throwable) {
+            super("Only " + writtenCount + " logs were written", throwable);
+            mWrittenCount = writtenCount;
+        }
+
+        /**
+         * Get the number of logs written before the failure, they are the first ones.
+         *
+         * @return number of written logs.
+         */
+        public int getWrittenCount() {
+            return mWrittenCount;
+        }
+    }
 }
@@ -7,7 +7,9 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
 import android.support.annotation.VisibleForTesting;
+import android.telephony.TelephonyManager;
 
 import com.microsoft.azure.mobile.MobileCenter;
 
@@ -23,6 +25,11 @@ import static android.net.ConnectivityManager.CONNECTIVITY_ACTION;
  */
 public class NetworkStateHelper implements Closeable {
 
+    /**
+     * Connection type when disconnected.
+     */
+    public static final int TYPE_NONE = -1;
+
     /**
      * Shared instance.
      */
@@ -54,6 +61,21 @@ public class NetworkStateHelper implements Closeable {
      */
     private String mNetworkType;
 
+    /**
+     * Current connection type, a {@link ConnectivityManager} TYPE constant or {@link #TYPE_NONE}.
+     */
+    private int mConnectionType = TYPE_NONE;
+
+    /**
+     * Is current network metered.
+     */
+    private boolean mMetered;
+
+    /**
+     * Is current network slow (2G).
+     */
+    private boolean mSlow;
+
     /**
      * Init.
      *
@@ -89,6 +111,43 @@ public class NetworkStateHelper implements Closeable {
         return mNetworkType != null;
     }
 
+    /**
+     * Get the current connection type.
+     *
+     * @return a {@link ConnectivityManager} TYPE constant such as {@link ConnectivityManager#TYPE_WIFI}, or {@link #TYPE_NONE} if disconnected.
+     */
+    public int getConnectionType() {
+        return mConnectionType;
+    }
+
+    /**
+     * Check whether the current network is metered (the user may pay for data).
+     *
+     * @return true if metered, false if unmetered or disconnected.
+     */
+    public boolean isNetworkMetered() {
+        return mMetered;
+    }
+
+    /**
+     * Check whether the current network is a slow mobile network (2G).
+     *
+     * @return true if slow, false otherwise or if disconnected.
+     */
+    public boolean isNetworkSlow() {
+        return mSlow;
+    }
+
+    /**
+     * Check whether the current network is both metered and slow,
+     * large or low priority transfers should wait for a better network.
+     *
+     * @return true if network is constrained.
+     */
+    public boolean isNetworkConstrained() {
+        return mMetered && mSlow;
+    }
+
     /**
      * Update network info (carrier info are put in these).
      */
@@ -109,10 +168,56 @@ public class NetworkStateHelper implements Closeable {
         MobileCenterLog.debug(MobileCenter.LOG_TAG, "Active network info=" + networkInfo);
 
         /* Update network type. null for not connected. */
-        if (networkInfo != null && networkInfo.getState() == NetworkInfo.State.CONNECTED)
+        if (networkInfo != null && networkInfo.getState() == NetworkInfo.State.CONNECTED) {
             mNetworkType = networkInfo.getTypeName() + networkInfo.getSubtypeName();
-        else
+            mConnectionType = networkInfo.getType();
+            mMetered = isMetered(mConnectionType);
+            mSlow = mConnectionType == ConnectivityManager.TYPE_MOBILE && isSlowMobileNetwork(networkInfo.getSubtype());
+        } else {
             mNetworkType = null;
+            mConnectionType = TYPE_NONE;
+            mMetered = false;
+            mSlow = false;
+        }
+    }
+
+    /**
+     * Check whether the active network is metered.
+     *
+     * @param connectionType connection type of the active network.
+     * @return true if metered.
+     */
+    private boolean isMetered(int connectionType) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            try {
+                return mConnectivityManager.isActiveNetworkMetered();
+            } catch (RuntimeException e) {
+                MobileCenterLog.warn(MobileCenter.LOG_TAG, "Could not check if network is metered", e);
+            }
+        }
+
+        /* Same assumption as the system before metered networks existed. */
+        return connectionType != ConnectivityManager.TYPE_WIFI && connectionType != ConnectivityManager.TYPE_ETHERNET;
+    }
+
+    /**
+     * Check whether a mobile network subtype is 2G.
+     *
+     * @param subtype {@link TelephonyManager} network type.
+     * @return true for 2G networks.
+     */
+    private static boolean isSlowMobileNetwork(int subtype) {
+        switch (subtype) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return true;
+
+            default:
+                return false;
+        }
     }
 
     /**
@@ -177,10 +282,13 @@ public class NetworkStateHelper implements Closeable {
              * If we switch from WIFI to Mobile and vice versa,
              * it can take a while for pending network calls to fail because of that.
              * We'll simulate a network state down event to the listeners to help with that scenario.
+             * The same happens when the network becomes metered or unmetered,
+             * so that listeners can check network quality again.
              */
             String previousNetworkType = mNetworkType;
+            boolean previousMetered = mMetered;
             updateNetworkType();
-            boolean networkTypeChanged = previousNetworkType == null ? mNetworkType != null : !previousNetworkType.equals(mNetworkType);
+            boolean networkTypeChanged = previousNetworkType == null ? mNetworkType != null : !previousNetworkType.equals(mNetworkType) || previousMetered != mMetered;
             if (networkTypeChanged) {
                 boolean connected = isNetworkConnected();
                 if (connected && previousNetworkType != null)
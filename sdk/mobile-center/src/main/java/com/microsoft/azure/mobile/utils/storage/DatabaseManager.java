@@ -11,18 +11,20 @@ import android.support.annotation.IntRange;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
-import android.text.TextUtils;
 
 import com.microsoft.azure.mobile.MobileCenter;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Database manager for SQLite with failover to in-memory.
@@ -39,6 +41,12 @@ public class DatabaseManager implements Closeable {
      */
     private static final String PRIMARY_KEY_SELECTION = "oid = ?";
 
+    /**
+     * Maximum number of arguments bound to a single statement (SQLITE_MAX_VARIABLE_NUMBER default value).
+     */
+    @VisibleForTesting
+    static final int MAX_SELECTION_ARGS = 999;
+
     /**
      * Application context instance.
      */
@@ -64,6 +72,11 @@ public class DatabaseManager implements Closeable {
      */
     private final int mMaxNumberOfRecords;
 
+    /**
+     * Columns to index in the table.
+     */
+    private final String[] mIndexedColumns;
+
     /**
      * Error listener instance.
      */
@@ -114,11 +127,29 @@ public class DatabaseManager implements Closeable {
      */
     DatabaseManager(Context context, String database, String table, int version,
                     ContentValues schema, int maxRecords, ErrorListener listener) {
+        this(context, database, table, version, schema, maxRecords, null, listener);
+    }
+
+    /**
+     * Initializes the table in the database.
+     *
+     * @param context        The application context.
+     * @param database       The database name.
+     * @param table          The table name.
+     * @param version        The version of current schema.
+     * @param schema         The schema.
+     * @param maxRecords     The maximum number of records allowed in the table. {@code 0} for no preset limit.
+     * @param indexedColumns The optional columns to create an index for.
+     * @param listener       The error listener.
+     */
+    DatabaseManager(Context context, String database, String table, int version,
+                    ContentValues schema, int maxRecords, String[] indexedColumns, ErrorListener listener) {
         mContext = context;
         mDatabase = database;
         mTable = table;
         mSchema = schema;
         mMaxNumberOfRecords = maxRecords;
+        mIndexedColumns = indexedColumns;
         mErrorListener = listener;
 
         mSQLiteOpenHelper = new SQLiteOpenHelper(context, database, null, version) {
@@ -128,31 +159,85 @@ public class DatabaseManager implements Closeable {
                 StringBuilder sql = new StringBuilder("CREATE TABLE `");
                 sql.append(mTable);
                 sql.append("` (oid INTEGER PRIMARY KEY AUTOINCREMENT");
-                for (Map.Entry<String, Object> col : mSchema.valueSet()) {
-                    sql.append(", `").append(col.getKey()).append("` ");
-                    Object val = col.getValue();
-                    if (val instanceof Double || val instanceof Float)
-                        sql.append("REAL");
-                    else if (val instanceof Number || val instanceof Boolean)
-                        sql.append("INTEGER");
-                    else if (val instanceof byte[])
-                        sql.append("BLOB");
-                    else
-                        sql.append("TEXT");
-                }
+                for (Map.Entry<String, Object> col : mSchema.valueSet())
+                    sql.append(", `").append(col.getKey()).append("` ").append(getColumnType(col.getValue()));
                 sql.append(");");
                 db.execSQL(sql.toString());
+                createIndexes(db);
             }
 
             @Override
             public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-                /* For now we upgrade by destroying the old table. */
+
+                /*
+                 * If columns were only added, keep the data: add the missing columns, existing rows get NULL
+                 * values in them, then (re)create indexes.
+                 */
+                Set<String> missingColumns = getMissingColumns(db);
+                if (missingColumns != null) {
+                    for (String column : missingColumns)
+                        db.execSQL("ALTER TABLE `" + mTable + "` ADD COLUMN `" + column + "` " + getColumnType(mSchema.get(column)) + ";");
+                    createIndexes(db);
+                    return;
+                }
+
+                /* Otherwise we upgrade by destroying the old table. */
                 db.execSQL("DROP TABLE `" + mTable + "`");
                 onCreate(db);
             }
         };
     }
 
+    /**
+     * Creates the indexes for the table if missing.
+     *
+     * @param db The database.
+     */
+    private void createIndexes(SQLiteDatabase db) {
+        if (mIndexedColumns != null)
+            for (String column : mIndexedColumns)
+                db.execSQL("CREATE INDEX IF NOT EXISTS `" + mTable + "_" + column + "_idx` ON `" + mTable + "` (`" + column + "`);");
+    }
+
+    /**
+     * Gets the SQLite column type for a schema specimen value.
+     *
+     * @param specimen The specimen value.
+     * @return The column type.
+     */
+    private static String getColumnType(Object specimen) {
+        if (specimen instanceof Double || specimen instanceof Float)
+            return "REAL";
+        else if (specimen instanceof Number || specimen instanceof Boolean)
+            return "INTEGER";
+        else if (specimen instanceof byte[])
+            return "BLOB";
+        else
+            return "TEXT";
+    }
+
+    /**
+     * Gets the schema columns missing from the existing table.
+     *
+     * @param db The database.
+     * @return The missing columns, empty if the table columns match the schema,
+     * {@code null} if the table has columns that are no longer in the schema.
+     */
+    private Set<String> getMissingColumns(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT * FROM `" + mTable + "` LIMIT 0", null);
+        try {
+            Set<String> columns = new HashSet<>(Arrays.asList(cursor.getColumnNames()));
+            Set<String> expectedColumns = new HashSet<>(mSchema.keySet());
+            expectedColumns.add(PRIMARY_KEY);
+            if (!expectedColumns.containsAll(columns))
+                return null;
+            expectedColumns.removeAll(columns);
+            return expectedColumns;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Converts a cursor to an entry.
      *
@@ -197,6 +282,18 @@ public class DatabaseManager implements Closeable {
      * @return A database identifier
      */
     public long put(@NonNull ContentValues values) {
+        return put(values, null, null);
+    }
+
+    /**
+     * Stores the entry to the table, reporting the entry purged if it hits the limit.
+     *
+     * @param values          The entry to be stored.
+     * @param purgedKey       The column by which purged entries are counted, {@code null} to not count them.
+     * @param outPurgedCounts A map to receive the number of purged entries by value of {@code purgedKey}.
+     * @return A database identifier
+     */
+    public long put(@NonNull ContentValues values, @Nullable String purgedKey, @Nullable Map<String, Integer> outPurgedCounts) {
         /* Try SQLite. */
         if (mIMDB == null) {
             try {
@@ -207,6 +304,8 @@ public class DatabaseManager implements Closeable {
                 if (mMaxNumberOfRecords < getRowCount() && mMaxNumberOfRecords > 0) {
                     Cursor cursor = getCursor(null, null);
                     cursor.moveToNext();
+                    if (purgedKey != null && outPurgedCounts != null)
+                        addPurgedCount(outPurgedCounts, cursor.getString(cursor.getColumnIndexOrThrow(purgedKey)), 1);
                     delete(cursor.getLong(0));
                     cursor.close();
                 }
@@ -218,11 +317,95 @@ public class DatabaseManager implements Closeable {
         }
 
         /* Store the values to in-memory database. */
+        return putInMemory(values, purgedKey, outPurgedCounts);
+    }
+
+    /**
+     * Stores the entries to the table in a single transaction.
+     *
+     * @param valuesList The entries to be stored.
+     */
+    public void put(@NonNull List<ContentValues> valuesList) {
+        put(valuesList, null, null);
+    }
+
+    /**
+     * Stores the entries to the table in a single transaction, reporting the entries purged if it hits the limit.
+     *
+     * @param valuesList      The entries to be stored.
+     * @param purgedKey       The column by which purged entries are counted, {@code null} to not count them.
+     * @param outPurgedCounts A map to receive the number of purged entries by value of {@code purgedKey}.
+     */
+    public void put(@NonNull List<ContentValues> valuesList, @Nullable String purgedKey, @Nullable Map<String, Integer> outPurgedCounts) {
+        if (valuesList.size() <= 0)
+            return;
+
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                SQLiteDatabase database = getDatabase();
+                database.beginTransaction();
+                try {
+
+                    /* Insert data. */
+                    for (ContentValues values : valuesList)
+                        database.insertOrThrow(mTable, null, values);
+
+                    /* Purge oldest entries if it hits the limit. */
+                    if (mMaxNumberOfRecords > 0) {
+                        long excess = DatabaseUtils.queryNumEntries(database, mTable) - mMaxNumberOfRecords;
+                        if (excess > 0) {
+                            String oldest = "SELECT " + PRIMARY_KEY + " FROM `" + mTable + "` ORDER BY " + PRIMARY_KEY + " LIMIT " + excess;
+                            if (purgedKey != null && outPurgedCounts != null) {
+                                Cursor cursor = database.rawQuery("SELECT `" + purgedKey + "`, COUNT(*) FROM `" + mTable + "` WHERE " + PRIMARY_KEY + " IN (" + oldest + ") GROUP BY `" + purgedKey + "`", null);
+                                try {
+                                    while (cursor.moveToNext())
+                                        addPurgedCount(outPurgedCounts, cursor.getString(0), cursor.getInt(1));
+                                } finally {
+                                    cursor.close();
+                                }
+                            }
+                            database.execSQL("DELETE FROM `" + mTable + "` WHERE " + PRIMARY_KEY + " IN (" + oldest + ");");
+                        }
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                return;
+            } catch (RuntimeException e) {
+                switchToInMemory("put", e);
+            }
+        }
+
+        /* Store the values to in-memory database. */
+        for (ContentValues values : valuesList)
+            putInMemory(values, purgedKey, outPurgedCounts);
+    }
+
+    /**
+     * Stores the entry to in-memory database.
+     *
+     * @param values          The entry to be stored.
+     * @param purgedKey       The column by which purged entries are counted, {@code null} to not count them.
+     * @param outPurgedCounts A map to receive the number of purged entries by value of {@code purgedKey}.
+     * @return A database identifier
+     */
+    private long putInMemory(@NonNull ContentValues values, @Nullable String purgedKey, @Nullable Map<String, Integer> outPurgedCounts) {
+
+        /* The eldest entry is evicted by the map if it hits the limit. */
+        if (purgedKey != null && outPurgedCounts != null && mMaxNumberOfRecords > 0 && mIMDB.size() >= mMaxNumberOfRecords)
+            addPurgedCount(outPurgedCounts, mIMDB.values().iterator().next().getAsString(purgedKey), 1);
         values.put(PRIMARY_KEY, mIMDBAutoInc);
         mIMDB.put(mIMDBAutoInc, values);
         return mIMDBAutoInc++;
     }
 
+    private static void addPurgedCount(@NonNull Map<String, Integer> purgedCounts, String value, int count) {
+        Integer purgedCount = purgedCounts.get(value);
+        purgedCounts.put(value, purgedCount == null ? count : purgedCount + count);
+    }
+
     /**
      * Updates the entry for the identifier.
      *
@@ -252,24 +435,42 @@ public class DatabaseManager implements Closeable {
      * Deletes the entry by the identifier from the database.
      *
      * @param id The database identifier.
+     * @return The number of deleted entries.
      */
-    public void delete(@IntRange(from = 0) long id) {
-        delete(PRIMARY_KEY, id);
+    public int delete(@IntRange(from = 0) long id) {
+        return delete(PRIMARY_KEY, id);
     }
 
     /**
      * Deletes the entries by the identifier from the database.
+     * Statements are chunked to fit SQLite arguments limit and run in a single transaction.
      *
      * @param idList The list of database identifiers.
+     * @return The number of deleted entries.
      */
-    public void delete(@NonNull List<Long> idList) {
+    public int delete(@NonNull List<Long> idList) {
         if (idList.size() <= 0)
-            return;
+            return 0;
 
         /* Try SQLite. */
         if (mIMDB == null) {
             try {
-                getDatabase().execSQL(String.format("DELETE FROM " + mTable + " WHERE " + PRIMARY_KEY + " IN (%s);", TextUtils.join(", ", idList)));
+                SQLiteDatabase database = getDatabase();
+                int count = 0;
+                database.beginTransaction();
+                try {
+                    for (int start = 0; start < idList.size(); start += MAX_SELECTION_ARGS) {
+                        int end = Math.min(start + MAX_SELECTION_ARGS, idList.size());
+                        String[] selectionArgs = new String[end - start];
+                        for (int i = start; i < end; i++)
+                            selectionArgs[i - start] = String.valueOf(idList.get(i));
+                        count += database.delete(mTable, PRIMARY_KEY + " IN (" + getPlaceholders(selectionArgs.length) + ")", selectionArgs);
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                return count;
             } catch (RuntimeException e) {
                 switchToInMemory("delete", e);
             }
@@ -277,9 +478,29 @@ public class DatabaseManager implements Closeable {
 
         /* Deletes the values from in-memory database. */
         else {
+            int count = 0;
             for (Long id : idList)
-                mIMDB.remove(id);
+                if (mIMDB.remove(id) != null)
+                    count++;
+            return count;
         }
+        return 0;
+    }
+
+    /**
+     * Builds a comma separated list of argument placeholders.
+     *
+     * @param count The number of placeholders.
+     * @return The placeholders, e.g. "?, ?, ?".
+     */
+    private static String getPlaceholders(int count) {
+        StringBuilder builder = new StringBuilder(count * 3);
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append('?');
+        }
+        return builder.toString();
     }
 
     /**
@@ -287,12 +508,13 @@ public class DatabaseManager implements Closeable {
      *
      * @param key   The optional key for query.
      * @param value The optional value for query.
+     * @return The number of deleted entries.
      */
-    public void delete(@Nullable String key, @Nullable Object value) {
+    public int delete(@Nullable String key, @Nullable Object value) {
         /* Try SQLite. */
         if (mIMDB == null) {
             try {
-                getDatabase().delete(mTable, key + " = ?", new String[]{String.valueOf(value)});
+                return getDatabase().delete(mTable, key + " = ?", new String[]{String.valueOf(value)});
             } catch (RuntimeException e) {
                 switchToInMemory("delete", e);
             }
@@ -303,15 +525,20 @@ public class DatabaseManager implements Closeable {
             if (value == null || !(value instanceof Number)) {
                 throw new IllegalArgumentException("Primary key should be a number type and cannot be null");
             }
-            mIMDB.remove(((Number) value).longValue());
+            return mIMDB.remove(((Number) value).longValue()) != null ? 1 : 0;
         } else {
+            int count = 0;
             for (Iterator<Map.Entry<Long, ContentValues>> iterator = mIMDB.entrySet().iterator(); iterator.hasNext(); ) {
                 Map.Entry<Long, ContentValues> entry = iterator.next();
                 Object object = entry.getValue().get(key);
-                if (object != null && object.equals(value))
+                if (object != null && object.equals(value)) {
                     iterator.remove();
+                    count++;
+                }
             }
+            return count;
         }
+        return 0;
     }
 
     /**
@@ -361,6 +588,66 @@ public class DatabaseManager implements Closeable {
         return null;
     }
 
+    /**
+     * Gets the number of entries that match key == value.
+     *
+     * @param key   The key for query.
+     * @param value The value for query.
+     * @return The number of matching entries.
+     */
+    public long count(@NonNull String key, @NonNull Object value) {
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                return DatabaseUtils.queryNumEntries(getDatabase(), mTable, key + " = ?", new String[]{value.toString()});
+            } catch (RuntimeException e) {
+                switchToInMemory("count", e);
+            }
+        }
+
+        /* Count the values in in-memory database. */
+        long count = 0;
+        for (ContentValues values : mIMDB.values())
+            if (value.equals(values.get(key)))
+                count++;
+        return count;
+    }
+
+    /**
+     * Gets the distinct non null values of a column.
+     *
+     * @param key The column.
+     * @return The distinct values.
+     */
+    @NonNull
+    public Set<String> getDistinctValues(@NonNull String key) {
+        Set<String> distinctValues = new HashSet<>();
+
+        /* Try SQLite. */
+        if (mIMDB == null) {
+            try {
+                Cursor cursor = getDatabase().rawQuery("SELECT DISTINCT `" + key + "` FROM `" + mTable + "` WHERE `" + key + "` IS NOT NULL", null);
+                try {
+                    while (cursor.moveToNext())
+                        distinctValues.add(cursor.getString(0));
+                } finally {
+                    cursor.close();
+                }
+                return distinctValues;
+            } catch (RuntimeException e) {
+                switchToInMemory("distinct", e);
+            }
+        }
+
+        /* Collect the values in in-memory database. */
+        for (ContentValues values : mIMDB.values()) {
+            String value = values.getAsString(key);
+            if (value != null)
+                distinctValues.add(value);
+        }
+        return distinctValues;
+    }
+
     /**
      * Gets a scanner to iterate all values those match key == value.
      *
@@ -369,7 +656,21 @@ public class DatabaseManager implements Closeable {
      * @return A scanner to iterate all values.
      */
     Scanner getScanner(String key, Object value) {
-        return new Scanner(key, value);
+        return getScanner(key, value, -1, 0);
+    }
+
+    /**
+     * Gets a scanner to iterate values those match key == value and have an identifier greater than {@code minId},
+     * ordered by identifier. This allows paginating with a single indexed query per page.
+     *
+     * @param key   The optional key for query.
+     * @param value The optional value for query.
+     * @param minId The identifier to start after, {@code -1} to start from the first entry.
+     * @param limit The maximum number of values to iterate, {@code 0} for no limit.
+     * @return A scanner to iterate values.
+     */
+    Scanner getScanner(String key, Object value, long minId, int limit) {
+        return new Scanner(key, value, minId, limit);
     }
 
     /**
@@ -442,6 +743,21 @@ public class DatabaseManager implements Closeable {
      * @throws RuntimeException If an error occurs.
      */
     Cursor getCursor(String key, Object value) throws RuntimeException {
+        return getCursor(key, value, -1, 0);
+    }
+
+    /**
+     * Gets a cursor for rows in the table, rows where key matches value if specified,
+     * with an identifier greater than {@code minId}, ordered by identifier.
+     *
+     * @param key   The optional key for query.
+     * @param value The optional value for query.
+     * @param minId The identifier to start after, {@code -1} to start from the first entry.
+     * @param limit The maximum number of rows, {@code 0} for no limit.
+     * @return A cursor for the rows that match the given criteria.
+     * @throws RuntimeException If an error occurs.
+     */
+    Cursor getCursor(String key, Object value, long minId, int limit) throws RuntimeException {
 
         /* Build a query to get values. */
         SQLiteQueryBuilder builder = SQLiteUtils.newSQLiteQueryBuilder();
@@ -457,7 +773,16 @@ public class DatabaseManager implements Closeable {
             selectionArgs = new String[]{String.valueOf(value.toString())};
         }
 
+        /* Start after the given identifier. */
+        if (minId >= 0) {
+            if (key != null)
+                builder.appendWhere(" AND ");
+            builder.appendWhere(PRIMARY_KEY + " > " + minId);
+        }
+
         /* Query database. */
+        if (limit > 0)
+            return builder.query(getDatabase(), null, null, selectionArgs, null, null, PRIMARY_KEY, String.valueOf(limit));
         return builder.query(getDatabase(), null, null, selectionArgs, null, null, PRIMARY_KEY);
     }
 
@@ -537,17 +862,29 @@ public class DatabaseManager implements Closeable {
          */
         private final Object value;
 
+        /**
+         * Identifier to start after, -1 to start from the first entry.
+         */
+        private final long minId;
+
+        /**
+         * Maximum number of values, 0 for no limit.
+         */
+        private final int limit;
+
         /**
          * SQLite cursor.
          */
         private Cursor cursor;
 
         /**
-         * Initializes a cursor with optional filter.
+         * Initializes a cursor with optional filter and pagination.
          */
-        private Scanner(String key, Object value) {
+        private Scanner(String key, Object value, long minId, int limit) {
             this.key = key;
             this.value = value;
+            this.minId = minId;
+            this.limit = limit;
         }
 
         @Override
@@ -570,7 +907,7 @@ public class DatabaseManager implements Closeable {
                 try {
                     /* Close cursor first if it was being used. */
                     close();
-                    cursor = getCursor(key, value);
+                    cursor = getCursor(key, value, minId, limit);
 
                     /* Wrap cursor as iterator. */
                     return new Iterator<ContentValues>() {
@@ -637,15 +974,19 @@ public class DatabaseManager implements Closeable {
                 /** Next value. */
                 ContentValues next;
 
+                /** Number of values returned so far. */
+                int count;
+
                 @Override
                 public boolean hasNext() {
                     /* Iterator needs to be moved to the next. */
                     if (!advanced) {
                         next = null;
-                        while (iterator.hasNext()) {
+                        while (iterator.hasNext() && (limit <= 0 || count < limit)) {
                             ContentValues nextCandidate = iterator.next();
                             Object candidateValue = nextCandidate.get(key);
-                            if (key == null || (value != null && value.equals(candidateValue)) || (value == null && candidateValue == null)) {
+                            if ((key == null || (value != null && value.equals(candidateValue)) || (value == null && candidateValue == null))
+                                    && (minId < 0 || nextCandidate.getAsLong(PRIMARY_KEY) > minId)) {
                                 next = nextCandidate;
                                 break;
                             }
@@ -660,6 +1001,7 @@ public class DatabaseManager implements Closeable {
                     if (!hasNext())
                         throw new NoSuchElementException();
                     advanced = false;
+                    count++;
                     return next;
                 }
 
@@ -674,7 +1016,7 @@ public class DatabaseManager implements Closeable {
             if (mIMDB == null) {
                 try {
                     if (cursor == null)
-                        cursor = getCursor(key, value);
+                        cursor = getCursor(key, value, minId, limit);
                     return cursor.getCount();
                 } catch (RuntimeException e) {
                     switchToInMemory("scan.count", e);
@@ -28,6 +28,7 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -567,7 +568,30 @@ public class StorageHelper {
                                                          @NonNull ContentValues schema,
                                                          @IntRange(from = 0) int maxRecords,
                                                          final DatabaseErrorListener listener) {
-            return new DatabaseStorage(new DatabaseManager(sContext, database, table, version, schema, maxRecords, new DatabaseManager.ErrorListener() {
+            return getDatabaseStorage(database, table, version, schema, maxRecords, null, listener);
+        }
+
+        /**
+         * Get a new instance of {@code DatabaseManager}.
+         *
+         * @param database       The database name.
+         * @param table          The table name.
+         * @param version        The version.
+         * @param schema         The schema of the database. If the database has more than one table,
+         *                       it should contain schemas for all tables.
+         * @param maxRecords     The maximum number of records allowed in the table.
+         * @param indexedColumns The optional columns to index, e.g. the ones used by {@link #getScanner(String, Object)}.
+         * @param listener       The error listener.
+         * @return database storage.
+         */
+        public static DatabaseStorage getDatabaseStorage(@NonNull String database,
+                                                         @NonNull String table,
+                                                         @IntRange(from = 1) int version,
+                                                         @NonNull ContentValues schema,
+                                                         @IntRange(from = 0) int maxRecords,
+                                                         @Nullable String[] indexedColumns,
+                                                         final DatabaseErrorListener listener) {
+            return new DatabaseStorage(new DatabaseManager(sContext, database, table, version, schema, maxRecords, indexedColumns, new DatabaseManager.ErrorListener() {
                 @Override
                 public void onError(String operation, RuntimeException e) {
                     listener.onError(operation, e);
@@ -585,6 +609,38 @@ public class StorageHelper {
             return mDatabaseManager.put(values);
         }
 
+        /**
+         * Store an entry in a table, reporting the entry purged if the table is full.
+         *
+         * @param values          The entry to be stored.
+         * @param purgedKey       The column by which purged entries are counted.
+         * @param outPurgedCounts A map to receive the number of purged entries by value of {@code purgedKey}.
+         * @return The identifier of the created database entry.
+         */
+        public long put(@NonNull ContentValues values, @NonNull String purgedKey, @NonNull Map<String, Integer> outPurgedCounts) {
+            return mDatabaseManager.put(values, purgedKey, outPurgedCounts);
+        }
+
+        /**
+         * Store entries in a table in a single transaction.
+         *
+         * @param valuesList The entries to be stored.
+         */
+        public void put(@NonNull List<ContentValues> valuesList) {
+            mDatabaseManager.put(valuesList);
+        }
+
+        /**
+         * Store entries in a table in a single transaction, reporting the entries purged if the table is full.
+         *
+         * @param valuesList      The entries to be stored.
+         * @param purgedKey       The column by which purged entries are counted.
+         * @param outPurgedCounts A map to receive the number of purged entries by value of {@code purgedKey}.
+         */
+        public void put(@NonNull List<ContentValues> valuesList, @NonNull String purgedKey, @NonNull Map<String, Integer> outPurgedCounts) {
+            mDatabaseManager.put(valuesList, purgedKey, outPurgedCounts);
+        }
+
         /**
          * Update an entry in a table.
          *
@@ -600,18 +656,20 @@ public class StorageHelper {
          * Delete an entry in a table.
          *
          * @param id The identifier for the entry to be deleted.
+         * @return The number of deleted entries.
          */
-        public void delete(@IntRange(from = 0) long id) {
-            mDatabaseManager.delete(id);
+        public int delete(@IntRange(from = 0) long id) {
+            return mDatabaseManager.delete(id);
         }
 
         /**
          * Deletes the entries by the identifier from the database.
          *
          * @param idList The list of database identifiers.
+         * @return The number of deleted entries.
          */
-        public void delete(@NonNull List<Long> idList) {
-            mDatabaseManager.delete(idList);
+        public int delete(@NonNull List<Long> idList) {
+            return mDatabaseManager.delete(idList);
         }
 
         /**
@@ -619,9 +677,10 @@ public class StorageHelper {
          *
          * @param key   The optional key for query.
          * @param value The optional value for query.
+         * @return The number of deleted entries.
          */
-        public void delete(@Nullable String key, @Nullable Object value) {
-            mDatabaseManager.delete(key, value);
+        public int delete(@Nullable String key, @Nullable Object value) {
+            return mDatabaseManager.delete(key, value);
         }
 
         /**
@@ -645,6 +704,28 @@ public class StorageHelper {
             return mDatabaseManager.get(key, value);
         }
 
+        /**
+         * Gets the number of entries that match key == value.
+         *
+         * @param key   The key for query.
+         * @param value The value for query.
+         * @return The number of matching entries.
+         */
+        public long count(@NonNull String key, @NonNull Object value) {
+            return mDatabaseManager.count(key, value);
+        }
+
+        /**
+         * Gets the distinct non null values of a column.
+         *
+         * @param key The column.
+         * @return The distinct values.
+         */
+        @NonNull
+        public Set<String> getDistinctValues(@NonNull String key) {
+            return mDatabaseManager.getDistinctValues(key);
+        }
+
         /**
          * Gets a scanner to iterate all values.
          *
@@ -666,6 +747,20 @@ public class StorageHelper {
             return new DatabaseScanner(mDatabaseManager.getScanner(key, value));
         }
 
+        /**
+         * Gets a scanner to iterate values those match key == value and have an identifier greater than {@code minId},
+         * ordered by identifier.
+         *
+         * @param key   The optional key for query.
+         * @param value The optional value for query.
+         * @param minId The identifier to start after, {@code -1} to start from the first entry.
+         * @param limit The maximum number of values to iterate, {@code 0} for no limit.
+         * @return A scanner to iterate values.
+         */
+        public DatabaseScanner getScanner(@Nullable String key, @Nullable Object value, long minId, @IntRange(from = 0) int limit) {
+            return new DatabaseScanner(mDatabaseManager.getScanner(key, value, minId, limit));
+        }
+
         /**
          * Clears the table in the database.
          */
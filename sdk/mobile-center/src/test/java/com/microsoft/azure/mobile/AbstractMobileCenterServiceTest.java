@@ -2,13 +2,16 @@ package com.microsoft.azure.mobile;
 
 import android.content.Context;
 
+import com.microsoft.azure.mobile.channel.BatchPolicy;
 import com.microsoft.azure.mobile.channel.Channel;
+import com.microsoft.azure.mobile.channel.FixedBatchPolicy;
 import com.microsoft.azure.mobile.utils.storage.StorageHelper;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
@@ -19,6 +22,7 @@ import static com.microsoft.azure.mobile.utils.PrefStorageConstants.KEY_ENABLED;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -35,6 +39,21 @@ public class AbstractMobileCenterServiceTest {
 
     private AbstractMobileCenterService service;
 
+    private ArgumentMatcher<BatchPolicy> fixedBatchPolicy() {
+        return new ArgumentMatcher<BatchPolicy>() {
+
+            @Override
+            public boolean matches(Object item) {
+                BatchPolicy batchPolicy = (BatchPolicy) item;
+                return batchPolicy instanceof FixedBatchPolicy
+                        && batchPolicy.getMaxLogsPerBatch() == service.getTriggerCount()
+                        && batchPolicy.getMaxBytesPerBatch() == service.getTriggerMaxBytes()
+                        && batchPolicy.getBatchTimeInterval() == service.getTriggerInterval()
+                        && batchPolicy.getMaxParallelBatches() == service.getTriggerMaxParallelRequests();
+            }
+        };
+    }
+
     @Before
     public void setUp() {
         service = new AbstractMobileCenterService() {
@@ -137,7 +156,7 @@ public class AbstractMobileCenterServiceTest {
         Channel channel = mock(Channel.class);
         service.onChannelReady(mock(Context.class), channel);
         verify(channel).removeGroup(service.getGroupName());
-        verify(channel).addGroup(service.getGroupName(), service.getTriggerCount(), service.getTriggerInterval(), service.getTriggerMaxParallelRequests(), service.getChannelListener());
+        verify(channel).addGroup(eq(service.getGroupName()), argThat(fixedBatchPolicy()), eq(Channel.PRIORITY_DEFAULT), eq(service.getChannelListener()));
         verifyNoMoreInteractions(channel);
         Assert.assertSame(channel, service.mChannel);
 
@@ -158,7 +177,44 @@ public class AbstractMobileCenterServiceTest {
         Assert.assertSame(channel, service.mChannel);
 
         service.setInstanceEnabled(true);
-        verify(channel).addGroup(service.getGroupName(), service.getTriggerCount(), service.getTriggerInterval(), service.getTriggerMaxParallelRequests(), service.getChannelListener());
+        verify(channel).addGroup(eq(service.getGroupName()), argThat(fixedBatchPolicy()), eq(Channel.PRIORITY_DEFAULT), eq(service.getChannelListener()));
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void onChannelReadyWithBatchPolicyAndPriority() {
+        final BatchPolicy batchPolicy = mock(BatchPolicy.class);
+        AbstractMobileCenterService service = new AbstractMobileCenterService() {
+
+            @Override
+            protected String getGroupName() {
+                return "group_test";
+            }
+
+            @Override
+            protected String getServiceName() {
+                return "Test";
+            }
+
+            @Override
+            protected String getLoggerTag() {
+                return "TestLog";
+            }
+
+            @Override
+            protected BatchPolicy getBatchPolicy() {
+                return batchPolicy;
+            }
+
+            @Override
+            protected int getGroupPriority() {
+                return Channel.PRIORITY_HIGH;
+            }
+        };
+        Channel channel = mock(Channel.class);
+        service.onChannelReady(mock(Context.class), channel);
+        verify(channel).removeGroup(service.getGroupName());
+        verify(channel).addGroup(service.getGroupName(), batchPolicy, Channel.PRIORITY_HIGH, service.getChannelListener());
         verifyNoMoreInteractions(channel);
     }
 
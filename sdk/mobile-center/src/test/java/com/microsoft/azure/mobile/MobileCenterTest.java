@@ -11,6 +11,7 @@ import com.microsoft.azure.mobile.channel.Channel;
 import com.microsoft.azure.mobile.channel.DefaultChannel;
 import com.microsoft.azure.mobile.ingestion.models.WrapperSdk;
 import com.microsoft.azure.mobile.ingestion.models.json.LogFactory;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
 import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
 import com.microsoft.azure.mobile.utils.IdHelper;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
@@ -43,6 +44,7 @@ import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -54,6 +56,7 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyNew;
 import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
@@ -107,9 +110,10 @@ public class MobileCenterTest {
 
         /* Mock empty database. */
         StorageHelper.DatabaseStorage databaseStorage = mock(StorageHelper.DatabaseStorage.class);
-        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class), anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(databaseStorage);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class), anyInt(), any(String[].class), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(databaseStorage);
         StorageHelper.DatabaseStorage.DatabaseScanner databaseScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
         when(databaseStorage.getScanner(anyString(), anyObject())).thenReturn(databaseScanner);
+        when(databaseStorage.getScanner(anyString(), anyObject(), anyLong(), anyInt())).thenReturn(databaseScanner);
         when(databaseScanner.iterator()).thenReturn(mDataBaseScannerIterator);
     }
 
@@ -634,6 +638,64 @@ public class MobileCenterTest {
         verify(channel).setServerUrl(serverUrl);
     }
 
+    @Test
+    public void setRequestCompressionThreshold() throws Exception {
+
+        /* Change threshold before start. */
+        DefaultChannel channel = mock(DefaultChannel.class);
+        whenNew(DefaultChannel.class).withAnyArguments().thenReturn(channel);
+        MobileCenter.setRequestCompressionThreshold(1024);
+
+        /* No effect for now. */
+        verify(channel, never()).setCompressionThreshold(anyInt());
+
+        /* Start should propagate the threshold. */
+        MobileCenter.start(application, DUMMY_APP_SECRET, DummyService.class);
+        verify(channel).setCompressionThreshold(1024);
+
+        /* Change it after, should work immediately. */
+        MobileCenter.setRequestCompressionThreshold(2048);
+        verify(channel).setCompressionThreshold(2048);
+    }
+
+    @Test
+    public void setRequestCoalescingEnabled() throws Exception {
+
+        /* Enable before start. */
+        DefaultChannel channel = mock(DefaultChannel.class);
+        whenNew(DefaultChannel.class).withAnyArguments().thenReturn(channel);
+        MobileCenter.setRequestCoalescingEnabled(true);
+
+        /* No effect for now. */
+        verify(channel, never()).setCoalescingEnabled(anyBoolean());
+
+        /* Start should propagate the flag. */
+        MobileCenter.start(application, DUMMY_APP_SECRET, DummyService.class);
+        verify(channel).setCoalescingEnabled(true);
+
+        /* Change it after, should work immediately. */
+        MobileCenter.setRequestCoalescingEnabled(false);
+        verify(channel).setCoalescingEnabled(false);
+    }
+
+    @Test
+    public void setChannelThreadEnabled() throws Exception {
+
+        /* Enable before start. */
+        DefaultChannel channel = mock(DefaultChannel.class);
+        whenNew(DefaultChannel.class).withAnyArguments().thenReturn(channel);
+        MobileCenter.setChannelThreadEnabled(true);
+
+        /* Start should create the channel with its own thread. */
+        MobileCenter.start(application, DUMMY_APP_SECRET, DummyService.class);
+        verifyNew(DefaultChannel.class).withArguments(eq(application), eq(DUMMY_APP_SECRET), any(LogSerializer.class), eq(true));
+
+        /* Too late to change it. */
+        MobileCenter.setChannelThreadEnabled(false);
+        verifyStatic();
+        MobileCenterLog.warn(eq(MobileCenter.LOG_TAG), anyString());
+    }
+
     private static class DummyService extends AbstractMobileCenterService {
 
         private static DummyService sharedInstance;
@@ -59,8 +59,8 @@ public class AbstractDefaultChannelTest {
             @SuppressWarnings("unchecked")
             public String answer(InvocationOnMock invocation) throws Throwable {
                 Object[] args = invocation.getArguments();
-                if (args[2] instanceof ArrayList) {
-                    ArrayList logs = (ArrayList) args[2];
+                if (args[args.length - 1] instanceof ArrayList) {
+                    ArrayList logs = (ArrayList) args[args.length - 1];
                     int length = size >= 0 ? size : (int) args[1];
                     for (int i = 0; i < length; i++) {
                         logs.add(mock(Log.class));
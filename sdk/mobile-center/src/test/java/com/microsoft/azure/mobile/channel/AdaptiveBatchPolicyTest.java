@@ -0,0 +1,107 @@
+package com.microsoft.azure.mobile.channel;
+
+import org.junit.Test;
+
+import static com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy.FAST_ROUND_TRIP_TIME;
+import static com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy.MAX_BATCH_TIME_INTERVAL_FACTOR;
+import static com.microsoft.azure.mobile.channel.AdaptiveBatchPolicy.SLOW_ROUND_TRIP_TIME;
+import static org.junit.Assert.assertEquals;
+
+@SuppressWarnings("unused")
+public class AdaptiveBatchPolicyTest {
+
+    private static void checkValues(BatchPolicy batchPolicy, int maxLogsPerBatch, long batchTimeInterval, int maxParallelBatches) {
+        assertEquals(maxLogsPerBatch, batchPolicy.getMaxLogsPerBatch());
+        assertEquals(batchTimeInterval, batchPolicy.getBatchTimeInterval());
+        assertEquals(maxParallelBatches, batchPolicy.getMaxParallelBatches());
+    }
+
+    @Test
+    public void fixed() {
+        BatchPolicy batchPolicy = new FixedBatchPolicy(50, 3000, 3);
+        checkValues(batchPolicy, 50, 3000, 3);
+        batchPolicy.onBatchSucceeded(50, 10000, 0);
+        checkValues(batchPolicy, 50, 3000, 3);
+        batchPolicy.onBatchFailed(50, SLOW_ROUND_TRIP_TIME);
+        checkValues(batchPolicy, 50, 3000, 3);
+        assertEquals(0, batchPolicy.getMaxBytesPerBatch());
+        assertEquals(1024, new FixedBatchPolicy(50, 1024, 3000, 3).getMaxBytesPerBatch());
+    }
+
+    @Test
+    public void growWhileBacklogAndFast() {
+        BatchPolicy batchPolicy = new AdaptiveBatchPolicy(50, 300, 3000, 1, 3);
+        checkValues(batchPolicy, 50, 3000, 1);
+        batchPolicy.onBatchSucceeded(50, 10000, FAST_ROUND_TRIP_TIME);
+        checkValues(batchPolicy, 100, 3000, 2);
+        batchPolicy.onBatchSucceeded(100, 10000, 10);
+        checkValues(batchPolicy, 200, 3000, 3);
+
+        /* Bounded by maximum values. */
+        batchPolicy.onBatchSucceeded(200, 10000, 10);
+        checkValues(batchPolicy, 300, 3000, 3);
+        batchPolicy.onBatchSucceeded(300, 10000, 10);
+        checkValues(batchPolicy, 300, 3000, 3);
+
+        /* Neither fast nor slow: keep values. */
+        batchPolicy.onBatchSucceeded(300, 10000, FAST_ROUND_TRIP_TIME + 1);
+        checkValues(batchPolicy, 300, 3000, 3);
+
+        /* Backlog drained: back to initial values. */
+        batchPolicy.onBatchSucceeded(300, 299, 10);
+        checkValues(batchPolicy, 50, 3000, 1);
+        assertEquals(0, batchPolicy.getMaxBytesPerBatch());
+    }
+
+    @Test
+    public void maxBytes() {
+        BatchPolicy batchPolicy = new AdaptiveBatchPolicy(50, 300, 1024, 3000, 1, 3);
+        batchPolicy.onBatchSucceeded(50, 10000, 0);
+        checkValues(batchPolicy, 100, 3000, 2);
+        assertEquals(1024, batchPolicy.getMaxBytesPerBatch());
+    }
+
+    @Test
+    public void shrinkWhenSlow() {
+        BatchPolicy batchPolicy = new AdaptiveBatchPolicy(50, 400, 3000, 1, 3);
+        batchPolicy.onBatchSucceeded(50, 10000, 0);
+        batchPolicy.onBatchSucceeded(100, 10000, 0);
+        batchPolicy.onBatchSucceeded(200, 10000, 0);
+        checkValues(batchPolicy, 400, 3000, 3);
+        batchPolicy.onBatchSucceeded(400, 10000, SLOW_ROUND_TRIP_TIME);
+        checkValues(batchPolicy, 200, 6000, 2);
+        batchPolicy.onBatchSucceeded(200, 10000, SLOW_ROUND_TRIP_TIME);
+        checkValues(batchPolicy, 100, 12000, 1);
+        batchPolicy.onBatchSucceeded(100, 10000, SLOW_ROUND_TRIP_TIME);
+        batchPolicy.onBatchSucceeded(50, 10000, SLOW_ROUND_TRIP_TIME);
+        batchPolicy.onBatchSucceeded(50, 10000, SLOW_ROUND_TRIP_TIME);
+        checkValues(batchPolicy, 50, 3000 * MAX_BATCH_TIME_INTERVAL_FACTOR, 1);
+
+        /* Fast again with a backlog: time interval goes back to initial value. */
+        batchPolicy.onBatchSucceeded(50, 10000, 0);
+        checkValues(batchPolicy, 100, 3000, 2);
+    }
+
+    @Test
+    public void resetOnFailure() {
+        BatchPolicy batchPolicy = new AdaptiveBatchPolicy(50, 400, 3000, 2, 4);
+        batchPolicy.onBatchSucceeded(50, 10000, 0);
+        checkValues(batchPolicy, 100, 3000, 3);
+        batchPolicy.onBatchFailed(100, 0);
+        checkValues(batchPolicy, 50, 6000, 2);
+        batchPolicy.onBatchFailed(50, 0);
+        checkValues(batchPolicy, 50, 12000, 2);
+
+        /* Recovery with no backlog. */
+        batchPolicy.onBatchSucceeded(1, 0, 0);
+        checkValues(batchPolicy, 50, 3000, 2);
+    }
+
+    @Test
+    public void invalidBounds() {
+        BatchPolicy batchPolicy = new AdaptiveBatchPolicy(50, 10, 3000, 3, 1);
+        checkValues(batchPolicy, 50, 3000, 3);
+        batchPolicy.onBatchSucceeded(50, 10000, 0);
+        checkValues(batchPolicy, 50, 3000, 3);
+    }
+}
@@ -2,6 +2,8 @@ package com.microsoft.azure.mobile.channel;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 
 import com.microsoft.azure.mobile.CancellationException;
@@ -9,17 +11,21 @@ import com.microsoft.azure.mobile.MobileCenter;
 import com.microsoft.azure.mobile.ingestion.Ingestion;
 import com.microsoft.azure.mobile.ingestion.ServiceCallback;
 import com.microsoft.azure.mobile.ingestion.http.HttpException;
+import com.microsoft.azure.mobile.ingestion.http.IngestionCircuitBreaker;
 import com.microsoft.azure.mobile.ingestion.http.IngestionHttp;
 import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.LogContainer;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
 import com.microsoft.azure.mobile.persistence.DatabasePersistenceAsync;
 import com.microsoft.azure.mobile.persistence.Persistence;
 import com.microsoft.azure.mobile.utils.DeviceInfoHelper;
 import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
 
+import org.json.JSONException;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.mockito.invocation.InvocationOnMock;
@@ -28,13 +34,20 @@ import org.mockito.stubbing.Answer;
 import java.io.IOException;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyList;
@@ -44,11 +57,13 @@ import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -708,6 +723,672 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
         verify(ingestion).setServerUrl(serverUrl);
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void channelThread() throws Exception {
+
+        /* Queue what is posted to the channel thread. */
+        Handler channelHandler = mock(Handler.class);
+        when(channelHandler.getLooper()).thenReturn(mock(Looper.class));
+        final List<Runnable> channelTasks = new ArrayList<>();
+        when(channelHandler.post(any(Runnable.class))).then(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                channelTasks.add((Runnable) invocation.getArguments()[0]);
+                return true;
+            }
+        });
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(any(String.class), anyInt(), any(ArrayList.class))).then(getGetLogsAnswer(1));
+        Ingestion ingestion = mock(Ingestion.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion, channelHandler);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        runTasks(channelTasks);
+
+        /* Enqueue only posts the log to the channel thread. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(persistence, never()).putLog(anyString(), any(Log.class));
+        verify(ingestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* Channel thread persists the log and sends it. */
+        runTasks(channelTasks);
+        verify(persistence).putLog(eq(TEST_GROUP), any(Log.class));
+        ArgumentCaptor<ServiceCallback> callback = ArgumentCaptor.forClass(ServiceCallback.class);
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), callback.capture());
+
+        /* Ingestion callback is handled on channel thread as well. */
+        callback.getValue().onCallSucceeded();
+        verify(persistence, never()).deleteLogs(anyString(), anyString());
+        runTasks(channelTasks);
+        verify(persistence).deleteLogs(eq(TEST_GROUP), anyString());
+
+        /* Logs enqueued before disabling are discarded on the channel thread. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        channel.setEnabled(false);
+        runTasks(channelTasks);
+        verify(persistence).putLog(eq(TEST_GROUP), any(Log.class));
+    }
+
+    @Test
+    public void multiProducerEnqueue() throws Exception {
+
+        /* Simulate channel thread with a real thread. */
+        final ExecutorService channelThread = Executors.newSingleThreadExecutor();
+        Handler channelHandler = mock(Handler.class);
+        when(channelHandler.getLooper()).thenReturn(mock(Looper.class));
+        when(channelHandler.post(any(Runnable.class))).then(new Answer<Boolean>() {
+
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                channelThread.execute((Runnable) invocation.getArguments()[0]);
+                return true;
+            }
+        });
+        Persistence persistence = mock(Persistence.class);
+        final DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, mock(Ingestion.class), channelHandler);
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+
+        /* Enqueue from several threads at once. */
+        final int producerCount = 8;
+        final int logsPerProducer = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Log log = mock(Log.class);
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < producerCount; i++) {
+            Thread producer = new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    for (int j = 0; j < logsPerProducer; j++)
+                        channel.enqueue(log, TEST_GROUP);
+                }
+            };
+            producers.add(producer);
+            producer.start();
+        }
+        start.countDown();
+        for (Thread producer : producers)
+            producer.join();
+
+        /* Every log must be persisted exactly once. */
+        verify(persistence, timeout(10000).times(producerCount * logsPerProducer)).putLog(eq(TEST_GROUP), any(Log.class));
+
+        /* Enqueue does not wait for the channel lock. */
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                channel.enqueue(mock(Log.class), TEST_GROUP);
+            }
+        };
+        synchronized (channel) {
+            producer.start();
+            producer.join(5000);
+            assertFalse(producer.isAlive());
+        }
+        verify(persistence, timeout(10000).times(producerCount * logsPerProducer + 1)).putLog(eq(TEST_GROUP), any(Log.class));
+        channelThread.shutdown();
+    }
+
+    @Test
+    public void enqueueWithoutChannelThreadDoesNotWaitForDrain() throws Exception {
+
+        /* Block the first drain while it holds the channel lock. */
+        final CountDownLatch drainStarted = new CountDownLatch(1);
+        final CountDownLatch resumeDrain = new CountDownLatch(1);
+        when(DeviceInfoHelper.getDeviceInfo(any(Context.class))).then(new Answer<Device>() {
+
+            @Override
+            public Device answer(InvocationOnMock invocation) throws Throwable {
+                drainStarted.countDown();
+                resumeDrain.await();
+                return mock(Device.class);
+            }
+        });
+        Persistence persistence = mock(Persistence.class);
+        final DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, mock(Ingestion.class));
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        final Log firstLog = mock(Log.class);
+        Thread producer = new Thread() {
+
+            @Override
+            public void run() {
+                channel.enqueue(firstLog, TEST_GROUP);
+            }
+        };
+        producer.start();
+        drainStarted.await();
+
+        /* Another thread only queues its log. */
+        Log secondLog = mock(Log.class);
+        channel.enqueue(secondLog, TEST_GROUP);
+        verify(persistence, never()).putLog(anyString(), any(Log.class));
+
+        /* The draining thread persists both logs. */
+        resumeDrain.countDown();
+        producer.join();
+        verify(persistence).putLog(TEST_GROUP, firstLog);
+        verify(persistence).putLog(TEST_GROUP, secondLog);
+    }
+
+    @Test
+    public void groupListenerCallbacksHoldChannelLock() throws Exception {
+        Persistence persistence = mock(Persistence.class);
+        final DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, mock(Ingestion.class));
+        final AtomicInteger callbacksWithoutLock = new AtomicInteger();
+        Answer<Void> checkLock = new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                if (!Thread.holdsLock(channel))
+                    callbacksWithoutLock.incrementAndGet();
+                return null;
+            }
+        };
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        doAnswer(checkLock).when(listener).onBeforeSending(any(Log.class));
+        doAnswer(checkLock).when(listener).onFailure(any(Log.class), any(Exception.class));
+        channel.addGroup(TEST_GROUP, 50, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+
+        /* Logs discarded while enqueued from several threads. */
+        channel.setEnabled(false);
+        final int producerCount = 4;
+        final int logsPerProducer = 100;
+        List<Thread> producers = new ArrayList<>();
+        for (int i = 0; i < producerCount; i++) {
+            Thread producer = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < logsPerProducer; j++)
+                        channel.enqueue(mock(Log.class), TEST_GROUP);
+                }
+            };
+            producers.add(producer);
+            producer.start();
+        }
+        for (Thread producer : producers)
+            producer.join();
+
+        /* Group listener is only called under the channel lock, never concurrently. */
+        verify(listener, times(producerCount * logsPerProducer)).onFailure(any(Log.class), any(Exception.class));
+        assertEquals(0, callbacksWithoutLock.get());
+        verify(persistence, never()).putLog(anyString(), any(Log.class));
+    }
+
+    private static void runTasks(List<Runnable> tasks) {
+        while (!tasks.isEmpty()) {
+            List<Runnable> current = new ArrayList<>(tasks);
+            tasks.clear();
+            for (Runnable task : current)
+                task.run();
+        }
+    }
+
+    @Test
+    public void maxConcurrentCallsFollowGroups() {
+        Ingestion ingestion = mock(Ingestion.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mock(Persistence.class), ingestion);
+        channel.addGroup("group1", 50, BATCH_TIME_INTERVAL, 3, null);
+        verify(ingestion).setMaxConcurrentCalls(3);
+        channel.addGroup("group2", 50, BATCH_TIME_INTERVAL, 1, null);
+        verify(ingestion).setMaxConcurrentCalls(4);
+        channel.removeGroup("group1");
+        verify(ingestion).setMaxConcurrentCalls(1);
+        channel.removeGroup("group1");
+        verify(ingestion).setMaxConcurrentCalls(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void adaptiveBatchPolicyDrainsBacklog() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.countLogs(TEST_GROUP)).thenReturn(10);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer());
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup(TEST_GROUP, new AdaptiveBatchPolicy(2, 8, BATCH_TIME_INTERVAL, 1, 3), null);
+
+        /* Batches grow while the backlog remains and round trips are fast. */
+        verify(persistence).getLogs(eq(TEST_GROUP), eq(2), anyList());
+        verify(persistence).getLogs(eq(TEST_GROUP), eq(4), anyList());
+        verify(ingestion).setMaxConcurrentCalls(1);
+        verify(ingestion).setMaxConcurrentCalls(2);
+        verify(ingestion).setMaxConcurrentCalls(3);
+        verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* The remaining logs are less than a batch: wait for the timer. */
+        assertEquals(4, channel.getCounter(TEST_GROUP));
+        verify(mHandler).postDelayed(any(Runnable.class), eq(BATCH_TIME_INTERVAL));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void batchPolicyNotifiedOfFailure() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer());
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new SocketException()));
+        BatchPolicy batchPolicy = mock(BatchPolicy.class);
+        when(batchPolicy.getMaxLogsPerBatch()).thenReturn(1);
+        when(batchPolicy.getBatchTimeInterval()).thenReturn(BATCH_TIME_INTERVAL);
+        when(batchPolicy.getMaxParallelBatches()).thenReturn(1);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup(TEST_GROUP, batchPolicy, null);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(persistence).getLogs(eq(TEST_GROUP), eq(1), anyList());
+        verify(batchPolicy).onBatchFailed(eq(1), anyLong());
+        verify(batchPolicy, never()).onBatchSucceeded(anyInt(), anyInt(), anyLong());
+        assertFalse(channel.isEnabled());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void lowerPriorityGroupSendsOneBatchAtATime() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer());
+        Ingestion ingestion = mock(Ingestion.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup("crash", new FixedBatchPolicy(1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES), Channel.PRIORITY_HIGH, null);
+        channel.addGroup(TEST_GROUP, new FixedBatchPolicy(1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES), null);
+
+        /* While the crash batch is being sent, the other group sends only one batch. */
+        channel.enqueue(mock(Log.class), "crash");
+        for (int i = 0; i < 3; i++)
+            channel.enqueue(mock(Log.class), TEST_GROUP);
+        ArgumentCaptor<ServiceCallback> callback = ArgumentCaptor.forClass(ServiceCallback.class);
+        verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), callback.capture());
+        assertEquals(2, channel.getCounter(TEST_GROUP));
+
+        /* Crash batch done: the other group is no longer limited once its batch is done. */
+        callback.getAllValues().get(0).onCallSucceeded();
+        verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        callback.getAllValues().get(1).onCallSucceeded();
+        verify(ingestion, times(4)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void maxBytesPerBatch() {
+        Persistence persistence = mock(Persistence.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, mock(Ingestion.class));
+        channel.addGroup(TEST_GROUP, new FixedBatchPolicy(2, 1000, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES), null);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        verify(persistence).getLogs(eq(TEST_GROUP), eq(2), eq(1000), anyList());
+        verify(persistence, never()).getLogs(anyString(), anyInt(), anyList());
+    }
+
+    /**
+     * Get an answer that stores the given logs as a batch.
+     */
+    private static Answer<String> getGetLogsAnswer(final List<Log> batch) {
+        return new Answer<String>() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                ((List<Log>) invocation.getArguments()[2]).addAll(batch);
+                return "batch";
+            }
+        };
+    }
+
+    /**
+     * Get an answer that rejects containers including any of the given logs and accepts other ones.
+     */
+    private static Answer<Object> getRejectLogAnswer(final Log... rejectedLogs) {
+        return new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                LogContainer container = (LogContainer) invocation.getArguments()[2];
+                ServiceCallback callback = (ServiceCallback) invocation.getArguments()[3];
+                if (!Collections.disjoint(container.getLogs(), Arrays.asList(rejectedLogs)))
+                    callback.onCallFailed(new HttpException(400));
+                else
+                    callback.onCallSucceeded();
+                return null;
+            }
+        };
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rejectedBatchIsolatesLog() throws Persistence.PersistenceException {
+        List<Log> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            batch.add(mock(Log.class));
+        Log rejectedLog = batch.get(2);
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(batch));
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getRejectLogAnswer(rejectedLog));
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup(TEST_GROUP, 4, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        for (Log log : batch)
+            channel.enqueue(log, TEST_GROUP);
+
+        /* Batch of 4 rejected, then [0, 1] accepted, [2, 3] rejected, [2] rejected and [3] accepted. */
+        verify(ingestion, times(5)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(listener).onFailure(eq(rejectedLog), any(HttpException.class));
+        verify(listener, never()).onSuccess(rejectedLog);
+        for (Log log : batch)
+            if (log != rejectedLog) {
+                verify(listener).onSuccess(log);
+                verify(listener, never()).onFailure(eq(log), any(Exception.class));
+            }
+        assertEquals(1, channel.getIsolatedLogCount());
+        assertEquals(2, channel.getBisectedBatchCount());
+
+        /* The batch is deleted once, the channel keeps working. */
+        verify(persistence).deleteLogs(TEST_GROUP, "batch");
+        verify(persistence, never()).deleteLogs(TEST_GROUP);
+        assertTrue(channel.isEnabled());
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rejectedBatchEverythingRejected() throws Persistence.PersistenceException {
+        List<Log> batch = new ArrayList<>();
+        for (int i = 0; i < 64; i++)
+            batch.add(mock(Log.class));
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(batch));
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new HttpException(400)));
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup(TEST_GROUP, 64, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        for (Log log : batch)
+            channel.enqueue(log, TEST_GROUP);
+
+        /* Whole batch, then sub-batches until no request is left without any of them accepted. */
+        verify(ingestion, times(31)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        for (Log log : batch)
+            verify(listener).onFailure(eq(log), any(HttpException.class));
+        verify(listener, never()).onSuccess(any(Log.class));
+
+        /* Channel suspended like when a rejected batch is not bisected. */
+        assertFalse(channel.isEnabled());
+        verify(persistence).deleteLogs(TEST_GROUP);
+        assertEquals(14, channel.getIsolatedLogCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rejectedBatchIsolatesLogInEachHalf() throws Persistence.PersistenceException {
+        List<Log> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            batch.add(mock(Log.class));
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(batch));
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getRejectLogAnswer(batch.get(0), batch.get(3)));
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup(TEST_GROUP, 4, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        for (Log log : batch)
+            channel.enqueue(log, TEST_GROUP);
+
+        /* Batch of 4 rejected, both halves rejected then each split again: [0] and [3] rejected, [1] and [2] accepted. */
+        verify(ingestion, times(7)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(listener).onFailure(eq(batch.get(0)), any(HttpException.class));
+        verify(listener).onFailure(eq(batch.get(3)), any(HttpException.class));
+        verify(listener).onSuccess(batch.get(1));
+        verify(listener).onSuccess(batch.get(2));
+        verify(listener, never()).onFailure(eq(batch.get(1)), any(Exception.class));
+        verify(listener, never()).onFailure(eq(batch.get(2)), any(Exception.class));
+        assertEquals(2, channel.getIsolatedLogCount());
+        assertEquals(3, channel.getBisectedBatchCount());
+
+        /* The batch is deleted once, the channel keeps working. */
+        verify(persistence).deleteLogs(TEST_GROUP, "batch");
+        verify(persistence, never()).deleteLogs(TEST_GROUP);
+        assertTrue(channel.isEnabled());
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rejectedBatchDropsLogsWhenNoRequestLeft() throws Persistence.PersistenceException {
+        List<Log> batch = new ArrayList<>();
+        for (int i = 0; i < 64; i++)
+            batch.add(mock(Log.class));
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(batch));
+        Ingestion ingestion = mock(Ingestion.class);
+        Log acceptedLog = batch.get(0);
+        List<Log> rejectedLogs = batch.subList(1, batch.size());
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getRejectLogAnswer(rejectedLogs.toArray(new Log[rejectedLogs.size()])));
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup(TEST_GROUP, 64, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        for (Log log : batch)
+            channel.enqueue(log, TEST_GROUP);
+
+        /* Whole batch then every request of the budget, rejected sub-batches left are dropped without failing the batch. */
+        verify(ingestion, times(1 + DefaultChannel.MAX_BISECTION_REQUESTS)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(listener).onSuccess(acceptedLog);
+        verify(listener, never()).onFailure(eq(acceptedLog), any(Exception.class));
+        for (Log log : rejectedLogs)
+            verify(listener).onFailure(eq(log), any(HttpException.class));
+        assertEquals(63, channel.getIsolatedLogCount());
+        verify(persistence).deleteLogs(TEST_GROUP, "batch");
+        verify(persistence, never()).deleteLogs(TEST_GROUP);
+        assertTrue(channel.isEnabled());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rejectedBatchRecoverableErrorDuringBisection() throws Persistence.PersistenceException {
+        List<Log> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            batch.add(mock(Log.class));
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(batch));
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class)))
+                .then(getSendAsyncAnswer(new HttpException(400)))
+                .then(getSendAsyncAnswer())
+                .then(getSendAsyncAnswer(new SocketException()));
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.addGroup(TEST_GROUP, 4, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        for (Log log : batch)
+            channel.enqueue(log, TEST_GROUP);
+
+        /* First half accepted, then a network error: the whole batch stays in storage to be sent again. */
+        verify(ingestion, times(3)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(listener).onSuccess(batch.get(0));
+        verify(listener).onSuccess(batch.get(1));
+        verify(listener, never()).onFailure(any(Log.class), any(Exception.class));
+        verify(persistence, never()).deleteLogs(anyString(), anyString());
+        verify(persistence).clearPendingLogState();
+        assertFalse(channel.isEnabled());
+        assertEquals(4, channel.getCounter(TEST_GROUP));
+        assertEquals(0, channel.getIsolatedLogCount());
+        assertEquals(1, channel.getBisectedBatchCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void rejectedBatchWithoutBisection() throws Persistence.PersistenceException {
+        List<Log> batch = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            batch.add(mock(Log.class));
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(batch));
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getRejectLogAnswer(batch.get(2)));
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.setBisectionEnabled(false);
+        channel.addGroup(TEST_GROUP, 4, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        for (Log log : batch)
+            channel.enqueue(log, TEST_GROUP);
+
+        /* Whole batch dropped like before. */
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        for (Log log : batch)
+            verify(listener).onFailure(eq(log), any(HttpException.class));
+        verify(listener, never()).onSuccess(any(Log.class));
+        assertFalse(channel.isEnabled());
+        assertEquals(0, channel.getIsolatedLogCount());
+        assertEquals(0, channel.getBisectedBatchCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void coalesceGroups() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(10)).then(getGetLogsAnswer(3));
+        Ingestion ingestion = mock(Ingestion.class);
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        Channel.GroupListener otherListener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.setCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, 10, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        channel.addGroup("other", 10, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, otherListener);
+
+        /* Other group waits for its timer. */
+        for (int i = 0; i < 3; i++)
+            channel.enqueue(mock(Log.class), "other");
+        verify(persistence, never()).getLogs(anyString(), anyInt(), anyList());
+
+        /* A full batch sends the logs of both groups in a single request. */
+        for (int i = 0; i < 10; i++)
+            channel.enqueue(mock(Log.class), TEST_GROUP);
+        ArgumentCaptor<LogContainer> container = ArgumentCaptor.forClass(LogContainer.class);
+        ArgumentCaptor<ServiceCallback> callback = ArgumentCaptor.forClass(ServiceCallback.class);
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), container.capture(), callback.capture());
+        assertEquals(13, container.getValue().getLogs().size());
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+        assertEquals(0, channel.getCounter("other"));
+
+        /* Acknowledgement is split back per group and batch. */
+        callback.getValue().onCallSucceeded();
+        verify(persistence).deleteLogs(eq(TEST_GROUP), anyString());
+        verify(persistence).deleteLogs(eq("other"), anyString());
+        verify(listener, times(10)).onSuccess(any(Log.class));
+        verify(otherListener, times(3)).onSuccess(any(Log.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void coalesceGroupsUpToMaxBytes() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(3)).then(getGetLogsAnswer(2));
+        when(persistence.getByteCount(anyString(), anyString())).thenReturn(DefaultChannel.MAX_COALESCED_BYTES / 2 + 1);
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.setCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, 3, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.addGroup("other", 3, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        for (int i = 0; i < 2; i++)
+            channel.enqueue(mock(Log.class), "other");
+        for (int i = 0; i < 3; i++)
+            channel.enqueue(mock(Log.class), TEST_GROUP);
+
+        /* Few logs but too many bytes for one request. */
+        verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(persistence, times(2)).deleteLogs(anyString(), anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void coalesceGroupsUpToGroupMaxBytes() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyInt(), anyList())).then(getGetLogsAnswer(3));
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(2));
+        when(persistence.getByteCount(anyString(), anyString())).thenReturn(600);
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.setCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, new FixedBatchPolicy(3, 1000, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES), null);
+        channel.addGroup("other", 3, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        for (int i = 0; i < 2; i++)
+            channel.enqueue(mock(Log.class), "other");
+        for (int i = 0; i < 3; i++)
+            channel.enqueue(mock(Log.class), TEST_GROUP);
+
+        /* The merged request would exceed the maximum batch size of a group in it. */
+        ArgumentCaptor<LogContainer> container = ArgumentCaptor.forClass(LogContainer.class);
+        verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), container.capture(), any(ServiceCallback.class));
+        assertEquals(3, container.getAllValues().get(0).getLogs().size());
+        assertEquals(2, container.getAllValues().get(1).getLogs().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void coalescedRequestFailure() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer(1)).then(getGetLogsAnswer(1));
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer(new SocketException()));
+        Channel.GroupListener listener = mock(Channel.GroupListener.class);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion);
+        channel.setCoalescingEnabled(true);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        channel.addGroup("other", 2, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, listener);
+        channel.enqueue(mock(Log.class), "other");
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+
+        /* Both batches kept for later. */
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        verify(persistence, never()).deleteLogs(anyString(), anyString());
+        verify(listener, never()).onFailure(any(Log.class), any(Exception.class));
+        assertFalse(channel.isEnabled());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void circuitBreaker() {
+        Persistence persistence = mock(Persistence.class);
+        when(persistence.getLogs(anyString(), anyInt(), anyList())).then(getGetLogsAnswer());
+        Ingestion ingestion = mock(Ingestion.class);
+        IngestionCircuitBreaker circuitBreaker = mock(IngestionCircuitBreaker.class);
+        when(circuitBreaker.getState()).thenReturn(IngestionCircuitBreaker.State.OPEN);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), persistence, ingestion, circuitBreaker, null);
+        ArgumentCaptor<IngestionCircuitBreaker.Listener> listener = ArgumentCaptor.forClass(IngestionCircuitBreaker.Listener.class);
+        verify(circuitBreaker).addListener(listener.capture());
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.addGroup("other", 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+
+        /* Nothing pulled from persistence while open. */
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+        channel.enqueue(mock(Log.class), "other");
+        verify(persistence, never()).getLogs(anyString(), anyInt(), anyList());
+        assertEquals(1, channel.getCounter(TEST_GROUP));
+
+        /* Half-open: a single batch across groups. */
+        when(circuitBreaker.getState()).thenReturn(IngestionCircuitBreaker.State.HALF_OPEN);
+        listener.getValue().onCircuitStateChanged(IngestionCircuitBreaker.State.HALF_OPEN);
+        ArgumentCaptor<ServiceCallback> callback = ArgumentCaptor.forClass(ServiceCallback.class);
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), callback.capture());
+        verify(persistence).getLogs(anyString(), anyInt(), anyList());
+
+        /* Closed: the other group resumes. */
+        when(circuitBreaker.getState()).thenReturn(IngestionCircuitBreaker.State.CLOSED);
+        listener.getValue().onCircuitStateChanged(IngestionCircuitBreaker.State.CLOSED);
+        callback.getValue().onCallSucceeded();
+        verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+        assertEquals(0, channel.getCounter("other"));
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void initialLogs() throws IOException, InterruptedException {
@@ -986,4 +1667,85 @@ public class DefaultChannelTest extends AbstractDefaultChannelTest {
             }
         }));
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendRawLogsWithoutListener() throws Persistence.PersistenceException {
+        Persistence mockPersistence = mock(Persistence.class);
+        Ingestion mockIngestion = mock(Ingestion.class);
+        when(mockPersistence.hasRawLogs()).thenReturn(true);
+        when(mockPersistence.getRawLogs(any(String.class), anyInt(), anyList())).then(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                ((List<String>) invocation.getArguments()[2]).add("{}");
+                return UUIDUtils.randomUUID().toString();
+            }
+        });
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+
+        /* Group without listener. */
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, null);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+
+        /* Verify stored logs are sent without being deserialized. */
+        verify(mockPersistence, never()).getLogs(anyString(), anyInt(), anyList());
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), argThat(new ArgumentMatcher<LogContainer>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                LogContainer container = (LogContainer) argument;
+                return container.getLogs() == null && container.getRawLogs().size() == 1;
+            }
+        }), any(ServiceCallback.class));
+        verify(mockPersistence).deleteLogs(eq(TEST_GROUP), anyString());
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendRawLogsWithLazyListener() throws Persistence.PersistenceException, JSONException {
+        Persistence mockPersistence = mock(Persistence.class);
+        Ingestion mockIngestion = mock(Ingestion.class);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        Log log = mock(Log.class);
+        when(mockLogSerializer.deserializeLog("{}")).thenReturn(log);
+        when(mockPersistence.getLogSerializer()).thenReturn(mockLogSerializer);
+        when(mockPersistence.hasRawLogs()).thenReturn(true);
+        when(mockPersistence.getRawLogs(any(String.class), anyInt(), anyList())).then(new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                ((List<String>) invocation.getArguments()[2]).add("{}");
+                return UUIDUtils.randomUUID().toString();
+            }
+        });
+        when(mockIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getSendAsyncAnswer());
+
+        /* Listener does not need logs when reading and sending the batch, but needs them once sent. */
+        Channel.LazyGroupListener mockListener = mock(Channel.LazyGroupListener.class);
+        when(mockListener.needsLogs()).thenReturn(false, false, true);
+        DefaultChannel channel = new DefaultChannel(mock(Context.class), UUIDUtils.randomUUID().toString(), mockPersistence, mockIngestion);
+        channel.addGroup(TEST_GROUP, 1, BATCH_TIME_INTERVAL, MAX_PARALLEL_BATCHES, mockListener);
+        channel.enqueue(mock(Log.class), TEST_GROUP);
+
+        /* Stored logs are sent without being deserialized. */
+        verify(mockPersistence, never()).getLogs(anyString(), anyInt(), anyList());
+        verify(mockIngestion).sendAsync(anyString(), any(UUID.class), argThat(new ArgumentMatcher<LogContainer>() {
+
+            @Override
+            public boolean matches(Object argument) {
+                LogContainer container = (LogContainer) argument;
+                return container.getLogs() == null && container.getRawLogs().size() == 1;
+            }
+        }), any(ServiceCallback.class));
+        verify(mockListener, never()).onBeforeSending(any(Log.class));
+
+        /* Log is deserialized only for the success callback. */
+        verify(mockLogSerializer).deserializeLog("{}");
+        verify(mockListener).onSuccess(log);
+        verify(mockPersistence).deleteLogs(eq(TEST_GROUP), anyString());
+        assertEquals(0, channel.getCounter(TEST_GROUP));
+    }
 }
@@ -19,5 +19,7 @@ public class HttpExceptionTest {
         assertEquals(403, new HttpException(403).getStatusCode());
         assertEquals("", new HttpException(403).getPayload());
         assertEquals("Busy", new HttpException(503, "Busy").getPayload());
+        assertEquals(0, new HttpException(503, "Busy").getRetryAfter());
+        assertEquals(30000, new HttpException(503, "Busy", 30000).getRetryAfter());
     }
 }
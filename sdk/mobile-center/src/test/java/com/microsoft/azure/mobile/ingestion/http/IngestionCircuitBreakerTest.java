@@ -0,0 +1,192 @@
+package com.microsoft.azure.mobile.ingestion.http;
+
+import android.os.Handler;
+
+import com.microsoft.azure.mobile.ingestion.Ingestion;
+import com.microsoft.azure.mobile.ingestion.ServiceCall;
+import com.microsoft.azure.mobile.ingestion.ServiceCallback;
+import com.microsoft.azure.mobile.ingestion.models.LogContainer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.net.SocketException;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unused")
+public class IngestionCircuitBreakerTest {
+
+    private static final int FAILURE_THRESHOLD = 3;
+
+    private static final long OPEN_DURATION = 1000;
+
+    private Ingestion mIngestion;
+
+    private Handler mHandler;
+
+    private IngestionCircuitBreaker.Listener mListener;
+
+    private IngestionCircuitBreaker mCircuitBreaker;
+
+    private int mPostedCount;
+
+    private static Answer<ServiceCall> getFailureAnswer(final Exception e) {
+        return new Answer<ServiceCall>() {
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocation) throws Throwable {
+                ((ServiceCallback) invocation.getArguments()[3]).onCallFailed(e);
+                return mock(ServiceCall.class);
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        mIngestion = mock(Ingestion.class);
+        mHandler = mock(Handler.class);
+        mListener = mock(IngestionCircuitBreaker.Listener.class);
+        mCircuitBreaker = new IngestionCircuitBreaker(mIngestion, FAILURE_THRESHOLD, OPEN_DURATION, mHandler);
+        mCircuitBreaker.addListener(mListener);
+    }
+
+    private ServiceCallback send() {
+        ServiceCallback callback = mock(ServiceCallback.class);
+        mCircuitBreaker.sendAsync(null, null, null, callback);
+        return callback;
+    }
+
+    /**
+     * Run the runnables posted to the handler since last time.
+     */
+    private void runPosted(int count) {
+        ArgumentCaptor<Runnable> runnables = ArgumentCaptor.forClass(Runnable.class);
+        verify(mHandler, times(count)).post(runnables.capture());
+        for (Runnable runnable : runnables.getAllValues().subList(mPostedCount, count))
+            runnable.run();
+        mPostedCount = count;
+    }
+
+    private Runnable open() {
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).then(getFailureAnswer(new SocketException()));
+        for (int i = 0; i < FAILURE_THRESHOLD; i++)
+            send();
+        assertEquals(IngestionCircuitBreaker.State.OPEN, mCircuitBreaker.getState());
+        ArgumentCaptor<Runnable> halfOpen = ArgumentCaptor.forClass(Runnable.class);
+        verify(mHandler).postDelayed(halfOpen.capture(), eq(OPEN_DURATION));
+        return halfOpen.getValue();
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        open();
+        verify(mListener).onCircuitStateChanged(IngestionCircuitBreaker.State.OPEN);
+        verify(mIngestion, times(FAILURE_THRESHOLD)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* Fail fast without calling the server, after returning the call. */
+        ServiceCallback callback = send();
+        verify(callback, never()).onCallFailed(any(Exception.class));
+        runPosted(1);
+        ArgumentCaptor<Exception> exception = ArgumentCaptor.forClass(Exception.class);
+        verify(callback).onCallFailed(exception.capture());
+        assertTrue(exception.getValue() instanceof CircuitOpenException);
+        assertEquals(OPEN_DURATION, ((CircuitOpenException) exception.getValue()).getRetryAfter());
+        verify(mIngestion, times(FAILURE_THRESHOLD)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+    }
+
+    @Test
+    public void cancelRejectedCall() {
+        open();
+        ServiceCallback callback = mock(ServiceCallback.class);
+        mCircuitBreaker.sendAsync(null, null, null, callback).cancel();
+        ArgumentCaptor<Runnable> reject = ArgumentCaptor.forClass(Runnable.class);
+        verify(mHandler).post(reject.capture());
+        verify(mHandler).removeCallbacks(reject.getValue());
+    }
+
+    @Test
+    public void serverResponseResetsFailures() {
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class)))
+                .then(getFailureAnswer(new SocketException()))
+                .then(getFailureAnswer(new SocketException()))
+                .then(getFailureAnswer(new HttpException(403)))
+                .then(getFailureAnswer(new SocketException()))
+                .then(getFailureAnswer(new SocketException()));
+        for (int i = 0; i < 5; i++)
+            send();
+        assertEquals(IngestionCircuitBreaker.State.CLOSED, mCircuitBreaker.getState());
+        verifyNoMoreInteractions(mListener);
+        verify(mHandler, never()).postDelayed(any(Runnable.class), eq(OPEN_DURATION));
+    }
+
+    @Test
+    public void halfOpenProbeSuccess() {
+        Runnable halfOpen = open();
+        halfOpen.run();
+        assertEquals(IngestionCircuitBreaker.State.HALF_OPEN, mCircuitBreaker.getState());
+        verify(mListener).onCircuitStateChanged(IngestionCircuitBreaker.State.HALF_OPEN);
+
+        /* Only one call goes through. */
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).thenReturn(mock(ServiceCall.class));
+        ServiceCallback probeCallback = send();
+        ServiceCallback otherCallback = send();
+        ArgumentCaptor<ServiceCallback> probe = ArgumentCaptor.forClass(ServiceCallback.class);
+        verify(mIngestion, times(FAILURE_THRESHOLD + 1)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), probe.capture());
+        runPosted(1);
+        verify(otherCallback).onCallFailed(any(CircuitOpenException.class));
+
+        /* Probe success closes the circuit. */
+        probe.getValue().onCallSucceeded();
+        verify(probeCallback).onCallSucceeded();
+        assertEquals(IngestionCircuitBreaker.State.CLOSED, mCircuitBreaker.getState());
+        verify(mListener).onCircuitStateChanged(IngestionCircuitBreaker.State.CLOSED);
+        send();
+        verify(mIngestion, times(FAILURE_THRESHOLD + 2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+    }
+
+    @Test
+    public void halfOpenProbeFailure() {
+        Runnable halfOpen = open();
+        halfOpen.run();
+        ServiceCallback callback = send();
+        verify(callback).onCallFailed(any(SocketException.class));
+        assertEquals(IngestionCircuitBreaker.State.OPEN, mCircuitBreaker.getState());
+        verify(mListener, times(2)).onCircuitStateChanged(IngestionCircuitBreaker.State.OPEN);
+        verify(mHandler, times(2)).postDelayed(any(Runnable.class), eq(OPEN_DURATION));
+    }
+
+    @Test
+    public void cancelledProbeReleasesSlot() {
+        Runnable halfOpen = open();
+        halfOpen.run();
+        ServiceCall serviceCall = mock(ServiceCall.class);
+        when(mIngestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).thenReturn(serviceCall);
+        mCircuitBreaker.sendAsync(null, null, null, mock(ServiceCallback.class)).cancel();
+        verify(serviceCall).cancel();
+
+        /* Another call can probe. */
+        send();
+        verify(mIngestion, times(FAILURE_THRESHOLD + 2)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        assertEquals(IngestionCircuitBreaker.State.HALF_OPEN, mCircuitBreaker.getState());
+    }
+
+    @Test
+    public void circuitOpenIsRecoverable() {
+        assertTrue(HttpUtils.isRecoverableError(new CircuitOpenException()));
+    }
+}
@@ -20,20 +20,30 @@ import org.powermock.modules.junit4.rule.PowerMockRule;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 import static android.util.Log.INFO;
 import static android.util.Log.VERBOSE;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -63,7 +73,7 @@ public class IngestionHttpTest {
 
             @Override
             public Object answer(InvocationOnMock invocation) throws Throwable {
-                final IngestionHttp.Call call = new IngestionHttp.Call(invocation.getArguments()[0].toString(), (LogSerializer) invocation.getArguments()[1], (String) invocation.getArguments()[2], (UUID) invocation.getArguments()[3], (LogContainer) invocation.getArguments()[4], (ServiceCallback) invocation.getArguments()[5]);
+                final IngestionHttp.Call call = new IngestionHttp.Call(invocation.getArguments()[0].toString(), (LogSerializer) invocation.getArguments()[1], (String) invocation.getArguments()[2], (UUID) invocation.getArguments()[3], (LogContainer) invocation.getArguments()[4], (ServiceCallback) invocation.getArguments()[5], (Integer) invocation.getArguments()[6], (AtomicLong) invocation.getArguments()[7], (AtomicLong) invocation.getArguments()[8]);
                 IngestionHttp.Call spyCall = spy(call);
                 when(spyCall.executeOnExecutor(any(Executor.class))).then(new Answer<IngestionHttp.Call>() {
 
@@ -106,7 +116,8 @@ public class IngestionHttpTest {
         when(urlConnection.getResponseCode()).thenReturn(200);
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         when(urlConnection.getOutputStream()).thenReturn(buffer);
-        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+        InputStream inputStream = spy(new ByteArrayInputStream("OK".getBytes()));
+        when(urlConnection.getInputStream()).thenReturn(inputStream);
 
         /* Configure API client. */
         LogSerializer serializer = mock(LogSerializer.class);
@@ -125,7 +136,10 @@ public class IngestionHttpTest {
         verify(urlConnection).setRequestProperty("Content-Type", "application/json");
         verify(urlConnection).setRequestProperty("App-Secret", appSecret);
         verify(urlConnection).setRequestProperty("Install-ID", installId.toString());
-        verify(urlConnection).disconnect();
+
+        /* Response is read and closed but connection kept alive for the next call. */
+        verify(inputStream).close();
+        verify(urlConnection, never()).disconnect();
         httpClient.close();
 
         /* Verify payload and toffset manipulation. */
@@ -135,6 +149,283 @@ public class IngestionHttpTest {
         verify(log).setToffset(logAbsoluteTime);
     }
 
+    @Test
+    public void successWithRawLogs() throws Exception {
+
+        /* Verbose serializes the whole payload to log it. */
+        MobileCenter.setLogLevel(VERBOSE);
+
+        /* Build some payload from stored logs. */
+        LogContainer container = new LogContainer();
+        List<String> rawLogs = new ArrayList<>();
+        rawLogs.add("{\"type\":\"mock\",\"toffset\":123}");
+        container.setRawLogs(rawLogs);
+
+        /* Stable time. */
+        mockStatic(System.class);
+        long now = 456L;
+        when(System.currentTimeMillis()).thenReturn(now);
+
+        /* Configure mock HTTP. */
+        URL url = mock(URL.class);
+        whenNew(URL.class).withAnyArguments().thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client. */
+        LogSerializer serializer = mock(LogSerializer.class);
+        when(serializer.serializeRawContainer(rawLogs, now)).thenReturn("mockRawPayload");
+        IngestionHttp httpClient = new IngestionHttp(serializer);
+        httpClient.setServerUrl("http://mock");
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.sendAsync("SECRET", UUIDUtils.randomUUID(), container, serviceCallback);
+        verify(serviceCallback).onCallSucceeded();
+        verifyNoMoreInteractions(serviceCallback);
+        httpClient.close();
+
+        /* Verify stored logs were spliced without serializing log objects. */
+        assertEquals("mockRawPayload", buffer.toString("UTF-8"));
+        verify(serializer, never()).serializeContainer(any(LogContainer.class));
+    }
+
+    @Test
+    public void successCompressed() throws Exception {
+
+        /* Verbose serializes the whole payload to log it. */
+        MobileCenter.setLogLevel(VERBOSE);
+
+        /* Build some payload. */
+        LogContainer container = new LogContainer();
+        List<Log> logs = new ArrayList<>();
+        logs.add(mock(Log.class));
+        container.setLogs(logs);
+
+        /* Configure mock HTTP. */
+        URL url = mock(URL.class);
+        whenNew(URL.class).withAnyArguments().thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client with a payload exactly at compression threshold. */
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'a');
+        String payload = new String(chars);
+        LogSerializer serializer = mock(LogSerializer.class);
+        when(serializer.serializeContainer(any(LogContainer.class))).thenReturn(payload);
+        IngestionHttp httpClient = new IngestionHttp(serializer);
+        httpClient.setServerUrl("http://mock");
+        httpClient.setCompressionThreshold(payload.length());
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.sendAsync("SECRET", UUIDUtils.randomUUID(), container, serviceCallback);
+        verify(serviceCallback).onCallSucceeded();
+        verify(urlConnection).setRequestProperty("Content-Encoding", "gzip");
+        verify(urlConnection).setChunkedStreamingMode(0);
+        verify(urlConnection, never()).setFixedLengthStreamingMode(anyInt());
+        httpClient.close();
+
+        /* Verify payload was compressed and sizes were recorded. */
+        InputStreamReader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(buffer.toByteArray())), "UTF-8");
+        char[] readBuffer = new char[payload.length() + 1];
+        int length = 0;
+        int read;
+        while ((read = reader.read(readBuffer, length, readBuffer.length - length)) > 0)
+            length += read;
+        assertEquals(payload, new String(readBuffer, 0, length));
+        assertEquals(payload.length(), httpClient.getPayloadByteCount());
+        assertEquals(buffer.size(), httpClient.getSentByteCount());
+        assertTrue(httpClient.getSentByteCount() < httpClient.getPayloadByteCount());
+    }
+
+    @Test
+    public void notCompressedBelowThreshold() throws Exception {
+
+        /* Verbose serializes the whole payload to log it. */
+        MobileCenter.setLogLevel(VERBOSE);
+
+        /* Build some payload. */
+        LogContainer container = new LogContainer();
+        List<Log> logs = new ArrayList<>();
+        logs.add(mock(Log.class));
+        container.setLogs(logs);
+
+        /* Configure mock HTTP. */
+        URL url = mock(URL.class);
+        whenNew(URL.class).withAnyArguments().thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Configure API client with a threshold above payload size. */
+        LogSerializer serializer = mock(LogSerializer.class);
+        when(serializer.serializeContainer(any(LogContainer.class))).thenReturn("mockPayload");
+        IngestionHttp httpClient = new IngestionHttp(serializer);
+        httpClient.setServerUrl("http://mock");
+        httpClient.setCompressionThreshold(1000);
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.sendAsync("SECRET", UUIDUtils.randomUUID(), container, serviceCallback);
+        verify(serviceCallback).onCallSucceeded();
+        verify(urlConnection, never()).setRequestProperty("Content-Encoding", "gzip");
+        verify(urlConnection).setFixedLengthStreamingMode("mockPayload".length());
+        httpClient.close();
+        assertEquals("mockPayload", buffer.toString("UTF-8"));
+        assertEquals("mockPayload".length(), httpClient.getPayloadByteCount());
+        assertEquals("mockPayload".length(), httpClient.getSentByteCount());
+    }
+
+    @Test
+    public void successStreamed() throws Exception {
+
+        /* Without verbose, logs are streamed. */
+        MobileCenter.setLogLevel(INFO);
+
+        /* Build some payload. */
+        LogContainer container = new LogContainer();
+        final Log log = mock(Log.class);
+        long logAbsoluteTime = 123L;
+        when(log.getToffset()).thenReturn(logAbsoluteTime);
+        List<Log> logs = new ArrayList<>();
+        logs.add(log);
+        container.setLogs(logs);
+
+        /* Stable time. */
+        mockStatic(System.class);
+        long now = 456L;
+        when(System.currentTimeMillis()).thenReturn(now);
+
+        /* Configure mock HTTP. */
+        URL url = mock(URL.class);
+        whenNew(URL.class).withAnyArguments().thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Write a payload too big to be buffered, one part at a time. */
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'a');
+        final String part = new String(chars);
+        final int partCount = 10;
+        LogSerializer serializer = mock(LogSerializer.class);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Writer writer = (Writer) invocation.getArguments()[0];
+                for (int i = 0; i < partCount; i++)
+                    writer.write(part);
+                return null;
+            }
+        }).when(serializer).writeContainer(any(Writer.class), any(LogContainer.class));
+        IngestionHttp httpClient = new IngestionHttp(serializer);
+        httpClient.setServerUrl("http://mock");
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.sendAsync("SECRET", UUIDUtils.randomUUID(), container, serviceCallback);
+        verify(serviceCallback).onCallSucceeded();
+        verifyNoMoreInteractions(serviceCallback);
+        httpClient.close();
+
+        /* Verify payload was streamed in chunks without building a string. */
+        verify(serializer, never()).serializeContainer(any(LogContainer.class));
+        verify(urlConnection).setChunkedStreamingMode(0);
+        verify(urlConnection, never()).setFixedLengthStreamingMode(anyInt());
+        verify(urlConnection, never()).setRequestProperty("Content-Encoding", "gzip");
+        assertEquals(part.length() * partCount, buffer.size());
+        assertEquals(buffer.size(), httpClient.getPayloadByteCount());
+        assertEquals(buffer.size(), httpClient.getSentByteCount());
+        verify(log).setToffset(now - logAbsoluteTime);
+        verify(log).setToffset(logAbsoluteTime);
+    }
+
+    @Test
+    public void successRawLogsStreamedCompressed() throws Exception {
+
+        /* Without verbose, logs are streamed. */
+        MobileCenter.setLogLevel(INFO);
+
+        /* Build some payload from stored logs. */
+        LogContainer container = new LogContainer();
+        List<String> rawLogs = new ArrayList<>();
+        rawLogs.add("{\"type\":\"mock\",\"toffset\":123}");
+        container.setRawLogs(rawLogs);
+
+        /* Stable time. */
+        mockStatic(System.class);
+        long now = 456L;
+        when(System.currentTimeMillis()).thenReturn(now);
+
+        /* Configure mock HTTP. */
+        URL url = mock(URL.class);
+        whenNew(URL.class).withAnyArguments().thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        when(urlConnection.getOutputStream()).thenReturn(buffer);
+        when(urlConnection.getInputStream()).thenReturn(new ByteArrayInputStream("OK".getBytes()));
+
+        /* Write a payload bigger than compression threshold. */
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'a');
+        final String payload = new String(chars);
+        LogSerializer serializer = mock(LogSerializer.class);
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((Writer) invocation.getArguments()[0]).write(payload);
+                return null;
+            }
+        }).when(serializer).writeRawContainer(any(Writer.class), eq(rawLogs), eq(now));
+        IngestionHttp httpClient = new IngestionHttp(serializer);
+        httpClient.setServerUrl("http://mock");
+        httpClient.setCompressionThreshold(100);
+
+        /* Test calling code. */
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        httpClient.sendAsync("SECRET", UUIDUtils.randomUUID(), container, serviceCallback);
+        verify(serviceCallback).onCallSucceeded();
+        httpClient.close();
+
+        /* Verify payload was compressed in chunks. */
+        verify(urlConnection).setRequestProperty("Content-Encoding", "gzip");
+        verify(urlConnection).setChunkedStreamingMode(0);
+        InputStreamReader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(buffer.toByteArray())), "UTF-8");
+        char[] readBuffer = new char[payload.length() + 1];
+        int length = 0;
+        int read;
+        while ((read = reader.read(readBuffer, length, readBuffer.length - length)) > 0)
+            length += read;
+        assertEquals(payload, new String(readBuffer, 0, length));
+        assertEquals(payload.length(), httpClient.getPayloadByteCount());
+        assertEquals(buffer.size(), httpClient.getSentByteCount());
+    }
+
     @Test
     public void error503() throws Exception {
 
@@ -178,7 +469,9 @@ public class IngestionHttpTest {
         httpClient.sendAsync(appSecret, installId, container, serviceCallback);
         verify(serviceCallback).onCallFailed(new HttpException(503, "Busy"));
         verifyNoMoreInteractions(serviceCallback);
-        verify(urlConnection).disconnect();
+
+        /* Error response was read to the end, connection can be reused. */
+        verify(urlConnection, never()).disconnect();
         verify(log).setToffset(now - logAbsoluteTime);
         verify(log).setToffset(logAbsoluteTime);
     }
@@ -221,6 +514,9 @@ public class IngestionHttpTest {
     @Test
     public void failedSerialization() throws Exception {
 
+        /* Verbose serializes the whole payload to log it. */
+        MobileCenter.setLogLevel(VERBOSE);
+
         /* Build some payload. */
         LogContainer container = new LogContainer();
         Log log = mock(Log.class);
@@ -255,11 +551,64 @@ public class IngestionHttpTest {
         httpClient.sendAsync(appSecret, installId, container, serviceCallback);
         verify(serviceCallback).onCallFailed(exception);
         verifyNoMoreInteractions(serviceCallback);
+
+        /* Request was interrupted, connection must not be reused. */
         verify(urlConnection).disconnect();
         verify(log).setToffset(now - logAbsoluteTime);
         verify(log).setToffset(logAbsoluteTime);
     }
 
+    @Test
+    public void failedResponseRead() throws Exception {
+
+        /* Configure mock HTTP failing while reading response. */
+        URL url = mock(URL.class);
+        whenNew(URL.class).withAnyArguments().thenReturn(url);
+        HttpURLConnection urlConnection = mock(HttpURLConnection.class);
+        when(url.openConnection()).thenReturn(urlConnection);
+        when(urlConnection.getResponseCode()).thenReturn(200);
+        when(urlConnection.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        IOException exception = new IOException("mock");
+        when(urlConnection.getInputStream()).thenThrow(exception);
+
+        /* Test calling code. */
+        LogSerializer serializer = mock(LogSerializer.class);
+        when(serializer.serializeContainer(any(LogContainer.class))).thenReturn("mockPayload");
+        IngestionHttp httpClient = new IngestionHttp(serializer);
+        ServiceCallback serviceCallback = mock(ServiceCallback.class);
+        mockCall();
+        LogContainer container = new LogContainer();
+        container.setLogs(new ArrayList<Log>());
+        httpClient.sendAsync(UUIDUtils.randomUUID().toString(), UUIDUtils.randomUUID(), container, serviceCallback);
+        verify(serviceCallback).onCallFailed(exception);
+        verifyNoMoreInteractions(serviceCallback);
+        verify(urlConnection).disconnect();
+    }
+
+    @Test
+    public void maxConcurrentCalls() throws Exception {
+
+        /* Calls are sent one at a time by default. */
+        IngestionHttp httpClient = new IngestionHttp(mock(LogSerializer.class));
+        assertEquals(1, httpClient.getMaxConcurrentCalls());
+
+        /* Grow and shrink. */
+        httpClient.setMaxConcurrentCalls(4);
+        assertEquals(4, httpClient.getMaxConcurrentCalls());
+        httpClient.setMaxConcurrentCalls(2);
+        assertEquals(2, httpClient.getMaxConcurrentCalls());
+
+        /* At least one call can run. */
+        httpClient.setMaxConcurrentCalls(0);
+        assertEquals(1, httpClient.getMaxConcurrentCalls());
+
+        /* Calls run on the dedicated executor, not the shared AsyncTask pool. */
+        IngestionHttp.Call call = mock(IngestionHttp.Call.class);
+        whenNew(IngestionHttp.Call.class).withAnyArguments().thenReturn(call);
+        httpClient.sendAsync("", UUID.randomUUID(), mock(LogContainer.class), mock(ServiceCallback.class));
+        verify(call).executeOnExecutor(any(ThreadPoolExecutor.class));
+    }
+
     @Test
     @PrepareForTest(HandlerUtils.class)
     public void rejectedAsyncTask() throws Exception {
@@ -1,5 +1,7 @@
 package com.microsoft.azure.mobile.ingestion.http;
 
+import android.os.Handler;
+
 import com.microsoft.azure.mobile.ingestion.Ingestion;
 import com.microsoft.azure.mobile.ingestion.ServiceCall;
 import com.microsoft.azure.mobile.ingestion.ServiceCallback;
@@ -8,18 +10,25 @@ import com.microsoft.azure.mobile.utils.NetworkStateHelper;
 import com.microsoft.azure.mobile.utils.UUIDUtils;
 
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.same;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -388,4 +397,83 @@ public class IngestionNetworkStateHandlerTest {
         retryer.setServerUrl(serverUrl);
         verify(ingestion).setServerUrl(serverUrl);
     }
+
+    private static LogContainer getContainer(int logCount, int priority) {
+        List<String> rawLogs = new ArrayList<>();
+        for (int i = 0; i < logCount; i++)
+            rawLogs.add("{}");
+        LogContainer container = new LogContainer();
+        container.setRawLogs(rawLogs);
+        container.setPriority(priority);
+        return container;
+    }
+
+    @Test
+    public void deferLargeCallsOnConstrainedNetwork() throws IOException {
+        Ingestion ingestion = mock(Ingestion.class);
+        when(ingestion.sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class))).thenReturn(mock(ServiceCall.class));
+        NetworkStateHelper networkStateHelper = mock(NetworkStateHelper.class);
+        when(networkStateHelper.isNetworkConnected()).thenReturn(true);
+        when(networkStateHelper.isNetworkConstrained()).thenReturn(true);
+        Handler handler = mock(Handler.class);
+        IngestionNetworkStateHandler decorator = new IngestionNetworkStateHandler(ingestion, networkStateHelper, 10, handler);
+
+        /* Small and critical calls are sent, large ones wait. */
+        LogContainer small = getContainer(IngestionNetworkStateHandler.SMALL_CALL_MAX_LOGS, 0);
+        LogContainer critical = getContainer(IngestionNetworkStateHandler.SMALL_CALL_MAX_LOGS + 1, 10);
+        LogContainer large = getContainer(IngestionNetworkStateHandler.SMALL_CALL_MAX_LOGS + 1, 0);
+        decorator.sendAsync(null, null, small, mock(ServiceCallback.class));
+        decorator.sendAsync(null, null, critical, mock(ServiceCallback.class));
+        decorator.sendAsync(null, null, large, mock(ServiceCallback.class));
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), same(small), any(ServiceCallback.class));
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), same(critical), any(ServiceCallback.class));
+        verify(ingestion, never()).sendAsync(anyString(), any(UUID.class), same(large), any(ServiceCallback.class));
+        verify(handler).postDelayed(any(Runnable.class), eq(IngestionNetworkStateHandler.MAX_DEFERRAL_TIME));
+
+        /* Switching to a better network sends the large call. */
+        when(networkStateHelper.isNetworkConstrained()).thenReturn(false);
+        decorator.onNetworkStateUpdated(false);
+        decorator.onNetworkStateUpdated(true);
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), same(large), any(ServiceCallback.class));
+        verify(handler).removeCallbacks(any(Runnable.class));
+        decorator.close();
+    }
+
+    @Test
+    public void deferralExpires() throws IOException {
+        Ingestion ingestion = mock(Ingestion.class);
+        NetworkStateHelper networkStateHelper = mock(NetworkStateHelper.class);
+        when(networkStateHelper.isNetworkConnected()).thenReturn(true);
+        when(networkStateHelper.isNetworkConstrained()).thenReturn(true);
+        Handler handler = mock(Handler.class);
+        IngestionNetworkStateHandler decorator = new IngestionNetworkStateHandler(ingestion, networkStateHelper, 10, handler);
+        LogContainer large = getContainer(IngestionNetworkStateHandler.SMALL_CALL_MAX_LOGS + 1, 0);
+        decorator.sendAsync(null, null, large, mock(ServiceCallback.class));
+        ArgumentCaptor<Runnable> timeout = ArgumentCaptor.forClass(Runnable.class);
+        verify(handler).postDelayed(timeout.capture(), eq(IngestionNetworkStateHandler.MAX_DEFERRAL_TIME));
+        verify(ingestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* Sent even if network is still constrained. */
+        timeout.getValue().run();
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), same(large), any(ServiceCallback.class));
+
+        /* And not deferred again. */
+        decorator.onNetworkStateUpdated(false);
+        decorator.onNetworkStateUpdated(true);
+        verify(ingestion, times(2)).sendAsync(anyString(), any(UUID.class), same(large), any(ServiceCallback.class));
+        verify(handler).postDelayed(any(Runnable.class), anyLong());
+    }
+
+    @Test
+    public void cancelDeferredCall() throws IOException {
+        Ingestion ingestion = mock(Ingestion.class);
+        NetworkStateHelper networkStateHelper = mock(NetworkStateHelper.class);
+        when(networkStateHelper.isNetworkConnected()).thenReturn(true);
+        when(networkStateHelper.isNetworkConstrained()).thenReturn(true);
+        Handler handler = mock(Handler.class);
+        IngestionNetworkStateHandler decorator = new IngestionNetworkStateHandler(ingestion, networkStateHelper, Integer.MAX_VALUE, handler);
+        decorator.sendAsync(null, null, getContainer(IngestionNetworkStateHandler.SMALL_CALL_MAX_LOGS + 1, 10), mock(ServiceCallback.class)).cancel();
+        verify(handler).removeCallbacks(any(Runnable.class));
+        verifyNoMoreInteractions(ingestion);
+    }
 }
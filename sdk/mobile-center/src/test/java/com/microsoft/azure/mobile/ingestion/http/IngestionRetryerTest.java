@@ -6,28 +6,60 @@ import com.microsoft.azure.mobile.ingestion.Ingestion;
 import com.microsoft.azure.mobile.ingestion.ServiceCall;
 import com.microsoft.azure.mobile.ingestion.ServiceCallback;
 import com.microsoft.azure.mobile.ingestion.models.LogContainer;
+import com.microsoft.azure.mobile.utils.storage.StorageHelper;
 
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
-import org.mockito.ArgumentMatcher;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.rule.PowerMockRule;
 
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.List;
 import java.util.UUID;
 
+import static com.microsoft.azure.mobile.ingestion.http.IngestionRetryer.INITIAL_BACKOFF_INTERVAL;
+import static com.microsoft.azure.mobile.ingestion.http.IngestionRetryer.MAX_BACKOFF_INTERVAL;
+import static com.microsoft.azure.mobile.ingestion.http.IngestionRetryer.MAX_RETRY_COUNT;
+import static com.microsoft.azure.mobile.ingestion.http.IngestionRetryer.PREF_KEY_FAILURE_COUNT;
+import static com.microsoft.azure.mobile.ingestion.http.IngestionRetryer.PREF_KEY_NEXT_ATTEMPT_TIME;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
-import static org.mockito.Matchers.longThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 
 @SuppressWarnings("unused")
+@PrepareForTest({IngestionRetryer.class, StorageHelper.PreferencesStorage.class})
 public class IngestionRetryerTest {
 
+    private static final long CURRENT_TIME = 1000000L;
+
+    @Rule
+    public PowerMockRule mPowerMockRule = new PowerMockRule();
+
+    @Before
+    public void setUp() {
+        mockStatic(System.class);
+        when(System.currentTimeMillis()).thenReturn(CURRENT_TIME);
+        mockStatic(StorageHelper.PreferencesStorage.class);
+    }
+
     private static void simulateRetryAfterDelay(Handler handler) {
         doAnswer(new Answer() {
 
@@ -40,16 +72,22 @@ public class IngestionRetryerTest {
         }).when(handler).postDelayed(any(Runnable.class), anyLong());
     }
 
-    private static void verifyDelay(Handler handler, final int retryIndex) {
-        verify(handler).postDelayed(any(Runnable.class), longThat(new ArgumentMatcher<Long>() {
+    private static List<Long> verifyDelays(Handler handler, int count) {
+        ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+        verify(handler, times(count)).postDelayed(any(Runnable.class), delays.capture());
+        return delays.getAllValues();
+    }
 
-            @Override
-            public boolean matches(Object argument) {
-                long interval = (Long) argument;
-                long retryInterval = IngestionRetryer.RETRY_INTERVALS[retryIndex];
-                return interval >= retryInterval / 2 && interval <= retryInterval;
-            }
-        }));
+    /**
+     * Check delays are between 0 and the exponential interval of each consecutive failure (full jitter).
+     */
+    private static void verifyBackoffDelays(Handler handler, int count, int previousFailures) {
+        List<Long> delays = verifyDelays(handler, count);
+        for (int i = 0; i < count; i++) {
+            long interval = Math.min(INITIAL_BACKOFF_INTERVAL << (previousFailures + i), MAX_BACKOFF_INTERVAL);
+            long delay = delays.get(i);
+            assertTrue(delay >= 0 && delay <= interval);
+        }
     }
 
     @Test
@@ -70,6 +108,8 @@ public class IngestionRetryerTest {
         verify(callback).onCallSucceeded();
         verifyNoMoreInteractions(callback);
         verifyNoMoreInteractions(call);
+        verifyStatic(never());
+        StorageHelper.PreferencesStorage.remove(anyString());
     }
 
     @Test
@@ -95,10 +135,18 @@ public class IngestionRetryerTest {
         Ingestion retryer = new IngestionRetryer(ingestion, handler);
         simulateRetryAfterDelay(handler);
         retryer.sendAsync(null, null, null, callback);
-        verifyDelay(handler, 0);
+        verifyBackoffDelays(handler, 1, 0);
         verifyNoMoreInteractions(handler);
         verify(callback).onCallSucceeded();
         verifyNoMoreInteractions(callback);
+
+        /* Failure was persisted then reset on success. */
+        verifyStatic();
+        StorageHelper.PreferencesStorage.putInt(PREF_KEY_FAILURE_COUNT + IngestionHttp.DEFAULT_BASE_URL, 1);
+        verifyStatic();
+        StorageHelper.PreferencesStorage.remove(PREF_KEY_FAILURE_COUNT + IngestionHttp.DEFAULT_BASE_URL);
+        verifyStatic();
+        StorageHelper.PreferencesStorage.remove(PREF_KEY_NEXT_ATTEMPT_TIME + IngestionHttp.DEFAULT_BASE_URL);
     }
 
     @Test
@@ -125,7 +173,7 @@ public class IngestionRetryerTest {
         Ingestion retryer = new IngestionRetryer(ingestion, handler);
         simulateRetryAfterDelay(handler);
         retryer.sendAsync(null, null, null, callback);
-        verifyDelay(handler, 0);
+        verifyBackoffDelays(handler, 1, 0);
         verifyNoMoreInteractions(handler);
         verify(callback).onCallFailed(any(Exception.class));
         verify(callback).onCallFailed(expectedException);
@@ -149,13 +197,138 @@ public class IngestionRetryerTest {
         Ingestion retryer = new IngestionRetryer(ingestion, handler);
         simulateRetryAfterDelay(handler);
         retryer.sendAsync(null, null, null, callback);
-        verifyDelay(handler, 0);
-        verifyDelay(handler, 1);
-        verifyDelay(handler, 2);
+        verifyBackoffDelays(handler, MAX_RETRY_COUNT, 0);
         verifyNoMoreInteractions(handler);
+
+        /* Same budget as the former fixed schedule: first try and 3 retries. */
+        verify(ingestion, times(4)).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
         verify(callback).onCallFailed(new HttpException(429));
         verifyNoMoreInteractions(callback);
         verifyNoMoreInteractions(call);
+
+        /* Giving up still counts as a failure for the next calls. */
+        verifyStatic();
+        StorageHelper.PreferencesStorage.putInt(PREF_KEY_FAILURE_COUNT + IngestionHttp.DEFAULT_BASE_URL, MAX_RETRY_COUNT + 1);
+    }
+
+    @Test
+    public void retryAfter() {
+        final ServiceCallback callback = mock(ServiceCallback.class);
+        Ingestion ingestion = mock(Ingestion.class);
+        doAnswer(new Answer<ServiceCall>() {
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocationOnMock) throws Throwable {
+                ((ServiceCallback) invocationOnMock.getArguments()[3]).onCallFailed(new HttpException(503, "", 120000));
+                return mock(ServiceCall.class);
+            }
+        }).doAnswer(new Answer<ServiceCall>() {
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocationOnMock) throws Throwable {
+                ((ServiceCallback) invocationOnMock.getArguments()[3]).onCallSucceeded();
+                return mock(ServiceCall.class);
+            }
+        }).when(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        Handler handler = mock(Handler.class);
+        Ingestion retryer = new IngestionRetryer(ingestion, handler);
+        simulateRetryAfterDelay(handler);
+        retryer.sendAsync(null, null, null, callback);
+        long delay = verifyDelays(handler, 1).get(0);
+        assertTrue(delay >= 120000 && delay <= Math.max(120000, INITIAL_BACKOFF_INTERVAL));
+        verifyStatic();
+        StorageHelper.PreferencesStorage.putLong(PREF_KEY_NEXT_ATTEMPT_TIME + IngestionHttp.DEFAULT_BASE_URL, CURRENT_TIME + delay);
+        verify(callback).onCallSucceeded();
+    }
+
+    @Test
+    public void circuitOpenDoesNotUseRetries() {
+        final ServiceCallback callback = mock(ServiceCallback.class);
+        Ingestion ingestion = mock(Ingestion.class);
+        doAnswer(new Answer<ServiceCall>() {
+
+            private int mCallCount;
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocationOnMock) throws Throwable {
+                ServiceCallback serviceCallback = (ServiceCallback) invocationOnMock.getArguments()[3];
+                if (++mCallCount <= MAX_RETRY_COUNT + 1)
+                    serviceCallback.onCallFailed(new CircuitOpenException(60000));
+                else
+                    serviceCallback.onCallSucceeded();
+                return mock(ServiceCall.class);
+            }
+        }).when(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        Handler handler = mock(Handler.class);
+        Ingestion retryer = new IngestionRetryer(ingestion, handler);
+        simulateRetryAfterDelay(handler);
+        retryer.sendAsync(null, null, null, callback);
+
+        /* Calls not sent by the circuit breaker are sent again when it may let them through, more times than the retry budget. */
+        List<Long> delays = verifyDelays(handler, MAX_RETRY_COUNT + 1);
+        for (long delay : delays)
+            assertEquals(60000, delay);
+        verify(callback).onCallSucceeded();
+        verifyNoMoreInteractions(callback);
+
+        /* They are not failures for the backoff state. */
+        verifyStatic(never());
+        StorageHelper.PreferencesStorage.putInt(anyString(), anyInt());
+        verifyStatic(never());
+        StorageHelper.PreferencesStorage.putLong(anyString(), anyLong());
+    }
+
+    @Test
+    public void persistedBackoff() {
+        String serverUrl = "http://someServerUrl";
+        when(StorageHelper.PreferencesStorage.getInt(PREF_KEY_FAILURE_COUNT + serverUrl, 0)).thenReturn(3);
+        when(StorageHelper.PreferencesStorage.getLong(PREF_KEY_NEXT_ATTEMPT_TIME + serverUrl, 0)).thenReturn(CURRENT_TIME + 60000);
+        ServiceCallback callback = mock(ServiceCallback.class);
+        Ingestion ingestion = mock(Ingestion.class);
+        doAnswer(new Answer<ServiceCall>() {
+
+            @Override
+            public ServiceCall answer(InvocationOnMock invocationOnMock) throws Throwable {
+                ((ServiceCallback) invocationOnMock.getArguments()[3]).onCallFailed(new SocketException());
+                return mock(ServiceCall.class);
+            }
+        }).when(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        Handler handler = mock(Handler.class);
+        Ingestion retryer = new IngestionRetryer(ingestion, handler);
+        retryer.setServerUrl(serverUrl);
+
+        /* First call waits for the backoff of a previous process. */
+        retryer.sendAsync(null, null, null, callback);
+        ArgumentCaptor<Runnable> runnable = ArgumentCaptor.forClass(Runnable.class);
+        verify(handler).postDelayed(runnable.capture(), eq(60000L));
+        verify(ingestion, never()).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+
+        /* Failure continues the exponential backoff where it was. */
+        runnable.getValue().run();
+        verify(ingestion).sendAsync(anyString(), any(UUID.class), any(LogContainer.class), any(ServiceCallback.class));
+        List<Long> delays = verifyDelays(handler, 2);
+        assertEquals(60000L, (long) delays.get(0));
+        assertTrue(delays.get(1) <= INITIAL_BACKOFF_INTERVAL << 3);
+        verifyStatic();
+        StorageHelper.PreferencesStorage.putInt(PREF_KEY_FAILURE_COUNT + serverUrl, 4);
+        verifyStatic(never());
+        StorageHelper.PreferencesStorage.putInt(eq(PREF_KEY_FAILURE_COUNT + IngestionHttp.DEFAULT_BASE_URL), anyInt());
+        verifyNoMoreInteractions(callback);
+    }
+
+    @Test
+    public void cancelWhileBackingOff() {
+        when(StorageHelper.PreferencesStorage.getLong(PREF_KEY_NEXT_ATTEMPT_TIME + IngestionHttp.DEFAULT_BASE_URL, 0)).thenReturn(CURRENT_TIME + 60000);
+        ServiceCallback callback = mock(ServiceCallback.class);
+        Ingestion ingestion = mock(Ingestion.class);
+        Handler handler = mock(Handler.class);
+        Ingestion retryer = new IngestionRetryer(ingestion, handler);
+        ServiceCall call = retryer.sendAsync(null, null, null, callback);
+        call.cancel();
+        verify(handler).postDelayed(any(Runnable.class), eq(60000L));
+        verify(handler).removeCallbacks(any(Runnable.class));
+        verifyNoMoreInteractions(ingestion);
+        verifyNoMoreInteractions(callback);
     }
 
     @Test
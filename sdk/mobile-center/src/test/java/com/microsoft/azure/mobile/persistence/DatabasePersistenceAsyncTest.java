@@ -8,6 +8,7 @@ import com.microsoft.azure.mobile.utils.MobileCenterLog;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -16,19 +17,25 @@ import org.powermock.modules.junit4.rule.PowerMockRule;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -91,6 +98,167 @@ public class DatabasePersistenceAsyncTest {
         verify(mCallback).onFailure(notNull(Persistence.PersistenceException.class));
     }
 
+    @Test
+    public void putLogsCoalesced() throws Persistence.PersistenceException {
+
+        /* Hold tasks to simulate a busy persistence thread. */
+        final List<Runnable> tasks = new ArrayList<>();
+        doAnswer(new Answer() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                tasks.add((Runnable) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(mHandler).post(any(Runnable.class));
+
+        /* Put logs in 2 groups then another operation then another log. */
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        Log log4 = mock(Log.class);
+        mDatabase.putLog(GROUP, log1, mCallback);
+        mDatabase.putLog(GROUP, log2, mCallback);
+        mDatabase.putLog("other", log3, mCallback);
+        mDatabase.deleteLogs(GROUP);
+        mDatabase.putLog(GROUP, log4, mCallback);
+
+        /* Logs put after another operation are not coalesced with logs put before. */
+        assertEquals(3, tasks.size());
+        for (Runnable task : tasks)
+            task.run();
+        InOrder inOrder = inOrder(mPersistence);
+        inOrder.verify(mPersistence).putLogs(GROUP, Arrays.asList(log1, log2));
+        inOrder.verify(mPersistence).putLog("other", log3);
+        inOrder.verify(mPersistence).deleteLogs(GROUP);
+        inOrder.verify(mPersistence).putLog(GROUP, log4);
+        verify(mCallback, times(4)).onSuccess(null);
+    }
+
+    @Test
+    public void putLogsCoalescedFailure() throws Persistence.PersistenceException {
+
+        /* Hold tasks to simulate a busy persistence thread. */
+        final List<Runnable> tasks = new ArrayList<>();
+        doAnswer(new Answer() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                tasks.add((Runnable) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(mHandler).post(any(Runnable.class));
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        doThrow(new Persistence.PersistenceException("", new IOException())).when(mPersistence).putLogs(anyString(), anyListOf(Log.class));
+        doThrow(new Persistence.PersistenceException("", new IOException())).when(mPersistence).putLog(GROUP, log2);
+        mDatabase.putLog(GROUP, log1, mCallback);
+        mDatabase.putLog(GROUP, log2, mCallback);
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+
+        /* Falls back to writing one by one, only the invalid log fails. */
+        verify(mPersistence).putLog(GROUP, log1);
+        verify(mPersistence).putLog(GROUP, log2);
+        verify(mCallback).onSuccess(null);
+        verify(mCallback).onFailure(notNull(Persistence.PersistenceException.class));
+    }
+
+    @Test
+    public void putLogsCoalescedPartialFailure() throws Persistence.PersistenceException {
+
+        /* Persistence writing logs one by one, not in a transaction. */
+        List<Runnable> tasks = holdTasks();
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        Log log3 = mock(Log.class);
+        doCallRealMethod().when(mPersistence).putLogs(anyString(), anyListOf(Log.class));
+        doThrow(new Persistence.PersistenceException("", new IOException())).when(mPersistence).putLog(GROUP, log2);
+        mDatabase.putLog(GROUP, log1, mCallback);
+        mDatabase.putLog(GROUP, log2, mCallback);
+        mDatabase.putLog(GROUP, log3, mCallback);
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+
+        /* Log written before the failure is not written again. */
+        verify(mPersistence).putLog(GROUP, log1);
+        verify(mPersistence, times(2)).putLog(GROUP, log2);
+        verify(mPersistence).putLog(GROUP, log3);
+        verify(mCallback, times(2)).onSuccess(null);
+        verify(mCallback).onFailure(notNull(Persistence.PersistenceException.class));
+    }
+
+    private List<Runnable> holdTasks() {
+        final List<Runnable> tasks = new ArrayList<>();
+        doAnswer(new Answer() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                tasks.add((Runnable) invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(mHandler).post(any(Runnable.class));
+        return tasks;
+    }
+
+    @Test
+    public void groupPriority() throws Persistence.PersistenceException {
+        List<Runnable> tasks = holdTasks();
+        mDatabase.setGroupPriority("crash", 10);
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        mDatabase.countLogs(GROUP, mCallback);
+        mDatabase.putLog(GROUP, log1, mCallback);
+        mDatabase.countLogs("crash", mCallback);
+        mDatabase.putLog("crash", log2, mCallback);
+        mDatabase.clearPendingLogState();
+        mDatabase.countLogs("crash", mCallback);
+        assertEquals(6, tasks.size());
+        for (Runnable task : tasks)
+            task.run();
+
+        /* Higher priority first, but not across an operation on all groups. */
+        InOrder inOrder = inOrder(mPersistence);
+        inOrder.verify(mPersistence).countLogs("crash");
+        inOrder.verify(mPersistence).putLog("crash", log2);
+        inOrder.verify(mPersistence).countLogs(GROUP);
+        inOrder.verify(mPersistence).putLog(GROUP, log1);
+        inOrder.verify(mPersistence).clearPendingLogState();
+        inOrder.verify(mPersistence).countLogs("crash");
+    }
+
+    @Test
+    public void lowerPriorityNotStarved() {
+        List<Runnable> tasks = holdTasks();
+        mDatabase.setGroupPriority("crash", 10);
+        mDatabase.countLogs(GROUP, mCallback);
+        for (int i = 0; i < DatabasePersistenceAsync.MAX_PRIORITY_STREAK + 2; i++)
+            mDatabase.countLogs("crash", mCallback);
+        for (Runnable task : tasks)
+            task.run();
+        InOrder inOrder = inOrder(mPersistence);
+        inOrder.verify(mPersistence, times(DatabasePersistenceAsync.MAX_PRIORITY_STREAK)).countLogs("crash");
+        inOrder.verify(mPersistence).countLogs(GROUP);
+        inOrder.verify(mPersistence, times(2)).countLogs("crash");
+    }
+
+    @Test
+    public void priorityChangeKeepsGroupOrder() {
+        List<Runnable> tasks = holdTasks();
+        mDatabase.countLogs("other", mCallback);
+        mDatabase.countLogs(GROUP, mCallback);
+        mDatabase.setGroupPriority(GROUP, 10);
+        mDatabase.deleteLogs(GROUP);
+        mDatabase.countLogs("other", mCallback);
+        for (Runnable task : tasks)
+            task.run();
+        InOrder inOrder = inOrder(mPersistence);
+        inOrder.verify(mPersistence).countLogs("other");
+        inOrder.verify(mPersistence).countLogs(GROUP);
+        inOrder.verify(mPersistence).deleteLogs(GROUP);
+        inOrder.verify(mPersistence).countLogs("other");
+    }
+
     @Test
     public void deleteLogsById() {
         mDatabase.deleteLogs(GROUP, "id");
@@ -137,6 +305,32 @@ public class DatabasePersistenceAsyncTest {
         verify(mCallback).onSuccess(batchId);
     }
 
+    @Test
+    public void getLogsWithMaxBytes() {
+        int limit = 35;
+        List<Log> outLogs = new ArrayList<>();
+        String batchId = UUID.randomUUID().toString();
+        when(mPersistence.getLogs(GROUP, limit, 1024, outLogs)).thenReturn(batchId);
+        mDatabase.getLogs(GROUP, limit, 1024, outLogs, mCallback);
+        verify(mPersistence).getLogs(GROUP, limit, 1024, outLogs);
+        verify(mCallback).onSuccess(batchId);
+    }
+
+    @Test
+    public void getRawLogs() {
+        int limit = 35;
+        List<String> outRawLogs = new ArrayList<>();
+        String batchId = UUID.randomUUID().toString();
+        when(mPersistence.getRawLogs(GROUP, limit, outRawLogs)).thenReturn(batchId);
+        mDatabase.getRawLogs(GROUP, limit, outRawLogs, mCallback);
+        verify(mPersistence).getRawLogs(GROUP, limit, outRawLogs);
+        verify(mCallback).onSuccess(batchId);
+        when(mPersistence.getRawLogs(GROUP, limit, 1024, outRawLogs)).thenReturn(batchId);
+        mDatabase.getRawLogs(GROUP, limit, 1024, outRawLogs, mCallback);
+        verify(mPersistence).getRawLogs(GROUP, limit, 1024, outRawLogs);
+        verify(mCallback, times(2)).onSuccess(batchId);
+    }
+
     @Test
     public void clearPendingLogState() {
         mDatabase.clearPendingLogState();
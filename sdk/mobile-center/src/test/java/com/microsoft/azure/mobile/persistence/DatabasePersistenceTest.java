@@ -6,6 +6,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 
 import com.microsoft.azure.mobile.MobileCenter;
+import com.microsoft.azure.mobile.ingestion.models.Device;
 import com.microsoft.azure.mobile.ingestion.models.Log;
 import com.microsoft.azure.mobile.ingestion.models.json.DefaultLogSerializer;
 import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
@@ -17,6 +18,7 @@ import org.json.JSONException;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
@@ -24,15 +26,23 @@ import org.powermock.modules.junit4.rule.PowerMockRule;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import static com.microsoft.azure.mobile.persistence.DatabasePersistence.COLUMN_GROUP;
 import static com.microsoft.azure.mobile.persistence.DatabasePersistenceAsync.THREAD_NAME;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
@@ -140,12 +150,12 @@ public class DatabasePersistenceTest {
         mockStatic(StorageHelper.DatabaseStorage.class);
         StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
         when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
-                anyInt(), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+                anyInt(), any(String[].class), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
 
         for (int i = 0; i < groupCount; i++) {
             StorageHelper.DatabaseStorage.DatabaseScanner mockDatabaseScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
             when(mockDatabaseScanner.iterator()).thenReturn(list.get(i).iterator());
-            when(mockDatabaseStorage.getScanner(COLUMN_GROUP, String.valueOf(i))).thenReturn(mockDatabaseScanner);
+            when(mockDatabaseStorage.getScanner(eq(COLUMN_GROUP), eq(String.valueOf(i)), anyLong(), anyInt())).thenReturn(mockDatabaseScanner);
         }
 
         LogSerializer mockLogSerializer = mock(LogSerializer.class);
@@ -163,10 +173,169 @@ public class DatabasePersistenceTest {
         /* Verify there are 4 pending groups. */
         assertEquals(groupCount, persistence.mPendingDbIdentifiersGroups.size());
         assertEquals(groupCount * logCount, persistence.mPendingDbIdentifiers.size());
+        assertEquals(groupCount, persistence.mLastDbIdentifiers.size());
 
         /* Clear all pending groups and verify. */
         persistence.clearPendingLogState();
         assertEquals(0, persistence.mPendingDbIdentifiersGroups.size());
         assertEquals(0, persistence.mPendingDbIdentifiers.size());
+        assertEquals(0, persistence.mLastDbIdentifiers.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void getLogsResumesAfterLastIdentifier() throws JSONException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(String[].class), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.deserializeLog(anyString())).thenReturn(mock(Log.class));
+
+        /* First page returns logs 1 and 2, second page returns log 3 only. */
+        List<ContentValues> firstPage = new ArrayList<>();
+        List<ContentValues> secondPage = new ArrayList<>();
+        for (long l = 1; l <= 3; l++) {
+            ContentValues values = mock(ContentValues.class);
+            when(values.getAsLong(DatabaseManager.PRIMARY_KEY)).thenReturn(l);
+            when(values.getAsString(DatabasePersistence.COLUMN_LOG)).thenReturn("{}");
+            (l <= 2 ? firstPage : secondPage).add(values);
+        }
+        StorageHelper.DatabaseStorage.DatabaseScanner firstScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(firstScanner.iterator()).thenReturn(firstPage.iterator());
+        when(mockDatabaseStorage.getScanner(COLUMN_GROUP, "test-p1", -1, 2)).thenReturn(firstScanner);
+        StorageHelper.DatabaseStorage.DatabaseScanner secondScanner = mock(StorageHelper.DatabaseStorage.DatabaseScanner.class);
+        when(secondScanner.iterator()).thenReturn(secondPage.iterator());
+        when(mockDatabaseStorage.getScanner(COLUMN_GROUP, "test-p1", 2, 2)).thenReturn(secondScanner);
+
+        /* Instantiate Database Persistence. */
+        DatabasePersistence persistence = new DatabasePersistence();
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* Get 2 batches: the second one starts after the last identifier of the first one. */
+        List<Log> outLogs = new ArrayList<>();
+        assertNotNull(persistence.getLogs("test-p1", 2, outLogs));
+        assertEquals(2, outLogs.size());
+        outLogs.clear();
+        assertNotNull(persistence.getLogs("test-p1", 2, outLogs));
+        assertEquals(1, outLogs.size());
+        assertEquals(Long.valueOf(3), persistence.mLastDbIdentifiers.get("test-p1"));
+        verify(mockDatabaseStorage, never()).getScanner(COLUMN_GROUP, "test-p1");
+
+        /* Deleting all logs of the group restarts pagination. */
+        persistence.deleteLogs("test-p1");
+        assertNull(persistence.mLastDbIdentifiers.get("test-p1"));
+    }
+
+    @Test
+    public void countLogsCached() throws Persistence.PersistenceException, JSONException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(anyString(), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(String[].class), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        when(mockDatabaseStorage.count(COLUMN_GROUP, "test-p1")).thenReturn(2L);
+        when(mockDatabaseStorage.count(COLUMN_GROUP, "test-p2")).thenReturn(0L);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+
+        /* Instantiate Database Persistence with a capacity of 3 logs. */
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "countLogsCached", 1, 3);
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* Count twice, database is queried only once. */
+        assertEquals(2, persistence.countLogs("test-p1"));
+        assertEquals(2, persistence.countLogs("test-p1"));
+        verify(mockDatabaseStorage).count(COLUMN_GROUP, "test-p1");
+
+        /* Put a log, the cached count is incremented without a new query. */
+        persistence.putLog("test-p1", mock(Log.class));
+        assertEquals(3, persistence.countLogs("test-p1"));
+        verify(mockDatabaseStorage).count(COLUMN_GROUP, "test-p1");
+
+        /* Put a log of another group beyond capacity, the oldest log is purged: counts are updated without a new query. */
+        assertEquals(0, persistence.countLogs("test-p2"));
+        doAnswer(getPurgeAnswer("test-p1", 1)).when(mockDatabaseStorage).put(any(ContentValues.class), eq(COLUMN_GROUP), anyMapOf(String.class, Integer.class));
+        persistence.putLog("test-p2", mock(Log.class));
+        assertEquals(2, persistence.countLogs("test-p1"));
+        assertEquals(1, persistence.countLogs("test-p2"));
+
+        /* Same when putting several logs at once. */
+        doAnswer(getPurgeAnswer("test-p1", 2)).when(mockDatabaseStorage).put(anyListOf(ContentValues.class), eq(COLUMN_GROUP), anyMapOf(String.class, Integer.class));
+        persistence.putLogs("test-p2", Arrays.asList(mock(Log.class), mock(Log.class)));
+        assertEquals(0, persistence.countLogs("test-p1"));
+        assertEquals(3, persistence.countLogs("test-p2"));
+        verify(mockDatabaseStorage).count(COLUMN_GROUP, "test-p1");
+        verify(mockDatabaseStorage).count(COLUMN_GROUP, "test-p2");
+
+        /* Delete all logs of the group, count is known without a query. */
+        when(mockDatabaseStorage.delete(COLUMN_GROUP, "test-p1")).thenReturn(3);
+        persistence.deleteLogs("test-p1");
+        assertEquals(0, persistence.countLogs("test-p1"));
+        verify(mockDatabaseStorage).count(COLUMN_GROUP, "test-p1");
+    }
+
+    @Test
+    public void devicesInlineWhenDeviceStorageInMemory() throws Persistence.PersistenceException, JSONException {
+
+        /* Mock instances. */
+        mockStatic(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDatabaseStorage = mock(StorageHelper.DatabaseStorage.class);
+        StorageHelper.DatabaseStorage mockDeviceStorage = mock(StorageHelper.DatabaseStorage.class);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(eq("test-persistence"), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(String[].class), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDatabaseStorage);
+        when(StorageHelper.DatabaseStorage.getDatabaseStorage(eq("test-persistence.devices"), anyString(), anyInt(), any(ContentValues.class),
+                anyInt(), any(String[].class), any(StorageHelper.DatabaseStorage.DatabaseErrorListener.class))).thenReturn(mockDeviceStorage);
+        LogSerializer mockLogSerializer = mock(LogSerializer.class);
+        when(mockLogSerializer.serializeLog(any(Log.class))).thenReturn("{}");
+        DatabasePersistence persistence = new DatabasePersistence("test-persistence", "devicesInline", 1);
+        persistence.setLogSerializer(mockLogSerializer);
+
+        /* Device snapshots are not purged by the storage. */
+        ArgumentCaptor<StorageHelper.DatabaseStorage.DatabaseErrorListener> deviceErrorListener = ArgumentCaptor.forClass(StorageHelper.DatabaseStorage.DatabaseErrorListener.class);
+        verifyStatic();
+        StorageHelper.DatabaseStorage.getDatabaseStorage(eq("test-persistence.devices"), anyString(), anyInt(), any(ContentValues.class),
+                eq(0), any(String[].class), deviceErrorListener.capture());
+
+        /* Device storage falls back to memory. */
+        deviceErrorListener.getValue().onError("put", new RuntimeException());
+
+        /* Device is serialized with the log instead of being stored as a snapshot. */
+        Log log = mock(Log.class);
+        when(log.getDevice()).thenReturn(mock(Device.class));
+        persistence.putLog("test-p1", log);
+        verify(mockLogSerializer).serializeLog(log);
+        verify(log, never()).setDevice(any(Device.class));
+        verify(mockDeviceStorage, never()).count(anyString(), any());
+        verify(mockDeviceStorage, never()).put(any(ContentValues.class));
+    }
+
+    /**
+     * Get an answer that reports logs of a group as purged by a put.
+     */
+    private static Answer<Object> getPurgeAnswer(final String group, final int purgedCount) {
+        return new Answer<Object>() {
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Map<String, Integer>) invocation.getArguments()[2]).put(group, purgedCount);
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void utf8Size() {
+        assertEquals(0, DatabasePersistence.getUtf8Size(""));
+        assertEquals(5, DatabasePersistence.getUtf8Size("{\"a\"}"));
+        assertEquals(2, DatabasePersistence.getUtf8Size("\u00e9"));
+        assertEquals(3, DatabasePersistence.getUtf8Size("\u20ac"));
+        assertEquals(4, DatabasePersistence.getUtf8Size("\ud83d\ude00"));
+
+        /* Unpaired surrogate is replaced by a 3 bytes character. */
+        assertEquals(4, DatabasePersistence.getUtf8Size("\ud83da"));
+    }
+}
@@ -0,0 +1,113 @@
+package com.microsoft.azure.mobile.persistence;
+
+import com.microsoft.azure.mobile.ingestion.models.Log;
+import com.microsoft.azure.mobile.ingestion.models.json.LogSerializer;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doCallRealMethod;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+public class PersistenceTest {
+
+    @Test
+    public void putLogsDefault() throws Persistence.PersistenceException {
+        Persistence persistence = mock(Persistence.class);
+        doCallRealMethod().when(persistence).putLogs(anyString(), any(List.class));
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        persistence.putLogs("test", Arrays.asList(log1, log2));
+        verify(persistence).putLog("test", log1);
+        verify(persistence).putLog("test", log2);
+    }
+
+    @Test(expected = Persistence.PersistenceException.class)
+    public void putLogsDefaultStopsOnFailure() throws Persistence.PersistenceException {
+        Persistence persistence = mock(Persistence.class);
+        doCallRealMethod().when(persistence).putLogs(anyString(), any(List.class));
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        doThrow(new Persistence.PersistenceException("mock", null)).when(persistence).putLog("test", log1);
+        try {
+            persistence.putLogs("test", Arrays.asList(log1, log2));
+        } finally {
+            verify(persistence, never()).putLog("test", log2);
+        }
+    }
+
+    @Test
+    public void putLogsDefaultReportsWrittenLogs() throws Persistence.PersistenceException {
+        Persistence persistence = mock(Persistence.class);
+        doCallRealMethod().when(persistence).putLogs(anyString(), any(List.class));
+        Log log1 = mock(Log.class);
+        Log log2 = mock(Log.class);
+        doThrow(new Persistence.PersistenceException("mock", null)).when(persistence).putLog("test", log2);
+        try {
+            persistence.putLogs("test", Arrays.asList(log1, log2));
+            fail();
+        } catch (Persistence.PartialWriteException e) {
+            assertEquals(1, e.getWrittenCount());
+        }
+    }
+
+    @Test
+    public void getRawLogsDefault() throws JSONException {
+        Persistence persistence = mock(Persistence.class);
+        doCallRealMethod().when(persistence).getRawLogs(anyString(), anyInt(), any(List.class));
+        doCallRealMethod().when(persistence).getRawLogs(anyString(), anyInt(), anyInt(), any(List.class));
+        doCallRealMethod().when(persistence).setLogSerializer(any(LogSerializer.class));
+        doCallRealMethod().when(persistence).getLogSerializer();
+        doCallRealMethod().when(persistence).hasRawLogs();
+        final Log log1 = mock(Log.class);
+        final Log log2 = mock(Log.class);
+        Answer<String> getLogsAnswer = new Answer<String>() {
+
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                List<Log> logs = (List<Log>) invocation.getArguments()[invocation.getArguments().length - 1];
+                logs.add(log1);
+                logs.add(log2);
+                return "batch";
+            }
+        };
+        when(persistence.getLogs(anyString(), anyInt(), any(List.class))).then(getLogsAnswer);
+        when(persistence.getLogs(anyString(), anyInt(), anyInt(), any(List.class))).then(getLogsAnswer);
+        LogSerializer logSerializer = mock(LogSerializer.class);
+        when(logSerializer.serializeLog(log1)).thenReturn("log1");
+        when(logSerializer.serializeLog(log2)).thenThrow(new JSONException("mock"));
+        persistence.setLogSerializer(logSerializer);
+        assertFalse(persistence.hasRawLogs());
+
+        /* Logs read then serialized, the one that cannot be serialized is skipped. */
+        List<String> rawLogs = new ArrayList<>();
+        assertEquals("batch", persistence.getRawLogs("test", 2, rawLogs));
+        assertEquals(Collections.singletonList("log1"), rawLogs);
+        verify(persistence).getLogs(eq("test"), eq(2), any(List.class));
+
+        /* Same with a size limit. */
+        rawLogs.clear();
+        assertEquals("batch", persistence.getRawLogs("test", 2, 100, rawLogs));
+        assertEquals(Collections.singletonList("log1"), rawLogs);
+        verify(persistence).getLogs(eq("test"), eq(2), eq(100), any(List.class));
+    }
+}
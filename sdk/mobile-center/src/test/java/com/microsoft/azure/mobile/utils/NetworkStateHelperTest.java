@@ -6,16 +6,20 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Build;
+import android.telephony.TelephonyManager;
 
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.powermock.reflect.Whitebox;
 
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Mockito.mock;
@@ -123,4 +127,64 @@ public class NetworkStateHelperTest {
         verifyNoMoreInteractions(listener2);
         verifyNoMoreInteractions(listener3);
     }
+
+    private static NetworkStateHelper getHelper(int type, int subtype, boolean metered) {
+        Context context = mock(Context.class);
+        ConnectivityManager connectivityManager = mock(ConnectivityManager.class);
+        NetworkInfo networkInfo = mock(NetworkInfo.class);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(connectivityManager);
+        when(connectivityManager.getActiveNetworkInfo()).thenReturn(networkInfo);
+        when(connectivityManager.isActiveNetworkMetered()).thenReturn(metered);
+        when(networkInfo.getState()).thenReturn(NetworkInfo.State.CONNECTED);
+        when(networkInfo.getType()).thenReturn(type);
+        when(networkInfo.getSubtype()).thenReturn(subtype);
+        return new NetworkStateHelper(context);
+    }
+
+    @Test
+    public void networkQuality() {
+        Whitebox.setInternalState(Build.VERSION.class, "SDK_INT", Build.VERSION_CODES.JELLY_BEAN);
+
+        /* Wi-Fi. */
+        NetworkStateHelper helper = getHelper(ConnectivityManager.TYPE_WIFI, 0, false);
+        assertEquals(ConnectivityManager.TYPE_WIFI, helper.getConnectionType());
+        assertFalse(helper.isNetworkMetered());
+        assertFalse(helper.isNetworkSlow());
+        assertFalse(helper.isNetworkConstrained());
+
+        /* Metered Wi-Fi hotspot. */
+        helper = getHelper(ConnectivityManager.TYPE_WIFI, 0, true);
+        assertTrue(helper.isNetworkMetered());
+        assertFalse(helper.isNetworkConstrained());
+
+        /* LTE. */
+        helper = getHelper(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_LTE, true);
+        assertEquals(ConnectivityManager.TYPE_MOBILE, helper.getConnectionType());
+        assertTrue(helper.isNetworkMetered());
+        assertFalse(helper.isNetworkSlow());
+        assertFalse(helper.isNetworkConstrained());
+
+        /* EDGE. */
+        helper = getHelper(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_EDGE, true);
+        assertTrue(helper.isNetworkSlow());
+        assertTrue(helper.isNetworkConstrained());
+
+        /* Before metered networks API, mobile is metered. */
+        Whitebox.setInternalState(Build.VERSION.class, "SDK_INT", Build.VERSION_CODES.ICE_CREAM_SANDWICH);
+        helper = getHelper(ConnectivityManager.TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_GPRS, false);
+        assertTrue(helper.isNetworkMetered());
+        assertTrue(helper.isNetworkConstrained());
+        helper = getHelper(ConnectivityManager.TYPE_ETHERNET, 0, true);
+        assertFalse(helper.isNetworkMetered());
+    }
+
+    @Test
+    public void disconnectedQuality() {
+        Context context = mock(Context.class);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(mock(ConnectivityManager.class));
+        NetworkStateHelper helper = new NetworkStateHelper(context);
+        assertEquals(NetworkStateHelper.TYPE_NONE, helper.getConnectionType());
+        assertFalse(helper.isNetworkMetered());
+        assertFalse(helper.isNetworkSlow());
+    }
 }
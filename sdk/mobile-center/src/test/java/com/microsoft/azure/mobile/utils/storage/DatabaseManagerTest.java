@@ -9,26 +9,35 @@ import android.database.sqlite.SQLiteQueryBuilder;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.internal.stubbing.answers.Returns;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -219,6 +228,32 @@ public class DatabaseManagerTest {
         assertFalse(databaseManagerMock.update(0, new ContentValues()));
     }
 
+    @Test
+    public void deleteChunked() {
+        DatabaseManager databaseManagerMock = spy(new DatabaseManager(null, "database", "table", 1, null, null));
+        SQLiteDatabase sqliteDatabaseMock = mock(SQLiteDatabase.class);
+        when(databaseManagerMock.getDatabase()).thenReturn(sqliteDatabaseMock);
+        when(sqliteDatabaseMock.delete(anyString(), anyString(), any(String[].class))).thenReturn(DatabaseManager.MAX_SELECTION_ARGS, 1);
+
+        /* Delete one more identifier than a statement can bind. */
+        List<Long> idList = new ArrayList<>();
+        for (long id = 0; id <= DatabaseManager.MAX_SELECTION_ARGS; id++)
+            idList.add(id);
+        assertEquals(DatabaseManager.MAX_SELECTION_ARGS + 1, databaseManagerMock.delete(idList));
+
+        /* Verify 2 statements in a single transaction. */
+        ArgumentCaptor<String[]> selectionArgs = ArgumentCaptor.forClass(String[].class);
+        InOrder inOrder = inOrder(sqliteDatabaseMock);
+        inOrder.verify(sqliteDatabaseMock).beginTransaction();
+        inOrder.verify(sqliteDatabaseMock, times(2)).delete(eq("table"), anyString(), selectionArgs.capture());
+        inOrder.verify(sqliteDatabaseMock).setTransactionSuccessful();
+        inOrder.verify(sqliteDatabaseMock).endTransaction();
+        assertEquals(DatabaseManager.MAX_SELECTION_ARGS, selectionArgs.getAllValues().get(0).length);
+        assertEquals(1, selectionArgs.getAllValues().get(1).length);
+        assertEquals(String.valueOf(DatabaseManager.MAX_SELECTION_ARGS), selectionArgs.getAllValues().get(1)[0]);
+        verify(databaseManagerMock, never()).switchToInMemory(anyString(), any(RuntimeException.class));
+    }
+
     @Test(expected = UnsupportedOperationException.class)
     public void scannerRemoveInMemoryDB() {
         DatabaseManager databaseManagerMock;
@@ -309,4 +344,31 @@ public class DatabaseManagerTest {
         assertNotNull(databaseManager.get(value2Id));
         assertNotNull(databaseManager.get(value3Id));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void inMemoryEvictionPurgedCounts() {
+
+        /* Instantiate real instance for DatabaseManager. */
+        DatabaseManager databaseManager = spy(new DatabaseManager(mock(Context.class), "database", "table", 1, null, 2, null));
+        databaseManager.switchToInMemory("test", null);
+        ContentValues value1 = mock(ContentValues.class);
+        ContentValues value2 = mock(ContentValues.class);
+        ContentValues value3 = mock(ContentValues.class);
+        ContentValues value4 = mock(ContentValues.class);
+        when(value1.getAsString("group")).thenReturn("g1");
+        when(value2.getAsString("group")).thenReturn("g2");
+
+        /* Nothing purged until the limit is hit. */
+        Map<String, Integer> purgedCounts = new HashMap<>();
+        databaseManager.put(Arrays.asList(value1, value2), "group", purgedCounts);
+        assertTrue(purgedCounts.isEmpty());
+
+        /* Eldest entries are reported by group. */
+        databaseManager.put(value3, "group", purgedCounts);
+        assertEquals(Collections.singletonMap("g1", 1), purgedCounts);
+        purgedCounts.clear();
+        databaseManager.put(Collections.singletonList(value4), "group", purgedCounts);
+        assertEquals(Collections.singletonMap("g2", 1), purgedCounts);
+        assertEquals(2, databaseManager.getRowCount());
+    }
+}